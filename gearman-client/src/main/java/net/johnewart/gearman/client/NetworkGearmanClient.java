@@ -67,6 +67,16 @@ public class NetworkGearmanClient extends AbstractGearmanClient {
         this.addHostToList(host, 4730);
     }
 
+    /**
+     * Use a server on this host through its Unix domain socket.
+     * Experimental, currently slower than TCP loopback; see
+     * {@link Connection#forUnixSocket(String)}.
+     */
+    public void addUnixSocket(String socketPath)
+    {
+        connectionPool.addConnection(Connection.forUnixSocket(socketPath));
+    }
+
     public void close()
     {
         connectionPool.cleanup();
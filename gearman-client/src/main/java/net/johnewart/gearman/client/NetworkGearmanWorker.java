@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -19,7 +20,9 @@ import net.johnewart.gearman.common.interfaces.GearmanFunction;
 import net.johnewart.gearman.common.interfaces.GearmanWorker;
 import net.johnewart.gearman.common.packets.Packet;
 import net.johnewart.gearman.common.packets.request.CanDo;
+import net.johnewart.gearman.common.packets.request.EchoRequest;
 import net.johnewart.gearman.common.packets.request.GrabJob;
+import net.johnewart.gearman.common.packets.request.OptionRequest;
 import net.johnewart.gearman.common.packets.request.PreSleep;
 import net.johnewart.gearman.constants.PacketType;
 import net.johnewart.gearman.net.Connection;
@@ -33,12 +36,21 @@ public class NetworkGearmanWorker implements GearmanWorker, Runnable {
     private static Logger LOG = LoggerFactory.getLogger(NetworkGearmanWorker.class);
     private final Map<Job, Connection> jobConnectionMap;
 
+    // How long to wait on one connection for a pushed job before moving on
+    private static final int PUSH_POLL_TIMEOUT_MS = 250;
+
+    // Credits granted to each server when using pushed dispatch, 0 to GRAB_JOB
+    private int pushCredits;
+    // Connections whose server refused pushed dispatch
+    private final Set<Connection> grabConnections;
+
     private NetworkGearmanWorker()
     {
         this.connectionPool = new ConnectionPool();
         this.callbacks = new HashMap<>();
         this.isActive = new AtomicBoolean(true);
         this.jobConnectionMap = new ConcurrentHashMap<>();
+        this.grabConnections = ConcurrentHashMap.newKeySet();
     }
 
     private NetworkGearmanWorker(NetworkGearmanWorker other)
@@ -47,6 +59,8 @@ public class NetworkGearmanWorker implements GearmanWorker, Runnable {
         this.callbacks = other.callbacks;
         this.jobConnectionMap = other.jobConnectionMap;
         this.isActive = new AtomicBoolean(true);
+        this.pushCredits = other.pushCredits;
+        this.grabConnections = other.grabConnections;
     }
 
     @Override
@@ -62,53 +76,151 @@ public class NetworkGearmanWorker implements GearmanWorker, Runnable {
         while(isActive.get()) {
             for(Connection c : connectionPool.getGoodConnectionList()) {
                 LOG.debug("Trying " + c.toString());
-                Job nextJob = null;
-
-                try {
-                    c.sendPacket(new GrabJob());
-                    Packet p = c.getNextPacket();
-                    byte[] result;
-
-                    switch(p.getType()) {
-                        case JOB_ASSIGN:
-                            JobAssign jobAssign = (JobAssign)p;
-                            nextJob = jobAssign.getJob();
-                            break;
-                        case JOB_ASSIGN_UNIQ:
-                            JobAssignUniq jobAssignUniq = (JobAssignUniq)p;
-                            nextJob = jobAssignUniq.getJob();
-                            break;
-                        case NO_JOB:
-                            LOG.info("Worker sending PRE_SLEEP and sleeping for 30 seconds...");
-                            c.sendPacket(new PreSleep());
-                            try {
-                                Packet noop = c.getNextPacket(30 * 1000);
-                                if(noop.getType() != PacketType.NOOP) {
-                                    LOG.error("Received invalid packet. Expected NOOP, received " + noop.getType());
-                                }
-                            } catch (SocketTimeoutException e) {
-                                LOG.warn("Socket timed out waiting for next packet...");
-                            }
-                            break;
+
+                if (pushCredits > 0 && !grabConnections.contains(c)) {
+                    receivePushedJob(c);
+                } else {
+                    grabJob(c);
+                }
+            }
+        }
+        LOG.debug("Worker has been stopped.");
+    }
+
+    private void grabJob(Connection c)
+    {
+        Job nextJob = null;
+
+        try {
+            c.sendPacket(new GrabJob());
+            Packet p = nextPacket(c, 0);
+
+            switch(p.getType()) {
+                case JOB_ASSIGN:
+                    JobAssign jobAssign = (JobAssign)p;
+                    nextJob = jobAssign.getJob();
+                    break;
+                case JOB_ASSIGN_UNIQ:
+                    JobAssignUniq jobAssignUniq = (JobAssignUniq)p;
+                    nextJob = jobAssignUniq.getJob();
+                    break;
+                case NO_JOB:
+                    LOG.info("Worker sending PRE_SLEEP and sleeping for 30 seconds...");
+                    c.sendPacket(new PreSleep());
+                    try {
+                        Packet noop = nextPacket(c, 30 * 1000);
+                        if(noop.getType() != PacketType.NOOP) {
+                            LOG.error("Received invalid packet. Expected NOOP, received " + noop.getType());
+                        }
+                    } catch (SocketTimeoutException e) {
+                        LOG.warn("Socket timed out waiting for next packet...");
                     }
+                    break;
+            }
+
+            if (nextJob != null) {
+                processJob(nextJob, c);
+            }
+
+        } catch (IOException ioe) {
+            LOG.error("I/O error: ", ioe);
+        } finally {
+            if (nextJob != null)
+                jobConnectionMap.remove(nextJob);
+        }
+    }
 
-                    if (nextJob != null) {
-                        jobConnectionMap.put(nextJob, c);
-                        WorkEvent workEvent = new WorkEvent(nextJob, this);
-                        result = callbacks.get(nextJob.getFunctionName()).process(workEvent);
-                        c.sendPacket(new WorkCompleteResponse(nextJob.getJobHandle(), result));
+    /*
+     * Pushed dispatch: the server is granted credits once per connection and
+     * sends JOB_ASSIGN as soon as work is queued, so there is no GRAB_JOB /
+     * PRE_SLEEP / NOOP exchange. Each finished job returns its credit.
+     */
+    private void receivePushedJob(Connection c)
+    {
+        Job nextJob = null;
+
+        try {
+            // Once per socket, a new one starts out without credits
+            if (!c.isPushMode()) {
+                c.sendPacket(new OptionRequest(OptionRequest.PUSH_CREDITS + "=" + pushCredits));
+                c.setPushMode(true);
+            }
+
+            final Packet p;
+            try {
+                p = nextPacket(c, PUSH_POLL_TIMEOUT_MS);
+            } catch (SocketTimeoutException e) {
+                // Anything read so far is kept for the next poll
+                return;
+            }
+
+            if (p == null) {
+                return;
+            }
+
+            switch(p.getType()) {
+                case JOB_ASSIGN:
+                    nextJob = ((JobAssign)p).getJob();
+                    break;
+                case JOB_ASSIGN_UNIQ:
+                    nextJob = ((JobAssignUniq)p).getJob();
+                    break;
+                case OPTION_RES:
+                    if (((OptionResponse) p).getOption().endsWith(OptionRequest.PUSH_GRANTED)) {
+                        LOG.debug("Server " + c + " accepted " + pushCredits + " push credits");
+                    } else {
+                        // Echoed back by a server that doesn't push jobs
+                        LOG.warn("Server " + c + " doesn't push jobs, falling back to GRAB_JOB");
+                        grabConnections.add(c);
+                        c.setPushMode(false);
                     }
+                    break;
+                case ERROR:
+                    LOG.warn("Server " + c + " refused pushed dispatch, falling back to GRAB_JOB");
+                    grabConnections.add(c);
+                    c.setPushMode(false);
+                    break;
+                default:
+                    break;
+            }
 
-                } catch (IOException ioe) {
-                    LOG.error("I/O error: ", ioe);
-                } finally {
-                    if (nextJob != null)
-                        jobConnectionMap.remove(nextJob);
-                }
+            if (nextJob != null) {
+                processJob(nextJob, c);
+            }
 
+        } catch (IOException ioe) {
+            LOG.error("I/O error: ", ioe);
+            // Credits are lost with the connection, grant them again on a
+            // fresh one next time round
+            try {
+                c.close();
+            } catch (IOException closeException) {
+                LOG.error("Unable to close dead socket: " + closeException.toString());
             }
+        } finally {
+            if (nextJob != null)
+                jobConnectionMap.remove(nextJob);
         }
-        LOG.debug("Worker has been stopped.");
+    }
+
+    // The server may probe us with ECHO_REQ at any time to see that we are
+    // alive; answer those and carry on waiting for what we were after
+    private Packet nextPacket(Connection c, int timeout) throws IOException
+    {
+        Packet p = c.getNextPacket(timeout);
+        while (p != null && p.getType() == PacketType.ECHO_REQ) {
+            c.sendPacket(new EchoResponse((EchoRequest) p));
+            p = c.getNextPacket(timeout);
+        }
+        return p;
+    }
+
+    private void processJob(Job job, Connection c) throws IOException
+    {
+        jobConnectionMap.put(job, c);
+        WorkEvent workEvent = new WorkEvent(job, this);
+        byte[] result = callbacks.get(job.getFunctionName()).process(workEvent);
+        c.sendPacket(new WorkCompleteResponse(job.getJobHandle(), result));
     }
 
     @Override
@@ -180,6 +292,26 @@ public class NetworkGearmanWorker implements GearmanWorker, Runnable {
             worker.connectionPool.addHostPort(host, port);
             return this;
         }
+
+        /**
+         * Connect to a server on this host through its Unix domain socket.
+         * Experimental, currently slower than TCP loopback; see
+         * {@link Connection#forUnixSocket(String)}.
+         */
+        public Builder withUnixSocket(String socketPath) {
+            worker.connectionPool.addConnection(Connection.forUnixSocket(socketPath));
+            return this;
+        }
+
+        /**
+         * Have the server push up to <code>credits</code> jobs at a time to
+         * this worker instead of waiting for GRAB_JOB. Servers that don't
+         * support it are used with GRAB_JOB as before.
+         */
+        public Builder withPushCredits(int credits) {
+            worker.pushCredits = credits;
+            return this;
+        }
     }
 
 }
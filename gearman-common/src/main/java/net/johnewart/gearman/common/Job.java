@@ -21,7 +21,7 @@ public class Job {
     private int numerator;
     private int denominator;
     private long timeToRun;
-    private JobState state = JobState.QUEUED;
+    private volatile JobState state = JobState.QUEUED;
 
     public Job()
     {
@@ -252,5 +252,10 @@ public class Job {
             job.functionName = data;
             return this;
         }
+
+        public Builder timeToRun(long value) {
+            job.timeToRun = value;
+            return this;
+        }
     }
 }
\ No newline at end of file
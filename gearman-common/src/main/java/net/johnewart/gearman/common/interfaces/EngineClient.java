@@ -2,6 +2,9 @@ package net.johnewart.gearman.common.interfaces;
 
 import net.johnewart.gearman.common.JobStatus;
 import net.johnewart.gearman.common.packets.Packet;
+import net.johnewart.gearman.common.packets.SharedPacket;
+import net.johnewart.gearman.common.packets.response.WorkCompleteResponse;
+import net.johnewart.gearman.common.packets.response.WorkDataResponse;
 import net.johnewart.gearman.common.Job;
 
 /**
@@ -18,6 +21,16 @@ public interface EngineClient {
     void sendWorkWarning(final String jobHandle, final byte[] warning);
     void sendWorkStatus(final JobStatus jobStatus);
 
+    // Results and data that other clients are being sent as well; clients
+    // that can send the shared encoding as is should
+    default void sendWorkResults(final SharedPacket<WorkCompleteResponse> results) {
+        sendWorkResults(results.getPacket().getJobHandle(), results.getPacket().getData());
+    }
+
+    default void sendWorkData(final SharedPacket<WorkDataResponse> data) {
+        sendWorkData(data.getPacket().getJobHandle(), data.getPacket().getData());
+    }
+
     void send(Packet packet);
 }
 
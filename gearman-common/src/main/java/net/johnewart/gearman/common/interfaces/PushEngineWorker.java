@@ -0,0 +1,16 @@
+package net.johnewart.gearman.common.interfaces;
+
+import net.johnewart.gearman.common.Job;
+
+/**
+ * A worker that the engine may hand jobs to directly, without waiting for
+ * the worker to ask for one (i.e. GRAB_JOB).
+ */
+public interface PushEngineWorker extends EngineWorker {
+    /**
+     * Deliver a job that has already been assigned to this worker.
+     *
+     * @return false if the job could not be sent and should go back on the queue
+     */
+    boolean pushJob(Job job);
+}
@@ -1,12 +1,20 @@
 package net.johnewart.gearman.common.packets;
 
 import com.google.common.primitives.Ints;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import net.johnewart.gearman.constants.PacketType;
 
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class Packet {
+    // Data smaller than this is cheaper to copy than to wrap
+    private static final int WRAP_THRESHOLD = 1024;
+
     protected PacketType type;
     protected int size;
     protected byte[] rawdata;
@@ -18,14 +26,17 @@ public abstract class Packet {
 
     public Packet(byte[] fromdata)
     {
-        byte[] typebytes = Arrays.copyOfRange(fromdata, 4, 8);
-        byte[] sizebytes = Arrays.copyOfRange(fromdata, 8, 12);
-
-        this.type = PacketType.fromPacketMagicNumber(Ints.fromByteArray(typebytes));
-        this.size = Ints.fromByteArray(sizebytes);
+        this.type = PacketType.fromPacketMagicNumber(intAt(fromdata, 4));
+        this.size = intAt(fromdata, 8);
         this.rawdata = Arrays.copyOfRange(fromdata, 12, fromdata.length);
     }
 
+    // Big-endian int straight out of a header, without copying it out first
+    protected static int intAt(byte[] bytes, int offset)
+    {
+        return Ints.fromBytes(bytes[offset], bytes[offset + 1], bytes[offset + 2], bytes[offset + 3]);
+    }
+
     public byte[] getHeader()
     {
         if (header == null)
@@ -43,6 +54,51 @@ public abstract class Packet {
         return type;
     }
 
+    /**
+     * Write the packet straight into a buffer. Packets that end in job data
+     * leave the data out and return it, so it can be sent without copying;
+     * the size in the header already counts it.
+     *
+     * @param out Buffer to write the packet into
+     * @return Data that has to follow what was written, null if none
+     */
+    public byte[] writeTo(ByteBuf out)
+    {
+        out.writeBytes(toByteArray());
+        return null;
+    }
+
+    /**
+     * Encode the packet into a buffer from the allocator, with large job
+     * data wrapped rather than copied in after the header.
+     *
+     * @param allocator Allocator for the header (and small data)
+     * @return The encoded packet, which the caller has to release
+     */
+    public ByteBuf encode(ByteBufAllocator allocator)
+    {
+        final ByteBuf buffer = allocator.buffer();
+
+        try {
+            final byte[] data = writeTo(buffer);
+
+            if (data == null || data.length == 0) {
+                return buffer;
+            }
+
+            if (data.length < WRAP_THRESHOLD) {
+                return buffer.writeBytes(data);
+            }
+
+            final CompositeByteBuf composite = allocator.compositeBuffer(2);
+            composite.addComponents(true, buffer, Unpooled.wrappedBuffer(data));
+            return composite;
+        } catch (RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+    }
+
     public abstract byte[] toByteArray();
     public abstract int getPayloadSize();
     public abstract byte[] getMagic();
@@ -69,6 +125,28 @@ public abstract class Packet {
         return pOff + 1;
     }
 
+    // Header with a placeholder size, returns where the packet starts
+    protected int writeHeader(ByteBuf out)
+    {
+        final int start = out.writerIndex();
+        out.writeBytes(getMagic());
+        out.writeInt(this.type.getIndex());
+        out.writeInt(0);
+        return start;
+    }
+
+    protected void writeString(ByteBuf out, String value)
+    {
+        out.writeCharSequence(value, Charset.defaultCharset());
+        out.writeByte(0);
+    }
+
+    // Fill in the size once everything before the trailing data is written
+    protected void writePayloadSize(ByteBuf out, int start, int trailingBytes)
+    {
+        out.setInt(start + 8, out.writerIndex() - start - 12 + trailingBytes);
+    }
+
     protected byte[] stringsToTerminatedByteArray(String first, String ... rest)
     {
         return stringsToTerminatedByteArray(true, first, rest);
@@ -1,13 +1,17 @@
 package net.johnewart.gearman.common.packets;
 
 import com.google.common.primitives.Ints;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import net.johnewart.gearman.common.packets.request.*;
 import net.johnewart.gearman.common.packets.response.EchoResponse;
+import net.johnewart.gearman.common.packets.response.ErrorResponse;
 import net.johnewart.gearman.common.packets.response.JobAssign;
 import net.johnewart.gearman.common.packets.response.JobAssignUniq;
 import net.johnewart.gearman.common.packets.response.JobCreated;
 import net.johnewart.gearman.common.packets.response.NoJob;
 import net.johnewart.gearman.common.packets.response.NoOp;
+import net.johnewart.gearman.common.packets.response.OptionResponse;
 import net.johnewart.gearman.common.packets.response.StatusRes;
 import net.johnewart.gearman.common.packets.response.WorkCompleteResponse;
 import net.johnewart.gearman.common.packets.response.WorkDataResponse;
@@ -19,19 +23,84 @@ import net.johnewart.gearman.constants.PacketType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PacketFactory {
     private static final Logger LOG = LoggerFactory.getLogger(PacketFactory.class);
 
-    public static Packet packetFromBytes(byte[] packetBytes)
+    /**
+     * Build a packet from a buffer holding exactly one binary packet. Job
+     * submissions are parsed in place so their data is copied out of the
+     * buffer just once, into the array the job keeps; everything else goes
+     * through packetFromBytes.
+     *
+     * @param frame Buffer with the header and payload of one packet
+     * @return The packet, null if the type isn't one we handle
+     */
+    public static Packet packetFromBuffer(ByteBuf frame)
+    {
+        final int start = frame.readerIndex();
+        final PacketType packetType = PacketType.fromPacketMagicNumber(frame.getInt(start + 4));
+
+        switch(packetType)
+        {
+            case SUBMIT_JOB:
+            case SUBMIT_JOB_HIGH:
+            case SUBMIT_JOB_LOW:
+            case SUBMIT_JOB_BG:
+            case SUBMIT_JOB_HIGH_BG:
+            case SUBMIT_JOB_LOW_BG:
+            case SUBMIT_JOB_SCHED:
+            case SUBMIT_JOB_EPOCH:
+                return submitJobFromBuffer(packetType, frame, start + 12);
+
+            default:
+                return packetFromBytes(ByteBufUtil.getBytes(frame));
+        }
+    }
+
+    private static SubmitJob submitJobFromBuffer(PacketType packetType, ByteBuf frame, int offset)
     {
-        byte[] sizebytes = Arrays.copyOfRange(packetBytes, 8, 12);
-        byte[] typebytes = Arrays.copyOfRange(packetBytes, 4, 8);
-        byte[] magicbytes = Arrays.copyOfRange(packetBytes, 0, 4);
+        final int end = frame.writerIndex();
+        final AtomicReference<String> functionName = new AtomicReference<>();
+        final AtomicReference<String> uniqueId = new AtomicReference<>();
+        final AtomicReference<String> epoch = new AtomicReference<>();
 
-        int messagesize = Ints.fromByteArray(sizebytes);
-        int messagetype = Ints.fromByteArray(typebytes);
+        int pOff = offset;
+        pOff = parseString(frame, pOff, end, functionName);
+        pOff = parseString(frame, pOff, end, uniqueId);
+
+        if (packetType == PacketType.SUBMIT_JOB_EPOCH)
+        {
+            pOff = parseString(frame, pOff, end, epoch);
+        }
+
+        pOff = Math.min(pOff, end);
+        final byte[] data = new byte[end - pOff];
+        frame.getBytes(pOff, data);
+
+        return new SubmitJob(packetType, functionName.get(), uniqueId.get(), epoch.get(), data, end - offset);
+    }
+
+    // Same as Packet.parseString, reading straight from the buffer
+    private static int parseString(ByteBuf frame, int offset, int end, AtomicReference<String> storage)
+    {
+        final int pStart = Math.min(offset, end);
+        int pOff = frame.indexOf(pStart, end, (byte) 0);
+        if (pOff < 0)
+        {
+            pOff = end;
+        }
+
+        storage.set(frame.toString(pStart, pOff - pStart, Charset.defaultCharset()));
+        // Return 1 past where we are...
+        return pOff + 1;
+    }
+
+    public static Packet packetFromBytes(byte[] packetBytes)
+    {
+        int messagetype = Ints.fromBytes(packetBytes[4], packetBytes[5], packetBytes[6], packetBytes[7]);
 
         PacketType packetType = PacketType.fromPacketMagicNumber(messagetype);
 
@@ -102,11 +171,15 @@ public class PacketFactory {
             case ECHO_RES:
                 return new EchoResponse(packetBytes);
 
-            /* TODO: Handle these. */
             case OPTION_REQ:
                 return new OptionRequest(packetBytes);
 
+            case OPTION_RES:
+                return new OptionResponse(packetBytes);
+
             case ERROR:
+                return new ErrorResponse(packetBytes);
+
             default:
                 LOG.error("Unhandled type: ", messagetype);
                 return null;
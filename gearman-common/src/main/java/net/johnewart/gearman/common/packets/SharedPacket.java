@@ -0,0 +1,46 @@
+package net.johnewart.gearman.common.packets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * A packet that is going to several connections (e.g. the result of a job
+ * that more than one client submitted). It is encoded once when created and
+ * every connection is sent a duplicate of the same buffer, so the data is
+ * neither copied nor encoded again per connection.
+ *
+ * Close it once everyone has been handed their buffer; the buffer itself is
+ * freed when the last connection is done writing it.
+ *
+ * @param <P> Type of packet being shared
+ */
+public final class SharedPacket<P extends Packet> implements AutoCloseable {
+    private final P packet;
+    private final ByteBuf encoded;
+
+    public SharedPacket(final P packet)
+    {
+        this.packet = packet;
+        this.encoded = packet.encode(ByteBufAllocator.DEFAULT);
+    }
+
+    public P getPacket()
+    {
+        return packet;
+    }
+
+    /**
+     * @return The encoded packet for one connection, which the connection
+     *         has to release (writing it to a channel does)
+     */
+    public ByteBuf retainedBuffer()
+    {
+        return encoded.retainedDuplicate();
+    }
+
+    @Override
+    public void close()
+    {
+        encoded.release();
+    }
+}
@@ -1,6 +1,5 @@
 package net.johnewart.gearman.common.packets.request;
 
-import com.google.common.primitives.Ints;
 import net.johnewart.gearman.constants.PacketType;
 
 import java.util.Arrays;
@@ -37,8 +36,20 @@ public class CanDoTimeout extends RequestPacket {
         this.functionName = new AtomicReference<>();
         int pOff = 0;
         pOff = parseString(pOff, functionName);
-        byte[] timeoutbytes = Arrays.copyOfRange(rawdata, pOff, pOff+4);
-        this.timeout = Ints.fromByteArray(timeoutbytes);
+
+        // The timeout is sent as text, in seconds
+        final String timeoutText = new String(Arrays.copyOfRange(rawdata, Math.min(pOff, rawdata.length), rawdata.length)).trim();
+        this.timeout = parseTimeout(timeoutText);
+    }
+
+    // Anything we can't read means no time limit
+    private static int parseTimeout(String timeoutText)
+    {
+        try {
+            return Integer.parseInt(timeoutText);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     public String getFunctionName()
@@ -46,11 +57,18 @@ public class CanDoTimeout extends RequestPacket {
         return functionName.get();
     }
 
+    /**
+     * @return Seconds the worker may take to finish a job for this function
+     */
+    public int getTimeout()
+    {
+        return timeout;
+    }
+
     @Override
     public byte[] toByteArray()
     {
-        return concatByteArrays(getHeader(), functionName.get().getBytes(), String.valueOf(timeout).getBytes());
-
+        return concatByteArrays(getHeader(), stringsToTerminatedByteArray(false, functionName.get(), String.valueOf(timeout)));
     }
 
     @Override
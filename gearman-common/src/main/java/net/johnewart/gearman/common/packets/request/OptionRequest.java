@@ -6,11 +6,26 @@ import java.util.concurrent.atomic.AtomicReference;
 
 public class OptionRequest extends RequestPacket
 {
+    // Worker opts in to pushed JOB_ASSIGN packets, e.g. "credits=8"
+    public static final String PUSH_CREDITS = "credits";
+    // As above, but pushed jobs arrive as JOB_ASSIGN_UNIQ
+    public static final String PUSH_CREDITS_UNIQ = "credits_uniq";
+    // Added to the option in the server's OPTION_RES once it has granted the
+    // credits, e.g. "credits=8;ok". Servers that don't push echo any option
+    // back as it was sent, so the echo alone doesn't mean jobs will come.
+    public static final String PUSH_GRANTED = ";ok";
+
     public AtomicReference<String> option;
 
     public OptionRequest()
     { }
 
+    public OptionRequest(String option)
+    {
+        this.type = PacketType.OPTION_REQ;
+        this.option = new AtomicReference<>(option);
+    }
+
     public OptionRequest(byte[] pktdata)
     {
         super(pktdata);
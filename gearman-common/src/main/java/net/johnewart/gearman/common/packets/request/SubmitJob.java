@@ -30,15 +30,27 @@ public class SubmitJob extends RequestPacket {
             pOff = parseString(pOff, epochString);
         }
 
-        this.background = this.type == PacketType.SUBMIT_JOB_HIGH_BG ||
-                this.type == PacketType.SUBMIT_JOB_LOW_BG ||
-                this.type == PacketType.SUBMIT_JOB_BG ||
-                this.type == PacketType.SUBMIT_JOB_EPOCH;
+        this.background = isBackground(this.type);
 
         data = Arrays.copyOfRange(rawdata, pOff, rawdata.length);
         this.size = rawdata.length;
     }
 
+    /**
+     * Used when decoding straight off the wire, takes ownership of data
+     * rather than copying it.
+     */
+    public SubmitJob(PacketType type, String function, String uniqueID, String epoch, byte[] data, int size)
+    {
+        this.type = type;
+        this.taskName = new AtomicReference<>(function);
+        this.uniqueId = new AtomicReference<>(uniqueID);
+        this.epochString = new AtomicReference<>(epoch);
+        this.background = isBackground(type);
+        this.data = data;
+        this.size = size;
+    }
+
     public SubmitJob(String function, String unique_id, byte[] data, boolean background)
     {
         this(function, unique_id, data, background,JobPriority.NORMAL);
@@ -83,6 +95,14 @@ public class SubmitJob extends RequestPacket {
         }
     }
 
+    private static boolean isBackground(PacketType type)
+    {
+        return type == PacketType.SUBMIT_JOB_HIGH_BG ||
+                type == PacketType.SUBMIT_JOB_LOW_BG ||
+                type == PacketType.SUBMIT_JOB_BG ||
+                type == PacketType.SUBMIT_JOB_EPOCH;
+    }
+
     public Date getWhen()
     {
         return new Date(Long.parseLong(epochString.get()));
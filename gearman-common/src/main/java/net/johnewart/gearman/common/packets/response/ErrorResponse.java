@@ -0,0 +1,51 @@
+package net.johnewart.gearman.common.packets.response;
+
+import net.johnewart.gearman.constants.PacketType;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ErrorResponse extends ResponsePacket {
+    private final AtomicReference<String> errorCode;
+    private final AtomicReference<String> errorText;
+
+    public ErrorResponse(String errorCode, String errorText)
+    {
+        this.type = PacketType.ERROR;
+        this.errorCode = new AtomicReference<>(errorCode);
+        this.errorText = new AtomicReference<>(errorText);
+    }
+
+    public ErrorResponse(byte[] pktdata)
+    {
+        super(pktdata);
+        this.type = PacketType.ERROR;
+        this.errorCode = new AtomicReference<>();
+        this.errorText = new AtomicReference<>("");
+        int pOff = parseString(0, errorCode);
+        if (pOff <= rawdata.length) {
+            parseString(pOff, errorText);
+        }
+    }
+
+    public String getErrorCode()
+    {
+        return errorCode.get();
+    }
+
+    public String getErrorText()
+    {
+        return errorText.get();
+    }
+
+    @Override
+    public byte[] toByteArray()
+    {
+        return concatByteArrays(getHeader(), stringsToTerminatedByteArray(false, errorCode.get(), errorText.get()));
+    }
+
+    @Override
+    public int getPayloadSize()
+    {
+        return errorCode.get().getBytes().length + 1 + errorText.get().getBytes().length;
+    }
+}
@@ -1,5 +1,6 @@
 package net.johnewart.gearman.common.packets.response;
 
+import io.netty.buffer.ByteBuf;
 import net.johnewart.gearman.common.Job;
 import net.johnewart.gearman.constants.PacketType;
 
@@ -41,6 +42,16 @@ public class JobAssign extends ResponsePacket {
         return concatByteArrays(getHeader(), metadata, this.data);
     }
 
+    @Override
+    public byte[] writeTo(ByteBuf out)
+    {
+        final int start = writeHeader(out);
+        writeString(out, jobHandle.get());
+        writeString(out, functionName.get());
+        writePayloadSize(out, start, data.length);
+        return data;
+    }
+
     @Override
     public int getPayloadSize()
     {
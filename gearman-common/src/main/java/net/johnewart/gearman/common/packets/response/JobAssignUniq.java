@@ -1,5 +1,6 @@
 package net.johnewart.gearman.common.packets.response;
 
+import io.netty.buffer.ByteBuf;
 import net.johnewart.gearman.common.Job;
 import net.johnewart.gearman.constants.PacketType;
 
@@ -45,6 +46,17 @@ public class JobAssignUniq extends ResponsePacket {
         return concatByteArrays(getHeader(), metadata, data);
     }
 
+    @Override
+    public byte[] writeTo(ByteBuf out)
+    {
+        final int start = writeHeader(out);
+        writeString(out, jobHandle.get());
+        writeString(out, functionName.get());
+        writeString(out, uniqueId.get());
+        writePayloadSize(out, start, data.length);
+        return data;
+    }
+
     @Override
     public int getPayloadSize()
     {
@@ -1,7 +1,9 @@
 package net.johnewart.gearman.common.packets.response;
 
+import io.netty.buffer.ByteBuf;
 import net.johnewart.gearman.constants.PacketType;
 
+import java.nio.charset.Charset;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class JobCreated extends ResponsePacket {
@@ -32,6 +34,15 @@ public class JobCreated extends ResponsePacket {
         return concatByteArrays(getHeader(), jobHandle.get().getBytes());
     }
 
+    @Override
+    public byte[] writeTo(ByteBuf out)
+    {
+        final int start = writeHeader(out);
+        out.writeCharSequence(jobHandle.get(), Charset.defaultCharset());
+        writePayloadSize(out, start, 0);
+        return null;
+    }
+
     @Override
     public int getPayloadSize()
     {
@@ -1,6 +1,5 @@
 package net.johnewart.gearman.common.packets.response;
 
-import net.johnewart.gearman.common.packets.request.EchoRequest;
 import net.johnewart.gearman.constants.PacketType;
 
 import java.util.Arrays;
@@ -16,6 +15,13 @@ public class OptionResponse extends ResponsePacket {
         this.data = option.getBytes();
     }
 
+    public OptionResponse(byte[] pktdata)
+    {
+        super(pktdata);
+        this.data = Arrays.copyOfRange(rawdata, 0, rawdata.length);
+        this.type = PacketType.OPTION_RES;
+    }
+
     @Override
     public byte[] toByteArray()
     {
@@ -33,4 +39,8 @@ public class OptionResponse extends ResponsePacket {
     public byte[] getData() {
         return data;
     }
+
+    public String getOption() {
+        return new String(data);
+    }
 }
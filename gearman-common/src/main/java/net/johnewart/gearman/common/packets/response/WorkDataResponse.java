@@ -1,5 +1,6 @@
 package net.johnewart.gearman.common.packets.response;
 
+import io.netty.buffer.ByteBuf;
 import net.johnewart.gearman.constants.PacketType;
 
 import java.util.Arrays;
@@ -35,6 +36,15 @@ public class WorkDataResponse extends ResponsePacket implements WorkResponse {
         return concatByteArrays(getHeader(), metadata, data);
     }
 
+    @Override
+    public byte[] writeTo(ByteBuf out)
+    {
+        final int start = writeHeader(out);
+        writeString(out, jobHandle.get());
+        writePayloadSize(out, start, data.length);
+        return data;
+    }
+
     public String getJobHandle() {
         return jobHandle.get();
     }
@@ -1,5 +1,6 @@
 package net.johnewart.gearman.common.packets.response;
 
+import io.netty.buffer.ByteBuf;
 import net.johnewart.gearman.constants.PacketType;
 
 import java.util.Arrays;
@@ -32,6 +33,15 @@ public class WorkExceptionResponse extends ResponsePacket implements WorkRespons
         return concatByteArrays(getHeader(), metadata, exception);
     }
 
+    @Override
+    public byte[] writeTo(ByteBuf out)
+    {
+        final int start = writeHeader(out);
+        writeString(out, jobHandle.get());
+        writePayloadSize(out, start, exception.length);
+        return exception;
+    }
+
     @Override
     public int getPayloadSize()
     {
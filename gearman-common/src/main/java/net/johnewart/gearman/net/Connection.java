@@ -6,12 +6,14 @@ import net.johnewart.gearman.common.packets.PacketFactory;
 import net.johnewart.gearman.common.packets.request.EchoRequest;
 import net.johnewart.gearman.common.packets.response.EchoResponse;
 import net.johnewart.gearman.constants.GearmanConstants;
+import net.johnewart.gearman.constants.PacketType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.Arrays;
 import java.util.Date;
 
@@ -20,10 +22,20 @@ public class Connection {
     protected Socket socket;
     protected String hostname;
     protected int port;
+    // Unix domain socket to use instead of hostname and port, if any
+    protected String socketPath;
     private Logger LOG = LoggerFactory.getLogger(Connection.class);
     private Long lastTimeSeenAlive;
     private boolean isGood;
     private long HEALTHCHECK_MSEC = 1800 * 1000; // 1800 sec in msec (30 min)
+    // The server sends jobs without being asked, so an ECHO_REQ can't be
+    // slipped in to see whether it is alive
+    private volatile boolean pushMode;
+
+    // The packet being read, kept when a read with a timeout gives up part
+    // of the way through so the next read carries on where it stopped
+    private byte[] readBuffer = new byte[12];
+    private int readLength;
 
     public Connection()
     {	}
@@ -43,6 +55,25 @@ public class Connection {
     public Connection(Connection c) {
         this.hostname = c.hostname;
         this.port = c.port;
+        this.socketPath = c.socketPath;
+    }
+
+    /**
+     * Connect to a server on this host through its Unix domain socket
+     * rather than TCP (Linux only).
+     *
+     * Experimental: every read and write is handed across to a Netty event
+     * loop thread (see {@link DomainSocket}), which makes this client slower
+     * than TCP loopback so far. The server side is the part worth using, by
+     * clients with a native domain socket transport of their own.
+     *
+     * @param socketPath Path the server's unixSocketPath is set to
+     */
+    public static Connection forUnixSocket(String socketPath)
+    {
+        Connection connection = new Connection();
+        connection.socketPath = socketPath;
+        return connection;
     }
 
     public void sendPacket(Packet p) throws IOException
@@ -63,12 +94,29 @@ public class Connection {
 
     public String toString()
     {
+        if (socketPath != null)
+            return "unix:" + socketPath;
+
         return String.format("%s:%d", this.hostname, this.port);
     }
 
 
     public boolean isHealthy()
     {
+        if (pushMode)
+        {
+            // Only the socket itself can say, and a broken one takes its
+            // push credits with it: start over on a fresh connection
+            if (isGood)
+                return true;
+
+            try {
+                close();
+            } catch (IOException ioe) {
+                LOG.error("Unable to close dead socket: " + ioe.toString());
+            }
+        }
+
         try {
             initializeConnection();
         } catch(IOException ioe) {
@@ -84,11 +132,17 @@ public class Connection {
             try {
 
                 this.sendPacket(new EchoRequest("OK"));
-                EchoResponse response = (EchoResponse)(this.getNextPacket());
+                Packet response = this.getNextPacket();
+
+                // A wake-up that turned up after its PRE_SLEEP gave up waiting
+                while(response != null && response.getType() == PacketType.NOOP)
+                {
+                    response = this.getNextPacket();
+                }
 
-                if(response != null)
+                if(response instanceof EchoResponse)
                 {
-                    byte[] data = response.getData();
+                    byte[] data = ((EchoResponse) response).getData();
                     byte[] matchData = "OK".getBytes(GearmanConstants.CHARSET);
                     if(Arrays.equals(data, matchData))
                     {
@@ -123,46 +177,55 @@ public class Connection {
             return null;
         }
 
-        int messagesize = -1;
-
-        // Initialize to 12 bytes (header only), and resize later as needed
-        byte[] header = new byte[12];
-        byte[] packetBytes;
-
         try {
             socket.setSoTimeout(socketTimeout);
             InputStream is = socket.getInputStream();
 
-            int numbytes = is.read(header, 0, 12);
-
-            if(numbytes == 12)
+            // Header first, 12 bytes
+            if (!readUpTo(is, 12))
             {
-                // Check byte count
-                byte[] sizebytes = Arrays.copyOfRange(header, 8, 12);
-
-                messagesize = Ints.fromByteArray(sizebytes);
-
-                if (messagesize > 0)
-                {
-                    // Grow packet buffer to fit data
-                    packetBytes = Arrays.copyOf(header, 12 + messagesize);
-                } else {
-                    packetBytes = header;
-                }
-
-                is.read(packetBytes, 12, messagesize);
+                throw new IOException("Network socket EOF.");
+            }
 
-                return PacketFactory.packetFromBytes(packetBytes);
+            // Check byte count, and grow the buffer to fit the data
+            int messagesize = Ints.fromByteArray(Arrays.copyOfRange(readBuffer, 8, 12));
+            if (messagesize > 0 && readBuffer.length != 12 + messagesize)
+            {
+                readBuffer = Arrays.copyOf(readBuffer, 12 + messagesize);
+            }
 
-            } else if(numbytes == -1) {
+            if (messagesize > 0 && !readUpTo(is, 12 + messagesize))
+            {
                 throw new IOException("Network socket EOF.");
             }
+
+            final byte[] packetBytes = readBuffer;
+            readBuffer = new byte[12];
+            readLength = 0;
+            return PacketFactory.packetFromBytes(packetBytes);
+        } catch (SocketTimeoutException ste) {
+            // Nothing, or not all of it, arrived in time; callers waiting
+            // with a timeout expect this and what did arrive is kept
+            throw ste;
         } catch (IOException ioe) {
             LOG.error("Exception reading data: ", ioe.toString());
+            this.isGood = false;
             throw ioe;
         }
+    }
 
-        return null;
+    // Reads can come back short, keep going until the buffer holds length
+    // bytes or the end. Progress survives a read timing out
+    private boolean readUpTo(InputStream is, int length) throws IOException
+    {
+        while (readLength < length)
+        {
+            int read = is.read(readBuffer, readLength, length - readLength);
+            if (read == -1)
+                return false;
+            readLength += read;
+        }
+        return true;
     }
 
     public Long getLastTimeSeenAlive() {
@@ -192,8 +255,12 @@ public class Connection {
         if(socket == null ||
            socket.isClosed())
         {
-            socket = new Socket(hostname, port);
+            socket = socketPath != null ? new DomainSocket(socketPath) : new Socket(hostname, port);
             this.isGood = true;
+            // Push credits and whatever was half read belonged to the old socket
+            pushMode = false;
+            readBuffer = new byte[12];
+            readLength = 0;
         }
     }
 
@@ -201,6 +268,23 @@ public class Connection {
         this.lastTimeSeenAlive = new Date().getTime();
     }
 
+    /**
+     * Say whether the server pushes jobs over this connection, in which case
+     * health checks don't send ECHO_REQ: its reply could arrive behind a job.
+     */
+    public void setPushMode(boolean pushMode)
+    {
+        this.pushMode = pushMode;
+    }
+
+    /**
+     * @return false again once the connection has been re-established
+     */
+    public boolean isPushMode()
+    {
+        return pushMode;
+    }
+
     public void setHealthCheckInterval(long interval)
     {
         this.HEALTHCHECK_MSEC = interval;
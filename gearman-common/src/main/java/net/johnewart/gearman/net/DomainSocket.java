@@ -0,0 +1,302 @@
+package net.johnewart.gearman.net;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A blocking {@link Socket} connected to a Unix domain socket, for talking to
+ * a server on the same host without going through TCP. Java 8 can't open
+ * those by itself, so the connection is a Netty epoll channel (Linux only)
+ * behind the usual streams; only what {@link Connection} needs is supported.
+ *
+ * Every read and write crosses over to the channel's event loop thread, which
+ * on hosts with few cores can cost more than TCP loopback saves; clients on
+ * a native transport of their own get the full benefit.
+ */
+public class DomainSocket extends Socket {
+    // Marks the end of the stream in the inbound queue
+    private static final ByteBuf EOF = Unpooled.buffer(0);
+
+    private static EventLoopGroup eventLoopGroup;
+
+    private final String path;
+    private final Channel channel;
+    private final BlockingQueue<ByteBuf> inbound = new LinkedBlockingQueue<>();
+    private final InputStream inputStream = new DomainSocketInputStream();
+    private final OutputStream outputStream = new DomainSocketOutputStream();
+
+    private volatile int soTimeout;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+
+    public DomainSocket(final String path) throws IOException
+    {
+        if (!isAvailable())
+        {
+            throw new IOException("Unix domain sockets need the native epoll transport", Epoll.unavailabilityCause());
+        }
+
+        this.path = path;
+
+        final ChannelFuture connect = new Bootstrap()
+                .group(eventLoopGroup())
+                .channel(EpollDomainSocketChannel.class)
+                // Only read when someone is waiting for data, like a socket
+                .option(ChannelOption.AUTO_READ, false)
+                .handler(new Receiver())
+                .connect(new DomainSocketAddress(path))
+                .awaitUninterruptibly();
+
+        if (!connect.isSuccess())
+        {
+            throw new IOException("Unable to connect to " + path, connect.cause());
+        }
+
+        this.channel = connect.channel();
+    }
+
+    public static boolean isAvailable()
+    {
+        return Epoll.isAvailable();
+    }
+
+    // One thread serves every domain socket in the process
+    private static synchronized EventLoopGroup eventLoopGroup()
+    {
+        if (eventLoopGroup == null)
+        {
+            eventLoopGroup = new EpollEventLoopGroup(1, new DefaultThreadFactory("gearman-domain-socket", true));
+        }
+        return eventLoopGroup;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        ensureOpen();
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        ensureOpen();
+        return outputStream;
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException
+    {
+        if (timeout < 0)
+            throw new IllegalArgumentException("timeout can't be negative");
+        this.soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout()
+    {
+        return soTimeout;
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        return closed || !channel.isActive();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress()
+    {
+        return channel.remoteAddress();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        channel.close().awaitUninterruptibly();
+
+        ByteBuf buffer;
+        while ((buffer = inbound.poll()) != null)
+        {
+            if (buffer != EOF)
+                buffer.release();
+        }
+        inbound.add(EOF);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DomainSocket[" + path + "]";
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (closed)
+            throw new SocketException("Socket is closed");
+        if (failure != null)
+            throw new IOException(failure);
+    }
+
+    private class Receiver extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg)
+        {
+            inbound.add((ByteBuf) msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+        {
+            inbound.add(EOF);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+        {
+            failure = cause;
+            ctx.close();
+        }
+    }
+
+    private class DomainSocketInputStream extends InputStream {
+        // Only used by the reading thread
+        private ByteBuf current;
+
+        @Override
+        public int read() throws IOException
+        {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+
+            while (!readable())
+            {
+                if (!await())
+                    return -1;
+            }
+
+            // Like a socket: whatever has arrived, up to len, without blocking again
+            int read = 0;
+            while (read < len && readable())
+            {
+                final int n = Math.min(len - read, current.readableBytes());
+                current.readBytes(b, off + read, n);
+                read += n;
+            }
+
+            return read;
+        }
+
+        @Override
+        public int available()
+        {
+            return current != null ? current.readableBytes() : 0;
+        }
+
+        // Make current readable from what has already arrived, if anything has
+        private boolean readable()
+        {
+            while (current == null || !current.isReadable())
+            {
+                if (current != null && current != EOF)
+                    current.release();
+
+                current = inbound.peek() == EOF ? null : inbound.poll();
+                if (current == null)
+                    return false;
+            }
+            return true;
+        }
+
+        // Block for more data, false at the end of the stream
+        private boolean await() throws IOException
+        {
+            ensureOpen();
+            channel.read();
+
+            try {
+                final ByteBuf next = soTimeout > 0
+                        ? inbound.poll(soTimeout, TimeUnit.MILLISECONDS)
+                        : inbound.take();
+
+                if (next == null)
+                    throw new SocketTimeoutException("Read timed out");
+
+                if (next == EOF)
+                {
+                    // Everyone after us sees the end too
+                    inbound.add(EOF);
+                    if (failure != null)
+                        throw new IOException(failure);
+                    return false;
+                }
+
+                current = next;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private class DomainSocketOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            ensureOpen();
+            if (!channel.isActive())
+                throw new SocketException("Connection closed by server");
+
+            // Failures show up on the next read or write, as with a socket
+            channel.writeAndFlush(Unpooled.copiedBuffer(b, off, len)).addListener(future -> {
+                if (!future.isSuccess())
+                    failure = future.cause();
+            });
+        }
+    }
+}
@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.*;
@@ -54,6 +55,59 @@ public class ConnectionTest {
         }
     }
 
+    @Test
+    public void carriesOnWithAPacketAfterAReadTimesOut() throws IOException
+    {
+        final byte[] echoDataBytes = new EchoResponse(new EchoRequest("OK")).toByteArray();
+
+        // Stalls part way through the header, then part way through the data
+        final InputStream stallingStream = new InputStream() {
+            private final int[] stalls = {7, 13};
+            private int position;
+            private int stall;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int end = echoDataBytes.length;
+                if (stall < stalls.length) {
+                    if (position == stalls[stall]) {
+                        stall++;
+                        throw new SocketTimeoutException();
+                    }
+                    end = stalls[stall];
+                }
+
+                int count = Math.min(length, end - position);
+                System.arraycopy(echoDataBytes, position, buffer, offset, count);
+                position += count;
+                return count;
+            }
+        };
+
+        Socket socket = mock(Socket.class);
+        when(socket.getInputStream()).thenReturn(stallingStream);
+        when(socket.isClosed()).thenReturn(false);
+        Connection connection = new Connection(socket);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                connection.getNextPacket(250);
+                fail();
+            } catch (SocketTimeoutException e) {
+                assertNotNull(e);
+            }
+        }
+
+        Packet p = connection.getNextPacket(250);
+        assertThat(p.getType(), is(PacketType.ECHO_RES));
+        assertArrayEquals("OK".getBytes(), ((EchoResponse) p).getData());
+    }
+
     private Socket createMockBogusSocket()
     {
         Socket mockSocket = mock(Socket.class);
@@ -0,0 +1,113 @@
+package net.johnewart.gearman.engine.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import net.johnewart.gearman.common.Job;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Deadlines for running jobs whose worker registered the function with
+ * CAN_DO_TIMEOUT. Deadlines live in a single hashed timer wheel, so granting
+ * and releasing a lease are O(1) no matter how many jobs are running, and one
+ * thread serves all of them. Expiry is only as precise as the wheel's tick.
+ */
+public class JobLeases {
+    /**
+     * What happens to a job whose worker doesn't finish it in time
+     */
+    public enum ExpiryPolicy {
+        // Tell the clients it failed, as gearmand does
+        FAIL,
+        // Put it back on its queue for another worker
+        REENQUEUE
+    }
+
+    private static final long TICK_MS = 100;
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private final ConcurrentHashMap<Job, Timeout> leases = new ConcurrentHashMap<>();
+    private final Consumer<Job> onExpiry;
+    // Only started once some worker asks for a timeout
+    private volatile Timer timer;
+
+    /**
+     * @param onExpiry Called, on the timer thread, with each job whose lease
+     *                 ran out before it was released
+     */
+    public JobLeases(final Consumer<Job> onExpiry)
+    {
+        this.onExpiry = onExpiry;
+    }
+
+    /**
+     * Give a job until <code>timeoutMillis</code> from now to finish,
+     * replacing any lease it already had.
+     */
+    public void grant(final Job job, final long timeoutMillis)
+    {
+        final Timeout[] lease = new Timeout[1];
+        lease[0] = timer().newTimeout(t -> {
+            // Lost the race with release(), or the lease was replaced
+            if (leases.remove(job, lease[0]))
+                onExpiry.accept(job);
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        final Timeout previous = leases.put(job, lease[0]);
+        if (previous != null)
+            previous.cancel();
+    }
+
+    /**
+     * @return false if the job had no lease (or it already expired)
+     */
+    public boolean release(final Job job)
+    {
+        if (leases.isEmpty())
+            return false;
+
+        final Timeout lease = leases.remove(job);
+        if (lease == null)
+            return false;
+
+        lease.cancel();
+        return true;
+    }
+
+    public int size()
+    {
+        return leases.size();
+    }
+
+    public void stop()
+    {
+        final Timer current = timer;
+        if (current != null)
+            current.stop();
+        leases.clear();
+    }
+
+    private Timer timer()
+    {
+        Timer current = timer;
+        if (current == null)
+        {
+            synchronized (this)
+            {
+                current = timer;
+                if (current == null)
+                {
+                    current = new HashedWheelTimer(
+                            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("job-leases-%d").build(),
+                            TICK_MS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+                    timer = current;
+                }
+            }
+        }
+        return current;
+    }
+}
@@ -2,12 +2,19 @@ package net.johnewart.gearman.engine.core;
 
 import com.codahale.metrics.annotation.Metered;
 import com.codahale.metrics.annotation.Timed;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import net.johnewart.gearman.common.Job;
 import net.johnewart.gearman.common.JobState;
 import net.johnewart.gearman.common.JobStatus;
 import net.johnewart.gearman.common.interfaces.EngineClient;
 import net.johnewart.gearman.common.interfaces.EngineWorker;
 import net.johnewart.gearman.common.interfaces.JobHandleFactory;
+import net.johnewart.gearman.common.interfaces.PushEngineWorker;
+import net.johnewart.gearman.common.packets.SharedPacket;
+import net.johnewart.gearman.common.packets.response.WorkCompleteResponse;
+import net.johnewart.gearman.common.packets.response.WorkDataResponse;
 import net.johnewart.gearman.engine.exceptions.EnqueueException;
 import net.johnewart.gearman.engine.exceptions.IllegalJobStateTransitionException;
 import net.johnewart.gearman.engine.exceptions.JobQueueFactoryException;
@@ -17,14 +24,23 @@ import net.johnewart.gearman.engine.metrics.QueueMetrics;
 import net.johnewart.gearman.engine.queue.JobQueue;
 import net.johnewart.gearman.engine.queue.factories.JobQueueFactory;
 import net.johnewart.gearman.engine.storage.ExceptionStorageEngine;
-import net.johnewart.gearman.engine.util.EqualsLock;
 import org.eclipse.jetty.util.ConcurrentHashSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 
 public class JobManager {
@@ -32,26 +48,51 @@ public class JobManager {
 
     private static Logger LOG = LoggerFactory.getLogger(JobManager.class);
 
+    // Number of lock stripes guarding per-job state transitions
+    private static final int JOB_LOCK_STRIPES = 1024;
+
+    // How often to look for queues with ready jobs but only sleeping workers
+    private static final long WAKEUP_SWEEP_INTERVAL_MS = 1000;
+
     // Job Queues: Function Name <--> JobQueue
     private final ConcurrentHashMap<String, JobQueue> jobQueues;
-    private final ConcurrentHashMap<EngineWorker, Job> workerJobs;
+    // Jobs a worker is currently working on (worker <--> jobs)
+    private final ConcurrentHashMap<EngineWorker, Set<Job>> workerJobs;
     private final ConcurrentHashMap<Job, EngineWorker> jobWorker;
+    // Workers that accept pushed jobs (worker <--> credits left to use)
+    private final ConcurrentHashMap<EngineWorker, AtomicInteger> workerCredits;
+    // Jobs that were pushed rather than grabbed, and so hold a credit
+    private final Set<Job> pushedJobs;
     // Active jobs (job handle <--> Job)
     private final ConcurrentHashMap<String, Job> activeJobHandles;
     private final ConcurrentHashMap<String, Job> activeUniqueIds;
     private final ConcurrentHashMap<String, WorkerPool> workerPools;
+    // Per-function time limits from CAN_DO_TIMEOUT (worker <--> function <--> millis)
+    private final ConcurrentHashMap<EngineWorker, Map<String, Long>> workerTimeouts;
+    // Deadlines of running jobs that have a time limit
+    private final JobLeases jobLeases;
+    // Unique ids currently being admitted (unique id <--> outcome of the admission)
+    private final ConcurrentHashMap<String, CompletableFuture<Job>> admissions;
 
     // Jobs clients are waiting on (unique id <--> clients)
     private final ConcurrentHashMap<String, Set<EngineClient>> uniqueIdClients;
 
     private final Set<EngineWorker> workers;
-    private final EqualsLock lock = new EqualsLock();
+    // Completion, failure and disconnect of a job are serialized per unique id
+    // rather than on the manager as a whole
+    private final Striped<Lock> jobLocks = Striped.lock(JOB_LOCK_STRIPES);
     private final JobQueueFactory jobQueueFactory;
     private final JobHandleFactory jobHandleFactory;
     private final UniqueIdFactory uniqueIdFactory;
     private final ExceptionStorageEngine exceptionStorageEngine;
 
     private final QueueMetrics metrics;
+    private final ScheduledExecutorService sweepExecutor;
+    private volatile WorkerPool.WakeupPolicy wakeupPolicy = WorkerPool.WakeupPolicy.FIFO;
+    // Watermarks given to every job queue, unbounded by default
+    private volatile int queueHighWatermark = Integer.MAX_VALUE;
+    private volatile int queueLowWatermark = Integer.MAX_VALUE;
+    private volatile JobLeases.ExpiryPolicy leaseExpiryPolicy = JobLeases.ExpiryPolicy.FAIL;
 
     public JobManager(JobQueueFactory jobQueueFactory,
                       JobHandleFactory jobHandleFactory,
@@ -65,7 +106,12 @@ public class JobManager {
         this.workers = new ConcurrentHashSet<>();
         this.workerJobs = new ConcurrentHashMap<>();
         this.jobWorker = new ConcurrentHashMap<>();
+        this.workerCredits = new ConcurrentHashMap<>();
+        this.pushedJobs = ConcurrentHashMap.newKeySet();
         this.workerPools = new ConcurrentHashMap<>();
+        this.workerTimeouts = new ConcurrentHashMap<>();
+        this.jobLeases = new JobLeases(this::expireLease);
+        this.admissions = new ConcurrentHashMap<>();
         this.metrics = queueMetrics;
 
         this.jobQueueFactory = jobQueueFactory;
@@ -73,18 +119,89 @@ public class JobManager {
         this.uniqueIdFactory = uniqueIdFactory;
         this.exceptionStorageEngine = exceptionStorageEngine;
 
+        // Workers are woken one per ready job, so a lost wake-up (e.g. the
+        // woken worker disconnects before grabbing) would otherwise strand
+        // the job until the next submission. The same sweep ticks each queue's
+        // epoch job scheduler and wakes workers for jobs that come due
+        this.sweepExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("wakeup-sweep-%d").build());
+        this.sweepExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweepSleepingWorkers();
+                } catch (Exception e) {
+                    LOG.error("Unable to sweep sleeping workers: " + e.toString());
+                }
+            }
+        }, WAKEUP_SWEEP_INTERVAL_MS, WAKEUP_SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        jobQueueFactory.setJobListener(this::handleJobsAvailable);
+    }
+
+    /**
+     * Stop the wake-up sweep and the lease timer. Jobs are left where they
+     * are, this only lets go of the manager's threads.
+     */
+    public void stop()
+    {
+        sweepExecutor.shutdownNow();
+        jobLeases.stop();
     }
 
     public void registerWorkerAbility(String funcName, EngineWorker worker)
     {
+        registerWorkerAbility(funcName, worker, 0);
+    }
+
+    /**
+     * @param timeoutMillis How long the worker may take on each job for the
+     *                      function before it is taken away from it, 0 for
+     *                      no limit
+     */
+    public void registerWorkerAbility(String funcName, EngineWorker worker, long timeoutMillis)
+    {
+        if (timeoutMillis > 0)
+        {
+            workerTimeouts.computeIfAbsent(worker, w -> new ConcurrentHashMap<>()).put(funcName, timeoutMillis);
+        }
+        else
+        {
+            clearTimeout(funcName, worker);
+        }
+
         workers.add(worker);
         metrics.handleWorkerAddition(worker);
         getWorkerPool(funcName).addWorker(worker);
+
+        // Other servers may already have queued jobs for it
+        if (jobQueueFactory.isShared())
+        {
+            try {
+                getOrCreateJobQueue(funcName);
+            } catch (JobQueueFactoryException e) {
+                LOG.error("Unable to create queue for " + funcName + ": ", e);
+            }
+        }
+
+        if (workerCredits.containsKey(worker))
+        {
+            getWorkerPool(funcName).addPushWorker(worker);
+            pushJobsTo((PushEngineWorker) worker);
+        }
     }
 
     public void unregisterWorkerAbility(String funcName, EngineWorker worker)
     {
         getWorkerPool(funcName).removeWorker(worker);
+        clearTimeout(funcName, worker);
+    }
+
+    private void clearTimeout(String funcName, EngineWorker worker)
+    {
+        final Map<String, Long> timeouts = workerTimeouts.get(worker);
+        if (timeouts != null)
+            timeouts.remove(funcName);
     }
 
     public void unregisterWorker(EngineWorker worker)
@@ -97,39 +214,56 @@ public class JobManager {
         workers.remove(worker);
         metrics.handleWorkerRemoval(worker);
 
+        // Stop pushing jobs to it
+        workerCredits.remove(worker);
+        workerTimeouts.remove(worker);
+
         // If this worker has any active jobs, clean up after it
-        Job job = getCurrentJobForWorker(worker);
-        if(job != null)
+        final Set<Job> jobs = workerJobs.remove(worker);
+        if(jobs != null)
         {
-            JobAction action = disconnectWorker(job, worker);
-            removeJob(job);
-
-            switch (action)
+            for(Job job : jobs)
             {
-                case REENQUEUE:
-                    try {
-                        reEnqueueJob(job);
-                    } catch (EnqueueException e) {
-                        // Drop the job to the floor if something happens
-                        // TODO: This may not be the best solution
-                        LOG.error("Unable to re-enqueue job: " + e.toString());
-                    }
-                    break;
-                // Let it go away
-                case MARKCOMPLETE:
-                case DONOTHING:
-                default:
-                    break;
-            }
+                final JobAction action;
+                final Lock jobLock = lockFor(job);
+                jobLock.lock();
+                try
+                {
+                    action = disconnectWorker(job, worker);
+                    detachJob(job);
+                }
+                finally
+                {
+                    jobLock.unlock();
+                }
 
-            workerJobs.remove(worker);
+                // Not under the job's lock: storing it may wait on another
+                // thread's admission of the same unique id
+                switch (action)
+                {
+                    case REENQUEUE:
+                        try {
+                            reEnqueueJob(job);
+                        } catch (EnqueueException e) {
+                            // Drop the job to the floor if something happens
+                            // TODO: This may not be the best solution
+                            LOG.error("Unable to re-enqueue job: " + e.toString());
+                        }
+                        break;
+                    // Let it go away
+                    case MARKCOMPLETE:
+                    case DONOTHING:
+                    default:
+                        break;
+                }
+            }
         }
 
     }
 
     public void unregisterClient(EngineClient client)
     {
-        removeClientForUniqueId(client.getCurrentJob(), client);
+        removeClientForUniqueId(client.getCurrentJob().getUniqueID(), client);
     }
 
     public void markWorkerAsAsleep(EngineWorker worker)
@@ -138,63 +272,415 @@ public class JobManager {
         for(String jobQueueName : worker.getAbilities()) {
             getWorkerPool(jobQueueName).markSleeping(worker);
 
-            if (queueExists(jobQueueName) && getJobQueue(jobQueueName).size() > 0) {
+            // Epoch jobs that aren't due yet don't count as waiting work
+            if (queueExists(jobQueueName) && !getJobQueue(jobQueueName).isEmpty()) {
                 workWaiting = true;
             }
         }
 
         if(workWaiting)
+        {
+            markWorkerAsAwake(worker);
             worker.wakeUp();
+        }
+    }
 
+    /**
+     * Wake up to <code>count</code> of the workers sleeping on a function,
+     * typically one per job that just became ready.
+     */
+    protected void wakeupWorkers(String functionName, int count)
+    {
+        final List<EngineWorker> woken = getWorkerPool(functionName).wakeupWorkers(count);
 
+        if (!woken.isEmpty())
+        {
+            // A woken worker will grab from any of its functions, so it is no
+            // longer a candidate in the other pools either
+            for (EngineWorker worker : woken)
+            {
+                markWorkerAsAwake(worker);
+            }
+            metrics.handleWorkersWokenUp(functionName, woken.size());
+        }
+    }
+
+    /**
+     * Jobs for a function turned up without going through this manager,
+     * e.g. they were submitted to another server sharing the queue.
+     */
+    public void handleJobsAvailable(String functionName)
+    {
+        if (queueExists(functionName) && !pushToWaitingWorker(functionName))
+        {
+            wakeupWorkers(functionName, 1);
+        }
+    }
+
+    /**
+     * Safety net for lost wake-ups: any function with ready jobs and only
+     * sleeping workers gets one worker woken up, which will then keep
+     * grabbing until the queue is drained.
+     */
+    public void sweepSleepingWorkers()
+    {
+        for (Map.Entry<String, WorkerPool> entry : workerPools.entrySet())
+        {
+            final String functionName = entry.getKey();
+            final JobQueue jobQueue = jobQueues.get(functionName);
+
+            if (jobQueue == null)
+                continue;
+
+            // Epoch jobs that just came due go to push workers first, then
+            // one sleeping worker per remaining job
+            int promoted = jobQueue.promoteDueJobs();
+            while (promoted > 0 && pushToWaitingWorker(functionName))
+                promoted--;
+
+            if (promoted > 0)
+            {
+                wakeupWorkers(functionName, promoted);
+            }
+            else if (entry.getValue().getNumberOfSleepingWorkers() > 0 && !jobQueue.isEmpty())
+            {
+                wakeupWorkers(functionName, 1);
+            }
+        }
+    }
+
+    private void markWorkerAsAwake(EngineWorker worker)
+    {
+        for (String jobQueueName : worker.getAbilities())
+        {
+            final WorkerPool workerPool = workerPools.get(jobQueueName);
+            if (workerPool != null)
+            {
+                workerPool.markAwake(worker);
+            }
+        }
     }
 
     @Timed
     @Metered
     public Job nextJobForWorker(EngineWorker worker)
+    {
+        final Job job = pollJobFor(worker);
+
+        if (job != null)
+        {
+            markWorkerAsAwake(worker);
+            assignJob(worker, job);
+            return job;
+        }
+
+        // Nothing found, or couldn't lock -- return null
+        metrics.handleEmptyGrab(worker);
+        return null;
+    }
+
+    private Job pollJobFor(EngineWorker worker)
     {
         for(String functionName : worker.getAbilities())
         {
             if (queueExists(functionName))
             {
-                final JobQueue jobQueue = getJobQueue(functionName);
-                final Job job = jobQueue.poll();
+                final Job job = getJobQueue(functionName).poll();
 
                 if (job != null)
                 {
-                    final WorkerPool workerPool = getWorkerPool(job.getFunctionName());
-                    workerPool.markAwake(worker);
-
-                    activeJobHandles.put(job.getJobHandle(), job);
-                    activeUniqueIds.put(job.getUniqueID(), job);
-                    workerJobs.put(worker, job);
-                    jobWorker.put(job, worker);
-                    metrics.handleJobStarted(job);
-                    job.markInProgress();
                     return job;
                 }
             }
         }
 
-        // Nothing found, or couldn't lock -- return null
         return null;
     }
 
-    public synchronized void removeJob(Job job)
+    private void assignJob(EngineWorker worker, Job job)
+    {
+        // The job is owned by this thread once polled; mark it as
+        // in progress before it becomes visible to other threads
+        job.markInProgress();
+        activeJobHandles.put(job.getJobHandle(), job);
+        activeUniqueIds.put(job.getUniqueID(), job);
+        workerJobs.computeIfAbsent(worker, w -> ConcurrentHashMap.newKeySet()).add(job);
+        jobWorker.put(job, worker);
+        metrics.handleJobStarted(job);
+
+        final Map<String, Long> timeouts = workerTimeouts.get(worker);
+        if (timeouts != null)
+        {
+            final Long timeout = timeouts.get(job.getFunctionName());
+            if (timeout != null)
+                jobLeases.grant(job, timeout);
+        }
+    }
+
+    // A job's worker didn't finish it in time
+    private void expireLease(Job job)
+    {
+        EngineWorker worker = null;
+        boolean requeued = false;
+        boolean pushed = false;
+        PushEngineWorker freed = null;
+        final Lock jobLock = lockFor(job);
+        jobLock.lock();
+        try
+        {
+            worker = jobWorker.get(job);
+
+            // Finished or taken back in the meantime
+            if (worker == null || job.getState() != JobState.WORKING)
+                return;
+
+            switch (leaseExpiryPolicy)
+            {
+                case REENQUEUE:
+                    LOG.warn("Job " + job.getJobHandle() + " timed out, re-enqueuing it");
+                    pushed = takeBack(worker, job);
+                    requeued = true;
+                    break;
+                case FAIL:
+                default:
+                    LOG.warn("Job " + job.getJobHandle() + " timed out, failing it");
+                    freed = failJob(job);
+                    break;
+            }
+        }
+        finally
+        {
+            jobLock.unlock();
+        }
+
+        if (requeued)
+            wakeupWorkers(job.getFunctionName(), 1);
+
+        // The worker's slot is free for another job
+        if (pushed && workerCredits.containsKey(worker))
+        {
+            returnCredit(worker);
+            freed = (PushEngineWorker) worker;
+        }
+        refill(freed);
+    }
+
+    /**
+     * Switch a worker to pushed dispatch. The worker may have up to
+     * <code>credits</code> pushed jobs outstanding; each one that finishes
+     * (complete, fail or exception) hands its credit back. Zero credits
+     * switches the worker back to GRAB_JOB only.
+     */
+    public void setWorkerCredits(PushEngineWorker worker, int credits)
+    {
+        if (credits <= 0)
+        {
+            workerCredits.remove(worker);
+            for (String functionName : worker.getAbilities())
+            {
+                getWorkerPool(functionName).removePushWorker(worker);
+            }
+            return;
+        }
+
+        int outstanding = 0;
+        for (Job job : getCurrentJobsForWorker(worker))
+        {
+            if (pushedJobs.contains(job))
+                outstanding++;
+        }
+
+        workerCredits.computeIfAbsent(worker, w -> new AtomicInteger())
+                     .set(Math.max(0, credits - outstanding));
+
+        for (String functionName : worker.getAbilities())
+        {
+            getWorkerPool(functionName).addPushWorker(worker);
+        }
+
+        pushJobsTo(worker);
+    }
+
+    // Push queued jobs to a worker until it runs out of credits or jobs
+    private void pushJobsTo(PushEngineWorker worker)
+    {
+        while (takeCredit(worker))
+        {
+            final Job job = pollJobFor(worker);
+
+            if (job == null)
+            {
+                returnCredit(worker);
+                return;
+            }
+
+            deliver(worker, job);
+        }
+    }
+
+    // Hand a freshly enqueued job to a push worker with a spare credit, if any
+    private boolean pushToWaitingWorker(String functionName)
+    {
+        for (EngineWorker worker : getWorkerPool(functionName).getPushWorkers())
+        {
+            if (takeCredit(worker))
+            {
+                final Job job = getJobQueue(functionName).poll();
+
+                if (job == null)
+                {
+                    // Someone else got there first
+                    returnCredit(worker);
+                }
+                else
+                {
+                    deliver((PushEngineWorker) worker, job);
+                }
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void deliver(PushEngineWorker worker, Job job)
+    {
+        assignJob(worker, job);
+        pushedJobs.add(job);
+
+        if (!worker.pushJob(job))
+        {
+            LOG.error("Unable to push job to worker, re-enqueuing job " + job.toString());
+
+            // Don't keep pushing to a worker we can't reach
+            setWorkerCredits(worker, 0);
+
+            requeue(worker, job);
+        }
+    }
+
+    /**
+     * Take a job back from its worker and put it straight back on its queue
+     * rather than through storeJob(): we may be inside admit() for this very
+     * unique id, and waiting clients must stay attached to the job.
+     *
+     * @return Whether the job had been pushed to the worker
+     */
+    private boolean requeue(EngineWorker worker, Job job)
+    {
+        final boolean pushed;
+        final Lock jobLock = lockFor(job);
+        jobLock.lock();
+        try
+        {
+            pushed = takeBack(worker, job);
+        }
+        finally
+        {
+            jobLock.unlock();
+        }
+
+        wakeupWorkers(job.getFunctionName(), 1);
+        return pushed;
+    }
+
+    // Caller holds the job's lock
+    private boolean takeBack(EngineWorker worker, Job job)
+    {
+        activeJobHandles.remove(job.getJobHandle(), job);
+        activeUniqueIds.remove(job.getUniqueID(), job);
+        jobWorker.remove(job);
+        jobLeases.release(job);
+        final boolean pushed = pushedJobs.remove(job);
+
+        final Set<Job> jobs = workerJobs.get(worker);
+        if (jobs != null)
+            jobs.remove(job);
+
+        try
+        {
+            job.setState(JobState.QUEUED);
+            getJobQueue(job.getFunctionName()).enqueue(job);
+        }
+        catch (QueueFullException | PersistenceException e)
+        {
+            LOG.error("Error re-enqueing job " + job.getJobHandle() + ": ", e);
+        }
+
+        return pushed;
+    }
+
+    private boolean takeCredit(EngineWorker worker)
     {
-        // Remove it from the job queue
+        final AtomicInteger credits = workerCredits.get(worker);
+        return credits != null && credits.getAndUpdate(c -> c > 0 ? c - 1 : c) > 0;
+    }
 
-        getJobQueue(job.getFunctionName()).remove(job);
+    private void returnCredit(EngineWorker worker)
+    {
+        final AtomicInteger credits = workerCredits.get(worker);
+        if (credits != null)
+            credits.incrementAndGet();
+    }
 
-        // Remove it from our local tracking maps
-        activeJobHandles.remove(job.getJobHandle());
-        activeUniqueIds.remove(job.getUniqueID());
-        uniqueIdClients.remove(job.getUniqueID());
-        EngineWorker worker = jobWorker.remove(job);
+    public void removeJob(Job job)
+    {
+        refill(detachJob(job));
+    }
+
+    /**
+     * Drop a job from its queue and from everything tracking it.
+     *
+     * @return The push worker whose credit the job held, for the caller to
+     *         hand its next job to once it has let go of the job's lock:
+     *         pushing takes the lock of the job pushed
+     */
+    private PushEngineWorker detachJob(Job job)
+    {
+        EngineWorker worker = null;
+        boolean pushed = false;
+        final Lock jobLock = lockFor(job);
+        jobLock.lock();
+        try
+        {
+            // Remove it from the job queue
+            getJobQueue(job.getFunctionName()).remove(job);
+
+            // Remove it from our local tracking maps, only if they still
+            // refer to this job and not a newer one with the same keys
+            activeJobHandles.remove(job.getJobHandle(), job);
+            activeUniqueIds.remove(job.getUniqueID(), job);
+            uniqueIdClients.remove(job.getUniqueID());
+            worker = jobWorker.remove(job);
+            pushed = pushedJobs.remove(job);
+            jobLeases.release(job);
+
+            if(worker != null)
+            {
+                final Set<Job> jobs = workerJobs.get(worker);
+                if (jobs != null)
+                    jobs.remove(job);
+            }
+        }
+        finally
+        {
+            jobLock.unlock();
+        }
 
-        if(worker != null)
-            workerJobs.remove(worker);
+        // A finished pushed job frees up a credit for the next one
+        if (pushed && worker != null && workerCredits.containsKey(worker))
+        {
+            returnCredit(worker);
+            return (PushEngineWorker) worker;
+        }
+        return null;
+    }
 
+    // Never called with a job's lock held
+    private void refill(PushEngineWorker worker)
+    {
+        if (worker != null)
+            pushJobsTo(worker);
     }
 
     public String generateUniqueID(String functionName)
@@ -216,14 +702,28 @@ public class JobManager {
 
     public Job storeJobForClient(Job job, EngineClient client) throws EnqueueException
     {
+        checkShareable(job);
+
         if(!job.isBackground()) {
             addClientForUniqueId(job.getUniqueID(), client);
         }
-        return storeJob(job);
+
+        try
+        {
+            return storeJob(job);
+        }
+        catch (EnqueueException e)
+        {
+            // Nothing will ever complete for this client
+            removeClientForUniqueId(job.getUniqueID(), client);
+            throw e;
+        }
     }
 
     public Job storeJob(Job job) throws EnqueueException
     {
+        checkShareable(job);
+
         try
         {
             final String functionName = job.getFunctionName();
@@ -239,47 +739,30 @@ public class JobManager {
                 uniqueID = job.getUniqueID();
             }
 
-            // Make sure only one thread attempts to add a job with this unique id
-            final Integer key = uniqueID.hashCode();
-            this.lock.lock(key);
-            try
-            {
-
-                if (activeUniqueIds.containsKey(uniqueID))
-                {
-                    // If the job is already being processed, pull from active jobs
-                    return activeUniqueIds.get(uniqueID);
-                }
-                else if (jobQueue.uniqueIdInUse(uniqueID))
-                {
-                    // If the job is queued but not active, pull it from storage
-                    return jobQueue.findJobByUniqueId(uniqueID);
-                }
-                else
-                {
-                    // New job, store it in the queue and storage
-                    if (job.getJobHandle() == null || job.getJobHandle().isEmpty())
-                    {
-                        job.setJobHandle(new String(jobHandleFactory.getNextJobHandle()));
-                    }
-
-                    jobQueue.enqueue(job);
+            // Make sure only one thread attempts to add a job with this unique id;
+            // anyone else submitting the same id waits for, and shares, its outcome
+            final CompletableFuture<Job> admission = new CompletableFuture<>();
+            final CompletableFuture<Job> inFlight = admissions.putIfAbsent(uniqueID, admission);
 
-                    // Notify any workers if this job is ready to run so it
-                    // gets picked up quickly
-                    if (job.isReady())
-                    {
-                        getWorkerPool(job.getFunctionName()).wakeupWorkers();
-                    }
+            if (inFlight != null)
+            {
+                return awaitAdmission(inFlight);
+            }
 
-                    metrics.handleJobEnqueued(job);
-                    return job;
-                }
+            try
+            {
+                final Job admitted = admit(job, uniqueID, jobQueue);
+                admission.complete(admitted);
+                return admitted;
+            }
+            catch (QueueFullException | PersistenceException | RuntimeException e)
+            {
+                admission.completeExceptionally(e);
+                throw e;
             }
             finally
             {
-                // Always unlock lock
-                this.lock.unlock(key);
+                admissions.remove(uniqueID, admission);
             }
         }
         catch (JobQueueFactoryException | QueueFullException | PersistenceException e)
@@ -289,6 +772,71 @@ public class JobManager {
 
     }
 
+    // A shared queue's jobs may run on any server, and the results of a
+    // foreground job could never make it back to the clients waiting here
+    private void checkShareable(final Job job) throws EnqueueException
+    {
+        if (!job.isBackground() && jobQueueFactory.isShared())
+        {
+            throw new EnqueueException(new UnsupportedOperationException(
+                    "Foreground jobs can't be submitted to shared queues, submit " + job.getFunctionName() + " in the background"));
+        }
+    }
+
+    private Job admit(final Job job, final String uniqueID, final JobQueue jobQueue)
+            throws QueueFullException, PersistenceException
+    {
+        if (activeUniqueIds.containsKey(uniqueID))
+        {
+            // If the job is already being processed, pull from active jobs
+            return activeUniqueIds.get(uniqueID);
+        }
+        else if (jobQueue.uniqueIdInUse(uniqueID))
+        {
+            // If the job is queued but not active, pull it from storage
+            return jobQueue.findJobByUniqueId(uniqueID);
+        }
+        else
+        {
+            // New job, store it in the queue and storage
+            if (job.getJobHandle() == null || job.getJobHandle().isEmpty())
+            {
+                job.setJobHandle(new String(jobHandleFactory.getNextJobHandle()));
+            }
+
+            jobQueue.enqueue(job);
+
+            metrics.handleJobEnqueued(job);
+
+            // Hand the job straight to a push worker, or notify any sleeping
+            // workers if this job is ready to run so it gets picked up quickly
+            if (job.isReady() && !pushToWaitingWorker(job.getFunctionName()))
+            {
+                wakeupWorkers(job.getFunctionName(), 1);
+            }
+
+            return job;
+        }
+    }
+
+    private Job awaitAdmission(final CompletableFuture<Job> admission) throws EnqueueException
+    {
+        try
+        {
+            return admission.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new EnqueueException(e);
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            throw new EnqueueException(cause instanceof Exception ? (Exception) cause : e);
+        }
+    }
+
     public final void reEnqueueJob(Job job) throws EnqueueException
     {
         JobState previousState = job.getState();
@@ -312,55 +860,96 @@ public class JobManager {
 
     @Timed
     @Metered
-    public synchronized void handleWorkCompletion(Job job, byte[] data)
+    public void handleWorkCompletion(Job job, byte[] data)
     {
 
         if(job != null)
         {
-            if(!job.isBackground())
+            final PushEngineWorker freed;
+            final Lock jobLock = lockFor(job);
+            jobLock.lock();
+            try
             {
-                notifyClientsOfCompletion(job, data);
-            }
+                // A job only completes once, ignore duplicate results
+                if(job.getState() == JobState.COMPLETE)
+                    return;
 
-            metrics.handleJobCompleted(job);
-            job.complete();
-            removeJob(job);
+                if(!job.isBackground())
+                {
+                    notifyClientsOfCompletion(job, data);
+                }
+
+                metrics.handleJobCompleted(job);
+                job.complete();
+                freed = detachJob(job);
+            }
+            finally
+            {
+                jobLock.unlock();
+            }
+            refill(freed);
         }
     }
 
-    public synchronized void handleWorkData(Job job, byte[] data)
+    public void handleWorkData(Job job, byte[] data)
     {
         if(job != null && !job.isBackground())
         {
-            for(EngineClient client : getClientsForUniqueId(job.getUniqueID()))
+            final Set<EngineClient> clients = clientsForUniqueId(job.getUniqueID());
+
+            if (clients.size() > 1)
+            {
+                // Encoded once for all of them
+                try (SharedPacket<WorkDataResponse> shared = new SharedPacket<>(new WorkDataResponse(job.getJobHandle(), data)))
+                {
+                    for (EngineClient client : clients)
+                    {
+                        client.sendWorkData(shared);
+                    }
+                }
+                return;
+            }
+
+            for(EngineClient client : clients)
             {
                 client.sendWorkData(job.getJobHandle(), data);
             }
         }
     }
 
-    public synchronized void handleWorkException(Job job, byte[] exception)
+    public void handleWorkException(Job job, byte[] exception)
     {
         if(job != null) {
-            if (!job.isBackground()) {
-                for (EngineClient client : getClientsForUniqueId(job.getUniqueID())) {
-                    client.sendWorkException(job.getJobHandle(), exception);
+            final PushEngineWorker freed;
+            final Lock jobLock = lockFor(job);
+            jobLock.lock();
+            try {
+                if (job.getState() == JobState.COMPLETE)
+                    return;
+
+                if (!job.isBackground()) {
+                    for (EngineClient client : clientsForUniqueId(job.getUniqueID())) {
+                        client.sendWorkException(job.getJobHandle(), exception);
+                    }
                 }
-            }
 
-            exceptionStorageEngine.storeException(job.getJobHandle(), job.getUniqueID(), job.getData(), exception);
+                exceptionStorageEngine.storeException(job.getJobHandle(), job.getUniqueID(), job.getData(), exception);
 
-            metrics.handleJobException(job);
-            job.complete();
-            removeJob(job);
+                metrics.handleJobException(job);
+                job.complete();
+                freed = detachJob(job);
+            } finally {
+                jobLock.unlock();
+            }
+            refill(freed);
         }
     }
 
-    public synchronized void handleWorkWarning(Job job, byte[] warning)
+    public void handleWorkWarning(Job job, byte[] warning)
     {
         if(job != null && !job.isBackground())
         {
-            Set<EngineClient> clients = getClientsForUniqueId(job.getUniqueID());
+            Set<EngineClient> clients = clientsForUniqueId(job.getUniqueID());
 
             for(EngineClient client : clients)
             {
@@ -369,22 +958,43 @@ public class JobManager {
         }
     }
 
-    public synchronized void handleWorkFailure(Job job)
+    public void handleWorkFailure(Job job)
     {
         if(job != null) {
-            if (!job.isBackground()) {
-                Set<EngineClient> clients = getClientsForUniqueId(job.getUniqueID());
-
-                for (EngineClient client : clients) {
-                    client.sendWorkFail(job.getJobHandle());
-                }
+            final PushEngineWorker freed;
+            final Lock jobLock = lockFor(job);
+            jobLock.lock();
+            try {
+                freed = failJob(job);
+            } finally {
+                jobLock.unlock();
             }
+            refill(freed);
+        }
 
-            metrics.handleJobFailed(job);
-            job.complete();
-            removeJob(job);
+    }
+
+    // Caller holds the job's lock
+    private PushEngineWorker failJob(Job job)
+    {
+        if (job.getState() == JobState.COMPLETE)
+            return null;
+
+        // Detached before the clients hear of it, so one that submits it
+        // again right away gets a new job
+        final Set<EngineClient> clients = job.isBackground()
+                ? Collections.<EngineClient>emptySet()
+                : clientsForUniqueId(job.getUniqueID());
+
+        metrics.handleJobFailed(job);
+        job.complete();
+        final PushEngineWorker freed = detachJob(job);
+
+        for (EngineClient client : clients) {
+            client.sendWorkFail(job.getJobHandle());
         }
 
+        return freed;
     }
 
     public JobStatus checkJobStatus(String jobHandle)
@@ -424,21 +1034,13 @@ public class JobManager {
 
 
     public final WorkerPool getWorkerPool(final String name) {
-        Integer key = name.hashCode();
-        try {
-            lock.lock(key);
+        WorkerPool workerPool = workerPools.get(name);
 
-            WorkerPool workerPool = workerPools.get(name);
-
-            if (workerPool == null) {
-                workerPool = new WorkerPool(name);
-                this.workerPools.put(name, workerPool);
-            }
-
-            return workerPool;
-        } finally {
-            lock.unlock(key);
+        if (workerPool == null) {
+            workerPool = workerPools.computeIfAbsent(name, poolName -> new WorkerPool(poolName, wakeupPolicy));
         }
+
+        return workerPool;
     }
 
     protected JobQueue getJobQueue(String name)
@@ -453,25 +1055,93 @@ public class JobManager {
 
     public final JobQueue getOrCreateJobQueue(String name) throws JobQueueFactoryException
     {
-        Integer key = name.hashCode();
-        try {
-            lock.lock(key);
-
-            JobQueue jobQueue = jobQueues.get(name);
+        JobQueue jobQueue = jobQueues.get(name);
 
-            if(jobQueue == null)
-            {
-                jobQueue = jobQueueFactory.build(name);
-                metrics.registerJobQueue(jobQueue);
-                this.jobQueues.put(name, jobQueue);
+        if(jobQueue == null)
+        {
+            try {
+                jobQueue = jobQueues.computeIfAbsent(name, queueName -> {
+                    try {
+                        JobQueue created = jobQueueFactory.build(queueName);
+                        created.setWatermarks(queueHighWatermark, queueLowWatermark);
+                        metrics.registerJobQueue(created);
+                        return created;
+                    } catch (JobQueueFactoryException e) {
+                        throw new JobQueueBuildFailure(e);
+                    }
+                });
+            } catch (JobQueueBuildFailure e) {
+                throw e.cause;
             }
+        }
+
+        return jobQueue;
+    }
+
+    // Carries a checked factory exception out of computeIfAbsent()
+    private static class JobQueueBuildFailure extends RuntimeException {
+        private final JobQueueFactoryException cause;
+
+        JobQueueBuildFailure(JobQueueFactoryException cause) {
+            super(cause);
+            this.cause = cause;
+        }
+    }
+
+    public WorkerPool.WakeupPolicy getWakeupPolicy()
+    {
+        return wakeupPolicy;
+    }
 
-            return jobQueue;
-        } finally {
-            lock.unlock(key);
+    public void setWakeupPolicy(WorkerPool.WakeupPolicy wakeupPolicy)
+    {
+        this.wakeupPolicy = wakeupPolicy;
+        for (WorkerPool workerPool : workerPools.values())
+        {
+            workerPool.setWakeupPolicy(wakeupPolicy);
+        }
+    }
+
+    /**
+     * Bound every job queue: once a queue holds {@code high} jobs, submissions
+     * to it fail until it has drained to {@code low}.
+     */
+    public void setQueueWatermarks(int high, int low)
+    {
+        this.queueHighWatermark = high;
+        this.queueLowWatermark = Math.min(low, high);
+        for (JobQueue jobQueue : jobQueues.values())
+        {
+            jobQueue.setWatermarks(queueHighWatermark, queueLowWatermark);
         }
     }
 
+    public JobLeases.ExpiryPolicy getLeaseExpiryPolicy()
+    {
+        return leaseExpiryPolicy;
+    }
+
+    public void setLeaseExpiryPolicy(JobLeases.ExpiryPolicy leaseExpiryPolicy)
+    {
+        this.leaseExpiryPolicy = leaseExpiryPolicy;
+    }
+
+    /**
+     * @return Number of running jobs with a time limit
+     */
+    public int getLeasedJobCount()
+    {
+        return jobLeases.size();
+    }
+
+    /**
+     * @return Number of unique IDs that have clients waiting on them
+     */
+    public int getWaitedOnJobCount()
+    {
+        return uniqueIdClients.size();
+    }
+
     public ConcurrentHashMap<String, JobQueue> getJobQueues()
     {
         return jobQueues;
@@ -483,38 +1153,67 @@ public class JobManager {
     }
 
     public Job getCurrentJobForWorker(EngineWorker worker) {
-        return workerJobs.get(worker);
+        final Set<Job> jobs = workerJobs.get(worker);
+
+        if (jobs != null) {
+            for (Job job : jobs) {
+                return job;
+            }
+        }
+
+        return null;
+    }
+
+    public Set<Job> getCurrentJobsForWorker(EngineWorker worker) {
+        final Set<Job> jobs = workerJobs.get(worker);
+        return jobs != null ? ImmutableSet.copyOf(jobs) : ImmutableSet.<Job>of();
+    }
+
+    /**
+     * @return Clients waiting on the job
+     */
+    public Set<EngineClient> getClientsForJob(Job job)
+    {
+        return Collections.unmodifiableSet(clientsForUniqueId(job.getUniqueID()));
     }
 
-    private void removeClientForUniqueId(Job job, EngineClient client)
+    // The set goes with its last client, so rejected or abandoned unique
+    // IDs don't pile up
+    private void removeClientForUniqueId(String uniqueID, EngineClient client)
     {
-        String uniqueID = job.getUniqueID();
-        Set<EngineClient> clients = getClientsForUniqueId(uniqueID);
-        clients.remove(client);
+        uniqueIdClients.computeIfPresent(uniqueID, (id, clients) -> {
+            clients.remove(client);
+            return clients.isEmpty() ? null : clients;
+        });
     }
 
     private void addClientForUniqueId(String uniqueID, EngineClient client)
     {
-        Set<EngineClient> clients = getClientsForUniqueId(uniqueID);
-        clients.add(client);
+        uniqueIdClients.compute(uniqueID, (id, clients) -> {
+            final Set<EngineClient> waiting = clients != null ? clients : new ConcurrentHashSet<>();
+            waiting.add(client);
+            return waiting;
+        });
     }
 
-    private Set<EngineClient> getClientsForUniqueId(String uniqueID)
+    // Read-only lookup for the notification paths; does not create an entry
+    // that would outlive the job if it races with removeJob()
+    private Set<EngineClient> clientsForUniqueId(String uniqueID)
     {
-        if(uniqueIdClients.containsKey(uniqueID))
-            return uniqueIdClients.get(uniqueID);
-        else {
-            Set<EngineClient> clients = new ConcurrentHashSet<>();
-            uniqueIdClients.put(uniqueID, clients);
-            return clients;
-        }
+        Set<EngineClient> clients = uniqueIdClients.get(uniqueID);
+        return clients != null ? clients : Collections.<EngineClient>emptySet();
+    }
+
+    private Lock lockFor(Job job)
+    {
+        return jobLocks.get(job.getUniqueID());
     }
 
     public final JobAction disconnectClient(final Job job, final EngineClient client) {
         JobAction result = JobAction.DONOTHING;
 
         if(!job.isBackground()) {
-            Set<EngineClient> clients = getClientsForUniqueId(job.getUniqueID());
+            Set<EngineClient> clients = clientsForUniqueId(job.getUniqueID());
 
             switch (job.getState()) {
                 // If the job was in the QUEUED state, all attached clients have
@@ -553,7 +1252,7 @@ public class JobManager {
         if(job.isBackground()) {
             result = JobAction.REENQUEUE;
         } else {
-            Set<EngineClient> clients = getClientsForUniqueId(job.getUniqueID());
+            Set<EngineClient> clients = clientsForUniqueId(job.getUniqueID());
 
             switch (job.getState()) {
                 case QUEUED:
@@ -587,14 +1286,24 @@ public class JobManager {
     }
 
     protected void notifyClientsOfCompletion(Job job, byte[] data) {
-        Set<EngineClient> clients = getClientsForUniqueId(job.getUniqueID());
+        Set<EngineClient> clients = clientsForUniqueId(job.getUniqueID());
 
-        if(!clients.isEmpty())
+        if (clients.size() > 1)
         {
-            for(EngineClient client : clients)
+            // Encoded once for all of them
+            try (SharedPacket<WorkCompleteResponse> shared = new SharedPacket<>(new WorkCompleteResponse(job.getJobHandle(), data)))
             {
-                client.sendWorkResults(job.getJobHandle(), data);
+                for (EngineClient client : clients)
+                {
+                    client.sendWorkResults(shared);
+                }
             }
+            return;
+        }
+
+        for(EngineClient client : clients)
+        {
+            client.sendWorkResults(job.getJobHandle(), data);
         }
     }
 
@@ -607,5 +1316,6 @@ public class JobManager {
             getWorkerPool(jobQueueName).removeWorker(worker);
         }
         worker.getAbilities().clear();
+        workerTimeouts.remove(worker);
     }
 }
@@ -3,17 +3,46 @@ package net.johnewart.gearman.engine.core;
 import net.johnewart.gearman.common.interfaces.EngineWorker;
 import org.eclipse.jetty.util.ConcurrentHashSet;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class WorkerPool {
-    private final ConcurrentHashSet<EngineWorker> sleepingWorkers;
+    /**
+     * Order in which sleeping workers are woken up. FIFO wakes the worker that
+     * has been asleep the longest (fair), LIFO wakes the one that went to sleep
+     * most recently (warm caches, lets idle workers stay idle).
+     */
+    public enum WakeupPolicy {
+        FIFO,
+        LIFO
+    }
+
+    // Sleeping workers in the order they went to sleep, guarded by itself
+    private final Deque<EngineWorker> sleepQueue;
+    private final Set<EngineWorker> sleepingWorkers;
     private final ConcurrentHashSet<EngineWorker> connectedWorkers;
+    // Connected workers that have opted in to pushed jobs
+    private final ConcurrentHashSet<EngineWorker> pushWorkers;
     private final AtomicLong numberOfConnectedWorkers;
+    private volatile WakeupPolicy wakeupPolicy;
 
     public WorkerPool(final String name) {
-        sleepingWorkers = new ConcurrentHashSet<>();
+        this(name, WakeupPolicy.FIFO);
+    }
+
+    public WorkerPool(final String name, final WakeupPolicy wakeupPolicy) {
+        sleepQueue = new ArrayDeque<>();
+        sleepingWorkers = new HashSet<>();
         connectedWorkers = new ConcurrentHashSet<>();
+        pushWorkers = new ConcurrentHashSet<>();
         numberOfConnectedWorkers = new AtomicLong(0);
+        this.wakeupPolicy = wakeupPolicy;
     }
 
     public void addWorker(final EngineWorker worker) {
@@ -22,27 +51,90 @@ public class WorkerPool {
     }
 
     public void removeWorker(final EngineWorker worker) {
-        sleepingWorkers.remove(worker);
+        markAwake(worker);
+        pushWorkers.remove(worker);
         connectedWorkers.remove(worker);
         numberOfConnectedWorkers.decrementAndGet();
     }
 
     public void markSleeping(final EngineWorker worker) {
-        sleepingWorkers.add(worker);
+        synchronized (sleepQueue) {
+            if (sleepingWorkers.add(worker)) {
+                sleepQueue.addLast(worker);
+            }
+        }
         worker.markAsleep();
     }
 
-    public void wakeupWorkers() {
-        for (final EngineWorker w : sleepingWorkers) {
+    /**
+     * Wake up at most <code>count</code> sleeping workers, in the order given
+     * by the pool's wake-up policy.
+     *
+     * @param count Number of workers to wake (usually the number of jobs that
+     *              just became ready)
+     * @return The workers that were woken up
+     */
+    public List<EngineWorker> wakeupWorkers(final int count) {
+        final List<EngineWorker> woken;
+
+        synchronized (sleepQueue) {
+            final int n = Math.min(count, sleepQueue.size());
+            if (n <= 0) {
+                return Collections.emptyList();
+            }
+
+            woken = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                final EngineWorker worker = wakeupPolicy == WakeupPolicy.LIFO
+                        ? sleepQueue.pollLast()
+                        : sleepQueue.pollFirst();
+                sleepingWorkers.remove(worker);
+                woken.add(worker);
+            }
+        }
+
+        for (final EngineWorker w : woken) {
             w.wakeUp();
         }
+
+        return woken;
     }
 
     public void markAwake(final EngineWorker worker) {
-        sleepingWorkers.remove(worker);
+        synchronized (sleepQueue) {
+            if (sleepingWorkers.remove(worker)) {
+                sleepQueue.remove(worker);
+            }
+        }
+    }
+
+    public void addPushWorker(final EngineWorker worker) {
+        pushWorkers.add(worker);
+    }
+
+    public void removePushWorker(final EngineWorker worker) {
+        pushWorkers.remove(worker);
+    }
+
+    public Set<EngineWorker> getPushWorkers() {
+        return pushWorkers;
+    }
+
+    public int getNumberOfSleepingWorkers() {
+        synchronized (sleepQueue) {
+            return sleepQueue.size();
+        }
     }
 
     public long getNumberOfConnectedWorkers() {
         return numberOfConnectedWorkers.longValue();
     }
+
+    public WakeupPolicy getWakeupPolicy() {
+        return wakeupPolicy;
+    }
+
+    public void setWakeupPolicy(WakeupPolicy wakeupPolicy) {
+        this.wakeupPolicy = wakeupPolicy;
+    }
 }
@@ -7,6 +7,7 @@ public class EnqueueException extends Exception
 
     public EnqueueException(Exception inner)
     {
+        super(inner);
         this.inner = inner;
         this.message = inner.getMessage();
     }
@@ -28,6 +28,8 @@ public class MetricsEngine implements QueueMetrics {
     private final Counter jobExceptionsCounter;
     private final Meter jobMeter;
     private final Counter activeWorkersCounter;
+    private final Counter noOpsSentCounter;
+    private final Counter wastedGrabsCounter;
 
     private final DateTime startTime;
 
@@ -42,6 +44,8 @@ public class MetricsEngine implements QueueMetrics {
         jobExceptionsCounter = registry.counter(name("queues", "job-exceptions"));
         jobMeter = registry.meter(name("queues", "queued-jobs-meter", "enqueued"));
         activeWorkersCounter = registry.counter(name("queues", "active-workers"));
+        noOpsSentCounter = registry.counter(name("workers", "noops-sent"));
+        wastedGrabsCounter = registry.counter(name("workers", "wasted-grabs"));
     }
 
     @Override
@@ -83,6 +87,17 @@ public class MetricsEngine implements QueueMetrics {
         }
     }
 
+    @Override
+    public void handleWorkersWokenUp(String queueName, int count) {
+        noOpsSentCounter.inc(count);
+        registry.counter(name("queue", queueName, "noops-sent")).inc(count);
+    }
+
+    @Override
+    public void handleEmptyGrab(EngineWorker worker) {
+        wastedGrabsCounter.inc();
+    }
+
     @Override
     public DateTime getStartTime() {
         return startTime;
@@ -205,6 +220,16 @@ public class MetricsEngine implements QueueMetrics {
         return workerCounters.getOrDefault(queueName, registry.counter(name("queue", queueName, "workers"))).getCount();
     }
 
+    @Override
+    public long getNoOpsSent() {
+        return noOpsSentCounter.getCount();
+    }
+
+    @Override
+    public long getWastedGrabs() {
+        return wastedGrabsCounter.getCount();
+    }
+
     @Override
     public void registerJobQueue(JobQueue jobQueue)
     {
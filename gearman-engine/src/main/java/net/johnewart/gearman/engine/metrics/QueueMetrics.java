@@ -14,6 +14,8 @@ public interface QueueMetrics {
     public void handleJobEnqueued(Job job);
     public void handleWorkerAddition(EngineWorker worker);
     public void handleWorkerRemoval(EngineWorker worker);
+    public void handleWorkersWokenUp(String queueName, int count);
+    public void handleEmptyGrab(EngineWorker worker);
 
     public DateTime getStartTime();
 
@@ -47,5 +49,8 @@ public interface QueueMetrics {
     public long getActiveWorkers();
     public long getActiveWorkers(String queueName);
 
+    public long getNoOpsSent();
+    public long getWastedGrabs();
+
     void registerJobQueue(JobQueue jobQueue);
 }
@@ -44,8 +44,57 @@ public interface JobQueue {
 
 	boolean isEmpty();
 
+    /**
+     * Move any epoch jobs whose time has come onto the ready queues.
+     *
+     * @return Number of jobs that became ready
+     */
+    default int promoteDueJobs() {
+        return 0;
+    }
+
+    /**
+     * Put back a job read from the persistence engine at startup, without
+     * writing it out again.
+     *
+     * @param queuedJob The stored job
+     * @return true if the queue took it, false if it was already there or
+     *         the queue loads its own jobs
+     */
+    default boolean restore(QueuedJob queuedJob) {
+        return false;
+    }
+
     void setCapacity(int size);
 
+    /**
+     * Once the queue holds {@code high} jobs it turns new ones away until it
+     * has drained to {@code low} or fewer.
+     *
+     * @param high Jobs the queue will hold
+     * @param low Jobs the queue has to drain to before taking more
+     */
+    default void setWatermarks(int high, int low) {
+        setCapacity(high);
+    }
+
+    /**
+     * @return true if the queue is turning new jobs away
+     */
+    default boolean isSaturated() {
+        return false;
+    }
+
+    /**
+     * Run something once the queue takes jobs again, right away if it
+     * already does.
+     *
+     * @param callback What to run
+     */
+    default void whenDrained(Runnable callback) {
+        callback.run();
+    }
+
     String getName();
 
     long size();
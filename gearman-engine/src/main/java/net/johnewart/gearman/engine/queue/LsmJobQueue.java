@@ -0,0 +1,445 @@
+package net.johnewart.gearman.engine.queue;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.constants.JobPriority;
+import net.johnewart.gearman.engine.core.QueuedJob;
+import net.johnewart.gearman.engine.exceptions.PersistenceException;
+import net.johnewart.gearman.engine.exceptions.QueueFullException;
+import net.johnewart.gearman.engine.queue.persistence.LsmPersistenceEngine;
+import net.johnewart.gearman.engine.queue.persistence.PersistenceEngine;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A function's queue in an {@link LsmPersistenceEngine}, for backlogs that
+ * don't fit on the heap. There is no index of the jobs in memory: poll()
+ * hands out jobs from a small window per priority, which is refilled from
+ * the store's queue records by seeking to where the last refill stopped.
+ * Every write gives a job a new sequence number, so anything queued or
+ * given back since then is always further on.
+ *
+ * What does stay in memory: epoch jobs that aren't due yet wait in a timing
+ * wheel, as they do in {@link PersistedJobQueue}, and jobs that have been
+ * handed out are remembered by unique ID until they are removed or given
+ * back. Counts are taken with one pass over the queue records when the
+ * queue is built and kept up to date from there.
+ */
+public class LsmJobQueue implements JobQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(LsmJobQueue.class);
+
+    // Jobs read into memory at a time, per priority
+    private static final int WINDOW = 64;
+
+    private final String functionName;
+    private final LsmPersistenceEngine store;
+    // Where jobs are written and read, the store or something in front of it
+    private final PersistenceEngine persistenceEngine;
+
+    private final Object lock = new Object();
+    // Everything below is guarded by lock. Read ahead per priority, and the
+    // sequence number of the last queue record read
+    private final ArrayDeque<Job>[] windows;
+    private final long[] cursors;
+    // Epoch jobs that aren't due yet
+    private final TimingWheel futureJobs = new TimingWheel(currentTime());
+    // Epoch jobs that went through the wheel, whose records may still be
+    // ahead of the cursor, until they are removed or given back
+    private final Map<String, QueuedJob> scheduled = new HashMap<>();
+    // Handed out, their records stay until they are removed
+    private final Set<String> running = new HashSet<>();
+    private volatile long lastPromotion;
+
+    private final AtomicInteger maxQueueSize;
+    private final AtomicInteger lowWatermark;
+    // Set when the queue fills up, cleared once it drains to the low watermark
+    private volatile boolean saturated;
+    private final ConcurrentLinkedQueue<Runnable> drainCallbacks = new ConcurrentLinkedQueue<>();
+    private final Counter highCounter, midCounter, lowCounter, totalCounter;
+
+    /**
+     * @param persistenceEngine What jobs go through, store itself or
+     *                          something like group commit in front of it
+     */
+    @SuppressWarnings("unchecked")
+    public LsmJobQueue(final String functionName,
+                       final LsmPersistenceEngine store,
+                       final PersistenceEngine persistenceEngine,
+                       final MetricRegistry metricRegistry)
+    {
+        this.functionName = functionName;
+        this.store = store;
+        this.persistenceEngine = persistenceEngine;
+        this.windows = new ArrayDeque[JobPriority.values().length];
+        this.cursors = new long[JobPriority.values().length];
+        for (JobPriority priority : JobPriority.values()) {
+            windows[priority.ordinal()] = new ArrayDeque<>();
+        }
+
+        this.maxQueueSize = new AtomicInteger(Integer.MAX_VALUE);
+        this.lowWatermark = new AtomicInteger(Integer.MAX_VALUE);
+
+        this.highCounter = metricRegistry.counter(name("queue", metricName(), "high"));
+        this.midCounter = metricRegistry.counter(name("queue", metricName(), "mid"));
+        this.lowCounter = metricRegistry.counter(name("queue", metricName(), "low"));
+        this.totalCounter = metricRegistry.counter(name("queue", metricName(), "total"));
+
+        synchronized (lock) {
+            store.readAll(functionName, queuedJob -> {
+                incrementCounters(queuedJob.getPriority());
+                schedule(queuedJob);
+            });
+        }
+    }
+
+    @Override
+    public void enqueue(final Job job) throws QueueFullException, PersistenceException
+    {
+        LOG.debug("Enqueueing " + job.toString());
+
+        if (saturated || size() >= maxQueueSize.intValue()) {
+            saturated = true;
+            throw new QueueFullException();
+        }
+
+        // A job given back goes to the end of its queue under a new sequence
+        // number, wherever it was before
+        synchronized (lock) {
+            running.remove(job.getUniqueID());
+            scheduled.remove(job.getUniqueID());
+        }
+
+        if (!persistenceEngine.write(job)) {
+            LOG.error("Unable to save job to persistent store");
+            throw new PersistenceException("Unable to save job to persistent store");
+        }
+
+        synchronized (lock) {
+            incrementCounters(job.getPriority());
+            // Unless a refill has come across it already
+            if (!scheduled.containsKey(job.getUniqueID())) {
+                schedule(new QueuedJob(job));
+            }
+        }
+    }
+
+    // Put an epoch job in the wheel unless it is due
+    private boolean schedule(final QueuedJob queuedJob)
+    {
+        if (queuedJob.getPriority() == JobPriority.NORMAL &&
+                queuedJob.getTimeToRun() > 0 &&
+                futureJobs.schedule(queuedJob)) {
+            scheduled.put(queuedJob.getUniqueID(), queuedJob);
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public Job poll()
+    {
+        promoteDueJobs();
+
+        final Job job;
+        synchronized (lock) {
+            job = next();
+            if (job == null) {
+                return null;
+            }
+
+            running.add(job.getUniqueID());
+            decrementCounters(job.getPriority());
+        }
+
+        checkDrained();
+        return job;
+    }
+
+    // Caller holds lock
+    private Job next()
+    {
+        for (JobPriority priority : JobPriority.values()) {
+            if (fill(priority)) {
+                return windows[priority.ordinal()].poll();
+            }
+        }
+
+        return null;
+    }
+
+    // Refill a priority's window if it's empty and the store has jobs we
+    // haven't read yet, caller holds lock
+    private boolean fill(final JobPriority priority)
+    {
+        final ArrayDeque<Job> window = windows[priority.ordinal()];
+
+        while (window.isEmpty() && unread(priority) > 0) {
+            final long cursor = cursors[priority.ordinal()];
+            cursors[priority.ordinal()] = store.readQueue(functionName, priority, cursor, WINDOW, queuedJob -> {
+                final String uniqueID = queuedJob.getUniqueID();
+                if (running.contains(uniqueID) || scheduled.containsKey(uniqueID) || inWindow(window, uniqueID)) {
+                    return;
+                }
+
+                // Null if its delete hasn't reached the store yet
+                final Job job = persistenceEngine.findJob(functionName, uniqueID);
+                if (job != null && !schedule(queuedJob)) {
+                    window.add(job);
+                }
+            });
+
+            // Counted, but not written out to the store yet
+            if (cursors[priority.ordinal()] == cursor) {
+                break;
+            }
+        }
+
+        return !window.isEmpty();
+    }
+
+    private long unread(final JobPriority priority)
+    {
+        final long waiting = priority == JobPriority.NORMAL ? futureJobs.size() : 0;
+        return size(priority) - windows[priority.ordinal()].size() - waiting;
+    }
+
+    private static boolean inWindow(final ArrayDeque<Job> window, final String uniqueID)
+    {
+        for (Job job : window) {
+            if (job.getUniqueID().equals(uniqueID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean remove(final Job job)
+    {
+        if (job == null) {
+            return false;
+        }
+
+        final String uniqueID = job.getUniqueID();
+        final boolean queued;
+
+        synchronized (lock) {
+            final QueuedJob future = scheduled.remove(uniqueID);
+
+            if (running.remove(uniqueID)) {
+                queued = false;
+            } else if (windows[job.getPriority().ordinal()].removeIf(windowed -> windowed.getUniqueID().equals(uniqueID))) {
+                queued = true;
+            } else if (future != null && futureJobs.cancel(future)) {
+                queued = true;
+            } else {
+                // Further on than we have read
+                queued = persistenceEngine.findJob(functionName, uniqueID) != null;
+            }
+
+            persistenceEngine.delete(job);
+
+            if (queued) {
+                decrementCounters(job.getPriority());
+            }
+        }
+
+        checkDrained();
+        return queued;
+    }
+
+    @Override
+    public boolean uniqueIdInUse(final String uniqueID)
+    {
+        return persistenceEngine.findJob(functionName, uniqueID) != null;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        promoteDueJobs();
+
+        synchronized (lock) {
+            for (JobPriority priority : JobPriority.values()) {
+                if (fill(priority)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public int promoteDueJobs()
+    {
+        final long currentTime = currentTime();
+
+        if (currentTime == lastPromotion) {
+            return 0;
+        }
+
+        synchronized (lock) {
+            lastPromotion = currentTime;
+            return futureJobs.advance(currentTime, queuedJob -> {
+                final Job job = persistenceEngine.findJob(functionName, queuedJob.getUniqueID());
+                if (job != null) {
+                    windows[JobPriority.NORMAL.ordinal()].add(job);
+                } else {
+                    // Deleted from under us
+                    scheduled.remove(queuedJob.getUniqueID());
+                    decrementCounters(JobPriority.NORMAL);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void setCapacity(final int size)
+    {
+        setWatermarks(size, size);
+    }
+
+    @Override
+    public void setWatermarks(final int high, final int low)
+    {
+        maxQueueSize.set(high);
+        lowWatermark.set(Math.min(low, high));
+        checkDrained();
+    }
+
+    @Override
+    public boolean isSaturated()
+    {
+        return saturated;
+    }
+
+    @Override
+    public void whenDrained(final Runnable callback)
+    {
+        drainCallbacks.add(callback);
+
+        // Might have drained while the callback was being added
+        if (!saturated) {
+            runDrainCallbacks();
+        }
+    }
+
+    private void checkDrained()
+    {
+        if (saturated && size() <= lowWatermark.get()) {
+            saturated = false;
+            runDrainCallbacks();
+        }
+    }
+
+    private void runDrainCallbacks()
+    {
+        Runnable callback;
+        while ((callback = drainCallbacks.poll()) != null) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                LOG.error("Drain callback failed: ", e);
+            }
+        }
+    }
+
+    private void decrementCounters(final JobPriority priority)
+    {
+        totalCounter.dec();
+        counter(priority).dec();
+    }
+
+    private void incrementCounters(final JobPriority priority)
+    {
+        totalCounter.inc();
+        counter(priority).inc();
+    }
+
+    private Counter counter(final JobPriority priority)
+    {
+        switch (priority) {
+            case HIGH:
+                return highCounter;
+            case LOW:
+                return lowCounter;
+            default:
+                return midCounter;
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return functionName;
+    }
+
+    @Override
+    public long size()
+    {
+        return totalCounter.getCount();
+    }
+
+    @Override
+    public long size(final JobPriority priority)
+    {
+        return counter(priority).getCount();
+    }
+
+    @Override
+    public Collection<QueuedJob> getAllJobs()
+    {
+        return persistenceEngine.getAllForFunction(functionName);
+    }
+
+    @Override
+    public Job findJobByUniqueId(final String uniqueID)
+    {
+        return persistenceEngine.findJob(functionName, uniqueID);
+    }
+
+    @Override
+    public ImmutableMap<Integer, Long> futureCounts()
+    {
+        promoteDueJobs();
+
+        final Map<Integer, Long> hourCounts = new HashMap<>();
+        final long ready;
+
+        synchronized (lock) {
+            hourCounts.putAll(futureJobs.hourlyCounts(currentTime()));
+            ready = size(JobPriority.NORMAL) - futureJobs.size();
+        }
+
+        final Long dueNow = hourCounts.get(0);
+        hourCounts.put(0, (dueNow == null ? 0 : dueNow) + ready);
+
+        return ImmutableMap.copyOf(hourCounts);
+    }
+
+    private static long currentTime()
+    {
+        return DateTimeUtils.currentTimeMillis() / 1000;
+    }
+
+    private String metricName()
+    {
+        return functionName.replaceAll(":", ".");
+    }
+}
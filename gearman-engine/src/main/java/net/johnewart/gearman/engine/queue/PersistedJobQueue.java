@@ -2,7 +2,6 @@ package net.johnewart.gearman.engine.queue;
 
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.MetricRegistry;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import net.johnewart.gearman.common.Job;
 import net.johnewart.gearman.constants.JobPriority;
@@ -10,19 +9,20 @@ import net.johnewart.gearman.engine.core.QueuedJob;
 import net.johnewart.gearman.engine.exceptions.PersistenceException;
 import net.johnewart.gearman.engine.exceptions.QueueFullException;
 import net.johnewart.gearman.engine.queue.persistence.PersistenceEngine;
-import org.eclipse.jetty.util.ConcurrentHashSet;
-import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.codahale.metrics.MetricRegistry.name;
@@ -36,52 +36,82 @@ public class PersistedJobQueue implements JobQueue {
     private final BlockingDeque<QueuedJob> low		= new LinkedBlockingDeque<>();
     private final BlockingDeque<QueuedJob> mid		= new LinkedBlockingDeque<>();
     private final BlockingDeque<QueuedJob> high		= new LinkedBlockingDeque<>();
-    private final PriorityBlockingQueue<QueuedJob> futureJobs = new PriorityBlockingQueue<>();
-
-    // Set of unique IDs in this queue
-    private final ConcurrentHashSet<String> allJobs = new ConcurrentHashSet<>();
+    // Epoch jobs that aren't due yet, guarded by allJobs
+    private final TimingWheel futureJobs = new TimingWheel(currentTime());
+    // Second the wheel was last advanced to, the wheel only ticks once a second
+    private volatile long lastPromotion;
+
+    // Jobs in this queue by unique ID. Removing a job only takes it out of
+    // here, its entry in the deques is left behind as a tombstone that poll()
+    // skips over, so removal doesn't have to scan the deque
+    private final ConcurrentHashMap<String, QueuedJob> allJobs = new ConcurrentHashMap<>();
+    // Roughly how many tombstones the deques hold, to know when to compact
+    private final AtomicInteger tombstones = new AtomicInteger();
 
     private final AtomicInteger maxQueueSize;
+    private final AtomicInteger lowWatermark;
+    // Set when the queue fills up, cleared once it drains to the low watermark
+    private volatile boolean saturated;
+    private final ConcurrentLinkedQueue<Runnable> drainCallbacks = new ConcurrentLinkedQueue<>();
     private final Counter highCounter, midCounter, lowCounter, totalCounter;
 
     public PersistedJobQueue(final String functionName,
                              final PersistenceEngine persistenceEngine,
                              final MetricRegistry metricRegistry)
+    {
+        this(functionName, persistenceEngine, metricRegistry, true);
+    }
+
+    /**
+     * @param loadJobs Whether to read the function's stored jobs now, false
+     *                 when they are being handed over through restore()
+     */
+    public PersistedJobQueue(final String functionName,
+                             final PersistenceEngine persistenceEngine,
+                             final MetricRegistry metricRegistry,
+                             final boolean loadJobs)
     {
         this.functionName = functionName;
         this.persistenceEngine = persistenceEngine;
         this.maxQueueSize = new AtomicInteger(Integer.MAX_VALUE);
+        this.lowWatermark = new AtomicInteger(Integer.MAX_VALUE);
 
         this.highCounter = metricRegistry.counter(name("queue", metricName(), "high"));
         this.midCounter = metricRegistry.counter(name("queue", metricName(), "mid"));
         this.lowCounter = metricRegistry.counter(name("queue", metricName(), "low"));
         this.totalCounter = metricRegistry.counter(name("queue", metricName(), "total"));
 
-        if(persistenceEngine != null)
+        if(persistenceEngine != null && loadJobs)
         {
             Collection<QueuedJob> jobs = persistenceEngine.getAllForFunction(functionName);
             jobs.forEach(this::add);
         }
     }
 
+    @Override
+    public boolean restore(final QueuedJob queuedJob)
+    {
+        return add(queuedJob);
+    }
+
     private boolean add(final QueuedJob queuedJob)
     {
         synchronized (this.allJobs) {
-            if(allJobs.contains(queuedJob.getUniqueID()))
+            if(allJobs.containsKey(queuedJob.getUniqueID()))
             {
                 return false;
             } else {
                 final boolean enqueued;
-                allJobs.add(queuedJob.getUniqueID());
+                allJobs.put(queuedJob.getUniqueID(), queuedJob);
 
                 switch (queuedJob.getPriority()) {
                     case LOW:
                         enqueued = low.add(queuedJob);
                         break;
                     case NORMAL:
-                        // Future job, stick on future queue
-                        if(queuedJob.getTimeToRun() > 0) {
-                            enqueued = futureJobs.add(queuedJob);
+                        // Future job, schedule it unless it's already due
+                        if(queuedJob.getTimeToRun() > 0 && futureJobs.schedule(queuedJob)) {
+                            enqueued = true;
                         } else {
                             enqueued = mid.add(queuedJob);
                         }
@@ -140,7 +170,8 @@ public class PersistedJobQueue implements JobQueue {
 
         QueuedJob queuedJob = new QueuedJob(job);
 
-        if(this.allJobs.size() >= maxQueueSize.intValue()) {
+        if(saturated || this.allJobs.size() >= maxQueueSize.intValue()) {
+            saturated = true;
             throw new QueueFullException();
         }
 
@@ -166,55 +197,166 @@ public class PersistedJobQueue implements JobQueue {
     @Override
     public final Job poll() {
 
-        long currentTime = new DateTime().toDate().getTime() / 1000;
+        promoteDueJobs();
 
         // High has no epoch jobs
-        QueuedJob queuedJob = high.poll();
+        QueuedJob queuedJob = claim(high);
 
         if (queuedJob == null)
-        {
-            // Check future jobs
-            QueuedJob peekJob = futureJobs.peek();
-            if (peekJob != null && peekJob.getTimeToRun() < currentTime) {
-                queuedJob = futureJobs.poll();
-            } else {
-                queuedJob = mid.poll();
-            }
-        }
+            queuedJob = claim(mid);
 
         if(queuedJob == null)
-            queuedJob = low.poll();
+            queuedJob = claim(low);
 
         if (queuedJob != null)
         {
-            Job job = persistenceEngine.findJob(
+            decrementCounters(queuedJob.getPriority());
+            checkDrained();
+
+            return persistenceEngine.findJob(
                     queuedJob.functionName,
                     queuedJob.uniqueID
             );
+        }
 
-            allJobs.remove(job.getUniqueID());
+        return null;
+    }
 
-            decrementCounters(job.getPriority());
+    // Take the first job off the deque that is still in the queue, dropping
+    // any tombstones in front of it
+    private QueuedJob claim(final BlockingDeque<QueuedJob> deque)
+    {
+        QueuedJob queuedJob;
+
+        while ((queuedJob = deque.poll()) != null)
+        {
+            if (allJobs.remove(queuedJob.getUniqueID(), queuedJob))
+            {
+                return queuedJob;
+            }
 
-            return job;
+            tombstones.decrementAndGet();
         }
 
         return null;
     }
 
+    private boolean isLive(final QueuedJob queuedJob)
+    {
+        return queuedJob.equals(allJobs.get(queuedJob.getUniqueID()));
+    }
+
+    // Like claim() but leaves the first live job where it is
+    private boolean hasLiveJob(final BlockingDeque<QueuedJob> deque)
+    {
+        QueuedJob queuedJob;
+
+        while ((queuedJob = deque.peek()) != null)
+        {
+            if (isLive(queuedJob))
+            {
+                return true;
+            }
+
+            if (deque.remove(queuedJob))
+            {
+                tombstones.decrementAndGet();
+            }
+        }
+
+        return false;
+    }
+
+    // Tombstones only go away as poll() reaches them; if jobs are being removed
+    // faster than they are polled, sweep them out once they outnumber the jobs
+    private void compactIfNeeded()
+    {
+        final int dead = tombstones.get();
+
+        if (dead < 1024 || dead < allJobs.size())
+        {
+            return;
+        }
+
+        int removed = 0;
+        for (BlockingDeque<QueuedJob> deque : Arrays.asList(high, mid, low))
+        {
+            final int before = deque.size();
+            deque.removeIf(queuedJob -> !isLive(queuedJob));
+            removed += before - deque.size();
+        }
+
+        tombstones.addAndGet(-removed);
+    }
+
     @Override
     public final boolean uniqueIdInUse(final String uniqueID) {
-        return allJobs.contains(uniqueID);
+        return allJobs.containsKey(uniqueID);
     }
 
     @Override
     public final boolean isEmpty() {
-        return high.isEmpty() && mid.isEmpty() && low.isEmpty();
+        promoteDueJobs();
+        return !hasLiveJob(high) && !hasLiveJob(mid) && !hasLiveJob(low);
+    }
+
+    @Override
+    public int promoteDueJobs() {
+        final long currentTime = currentTime();
+
+        if (currentTime == lastPromotion) {
+            return 0;
+        }
+
+        synchronized (allJobs) {
+            lastPromotion = currentTime;
+            return futureJobs.advance(currentTime, mid::add);
+        }
     }
 
     @Override
     public void setCapacity(final int size) {
-        maxQueueSize.set(size);
+        setWatermarks(size, size);
+    }
+
+    @Override
+    public void setWatermarks(final int high, final int low) {
+        maxQueueSize.set(high);
+        lowWatermark.set(Math.min(low, high));
+        checkDrained();
+    }
+
+    @Override
+    public boolean isSaturated() {
+        return saturated;
+    }
+
+    @Override
+    public void whenDrained(final Runnable callback) {
+        drainCallbacks.add(callback);
+
+        // Might have drained while the callback was being added
+        if (!saturated) {
+            runDrainCallbacks();
+        }
+    }
+
+    private void checkDrained() {
+        if (saturated && allJobs.size() <= lowWatermark.get()) {
+            saturated = false;
+            runDrainCallbacks();
+        }
+    }
+
+    private void runDrainCallbacks() {
+        Runnable callback;
+        while ((callback = drainCallbacks.poll()) != null) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                LOG.error("Drain callback failed: ", e);
+            }
+        }
     }
 
     @Override
@@ -250,53 +392,46 @@ public class PersistedJobQueue implements JobQueue {
             return false;
         }
 
-        final boolean removed;
+        final QueuedJob queuedJob;
 
         synchronized (allJobs) {
-            allJobs.remove(job.getUniqueID());
-
-            switch(job.getPriority()) {
-                case LOW:
-                    removed = low.remove(new QueuedJob(job));
-                    break;
-                case HIGH:
-                    removed = high.remove(new QueuedJob(job));
-                    break;
-                case NORMAL:
-                    removed = mid.remove(new QueuedJob(job));
-                    break;
-                default:
-                    removed = false;
+            queuedJob = allJobs.remove(job.getUniqueID());
+
+            // A job still waiting for its time to come is in the wheel rather
+            // than a deque, anything else is now a tombstone
+            if (queuedJob != null &&
+                    !(queuedJob.getPriority() == JobPriority.NORMAL && futureJobs.cancel(queuedJob))) {
+                tombstones.incrementAndGet();
             }
 
             // Remove from persistence engine
             persistenceEngine.delete(job);
         }
 
-        if (removed) {
-            decrementCounters(job.getPriority());
+        if (queuedJob == null) {
+            return false;
         }
 
-        return removed;
+        decrementCounters(queuedJob.getPriority());
+        compactIfNeeded();
+        checkDrained();
+
+        return true;
     }
 
     @Override
     public Collection<QueuedJob> getAllJobs() {
         Set<QueuedJob> jobs = new HashSet<>();
 
-        synchronized (low)
-        {
-            jobs.addAll(low);
-        }
-
-        synchronized (mid)
-        {
-            jobs.addAll(mid);
-        }
-
-        synchronized (high)
+        for (BlockingDeque<QueuedJob> deque : Arrays.asList(low, mid, high))
         {
-            jobs.addAll(high);
+            for (QueuedJob queuedJob : deque)
+            {
+                if (isLive(queuedJob))
+                {
+                    jobs.add(queuedJob);
+                }
+            }
         }
 
         return jobs;
@@ -309,37 +444,28 @@ public class PersistedJobQueue implements JobQueue {
 
     @Override
     public ImmutableMap<Integer, Long> futureCounts() {
-        // Time in seconds
-        long currentTime = new Date().getTime() / 1000;
-        HashMap<Integer, Long> hourCounts = new HashMap<>();
-
-        // Initialize 0-hour
-        hourCounts.put(0, 0L);
+        final long currentTime = currentTime();
+        final Map<Integer, Long> hourCounts = new HashMap<>();
+        final long ready;
 
-        ImmutableList<QueuedJob> midJobs = ImmutableList.copyOf(mid);
-        for(QueuedJob job : midJobs)
-        {
-            final long timeDiff = job.timeToRun - currentTime;
-            final Integer hoursFromNow;
-
-            if(timeDiff > 0)
-            {
-                hoursFromNow = (int)(timeDiff / 3600);
-
-                if(!hourCounts.containsKey(hoursFromNow))
-                {
-                    hourCounts.put(hoursFromNow, 0L);
-                }
-            } else {
-                hoursFromNow = 0;
-            }
-
-            hourCounts.put(hoursFromNow, hourCounts.get(hoursFromNow) + 1);
+        synchronized (allJobs) {
+            futureJobs.advance(currentTime, mid::add);
+            hourCounts.putAll(futureJobs.hourlyCounts(currentTime));
+            // Normal jobs not waiting in the wheel are ready to run now; polls
+            // and removes don't take the lock, so this can be briefly behind
+            ready = Math.max(0, midCounter.getCount() - futureJobs.size());
         }
 
+        final Long dueNow = hourCounts.get(0);
+        hourCounts.put(0, (dueNow == null ? 0 : dueNow) + ready);
+
         return ImmutableMap.copyOf(hourCounts);
     }
 
+    private static long currentTime() {
+        return DateTimeUtils.currentTimeMillis() / 1000;
+    }
+
     private String metricName() {
         return this.functionName.replaceAll(":", ".");
     }
@@ -0,0 +1,239 @@
+package net.johnewart.gearman.engine.queue;
+
+import com.google.common.collect.ImmutableMap;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.constants.JobPriority;
+import net.johnewart.gearman.engine.core.QueuedJob;
+import net.johnewart.gearman.engine.exceptions.PersistenceException;
+import net.johnewart.gearman.engine.exceptions.QueueFullException;
+import net.johnewart.gearman.engine.queue.persistence.PostgresPersistenceEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A function's queue in a PostgreSQL table shared with other servers. There
+ * is no index of the jobs in memory: poll() claims the next few ready jobs
+ * for this server straight from the table, and a job stays claimed while
+ * one of our workers has it so nobody else runs it too. Claims are renewed
+ * by {@link #renewClaims(long)} and expire if this server goes away, and a
+ * finished job is only deleted if the claim on it is still ours.
+ *
+ * Only background jobs can be shared: the clients waiting on a foreground
+ * job are connected to the server it was submitted to, and whoever ran it
+ * elsewhere would have no way of telling them how it went.
+ */
+public class PostgresSharedJobQueue implements JobQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(PostgresSharedJobQueue.class);
+
+    // How long sizes are reused before counting the table again
+    private static final long COUNT_INTERVAL_MILLIS = 1000;
+
+    private final String functionName;
+    private final PostgresPersistenceEngine persistenceEngine;
+    private final String owner;
+    private final String channel;
+    private final int batchSize;
+
+    // Claimed but not handed out yet, best first, guarded by itself
+    private final ArrayDeque<Job> claimed = new ArrayDeque<>();
+    private long claimedAt;
+    // Handed to a worker and still claimed, by unique ID
+    private final ConcurrentHashMap<String, Job> running = new ConcurrentHashMap<>();
+
+    private final AtomicInteger maxQueueSize = new AtomicInteger(Integer.MAX_VALUE);
+    private volatile Map<JobPriority, Long> counts;
+    private volatile long countedAt;
+
+    /**
+     * @param owner Identifies this server's claims
+     * @param channel Where to announce new jobs
+     * @param batchSize How many jobs to claim at a time
+     */
+    public PostgresSharedJobQueue(final String functionName,
+                                  final PostgresPersistenceEngine persistenceEngine,
+                                  final String owner,
+                                  final String channel,
+                                  final int batchSize)
+    {
+        this.functionName = functionName;
+        this.persistenceEngine = persistenceEngine;
+        this.owner = owner;
+        this.channel = channel;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void enqueue(final Job job) throws QueueFullException, PersistenceException
+    {
+        if (maxQueueSize.get() != Integer.MAX_VALUE && size() >= maxQueueSize.get()) {
+            throw new QueueFullException();
+        }
+
+        // A job taken back from its worker goes back to everyone
+        running.remove(job.getUniqueID());
+
+        if (!persistenceEngine.enqueue(job, owner, channel, owner + " " + functionName)) {
+            LOG.error("Unable to save job to persistent store");
+            throw new PersistenceException("Unable to save job to persistent store");
+        }
+    }
+
+    @Override
+    public Job poll()
+    {
+        synchronized (claimed) {
+            if (claimed.isEmpty()) {
+                claimed.addAll(persistenceEngine.claimJobs(functionName, owner, batchSize));
+                claimedAt = System.currentTimeMillis();
+            }
+
+            final Job job = claimed.poll();
+            if (job != null) {
+                running.put(job.getUniqueID(), job);
+            }
+            return job;
+        }
+    }
+
+    @Override
+    public boolean remove(final Job job)
+    {
+        if (job == null) {
+            return false;
+        }
+
+        boolean removed;
+        synchronized (claimed) {
+            removed = claimed.removeIf(claimedJob -> claimedJob.getUniqueID().equals(job.getUniqueID()));
+        }
+        removed |= running.remove(job.getUniqueID()) != null;
+
+        if (!persistenceEngine.deleteClaimed(functionName, job.getUniqueID(), owner)) {
+            LOG.warn("Lost the claim on " + functionName + "/" + job.getUniqueID() + ", leaving it to whoever has it now");
+        }
+        return removed;
+    }
+
+    /**
+     * Renew the claims on jobs our workers have, and give back claimed jobs
+     * that have waited here longer than staleMillis for a worker.
+     */
+    public void renewClaims(final long staleMillis)
+    {
+        if (!running.isEmpty()) {
+            persistenceEngine.renewClaims(functionName, owner, new ArrayList<>(running.keySet()));
+        }
+
+        synchronized (claimed) {
+            if (!claimed.isEmpty() && System.currentTimeMillis() - claimedAt > staleMillis) {
+                final List<String> uniqueIDs = new ArrayList<>();
+                for (Job job : claimed) {
+                    uniqueIDs.add(job.getUniqueID());
+                }
+                persistenceEngine.releaseClaims(functionName, owner, uniqueIDs);
+                claimed.clear();
+            }
+        }
+    }
+
+    @Override
+    public boolean uniqueIdInUse(final String uniqueID)
+    {
+        return findLocalJob(uniqueID) != null || persistenceEngine.jobExists(functionName, uniqueID);
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        synchronized (claimed) {
+            if (!claimed.isEmpty()) {
+                return false;
+            }
+        }
+        return !persistenceEngine.hasReadyJobs(functionName);
+    }
+
+    @Override
+    public long size(final JobPriority priority)
+    {
+        final Long count = counts().get(priority);
+        return count != null ? count : 0;
+    }
+
+    @Override
+    public long size()
+    {
+        long size = 0;
+        for (Long count : counts().values()) {
+            size += count;
+        }
+        return size;
+    }
+
+    // Metrics ask for every priority in turn, one query answers all of them
+    private Map<JobPriority, Long> counts()
+    {
+        final long now = System.currentTimeMillis();
+        if (counts == null || now - countedAt > COUNT_INTERVAL_MILLIS) {
+            counts = persistenceEngine.countUnclaimed(functionName);
+            countedAt = now;
+        }
+        return counts;
+    }
+
+    @Override
+    public void setCapacity(final int size)
+    {
+        maxQueueSize.set(size);
+    }
+
+    @Override
+    public String getName()
+    {
+        return functionName;
+    }
+
+    @Override
+    public Collection<QueuedJob> getAllJobs()
+    {
+        return persistenceEngine.getAllForFunction(functionName);
+    }
+
+    @Override
+    public Job findJobByUniqueId(final String uniqueID)
+    {
+        final Job job = findLocalJob(uniqueID);
+        return job != null ? job : persistenceEngine.findJob(functionName, uniqueID);
+    }
+
+    private Job findLocalJob(final String uniqueID)
+    {
+        final Job job = running.get(uniqueID);
+        if (job != null) {
+            return job;
+        }
+
+        synchronized (claimed) {
+            for (Job claimedJob : claimed) {
+                if (claimedJob.getUniqueID().equals(uniqueID)) {
+                    return claimedJob;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public ImmutableMap<Integer, Long> futureCounts()
+    {
+        return ImmutableMap.of();
+    }
+}
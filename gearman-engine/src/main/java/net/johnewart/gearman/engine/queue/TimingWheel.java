@@ -0,0 +1,298 @@
+package net.johnewart.gearman.engine.queue;
+
+import com.google.common.collect.ImmutableMap;
+import net.johnewart.gearman.engine.core.QueuedJob;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel for epoch (SUBMIT_JOB_EPOCH) jobs, one tick per
+ * second. Level 0 has a slot per second for the next 64 seconds, each level
+ * above it has slots 64 times as wide, so six levels cover any epoch we will
+ * ever see. A job sits at the lowest level whose next level up has it in the
+ * same slot range as the clock, so where it is follows from its time alone.
+ * Scheduling is O(1); as the clock advances, jobs cascade down one level at a
+ * time until they fall out of level 0 as due, so each job is moved at most
+ * once per level.
+ *
+ * Not thread safe, callers synchronize.
+ */
+public class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+
+    // Slots are only allocated once something lands in them
+    private final ArrayDeque<QueuedJob>[][] slots;
+    private final long[] levelCounts;
+    // Removed jobs are dropped when their slot is next touched, and counted
+    // per slot until then so hourlyCounts() doesn't have to look for them
+    private final Set<QueuedJob> cancelled;
+    private final int[][] cancelledCounts;
+
+    // Last second that has been processed
+    private long currentTick;
+    private long size;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(final long currentTime) {
+        this.slots = new ArrayDeque[LEVELS][SLOTS];
+        this.levelCounts = new long[LEVELS];
+        this.cancelled = new HashSet<>();
+        this.cancelledCounts = new int[LEVELS][SLOTS];
+        this.currentTick = currentTime;
+        this.size = 0;
+    }
+
+    /**
+     * Schedule a job to come due at its time to run.
+     *
+     * @param job The job to schedule
+     * @return false if the job is already due and was not scheduled
+     */
+    public boolean schedule(final QueuedJob job) {
+        if (job.getTimeToRun() <= currentTick) {
+            return false;
+        }
+
+        // A cancelled copy that is still sitting in its slot can just be
+        // revived rather than placed twice
+        if (cancelled.remove(job)) {
+            final int level = levelOf(job.getTimeToRun());
+            cancelledCounts[level][slotOf(job.getTimeToRun(), level)]--;
+        } else {
+            place(job);
+        }
+
+        size++;
+        return true;
+    }
+
+    /**
+     * Forget a scheduled job.
+     *
+     * @param job The job to forget
+     * @return false if the job was already due, so it isn't in the wheel
+     */
+    public boolean cancel(final QueuedJob job) {
+        // Everything up to the current tick has been handed out
+        if (job.getTimeToRun() <= currentTick) {
+            return false;
+        }
+
+        if (cancelled.add(job)) {
+            final int level = levelOf(job.getTimeToRun());
+            cancelledCounts[level][slotOf(job.getTimeToRun(), level)]++;
+            size--;
+        }
+        return true;
+    }
+
+    /**
+     * Move the clock forward, handing every job that comes due to the sink.
+     *
+     * @param currentTime Current time in seconds
+     * @param sink Receives the jobs that are now due
+     * @return The number of jobs that came due
+     */
+    public int advance(final long currentTime, final Consumer<QueuedJob> sink) {
+        int due = 0;
+
+        while (currentTick < currentTime) {
+            if (size == 0) {
+                // Only cancelled jobs left, if anything
+                clear();
+                currentTick = currentTime;
+                break;
+            }
+
+            skipEmptyTicks(currentTime);
+            if (currentTick >= currentTime) {
+                break;
+            }
+
+            currentTick++;
+
+            // Pull down the higher-level slots whose range starts now
+            int level = 1;
+            while (level < LEVELS && (currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                level++;
+            }
+            for (int l = level - 1; l >= 1; l--) {
+                due += cascade(l, (int) ((currentTick >>> (SLOT_BITS * l)) & SLOT_MASK), sink);
+            }
+
+            due += drain(0, (int) (currentTick & SLOT_MASK), sink);
+        }
+
+        return due;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Number of scheduled jobs by hours from now. Counts come from the slots,
+     * so jobs in the wider upper-level slots are bucketed by the start of
+     * their slot rather than their exact time (at most a slot early).
+     *
+     * @param currentTime Current time in seconds
+     * @return Map of hours from now to number of jobs
+     */
+    public ImmutableMap<Integer, Long> hourlyCounts(final long currentTime) {
+        final Map<Integer, Long> hourCounts = new HashMap<>();
+
+        for (int level = 0; level < LEVELS; level++) {
+            if (levelCounts[level] == 0) {
+                continue;
+            }
+
+            final int shift = SLOT_BITS * level;
+            final long currentBlock = currentTick >>> shift;
+
+            for (int slot = 0; slot < SLOTS; slot++) {
+                final ArrayDeque<QueuedJob> jobs = slots[level][slot];
+                final int count = jobs == null ? 0 : jobs.size() - cancelledCounts[level][slot];
+                if (count <= 0) {
+                    continue;
+                }
+
+                // First block after the current one that maps to this slot
+                long block = (currentBlock & ~(long) SLOT_MASK) | slot;
+                if (block <= currentBlock) {
+                    block += SLOTS;
+                }
+
+                addCount(hourCounts, (block << shift) - currentTime, count);
+            }
+        }
+
+        return ImmutableMap.copyOf(hourCounts);
+    }
+
+    private static void addCount(final Map<Integer, Long> hourCounts, final long secondsFromNow, final long count) {
+        final int hoursFromNow = secondsFromNow > 0 ? (int) (secondsFromNow / 3600) : 0;
+        final Long current = hourCounts.get(hoursFromNow);
+        hourCounts.put(hoursFromNow, (current == null ? 0 : current) + count);
+    }
+
+    private void place(final QueuedJob job) {
+        final int level = levelOf(job.getTimeToRun());
+        final int slot = slotOf(job.getTimeToRun(), level);
+        ArrayDeque<QueuedJob> jobs = slots[level][slot];
+        if (jobs == null) {
+            jobs = new ArrayDeque<>();
+            slots[level][slot] = jobs;
+        }
+
+        jobs.addLast(job);
+        levelCounts[level]++;
+    }
+
+    // Lowest level whose next level up has the clock and timeToRun in the
+    // same slot range; a job stays there until its slot is cascaded
+    private int levelOf(final long timeToRun) {
+        int level = 0;
+        while (level < LEVELS - 1 &&
+                (timeToRun >>> (SLOT_BITS * (level + 1))) != (currentTick >>> (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        return level;
+    }
+
+    private static int slotOf(final long timeToRun, final int level) {
+        return (int) ((timeToRun >>> (SLOT_BITS * level)) & SLOT_MASK);
+    }
+
+    private int cascade(final int level, final int slot, final Consumer<QueuedJob> sink) {
+        final ArrayDeque<QueuedJob> jobs = slots[level][slot];
+        if (jobs == null || jobs.isEmpty()) {
+            return 0;
+        }
+
+        slots[level][slot] = null;
+        levelCounts[level] -= jobs.size();
+        cancelledCounts[level][slot] = 0;
+
+        int due = 0;
+        for (QueuedJob job : jobs) {
+            if (cancelled.remove(job)) {
+                continue;
+            }
+
+            if (job.getTimeToRun() <= currentTick) {
+                size--;
+                due++;
+                sink.accept(job);
+            } else {
+                place(job);
+            }
+        }
+
+        return due;
+    }
+
+    private int drain(final int level, final int slot, final Consumer<QueuedJob> sink) {
+        final ArrayDeque<QueuedJob> jobs = slots[level][slot];
+        if (jobs == null || jobs.isEmpty()) {
+            return 0;
+        }
+
+        slots[level][slot] = null;
+        levelCounts[level] -= jobs.size();
+        cancelledCounts[level][slot] = 0;
+
+        int due = 0;
+        for (QueuedJob job : jobs) {
+            if (cancelled.remove(job)) {
+                continue;
+            }
+
+            size--;
+            due++;
+            sink.accept(job);
+        }
+
+        return due;
+    }
+
+    // Jump straight to the last tick before the next slot boundary of the
+    // lowest non-empty level, nothing can come due before then
+    private void skipEmptyTicks(final long currentTime) {
+        int level = 0;
+        while (level < LEVELS && levelCounts[level] == 0) {
+            level++;
+        }
+
+        if (level == 0 || level == LEVELS) {
+            return;
+        }
+
+        final int shift = SLOT_BITS * level;
+        final long boundary = ((currentTick >>> shift) + 1) << shift;
+        currentTick = Math.max(currentTick, Math.min(currentTime, boundary - 1));
+    }
+
+    private void clear() {
+        for (ArrayDeque<QueuedJob>[] level : slots) {
+            Arrays.fill(level, null);
+        }
+        Arrays.fill(levelCounts, 0);
+        for (int[] level : cancelledCounts) {
+            Arrays.fill(level, 0);
+        }
+        cancelled.clear();
+    }
+}
@@ -5,8 +5,50 @@ import net.johnewart.gearman.engine.exceptions.JobQueueFactoryException;
 import net.johnewart.gearman.engine.queue.JobQueue;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.function.Consumer;
 
 public interface JobQueueFactory {
     JobQueue build(String name) throws JobQueueFactoryException;
     Collection<QueuedJob> loadPersistedJobs();
+
+    /**
+     * Hand stored jobs over one at a time as they are read, queues built
+     * while this runs leave it to the caller to restore their jobs.
+     */
+    default void loadPersistedJobs(Consumer<QueuedJob> consumer) {
+        loadPersistedJobs().forEach(consumer);
+    }
+
+    /**
+     * Functions with stored jobs that their queues read themselves rather
+     * than having them handed over by loadPersistedJobs(), so the queues
+     * can be built at startup.
+     */
+    default Collection<String> getStoredFunctions() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Whether other servers share the queues and can add jobs to them at any
+     * time, so a worker's functions need queues before any job shows up here.
+     * Shared queues only take background jobs.
+     */
+    default boolean isShared() {
+        return false;
+    }
+
+    /**
+     * Let go of what the queues were built on once the server is done with
+     * them, writing out anything still pending first.
+     */
+    default void stop() {
+    }
+
+    /**
+     * Have listener called with the function name when jobs turn up that
+     * weren't enqueued through this server. Only shared queues have any.
+     */
+    default void setJobListener(Consumer<String> listener) {
+    }
 }
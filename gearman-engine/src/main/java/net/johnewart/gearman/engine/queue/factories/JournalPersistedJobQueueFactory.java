@@ -0,0 +1,36 @@
+package net.johnewart.gearman.engine.queue.factories;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.engine.exceptions.JobQueueFactoryException;
+import net.johnewart.gearman.engine.queue.persistence.JournalPersistenceEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+public class JournalPersistedJobQueueFactory extends PersistedJobQueueFactory {
+    private static Logger LOG = LoggerFactory.getLogger(JournalPersistedJobQueueFactory.class);
+
+    public JournalPersistedJobQueueFactory(String directory,
+                                           int segmentMegabytes,
+                                           long syncIntervalMillis,
+                                           double compactionThreshold,
+                                           MetricRegistry metricRegistry) throws JobQueueFactoryException {
+        super(buildEngine(directory, segmentMegabytes, syncIntervalMillis, compactionThreshold, metricRegistry), metricRegistry);
+    }
+
+    private static JournalPersistenceEngine buildEngine(String directory,
+                                                        int segmentMegabytes,
+                                                        long syncIntervalMillis,
+                                                        double compactionThreshold,
+                                                        MetricRegistry metricRegistry) throws JobQueueFactoryException {
+        try {
+            return new JournalPersistenceEngine(new File(directory), segmentMegabytes * 1024 * 1024,
+                    syncIntervalMillis, compactionThreshold, metricRegistry);
+        } catch (IOException e) {
+            LOG.error("Unable to open journal: ", e);
+            throw new JobQueueFactoryException("Could not create the journal persistence engine!");
+        }
+    }
+}
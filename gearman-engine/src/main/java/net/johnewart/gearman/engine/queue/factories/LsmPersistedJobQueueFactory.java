@@ -0,0 +1,88 @@
+package net.johnewart.gearman.engine.queue.factories;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.engine.core.QueuedJob;
+import net.johnewart.gearman.engine.exceptions.JobQueueFactoryException;
+import net.johnewart.gearman.engine.queue.JobQueue;
+import net.johnewart.gearman.engine.queue.LsmJobQueue;
+import net.johnewart.gearman.engine.queue.persistence.LsmPersistenceEngine;
+import net.johnewart.gearman.engine.queue.persistence.PersistenceEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Builds {@link LsmJobQueue}s, which read their jobs from the store as they
+ * go instead of having them all loaded at startup.
+ */
+public class LsmPersistedJobQueueFactory implements JobQueueFactory {
+    private static Logger LOG = LoggerFactory.getLogger(LsmPersistedJobQueueFactory.class);
+
+    private final LsmPersistenceEngine store;
+    private final PersistenceEngine persistenceEngine;
+    private final MetricRegistry metricRegistry;
+
+    public LsmPersistedJobQueueFactory(String directory,
+                                       int writeBufferMegabytes,
+                                       int blockCacheMegabytes,
+                                       MetricRegistry metricRegistry) throws JobQueueFactoryException {
+        this(openStore(directory, writeBufferMegabytes, blockCacheMegabytes, metricRegistry), null, metricRegistry);
+    }
+
+    /**
+     * @param persistenceEngine What jobs are written through, such as group
+     *                          commit in front of store, null for the store
+     */
+    public LsmPersistedJobQueueFactory(LsmPersistenceEngine store,
+                                       PersistenceEngine persistenceEngine,
+                                       MetricRegistry metricRegistry) {
+        this.store = store;
+        this.persistenceEngine = persistenceEngine != null ? persistenceEngine : store;
+        this.metricRegistry = metricRegistry;
+    }
+
+    public static LsmPersistenceEngine openStore(String directory,
+                                                 int writeBufferMegabytes,
+                                                 int blockCacheMegabytes,
+                                                 MetricRegistry metricRegistry) throws JobQueueFactoryException {
+        try {
+            return new LsmPersistenceEngine(new File(directory),
+                    writeBufferMegabytes * 1024L * 1024L,
+                    blockCacheMegabytes * 1024L * 1024L,
+                    metricRegistry);
+        } catch (IOException e) {
+            LOG.error("Unable to open LSM store: ", e);
+            throw new JobQueueFactoryException("Could not create the LSM persistence engine!");
+        }
+    }
+
+    @Override
+    public JobQueue build(String name) throws JobQueueFactoryException {
+        return new LsmJobQueue(name, store, persistenceEngine, metricRegistry);
+    }
+
+    @Override
+    public Collection<QueuedJob> loadPersistedJobs() {
+        // Nothing to load, the queues read the store as they go
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Collection<String> getStoredFunctions() {
+        return store.getFunctionNames();
+    }
+
+    @Override
+    public void stop() {
+        // Whatever is in front of the store passes it on
+        persistenceEngine.stop();
+    }
+
+    public PersistenceEngine getPersistenceEngine() {
+        return persistenceEngine;
+    }
+}
@@ -0,0 +1,56 @@
+package net.johnewart.gearman.engine.queue.factories;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.engine.core.QueuedJob;
+import net.johnewart.gearman.engine.exceptions.JobQueueFactoryException;
+import net.johnewart.gearman.engine.queue.JobQueue;
+import net.johnewart.gearman.engine.queue.PersistedJobQueue;
+import net.johnewart.gearman.engine.queue.persistence.PersistenceEngine;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Builds queues that all share one persistence engine.
+ */
+public class PersistedJobQueueFactory implements JobQueueFactory {
+    private final PersistenceEngine persistenceEngine;
+    private final MetricRegistry metricRegistry;
+    // Set while jobs are streamed in at startup, queues built meanwhile
+    // get theirs through restore() rather than reading them again
+    private volatile boolean restoring;
+
+    public PersistedJobQueueFactory(PersistenceEngine persistenceEngine, MetricRegistry metricRegistry) {
+        this.persistenceEngine = persistenceEngine;
+        this.metricRegistry = metricRegistry;
+    }
+
+    @Override
+    public JobQueue build(String name) throws JobQueueFactoryException {
+        return new PersistedJobQueue(name, persistenceEngine, metricRegistry, !restoring);
+    }
+
+    @Override
+    public Collection<QueuedJob> loadPersistedJobs() {
+        return persistenceEngine.readAll();
+    }
+
+    @Override
+    public void loadPersistedJobs(Consumer<QueuedJob> consumer) {
+        restoring = true;
+        try {
+            persistenceEngine.readAll(consumer);
+        } finally {
+            restoring = false;
+        }
+    }
+
+    @Override
+    public void stop() {
+        persistenceEngine.stop();
+    }
+
+    public PersistenceEngine getPersistenceEngine() {
+        return persistenceEngine;
+    }
+}
@@ -0,0 +1,217 @@
+package net.johnewart.gearman.engine.queue.factories;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.johnewart.gearman.engine.core.QueuedJob;
+import net.johnewart.gearman.engine.exceptions.JobQueueFactoryException;
+import net.johnewart.gearman.engine.queue.JobQueue;
+import net.johnewart.gearman.engine.queue.PostgresSharedJobQueue;
+import net.johnewart.gearman.engine.queue.persistence.PostgresPersistenceEngine;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Builds queues in one PostgreSQL table shared by any number of servers,
+ * without Hazelcast: each server claims jobs for its workers straight from
+ * the table (see {@link PostgresSharedJobQueue}) and announces new ones with
+ * NOTIFY on a channel named after the table, which every server LISTENs on
+ * to wake its workers.
+ */
+public class PostgreSQLSharedJobQueueFactory implements JobQueueFactory {
+    private static Logger LOG = LoggerFactory.getLogger(PostgreSQLSharedJobQueueFactory.class);
+
+    // How often to pick up notifications, the driver can't wait for them
+    private static final long LISTEN_POLL_MILLIS = 50;
+    // How often to make sure the listening connection is still there
+    private static final long LISTEN_CHECK_MILLIS = 10000;
+    // How long to wait before connecting again
+    private static final long LISTEN_RETRY_MILLIS = 5000;
+
+    private final PostgresPersistenceEngine persistenceEngine;
+    // Tells this server's claims and notifications apart from the others'
+    private final String owner = UUID.randomUUID().toString();
+    private final String channel;
+    private final int claimBatchSize;
+    private final long claimTimeoutMillis;
+    private final ConcurrentHashMap<String, PostgresSharedJobQueue> queues = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+    private final Thread listener;
+    private final Meter notificationMeter;
+    private volatile Consumer<String> jobListener = functionName -> {};
+
+    /**
+     * @param claimBatchSize How many jobs a server claims at a time
+     * @param claimTimeoutSeconds How long the claims of a server that stopped
+     *                            renewing them last
+     */
+    public PostgreSQLSharedJobQueueFactory(String hostname,
+                                           int port,
+                                           String database,
+                                           String user,
+                                           String password,
+                                           String tableName,
+                                           int claimBatchSize,
+                                           int claimTimeoutSeconds,
+                                           MetricRegistry metricRegistry) throws JobQueueFactoryException {
+        this.persistenceEngine = buildEngine(hostname, port, database, user, password, tableName, metricRegistry);
+        this.channel = tableName;
+        this.claimBatchSize = claimBatchSize;
+        this.claimTimeoutMillis = TimeUnit.SECONDS.toMillis(claimTimeoutSeconds);
+        this.notificationMeter = metricRegistry.meter("postgresql.notifications");
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("postgres-claims-%d").build());
+
+        // Renewed well before they would expire
+        final long renewMillis = Math.max(1, claimTimeoutMillis / 3);
+        executor.scheduleWithFixedDelay(this::renewClaims, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::expireClaims, claimTimeoutMillis, claimTimeoutMillis, TimeUnit.MILLISECONDS);
+
+        this.listener = new Thread(this::listen, "postgres-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    private static PostgresPersistenceEngine buildEngine(String hostname,
+                                                         int port,
+                                                         String database,
+                                                         String user,
+                                                         String password,
+                                                         String tableName,
+                                                         MetricRegistry metricRegistry) throws JobQueueFactoryException {
+        try {
+            final PostgresPersistenceEngine engine = new PostgresPersistenceEngine(hostname, port, database, user, password, tableName, metricRegistry);
+            engine.enableClaims();
+            return engine;
+        } catch (SQLException e) {
+            LOG.error("Unable to create PostgreSQL persistence engine: ", e);
+            throw new JobQueueFactoryException("Could not create the PostgreSQL persistence engine!");
+        }
+    }
+
+    @Override
+    public JobQueue build(String name) throws JobQueueFactoryException {
+        return queues.computeIfAbsent(name, functionName ->
+                new PostgresSharedJobQueue(functionName, persistenceEngine, owner, channel, claimBatchSize));
+    }
+
+    // Nothing to load, the queues read the table as they go
+    @Override
+    public Collection<QueuedJob> loadPersistedJobs() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    @Override
+    public void setJobListener(Consumer<String> listener) {
+        this.jobListener = listener;
+    }
+
+    @Override
+    public void stop() {
+        // Claims we still hold expire and go to the other servers
+        executor.shutdownNow();
+        listener.interrupt();
+        persistenceEngine.stop();
+    }
+
+    public PostgresPersistenceEngine getPersistenceEngine() {
+        return persistenceEngine;
+    }
+
+    private void renewClaims() {
+        for (PostgresSharedJobQueue queue : queues.values()) {
+            try {
+                queue.renewClaims(claimTimeoutMillis / 3);
+            } catch (RuntimeException e) {
+                LOG.error("Unable to renew claims for " + queue.getName() + ": ", e);
+            }
+        }
+    }
+
+    // Any server can do it, whoever gets there first puts the jobs of a
+    // server that went away back and tells everyone
+    private void expireClaims() {
+        try {
+            for (String functionName : persistenceEngine.expireClaims(claimTimeoutMillis)) {
+                LOG.warn("Claims on " + functionName + " jobs expired, putting them back");
+                persistenceEngine.notify(channel, owner + " " + functionName);
+                jobListener.accept(functionName);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Unable to expire claims: ", e);
+        }
+    }
+
+    private void listen() {
+        while (true) {
+            try (Connection conn = persistenceEngine.connect();
+                 Statement st = conn.createStatement()) {
+                st.execute("LISTEN \"" + channel.replace("\"", "\"\"") + "\"");
+                LOG.info("Listening for jobs on " + channel);
+
+                final PGConnection pgConnection = (PGConnection) conn;
+                long checkedAt = System.currentTimeMillis();
+
+                while (true) {
+                    final PGNotification[] notifications = pgConnection.getNotifications();
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            handleNotification(notification.getParameter());
+                        }
+                    }
+
+                    // A dead connection wouldn't otherwise show up here
+                    if (System.currentTimeMillis() - checkedAt > LISTEN_CHECK_MILLIS) {
+                        st.execute("SELECT 1");
+                        checkedAt = System.currentTimeMillis();
+                    }
+
+                    Thread.sleep(LISTEN_POLL_MILLIS);
+                }
+            } catch (SQLException e) {
+                LOG.error("Lost the connection listening on " + channel + ", reconnecting: ", e);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                Thread.sleep(LISTEN_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // [owner] [function name]
+    private void handleNotification(final String payload) {
+        final int separator = payload.indexOf(' ');
+        if (separator < 0 || payload.substring(0, separator).equals(owner)) {
+            // Our own workers were woken when we wrote the job
+            return;
+        }
+
+        notificationMeter.mark();
+        final String functionName = payload.substring(separator + 1);
+        executor.execute(() -> jobListener.accept(functionName));
+    }
+}
@@ -0,0 +1,156 @@
+package net.johnewart.gearman.engine.queue.persistence;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.engine.core.QueuedJob;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static net.johnewart.gearman.engine.queue.persistence.JobKeys.key;
+
+/**
+ * Write-through cache of jobs in front of another persistence engine, so
+ * a job that was just submitted can be dispatched (or matched against a
+ * duplicate submission) without reading it back from the store. Bounded by
+ * an estimate of the bytes the cached jobs take up, least recently used
+ * jobs are evicted first.
+ */
+public class CachingPersistenceEngine implements PersistenceEngine {
+    // Rough size of a job and its cache entry besides the strings and data
+    private static final int JOB_OVERHEAD_BYTES = 200;
+
+    private final PersistenceEngine persistenceEngine;
+    private final Cache<String, Job> jobs;
+    private final Counter hitCounter, missCounter, evictionCounter;
+
+    public CachingPersistenceEngine(final PersistenceEngine persistenceEngine,
+                                    final long maxCacheBytes,
+                                    final MetricRegistry metricRegistry)
+    {
+        this.persistenceEngine = persistenceEngine;
+        this.hitCounter = metricRegistry.counter(name("persistence", "cache", "hits"));
+        this.missCounter = metricRegistry.counter(name("persistence", "cache", "misses"));
+        this.evictionCounter = metricRegistry.counter(name("persistence", "cache", "evictions"));
+
+        this.jobs = CacheBuilder.newBuilder()
+                .maximumWeight(maxCacheBytes)
+                .weigher(new Weigher<String, Job>() {
+                    @Override
+                    public int weigh(String key, Job job) {
+                        return JOB_OVERHEAD_BYTES + 2 * key.length() + dataLength(job);
+                    }
+                })
+                .removalListener(new RemovalListener<String, Job>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, Job> notification) {
+                        if (notification.getCause() == RemovalCause.SIZE) {
+                            evictionCounter.inc();
+                        }
+                    }
+                })
+                .build();
+    }
+
+    @Override
+    public String getIdentifier() {
+        return persistenceEngine.getIdentifier();
+    }
+
+    @Override
+    public boolean write(final Job job) {
+        final boolean written = persistenceEngine.write(job);
+        if (written) {
+            jobs.put(key(job.getFunctionName(), job.getUniqueID()), job);
+        }
+        return written;
+    }
+
+    @Override
+    public boolean writeBatch(final Collection<Job> batch) {
+        final boolean written = persistenceEngine.writeBatch(batch);
+        if (written) {
+            for (Job job : batch) {
+                jobs.put(key(job.getFunctionName(), job.getUniqueID()), job);
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public void delete(final Job job) {
+        jobs.invalidate(key(job.getFunctionName(), job.getUniqueID()));
+        persistenceEngine.delete(job);
+    }
+
+    @Override
+    public void delete(final String functionName, final String uniqueID) {
+        jobs.invalidate(key(functionName, uniqueID));
+        persistenceEngine.delete(functionName, uniqueID);
+    }
+
+    @Override
+    public void deleteBatch(final Collection<Job> batch) {
+        for (Job job : batch) {
+            jobs.invalidate(key(job.getFunctionName(), job.getUniqueID()));
+        }
+        persistenceEngine.deleteBatch(batch);
+    }
+
+    @Override
+    public void deleteAll() {
+        jobs.invalidateAll();
+        persistenceEngine.deleteAll();
+    }
+
+    @Override
+    public Job findJob(final String functionName, final String uniqueID) {
+        final Job job = jobs.getIfPresent(key(functionName, uniqueID));
+
+        if (job != null) {
+            hitCounter.inc();
+            return job;
+        }
+
+        // Not filled on a miss: a miss is usually a job loaded at startup,
+        // which is read once, and filling could race with its delete
+        missCounter.inc();
+        return persistenceEngine.findJob(functionName, uniqueID);
+    }
+
+    @Override
+    public Collection<QueuedJob> readAll() {
+        return persistenceEngine.readAll();
+    }
+
+    @Override
+    public void readAll(final Consumer<QueuedJob> consumer) {
+        persistenceEngine.readAll(consumer);
+    }
+
+    @Override
+    public Collection<QueuedJob> getAllForFunction(final String functionName) {
+        return persistenceEngine.getAllForFunction(functionName);
+    }
+
+    @Override
+    public void stop() {
+        persistenceEngine.stop();
+    }
+
+    public long size() {
+        return jobs.size();
+    }
+
+    private static int dataLength(final Job job) {
+        return job.getData() == null ? 0 : job.getData().length;
+    }
+}
@@ -0,0 +1,14 @@
+package net.johnewart.gearman.engine.queue.persistence;
+
+/**
+ * When an enqueued job counts as stored (and JOB_CREATED can go out).
+ */
+public enum DurabilityMode {
+    // Every job is written to the store before enqueue returns
+    SYNC,
+    // Writes are batched with other submitters', enqueue returns once the
+    // job's batch has been written
+    GROUP,
+    // Writes are batched in the background, enqueue returns immediately
+    ASYNC
+}
@@ -5,9 +5,11 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
@@ -18,6 +20,7 @@ import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.ScanResult;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -38,6 +41,10 @@ import java.util.Map;
 
 public class DynamoDBPersistenceEngine implements PersistenceEngine {
     private static Logger LOG = LoggerFactory.getLogger(DynamoDBPersistenceEngine.class);
+    // Most items BatchWriteItem will take in one request
+    private static final int MAX_BATCH_WRITE_ITEMS = 25;
+    // Retries of throttled items before a batch is given up on
+    private static final int MAX_BATCH_WRITE_ATTEMPTS = 10;
     private final String tableName;
 
     private final DynamoDB dynamoDB;
@@ -171,22 +178,39 @@ public class DynamoDBPersistenceEngine implements PersistenceEngine {
         Table table = dynamoDB.getTable(tableName);
 
         try {
-            String jobJSON = objectMapper.writeValueAsString(job);
+            table.putItem(itemFromJob(job, objectMapper));
+            return true;
+        } catch (JsonProcessingException e) {
+            e.printStackTrace();
+        } finally {
+            context.stop();
+        }
+
+        return false;
+    }
 
+    @Override
+    public boolean writeBatch(Collection<Job> jobs) {
+        Timer.Context context = writeTimer.time();
+        ObjectMapper objectMapper = new ObjectMapper();
 
-            Item item = new Item()
-                    .withPrimaryKey("JobKey", jobIdKey(job))
-                    .withString("UniqueId", job.getUniqueID())
-                    .withString("JobHandle", job.getJobHandle())
-                    .withNumber("When", job.getTimeToRun())
-                    .withString("Priority", job.getPriority().toString())
-                    .withString("JobQueue", job.getFunctionName())
-                    .withString("JSON", jobJSON);
+        try {
+            List<Item> items = new ArrayList<>(jobs.size());
+            for (Job job : jobs) {
+                items.add(itemFromJob(job, objectMapper));
+            }
 
-            table.putItem(item);
+            for (int i = 0; i < items.size(); i += MAX_BATCH_WRITE_ITEMS) {
+                List<Item> chunk = items.subList(i, Math.min(items.size(), i + MAX_BATCH_WRITE_ITEMS));
+                if (!batchWrite(new TableWriteItems(tableName).withItemsToPut(chunk))) {
+                    return false;
+                }
+            }
             return true;
         } catch (JsonProcessingException e) {
-            e.printStackTrace();
+            LOG.error("Error serializing batch of jobs: ", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             context.stop();
         }
@@ -194,6 +218,56 @@ public class DynamoDBPersistenceEngine implements PersistenceEngine {
         return false;
     }
 
+    @Override
+    public void deleteBatch(Collection<Job> jobs) {
+        List<Object> keys = new ArrayList<>(jobs.size());
+        for (Job job : jobs) {
+            keys.add(jobIdKey(job));
+        }
+
+        try {
+            for (int i = 0; i < keys.size(); i += MAX_BATCH_WRITE_ITEMS) {
+                List<Object> chunk = keys.subList(i, Math.min(keys.size(), i + MAX_BATCH_WRITE_ITEMS));
+                if (!batchWrite(new TableWriteItems(tableName).withHashOnlyKeysToDelete("JobKey", chunk.toArray()))) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Send one batch, retrying whatever DynamoDB throttled with backoff.
+    // False if some of it still hadn't gone through after the last attempt.
+    private boolean batchWrite(TableWriteItems writeItems) throws InterruptedException {
+        BatchWriteItemOutcome outcome = dynamoDB.batchWriteItem(writeItems);
+        Map<String, List<WriteRequest>> unprocessed = outcome.getUnprocessedItems();
+
+        for (int attempt = 0; unprocessed != null && !unprocessed.isEmpty(); attempt++) {
+            if (attempt == MAX_BATCH_WRITE_ATTEMPTS) {
+                LOG.error("DynamoDB still throttling after " + attempt + " retries, giving up on a batch");
+                return false;
+            }
+            Thread.sleep(Math.min(1000, 50L << Math.min(attempt, 5)));
+            unprocessed = dynamoDB.batchWriteItemUnprocessed(unprocessed).getUnprocessedItems();
+        }
+
+        return true;
+    }
+
+    private Item itemFromJob(Job job, ObjectMapper objectMapper) throws JsonProcessingException {
+        String jobJSON = objectMapper.writeValueAsString(job);
+
+        return new Item()
+                .withPrimaryKey("JobKey", jobIdKey(job))
+                .withString("UniqueId", job.getUniqueID())
+                .withString("JobHandle", job.getJobHandle())
+                .withNumber("When", job.getTimeToRun())
+                .withString("Priority", job.getPriority().toString())
+                .withString("JobQueue", job.getFunctionName())
+                .withString("JSON", jobJSON);
+    }
+
     private String jobIdKey(Job job) {
         return jobIdKey(job.getFunctionName(), job.getUniqueID());
     }
@@ -0,0 +1,362 @@
+package net.johnewart.gearman.engine.queue.persistence;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.engine.core.QueuedJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static net.johnewart.gearman.engine.queue.persistence.JobKeys.key;
+
+/**
+ * Sits in front of another persistence engine and collects writes and
+ * deletes from all queues into batches, which are handed to the engine's
+ * bulk operations by a single flusher thread once a batch is full or its
+ * oldest operation has waited long enough.
+ *
+ * Operations on the same job are coalesced, only the latest one in a batch
+ * goes out. A job that is written and then deleted within one batch is never
+ * written, but its delete still goes to the store since an earlier batch (or
+ * an earlier run) may have written it. Reads see pending operations before
+ * falling through to the engine.
+ */
+public class GroupCommitPersistenceEngine implements PersistenceEngine {
+    private static Logger LOG = LoggerFactory.getLogger(GroupCommitPersistenceEngine.class);
+
+    private final PersistenceEngine persistenceEngine;
+    private final DurabilityMode durabilityMode;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+
+    private final Object lock = new Object();
+    // Latest operation per job and the future for the batch they will go
+    // out in, guarded by lock
+    private Map<String, PendingOperation> pending;
+    private CompletableFuture<Boolean> pendingBatch;
+    private long firstPendingAt;
+    private boolean flushRequested;
+    // Batch that is being written right now
+    private volatile Map<String, PendingOperation> flushing;
+    private volatile CompletableFuture<Boolean> flushingBatch;
+    private volatile boolean running;
+
+    private final Thread flusher;
+    private final Histogram batchSizes;
+    private final Timer flushTimer;
+    private final Counter pendingCounter, failedCounter;
+
+    public GroupCommitPersistenceEngine(final PersistenceEngine persistenceEngine,
+                                        final DurabilityMode durabilityMode,
+                                        final int maxBatchSize,
+                                        final long maxBatchDelayMillis,
+                                        final MetricRegistry metricRegistry)
+    {
+        this.persistenceEngine = persistenceEngine;
+        this.durabilityMode = durabilityMode;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+
+        this.pending = new LinkedHashMap<>();
+        this.pendingBatch = new CompletableFuture<>();
+        this.flushing = Collections.emptyMap();
+        this.flushingBatch = CompletableFuture.completedFuture(true);
+
+        this.batchSizes = metricRegistry.histogram(name("persistence", "batch", "size"));
+        this.flushTimer = metricRegistry.timer(name("persistence", "flush"));
+        this.pendingCounter = metricRegistry.counter(name("persistence", "pending"));
+        this.failedCounter = metricRegistry.counter(name("persistence", "failed"));
+
+        this.flusher = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("persistence-flush-%d")
+                .build()
+                .newThread(this::runFlusher);
+
+        if (durabilityMode != DurabilityMode.SYNC) {
+            this.running = true;
+            this.flusher.start();
+        }
+    }
+
+    @Override
+    public String getIdentifier() {
+        return persistenceEngine.getIdentifier() + " (" + durabilityMode.toString().toLowerCase() + " commit)";
+    }
+
+    @Override
+    public boolean write(final Job job) {
+        if (durabilityMode == DurabilityMode.SYNC) {
+            return persistenceEngine.write(job);
+        }
+
+        final CompletableFuture<Boolean> batch = submit(new PendingOperation(job, false));
+
+        if (durabilityMode == DurabilityMode.ASYNC) {
+            return true;
+        }
+
+        try {
+            return batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            LOG.error("Error waiting for batch to be written: ", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean writeBatch(final Collection<Job> jobs) {
+        boolean written = true;
+        for (Job job : jobs) {
+            written &= write(job);
+        }
+        return written;
+    }
+
+    @Override
+    public void delete(final Job job) {
+        // Nobody waits on a delete, the worst a lost one does is re-run a
+        // finished job after a crash
+        if (durabilityMode == DurabilityMode.SYNC) {
+            persistenceEngine.delete(job);
+        } else {
+            submit(new PendingOperation(job, true));
+        }
+    }
+
+    @Override
+    public void deleteBatch(final Collection<Job> jobs) {
+        for (Job job : jobs) {
+            delete(job);
+        }
+    }
+
+    @Override
+    public void delete(final String functionName, final String uniqueID) {
+        flush();
+        persistenceEngine.delete(functionName, uniqueID);
+    }
+
+    @Override
+    public void deleteAll() {
+        flush();
+        persistenceEngine.deleteAll();
+    }
+
+    @Override
+    public Job findJob(final String functionName, final String uniqueID) {
+        final String key = key(functionName, uniqueID);
+        PendingOperation operation;
+
+        synchronized (lock) {
+            operation = pending.get(key);
+        }
+
+        if (operation == null) {
+            operation = flushing.get(key);
+        }
+
+        if (operation != null) {
+            return operation.delete ? null : operation.job;
+        }
+
+        return persistenceEngine.findJob(functionName, uniqueID);
+    }
+
+    @Override
+    public Collection<QueuedJob> readAll() {
+        flush();
+        return persistenceEngine.readAll();
+    }
+
+    @Override
+    public void readAll(final Consumer<QueuedJob> consumer) {
+        flush();
+        persistenceEngine.readAll(consumer);
+    }
+
+    @Override
+    public Collection<QueuedJob> getAllForFunction(final String functionName) {
+        flush();
+        return persistenceEngine.getAllForFunction(functionName);
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    /**
+     * Write out everything that is pending and wait for it.
+     */
+    public void flush() {
+        final CompletableFuture<Boolean> batch;
+
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                batch = flushingBatch;
+            } else {
+                batch = pendingBatch;
+                flushRequested = true;
+                lock.notifyAll();
+            }
+        }
+
+        batch.join();
+    }
+
+    /**
+     * Flush what is pending, stop the flusher thread and then the engine
+     * behind it.
+     */
+    @Override
+    public void stop() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        persistenceEngine.stop();
+    }
+
+    private CompletableFuture<Boolean> submit(final PendingOperation operation) {
+        final String key = key(operation.job.getFunctionName(), operation.job.getUniqueID());
+
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                firstPendingAt = System.nanoTime();
+                lock.notifyAll();
+            }
+
+            if (pending.put(key, operation) == null) {
+                pendingCounter.inc();
+            }
+
+            if (pending.size() >= maxBatchSize) {
+                lock.notifyAll();
+            }
+
+            return pendingBatch;
+        }
+    }
+
+    private void runFlusher() {
+        while (true) {
+            final Map<String, PendingOperation> batch;
+            final CompletableFuture<Boolean> done;
+
+            synchronized (lock) {
+                try {
+                    while (running && !batchReady()) {
+                        if (pending.isEmpty()) {
+                            lock.wait();
+                        } else {
+                            TimeUnit.NANOSECONDS.timedWait(lock, maxBatchDelayNanos - (System.nanoTime() - firstPendingAt));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                }
+
+                if (pending.isEmpty()) {
+                    if (!running) {
+                        return;
+                    }
+                    continue;
+                }
+
+                batch = pending;
+                done = pendingBatch;
+                pending = new LinkedHashMap<>();
+                pendingBatch = new CompletableFuture<>();
+                flushRequested = false;
+                flushing = batch;
+                flushingBatch = done;
+            }
+
+            done.complete(flush(batch.values()));
+            flushing = Collections.emptyMap();
+        }
+    }
+
+    private boolean batchReady() {
+        return !pending.isEmpty() &&
+                (flushRequested ||
+                 pending.size() >= maxBatchSize ||
+                 System.nanoTime() - firstPendingAt >= maxBatchDelayNanos);
+    }
+
+    private boolean flush(final Collection<PendingOperation> batch) {
+        final List<Job> writes = new ArrayList<>(batch.size());
+        final List<Job> deletes = new ArrayList<>();
+
+        for (PendingOperation operation : batch) {
+            if (operation.delete) {
+                deletes.add(operation.job);
+            } else {
+                writes.add(operation.job);
+            }
+        }
+
+        final Timer.Context context = flushTimer.time();
+        boolean written = true;
+
+        try {
+            if (!writes.isEmpty()) {
+                written = persistenceEngine.writeBatch(writes);
+            }
+
+            if (!deletes.isEmpty()) {
+                persistenceEngine.deleteBatch(deletes);
+            }
+        } catch (Exception e) {
+            LOG.error("Error flushing batch of " + batch.size() + " jobs: ", e);
+            written = false;
+        } finally {
+            context.stop();
+            batchSizes.update(batch.size());
+            pendingCounter.dec(batch.size());
+        }
+
+        if (!written) {
+            LOG.error("Unable to write batch of " + writes.size() + " jobs to persistent store");
+            failedCounter.inc(writes.size());
+        }
+
+        return written;
+    }
+
+    private static class PendingOperation {
+        final Job job;
+        final boolean delete;
+
+        PendingOperation(final Job job, final boolean delete) {
+            this.job = job;
+            this.delete = delete;
+        }
+    }
+}
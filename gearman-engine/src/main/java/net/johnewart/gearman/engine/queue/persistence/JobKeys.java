@@ -0,0 +1,12 @@
+package net.johnewart.gearman.engine.queue.persistence;
+
+final class JobKeys {
+    private JobKeys() {
+    }
+
+    // Function names and unique ids are NUL-terminated on the wire, so
+    // neither can contain one
+    static String key(final String functionName, final String uniqueID) {
+        return functionName + '\0' + uniqueID;
+    }
+}
@@ -0,0 +1,674 @@
+package net.johnewart.gearman.engine.queue.persistence;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.constants.JobPriority;
+import net.johnewart.gearman.engine.core.QueuedJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Stores jobs on the local disk, for durable queues without a round trip to
+ * a database. Writes and deletes are appended to a journal made of
+ * memory-mapped segment files; an in-memory index points at the latest
+ * record of every job, and is rebuilt by replaying the segments on startup.
+ *
+ * Writers either wait for their record to be fsync'd (concurrent writers
+ * share one fsync) or, with a sync interval, return at once and the journal
+ * is fsync'd in the background. Deletes are never waited for: a delete lost
+ * in a crash only means the job runs again.
+ *
+ * Segments whose records are mostly dead are compacted in the background:
+ * what is still live is appended to the current segment and the file is
+ * removed.
+ *
+ * Records are [int length][int crc32][body], a zero length marks the end of
+ * a segment's records and a bad checksum a torn write.
+ */
+public class JournalPersistenceEngine implements PersistenceEngine {
+    private static final Logger LOG = LoggerFactory.getLogger(JournalPersistenceEngine.class);
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_SIZE = 8;
+    // Type, priority, background and time to run come before a PUT's key
+    private static final int PUT_KEY_OFFSET = 1 + 1 + 1 + 8;
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final long COMPACTION_INTERVAL_MS = 5000;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long syncIntervalMillis;
+    private final double compactionThreshold;
+
+    // Segment id <--> segment, oldest first
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // Function name <--> unique id <--> latest record for the job
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> index = new ConcurrentHashMap<>();
+
+    // Appends, and index updates, happen in log order under appendLock
+    private final Object appendLock = new Object();
+    private Segment head;
+    private long appended;
+
+    private final Object syncLock = new Object();
+    private volatile long synced;
+
+    private final ScheduledExecutorService background;
+    private final Timer syncTimer;
+    private final Counter segmentCounter;
+    private final Meter compactedMeter;
+
+    /**
+     * @param directory Where the segment files live, created if need be
+     * @param segmentSize Size of each segment file in bytes
+     * @param syncIntervalMillis How often to fsync in the background, 0 to
+     *                           have every write wait for its fsync
+     * @param compactionThreshold Compact segments whose live records take up
+     *                            less than this fraction of them
+     */
+    public JournalPersistenceEngine(final File directory,
+                                    final int segmentSize,
+                                    final long syncIntervalMillis,
+                                    final double compactionThreshold,
+                                    final MetricRegistry metricRegistry) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.compactionThreshold = compactionThreshold;
+
+        this.syncTimer = metricRegistry.timer(name("persistence", "journal", "sync"));
+        this.segmentCounter = metricRegistry.counter(name("persistence", "journal", "segments"));
+        this.compactedMeter = metricRegistry.meter(name("persistence", "journal", "compacted"));
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+
+        recover();
+
+        this.background = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("journal-%d").build());
+        this.background.scheduleWithFixedDelay(this::compactQuietly,
+                COMPACTION_INTERVAL_MS, COMPACTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (syncIntervalMillis > 0) {
+            this.background.scheduleWithFixedDelay(this::syncQuietly,
+                    syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public String getIdentifier() {
+        return "Journal (" + directory + ")";
+    }
+
+    @Override
+    public boolean write(final Job job) {
+        return writeBatch(Arrays.asList(job));
+    }
+
+    @Override
+    public boolean writeBatch(final Collection<Job> jobs) {
+        final List<byte[]> records = new ArrayList<>(jobs.size());
+        for (Job job : jobs) {
+            records.add(encodePut(job));
+        }
+
+        final long sequence;
+        try {
+            synchronized (appendLock) {
+                int i = 0;
+                for (Job job : jobs) {
+                    final byte[] body = records.get(i++);
+                    final Location location = append(body);
+                    put(job.getFunctionName(), job.getUniqueID(),
+                        new Entry(location, job.getPriority(), job.getTimeToRun()));
+                }
+                sequence = appended;
+            }
+
+            if (syncIntervalMillis == 0) {
+                syncTo(sequence);
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.error("Unable to append to journal: ", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void delete(final Job job) {
+        delete(job.getFunctionName(), job.getUniqueID());
+    }
+
+    @Override
+    public void delete(final String functionName, final String uniqueID) {
+        try {
+            synchronized (appendLock) {
+                remove(functionName, uniqueID);
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to append delete to journal: ", e);
+        }
+    }
+
+    @Override
+    public void deleteBatch(final Collection<Job> jobs) {
+        try {
+            synchronized (appendLock) {
+                for (Job job : jobs) {
+                    remove(job.getFunctionName(), job.getUniqueID());
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to append deletes to journal: ", e);
+        }
+    }
+
+    @Override
+    public void deleteAll() {
+        try {
+            synchronized (appendLock) {
+                index.clear();
+                for (Segment segment : segments.values()) {
+                    removeSegment(segment);
+                }
+                head = createSegment(head.id + 1, segmentSize);
+                synced = appended;
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to start a new journal: ", e);
+        }
+    }
+
+    @Override
+    public Job findJob(final String functionName, final String uniqueID) {
+        final Map<String, Entry> jobs = index.get(functionName);
+        final Entry entry = jobs != null ? jobs.get(uniqueID) : null;
+
+        if (entry == null) {
+            return null;
+        }
+
+        return decodeJob(entry.location.read());
+    }
+
+    @Override
+    public Collection<QueuedJob> readAll() {
+        final List<QueuedJob> jobs = new ArrayList<>();
+        for (String functionName : index.keySet()) {
+            jobs.addAll(getAllForFunction(functionName));
+        }
+        return jobs;
+    }
+
+    @Override
+    public Collection<QueuedJob> getAllForFunction(final String functionName) {
+        final Map<String, Entry> jobs = index.get(functionName);
+        final List<QueuedJob> queuedJobs = new ArrayList<>();
+
+        if (jobs != null) {
+            for (Map.Entry<String, Entry> job : jobs.entrySet()) {
+                final Entry entry = job.getValue();
+                queuedJobs.add(new QueuedJob(job.getKey(), entry.timeToRun, entry.priority, functionName));
+            }
+        }
+
+        return queuedJobs;
+    }
+
+    /**
+     * Compact every segment (other than the one being written) whose live
+     * records have dropped below the threshold. Runs in the background, but
+     * can be called at any time.
+     */
+    public void compact() throws IOException {
+        for (Segment segment : segments.values()) {
+            final boolean current;
+            synchronized (appendLock) {
+                current = segment == head;
+            }
+
+            if (!current && segment.liveBytes.get() <= segment.size * compactionThreshold) {
+                compact(segment);
+            }
+        }
+    }
+
+    /**
+     * fsync everything appended so far.
+     */
+    public void sync() {
+        final long sequence;
+        synchronized (appendLock) {
+            sequence = appended;
+        }
+        syncTo(sequence);
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void stop() {
+        background.shutdownNow();
+        sync();
+    }
+
+    // Caller holds appendLock
+    private Location append(final byte[] body) throws IOException {
+        final int length = HEADER_SIZE + body.length;
+
+        if (head.size + length > head.capacity) {
+            // Sealed segments are synced as they are left behind, syncTo()
+            // only has to look after the head
+            head.buffer.force();
+            head = createSegment(head.id + 1, Math.max(segmentSize, length));
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+
+        final ByteBuffer buffer = head.buffer.duplicate();
+        buffer.position(head.size);
+        buffer.putInt(body.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(body);
+
+        final Location location = new Location(head, head.size, length);
+        head.size += length;
+        appended++;
+        return location;
+    }
+
+    // Caller holds appendLock
+    private void put(final String functionName, final String uniqueID, final Entry entry) {
+        final Entry previous = index.computeIfAbsent(functionName, f -> new ConcurrentHashMap<>()).put(uniqueID, entry);
+        if (previous != null) {
+            // Its older records are still out there until compacted
+            entry.firstSegment = Math.min(entry.firstSegment, previous.firstSegment);
+            previous.location.segment.liveBytes.addAndGet(-previous.location.length);
+        }
+        entry.location.segment.liveBytes.addAndGet(entry.location.length);
+    }
+
+    // Caller holds appendLock
+    private void remove(final String functionName, final String uniqueID) throws IOException {
+        final Map<String, Entry> jobs = index.get(functionName);
+        final Entry previous = jobs != null ? jobs.remove(uniqueID) : null;
+
+        // Nothing in the journal to cancel out
+        if (previous == null) {
+            return;
+        }
+
+        previous.location.segment.liveBytes.addAndGet(-previous.location.length);
+        append(encodeDelete(functionName, uniqueID, previous.firstSegment));
+    }
+
+    private void syncTo(final long sequence) {
+        if (synced >= sequence) {
+            return;
+        }
+
+        synchronized (syncLock) {
+            // Someone else's fsync may have covered us while we waited
+            if (synced >= sequence) {
+                return;
+            }
+
+            final Segment segment;
+            final long target;
+            synchronized (appendLock) {
+                segment = head;
+                target = appended;
+            }
+
+            final Timer.Context timer = syncTimer.time();
+            try {
+                segment.buffer.force();
+            } finally {
+                timer.stop();
+            }
+            synced = target;
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            LOG.error("Unable to sync journal: ", e);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Unable to compact journal: ", e);
+        }
+    }
+
+    private void compact(final Segment segment) throws IOException {
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+
+        while (position < segment.size) {
+            final int length = HEADER_SIZE + buffer.getInt(position);
+            final byte[] body = new byte[length - HEADER_SIZE];
+            buffer.position(position + HEADER_SIZE);
+            buffer.get(body);
+
+            final ByteBuffer record = ByteBuffer.wrap(body);
+            final byte type = record.get();
+
+            synchronized (appendLock) {
+                if (type == PUT) {
+                    // Move the job along if this is still its latest record
+                    record.position(PUT_KEY_OFFSET);
+                    final RecordKey key = readKey(record);
+                    final Map<String, Entry> jobs = index.get(key.functionName);
+                    final Entry entry = jobs != null ? jobs.get(key.uniqueID) : null;
+
+                    if (entry != null && entry.location.segment == segment && entry.location.offset == position) {
+                        put(key.functionName, key.uniqueID, new Entry(append(body), entry.priority, entry.timeToRun));
+                    }
+                } else {
+                    final long target = record.getLong();
+                    final RecordKey key = readKey(record);
+                    final Map<String, Entry> jobs = index.get(key.functionName);
+                    final Entry entry = jobs != null ? jobs.get(key.uniqueID) : null;
+
+                    if (entry != null) {
+                        // Written again since, so the delete can go, but the
+                        // job's next delete has to reach back as far as this one
+                        entry.firstSegment = Math.min(entry.firstSegment, target);
+                    } else if (!segments.subMap(target, true, segment.id, false).isEmpty()) {
+                        // Keep a delete while any segment that may still hold
+                        // a write it cancels out is on disk
+                        append(body);
+                    }
+                }
+            }
+
+            position += length;
+        }
+
+        // The copies have to be on disk before the originals go
+        sync();
+
+        synchronized (appendLock) {
+            removeSegment(segment);
+        }
+        compactedMeter.mark();
+        LOG.debug("Compacted journal segment " + segment.file);
+    }
+
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        final List<Long> ids = new ArrayList<>();
+
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    ids.add(Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring " + file + " in journal directory");
+                }
+            }
+        }
+
+        ids.sort(null);
+        for (long id : ids) {
+            replay(openSegment(id));
+        }
+
+        synchronized (appendLock) {
+            head = segments.isEmpty() ? createSegment(0, segmentSize) : segments.lastEntry().getValue();
+        }
+
+        LOG.info("Recovered " + readAll().size() + " jobs from " + segments.size() + " journal segments in " + directory);
+    }
+
+    private void replay(final Segment segment) {
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+
+        synchronized (appendLock) {
+            while (position + HEADER_SIZE <= segment.capacity) {
+                final int bodyLength = buffer.getInt(position);
+                if (bodyLength <= 0) {
+                    break;
+                }
+
+                if (position + HEADER_SIZE + bodyLength > segment.capacity) {
+                    LOG.warn("Truncated record at " + position + " in " + segment.file + ", ignoring the rest");
+                    break;
+                }
+
+                final byte[] body = new byte[bodyLength];
+                buffer.position(position + HEADER_SIZE);
+                buffer.get(body);
+
+                final CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    LOG.warn("Bad checksum at " + position + " in " + segment.file + ", ignoring the rest");
+                    break;
+                }
+
+                final ByteBuffer record = ByteBuffer.wrap(body);
+                final int length = HEADER_SIZE + bodyLength;
+
+                if (record.get() == PUT) {
+                    final JobPriority priority = JobPriority.values()[record.get()];
+                    record.get();
+                    final long timeToRun = record.getLong();
+                    final RecordKey key = readKey(record);
+                    put(key.functionName, key.uniqueID,
+                        new Entry(new Location(segment, position, length), priority, timeToRun));
+                } else {
+                    record.getLong();
+                    final RecordKey key = readKey(record);
+                    final Map<String, Entry> jobs = index.get(key.functionName);
+                    final Entry previous = jobs != null ? jobs.remove(key.uniqueID) : null;
+                    if (previous != null) {
+                        previous.location.segment.liveBytes.addAndGet(-previous.location.length);
+                    }
+                }
+
+                position += length;
+            }
+
+            segment.size = position;
+        }
+    }
+
+    private Segment openSegment(final long id) throws IOException {
+        final File file = segmentFile(id);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final Segment segment = new Segment(id, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+            segments.put(id, segment);
+            segmentCounter.inc();
+            return segment;
+        }
+    }
+
+    private Segment createSegment(final long id, final int capacity) throws IOException {
+        final File file = segmentFile(id);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(capacity);
+        }
+        return openSegment(id);
+    }
+
+    // Caller holds appendLock. Readers that still have the segment can go on
+    // using the mapping, it goes away once they are done with it
+    private void removeSegment(final Segment segment) {
+        segments.remove(segment.id);
+        segmentCounter.dec();
+        if (!segment.file.delete()) {
+            LOG.warn("Unable to remove journal segment " + segment.file);
+        }
+    }
+
+    private File segmentFile(final long id) {
+        return new File(directory, String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    // [PUT][priority][background][timeToRun][function][unique id][job handle][data]
+    private static byte[] encodePut(final Job job) {
+        final byte[] functionName = bytes(job.getFunctionName());
+        final byte[] uniqueID = bytes(job.getUniqueID());
+        final byte[] jobHandle = bytes(job.getJobHandle());
+        final byte[] data = job.getData() != null ? job.getData() : new byte[0];
+
+        return ByteBuffer.allocate(PUT_KEY_OFFSET + 16 + functionName.length + uniqueID.length + jobHandle.length + data.length)
+                .put(PUT)
+                .put((byte) job.getPriority().ordinal())
+                .put((byte) (job.isBackground() ? 1 : 0))
+                .putLong(job.getTimeToRun())
+                .putInt(functionName.length).put(functionName)
+                .putInt(uniqueID.length).put(uniqueID)
+                .putInt(jobHandle.length).put(jobHandle)
+                .putInt(data.length).put(data)
+                .array();
+    }
+
+    // [DELETE][oldest segment that may hold a record it cancels out][function][unique id]
+    private static byte[] encodeDelete(final String functionName, final String uniqueID, final long target) {
+        final byte[] function = bytes(functionName);
+        final byte[] unique = bytes(uniqueID);
+
+        return ByteBuffer.allocate(1 + 8 + 8 + function.length + unique.length)
+                .put(DELETE)
+                .putLong(target)
+                .putInt(function.length).put(function)
+                .putInt(unique.length).put(unique)
+                .array();
+    }
+
+    private static Job decodeJob(final ByteBuffer record) {
+        record.get();
+        final JobPriority priority = JobPriority.values()[record.get()];
+        final boolean background = record.get() == 1;
+        final long timeToRun = record.getLong();
+        final RecordKey key = readKey(record);
+        final byte[] jobHandle = readBytes(record);
+        final byte[] data = readBytes(record);
+
+        return new Job(key.functionName, key.uniqueID, data, jobHandle, priority, background, timeToRun);
+    }
+
+    private static RecordKey readKey(final ByteBuffer record) {
+        final String functionName = new String(readBytes(record), StandardCharsets.UTF_8);
+        final String uniqueID = new String(readBytes(record), StandardCharsets.UTF_8);
+        return new RecordKey(functionName, uniqueID);
+    }
+
+    private static byte[] readBytes(final ByteBuffer record) {
+        final byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] bytes(final String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    private static final class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        // Bytes of records written, only grows under appendLock
+        volatile int size;
+        // Bytes of records that are still the latest for their job
+        final AtomicLong liveBytes = new AtomicLong();
+
+        Segment(final long id, final File file, final MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        // Including the header
+        final int length;
+
+        Location(final Segment segment, final int offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        ByteBuffer read() {
+            final byte[] body = new byte[length - HEADER_SIZE];
+            final ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset + HEADER_SIZE);
+            buffer.get(body);
+            return ByteBuffer.wrap(body);
+        }
+    }
+
+    // What the queues need to know about a job without reading it back
+    private static final class Entry {
+        final Location location;
+        final JobPriority priority;
+        final long timeToRun;
+        // Oldest segment that may still hold a record of the job, a delete
+        // has to outlive every segment from here on. Guarded by appendLock
+        long firstSegment;
+
+        Entry(final Location location, final JobPriority priority, final long timeToRun) {
+            this.location = location;
+            this.priority = priority;
+            this.timeToRun = timeToRun;
+            this.firstSegment = location.segment.id;
+        }
+    }
+
+    private static final class RecordKey {
+        final String functionName;
+        final String uniqueID;
+
+        RecordKey(final String functionName, final String uniqueID) {
+            this.functionName = functionName;
+            this.uniqueID = uniqueID;
+        }
+    }
+}
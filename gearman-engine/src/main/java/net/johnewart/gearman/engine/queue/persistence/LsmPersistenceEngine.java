@@ -0,0 +1,358 @@
+package net.johnewart.gearman.engine.queue.persistence;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.constants.JobPriority;
+import net.johnewart.gearman.engine.core.QueuedJob;
+import net.johnewart.gearman.engine.queue.persistence.lsm.SortedStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Stores jobs in an embedded log-structured merge store on the local disk,
+ * for queues that back up well past what fits on the heap. Two kinds of
+ * record are kept per job:
+ *
+ *   q [function] 0 [priority] [sequence] : [time to run][unique id]
+ *   j [function] 0 [unique id]           : [sequence][priority][background][time to run][job handle][data]
+ *
+ * The first sorts a function's jobs by priority and then submission order,
+ * so a queue can read its next few jobs with readQueue() by seeking to where
+ * it left off, without touching the payloads or holding the rest on the
+ * heap; the second is what findJob() reads at dispatch time. Function names
+ * can't contain a NUL, it is a separator in the protocol.
+ */
+public class LsmPersistenceEngine implements PersistenceEngine {
+    private static final Logger LOG = LoggerFactory.getLogger(LsmPersistenceEngine.class);
+
+    private static final byte QUEUE = 'q';
+    private static final byte JOB = 'j';
+    // Highest sequence handed out, so it carries on after a restart
+    private static final byte[] SEQUENCE_KEY = "m:sequence".getBytes(StandardCharsets.UTF_8);
+
+    private final File directory;
+    private final SortedStore store;
+    // Guarded by this, together with the read-modify-write of job records
+    private long sequence;
+
+    /**
+     * @param writeBufferBytes How much to take in before writing a table
+     * @param blockCacheBytes How much of the tables to keep in memory
+     */
+    public LsmPersistenceEngine(final File directory,
+                                final long writeBufferBytes,
+                                final long blockCacheBytes,
+                                final MetricRegistry metricRegistry) throws IOException
+    {
+        this.directory = directory;
+        this.store = new SortedStore(directory, writeBufferBytes, blockCacheBytes, true, metricRegistry);
+
+        final byte[] stored = store.get(SEQUENCE_KEY);
+        this.sequence = stored != null ? ByteBuffer.wrap(stored).getLong() : 0;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return "LSM (" + directory + ")";
+    }
+
+    @Override
+    public boolean write(final Job job) {
+        return writeBatch(Arrays.asList(job));
+    }
+
+    @Override
+    public synchronized boolean writeBatch(final Collection<Job> jobs) {
+        final SortedStore.Batch batch = new SortedStore.Batch();
+        // Job records written earlier in this batch, which the store can't see yet
+        final Map<ByteBuffer, byte[]> written = new HashMap<>();
+
+        try {
+            for (Job job : jobs) {
+                final byte[] jobKey = jobKey(job.getFunctionName(), job.getUniqueID());
+
+                // Written before: its old place in the queue goes
+                final byte[] previous = written.containsKey(ByteBuffer.wrap(jobKey))
+                        ? written.get(ByteBuffer.wrap(jobKey))
+                        : store.get(jobKey);
+                if (previous != null) {
+                    batch.delete(queueKey(job.getFunctionName(), previous));
+                }
+
+                final byte[] record = encodeJob(job, ++sequence);
+                batch.put(queueKey(job.getFunctionName(), record), encodeQueued(job));
+                batch.put(jobKey, record);
+                written.put(ByteBuffer.wrap(jobKey), record);
+            }
+
+            batch.put(SEQUENCE_KEY, ByteBuffer.allocate(8).putLong(sequence).array());
+            store.write(batch);
+            return true;
+        } catch (IOException e) {
+            LOG.error("Unable to write jobs to " + directory + ": ", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void delete(final Job job) {
+        delete(job.getFunctionName(), job.getUniqueID());
+    }
+
+    @Override
+    public synchronized void delete(final String functionName, final String uniqueID) {
+        final SortedStore.Batch batch = new SortedStore.Batch();
+
+        try {
+            delete(batch, functionName, uniqueID);
+            store.write(batch);
+        } catch (IOException e) {
+            LOG.error("Unable to delete job from " + directory + ": ", e);
+        }
+    }
+
+    @Override
+    public synchronized void deleteBatch(final Collection<Job> jobs) {
+        final SortedStore.Batch batch = new SortedStore.Batch();
+
+        try {
+            for (Job job : jobs) {
+                delete(batch, job.getFunctionName(), job.getUniqueID());
+            }
+
+            store.write(batch);
+        } catch (IOException e) {
+            LOG.error("Unable to delete jobs from " + directory + ": ", e);
+        }
+    }
+
+    @Override
+    public synchronized void deleteAll() {
+        try {
+            store.clear();
+            store.write(new SortedStore.Batch().put(SEQUENCE_KEY, ByteBuffer.allocate(8).putLong(sequence).array()));
+        } catch (IOException e) {
+            LOG.error("Unable to clear " + directory + ": ", e);
+        }
+    }
+
+    @Override
+    public Job findJob(final String functionName, final String uniqueID) {
+        try {
+            final byte[] record = store.get(jobKey(functionName, uniqueID));
+            return record != null ? decodeJob(functionName, uniqueID, record) : null;
+        } catch (IOException e) {
+            LOG.error("Unable to read job from " + directory + ": ", e);
+            return null;
+        }
+    }
+
+    @Override
+    public Collection<QueuedJob> readAll() {
+        final List<QueuedJob> jobs = new ArrayList<>();
+        readAll(jobs::add);
+        return jobs;
+    }
+
+    @Override
+    public void readAll(final Consumer<QueuedJob> consumer) {
+        scan(new byte[] { QUEUE }, consumer);
+    }
+
+    @Override
+    public Collection<QueuedJob> getAllForFunction(final String functionName) {
+        final List<QueuedJob> jobs = new ArrayList<>();
+        scan(functionPrefix(QUEUE, functionName), jobs::add);
+        return jobs;
+    }
+
+    /**
+     * Stream a function's jobs, in the order poll() would hand them out.
+     */
+    public void readAll(final String functionName, final Consumer<QueuedJob> consumer) {
+        scan(functionPrefix(QUEUE, functionName), consumer);
+    }
+
+    /**
+     * Read a function's jobs of one priority that were queued after a
+     * sequence number, in the order they were queued.
+     *
+     * @param after Sequence number to read after, 0 for the first job
+     * @param limit Most jobs to read
+     * @return Sequence number of the last job read, after if there were none
+     */
+    public long readQueue(final String functionName,
+                          final JobPriority priority,
+                          final long after,
+                          final int limit,
+                          final Consumer<QueuedJob> consumer) {
+        final byte[] function = functionPrefix(QUEUE, functionName);
+        final byte[] prefix = Arrays.copyOf(function, function.length + 1);
+        prefix[function.length] = (byte) priority.ordinal();
+        final byte[] from = ByteBuffer.allocate(prefix.length + 8)
+                .put(prefix)
+                .putLong(after + 1)
+                .array();
+        final long[] last = { after };
+        final int[] read = { 0 };
+
+        try {
+            store.scan(prefix, from, (key, value) -> {
+                last[0] = ByteBuffer.wrap(key, key.length - 8, 8).getLong();
+                consumer.accept(decodeQueued(key, value));
+                return ++read[0] < limit;
+            });
+        } catch (IOException e) {
+            LOG.error("Unable to read jobs from " + directory + ": ", e);
+        }
+
+        return last[0];
+    }
+
+    /**
+     * @return Functions that have jobs stored, found by seeking from one
+     *         function's jobs to the next rather than reading them all
+     */
+    public Collection<String> getFunctionNames() {
+        final List<String> functionNames = new ArrayList<>();
+        final byte[] prefix = { QUEUE };
+        byte[] from = prefix;
+
+        try {
+            while (true) {
+                final int found = functionNames.size();
+                store.scan(prefix, from, (key, value) -> {
+                    functionNames.add(decodeQueued(key, value).functionName);
+                    return false;
+                });
+                if (functionNames.size() == found) {
+                    return functionNames;
+                }
+
+                // Just past the last of its keys, the separator after the
+                // name is the lowest byte there is
+                final byte[] next = functionPrefix(QUEUE, functionNames.get(found));
+                next[next.length - 1] = 1;
+                from = next;
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to read functions from " + directory + ": ", e);
+            return functionNames;
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            store.close();
+        } catch (IOException e) {
+            LOG.error("Unable to close " + directory + ": ", e);
+        }
+    }
+
+    private void delete(final SortedStore.Batch batch, final String functionName, final String uniqueID) throws IOException {
+        final byte[] jobKey = jobKey(functionName, uniqueID);
+        final byte[] record = store.get(jobKey);
+        if (record != null) {
+            batch.delete(queueKey(functionName, record));
+            batch.delete(jobKey);
+        }
+    }
+
+    private void scan(final byte[] prefix, final Consumer<QueuedJob> consumer) {
+        try {
+            store.scan(prefix, (key, value) -> consumer.accept(decodeQueued(key, value)));
+        } catch (IOException e) {
+            LOG.error("Unable to read jobs from " + directory + ": ", e);
+        }
+    }
+
+    private static byte[] functionPrefix(final byte kind, final String functionName) {
+        final byte[] function = functionName.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + function.length + 1)
+                .put(kind)
+                .put(function)
+                .put((byte) 0)
+                .array();
+    }
+
+    private static byte[] jobKey(final String functionName, final String uniqueID) {
+        final byte[] prefix = functionPrefix(JOB, functionName);
+        final byte[] unique = uniqueID.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(prefix.length + unique.length)
+                .put(prefix)
+                .put(unique)
+                .array();
+    }
+
+    // Where a job record puts the job in its function's queue
+    private static byte[] queueKey(final String functionName, final byte[] record) {
+        final byte[] prefix = functionPrefix(QUEUE, functionName);
+        final ByteBuffer job = ByteBuffer.wrap(record);
+        final long sequence = job.getLong();
+        final byte priority = job.get();
+
+        return ByteBuffer.allocate(prefix.length + 1 + 8)
+                .put(prefix)
+                .put(priority)
+                .putLong(sequence)
+                .array();
+    }
+
+    private static byte[] encodeQueued(final Job job) {
+        final byte[] unique = job.getUniqueID().getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(8 + unique.length)
+                .putLong(job.getTimeToRun())
+                .put(unique)
+                .array();
+    }
+
+    private static QueuedJob decodeQueued(final byte[] key, final byte[] value) {
+        // q [function] 0 [priority] [sequence]
+        final String functionName = new String(key, 1, key.length - 1 - 1 - 1 - 8, StandardCharsets.UTF_8);
+        final JobPriority priority = JobPriority.values()[key[key.length - 1 - 8]];
+        final long timeToRun = ByteBuffer.wrap(value).getLong();
+        final String uniqueID = new String(value, 8, value.length - 8, StandardCharsets.UTF_8);
+        return new QueuedJob(uniqueID, timeToRun, priority, functionName);
+    }
+
+    private static byte[] encodeJob(final Job job, final long sequence) {
+        final byte[] jobHandle = job.getJobHandle() != null ? job.getJobHandle().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        final byte[] data = job.getData() != null ? job.getData() : new byte[0];
+
+        return ByteBuffer.allocate(8 + 1 + 1 + 8 + 4 + jobHandle.length + data.length)
+                .putLong(sequence)
+                .put((byte) job.getPriority().ordinal())
+                .put((byte) (job.isBackground() ? 1 : 0))
+                .putLong(job.getTimeToRun())
+                .putInt(jobHandle.length).put(jobHandle)
+                .put(data)
+                .array();
+    }
+
+    private static Job decodeJob(final String functionName, final String uniqueID, final byte[] record) {
+        final ByteBuffer job = ByteBuffer.wrap(record);
+        job.getLong();
+        final JobPriority priority = JobPriority.values()[job.get()];
+        final boolean background = job.get() == 1;
+        final long timeToRun = job.getLong();
+        final byte[] jobHandle = new byte[job.getInt()];
+        job.get(jobHandle);
+        final byte[] data = new byte[job.remaining()];
+        job.get(data);
+
+        return new Job(functionName, uniqueID, data, jobHandle, priority, background, timeToRun);
+    }
+}
@@ -1,18 +1,62 @@
-package net.johnewart.gearman.engine.queue.persistence;
-
-import net.johnewart.gearman.common.Job;
-import net.johnewart.gearman.engine.core.QueuedJob;
-
-import java.util.Collection;
-
-public interface PersistenceEngine {
-    public String getIdentifier();
-	public boolean write(Job job);
-	public void delete(Job job);
-    public void delete(String functionName, String uniqueID);
-	public void deleteAll();
-    public Job findJob(String functionName, String uniqueID);
-	public Collection<QueuedJob> readAll();
-    public Collection<QueuedJob> getAllForFunction(String functionName);
-    //public Job findJobByHandle(String jobHandle);
+package net.johnewart.gearman.engine.queue.persistence;
+
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.engine.core.QueuedJob;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+
+public interface PersistenceEngine {
+    public String getIdentifier();
+	public boolean write(Job job);
+	public void delete(Job job);
+    public void delete(String functionName, String uniqueID);
+	public void deleteAll();
+    public Job findJob(String functionName, String uniqueID);
+	public Collection<QueuedJob> readAll();
+    public Collection<QueuedJob> getAllForFunction(String functionName);
+
+    /**
+     * Hand every stored job to consumer as it is read, so recovering a big
+     * store doesn't hold all of it in memory first. Engines that can stream
+     * should override this; the default goes through {@link #readAll()}.
+     *
+     * @param consumer Called with each job, on the calling thread
+     */
+    public default void readAll(Consumer<QueuedJob> consumer) {
+        readAll().forEach(consumer);
+    }
+
+    /**
+     * Write a group of jobs in one go. Engines that have a bulk operation
+     * should override this; the default writes them one at a time.
+     *
+     * @param jobs Jobs to write
+     * @return true if every job was written
+     */
+    public default boolean writeBatch(Collection<Job> jobs) {
+        boolean written = true;
+        for (Job job : jobs) {
+            written &= write(job);
+        }
+        return written;
+    }
+
+    /**
+     * Delete a group of jobs in one go, see {@link #writeBatch(Collection)}
+     *
+     * @param jobs Jobs to delete
+     */
+    public default void deleteBatch(Collection<Job> jobs) {
+        for (Job job : jobs) {
+            delete(job);
+        }
+    }
+    /**
+     * Write out anything still pending and let go of the engine's threads,
+     * files and connections. Engines in front of another one pass it on.
+     */
+    public default void stop() {
+    }
+    //public Job findJobByHandle(String jobHandle);
 }
\ No newline at end of file
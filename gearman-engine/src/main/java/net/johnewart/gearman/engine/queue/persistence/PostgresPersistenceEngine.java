@@ -1,6 +1,7 @@
 package net.johnewart.gearman.engine.queue.persistence;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -15,31 +16,55 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class PostgresPersistenceEngine implements PersistenceEngine {
     private static Logger LOG = LoggerFactory.getLogger(PostgresPersistenceEngine.class);
     private static final int JOBS_PER_PAGE = 5000;
+    // Log recovery progress every this many pages
+    private static final int RECOVERY_LOG_PAGES = 20;
+    // Only needed for rows from before the data column
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // Rows moved out of json_data per transaction when migrating
+    private static final int MIGRATION_BATCH_SIZE = 1000;
+    // Claim order, the enum's names don't sort the right way
+    private static final String PRIORITY_ORDER = "CASE priority WHEN 'HIGH' THEN 0 WHEN 'NORMAL' THEN 1 ELSE 2 END";
+    // Unclaimed and due, by the database's clock so servers needn't agree on the time
+    private static final String READY = "claimed_by IS NULL AND time_to_run < extract(epoch FROM now())";
     private final String url;
+    private final String user;
+    private final String password;
     private final String tableName;
     private final BoneCP connectionPool;
 
-    private final String updateJobQuery;
-    private final String insertJobQuery;
+    private final String upsertJobQuery;
     private final String deleteJobQuery;
-    private final String findJobQuery;
+    private String findJobQuery;
     private final String readAllJobsQuery;
-    private final String countQuery;
     private final String findAllJobsForFunctionQuery;
-    private final String findJobByHandleQuery;
+    private String findJobByHandleQuery;
+    private String jobColumns;
+    // Shared queue mode, see enableClaims()
+    private String claimJobsQuery, renewClaimsQuery, releaseClaimsQuery, expireClaimsQuery, deleteClaimedJobQuery;
+    private String enqueueJobQuery, readyJobQuery, countUnclaimedQuery, jobExistsQuery;
+    // Whether the table still has the JSON column from before the migration
+    private boolean hasJsonColumn;
     private final MetricRegistry metricRegistry;
-    private final Timer writeTimer, readTimer;
-    private final Counter deleteCounter, writeCounter, pendingCounter;
+    private final Timer writeTimer, readTimer, recoveryTimer, claimTimer;
+    private final Meter recoveredMeter, claimedMeter;
+    private final Counter deleteCounter, writeCounter, pendingCounter, expiredCounter;
 
     public PostgresPersistenceEngine(final String hostname,
                                      final int port,
@@ -55,18 +80,24 @@ public class PostgresPersistenceEngine implements PersistenceEngine {
         this.readTimer = metricRegistry.timer("postgresql.read");
         this.writeCounter = metricRegistry.counter("postgresql.write");
         this.deleteCounter = metricRegistry.counter("postgresql.delete");
+        this.recoveryTimer = metricRegistry.timer("postgresql.recovery");
+        this.recoveredMeter = metricRegistry.meter("postgresql.recovered");
+        this.claimTimer = metricRegistry.timer("postgresql.claim");
+        this.claimedMeter = metricRegistry.meter("postgresql.claimed");
+        this.expiredCounter = metricRegistry.counter("postgresql.claims-expired");
 
         this.url = "jdbc:postgresql://" + hostname + ":" + port + "/" + database;
+        this.user = user;
+        this.password = password;
         this.tableName = tableName;
 
-        this.updateJobQuery = String.format("UPDATE %s SET job_handle = ?, priority = ?, time_to_run = ?, json_data = ? WHERE unique_id = ? AND function_name = ?", tableName);
-        this.insertJobQuery = String.format("INSERT INTO %s (unique_id, function_name, time_to_run, priority, job_handle, json_data) VALUES (?, ?, ?, ?, ?, ?)", tableName);
+        // Needs the unique index on (function_name, unique_id), and PostgreSQL 9.5 or later
+        this.upsertJobQuery = String.format("INSERT INTO %s (unique_id, function_name, time_to_run, priority, job_handle, background, data) VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (function_name, unique_id) DO UPDATE SET time_to_run = EXCLUDED.time_to_run, priority = EXCLUDED.priority, " +
+                "job_handle = EXCLUDED.job_handle, background = EXCLUDED.background, data = EXCLUDED.data", tableName);
         this.deleteJobQuery = String.format("DELETE FROM %s WHERE function_name = ? AND unique_id = ?", tableName);
-        this.findJobQuery = String.format("SELECT * FROM %s WHERE function_name = ? AND unique_id = ?", tableName);
-        this.readAllJobsQuery = String.format("SELECT function_name, priority, unique_id, time_to_run FROM %s LIMIT ? OFFSET ?", tableName);
-        this.countQuery = String.format("SELECT COUNT(*) AS jobCount FROM %s", tableName);
+        this.readAllJobsQuery = String.format("SELECT id, function_name, priority, unique_id, time_to_run FROM %s WHERE id > ? ORDER BY id LIMIT ?", tableName);
         this.findAllJobsForFunctionQuery = String.format("SELECT unique_id, time_to_run, priority FROM %s WHERE function_name = ?", tableName);
-        this.findJobByHandleQuery= String.format("SELECT * FROM %s WHERE job_handle = ?", tableName);
 
         final BoneCPConfig config = new BoneCPConfig();
         config.setJdbcUrl(this.url);
@@ -81,6 +112,10 @@ public class PostgresPersistenceEngine implements PersistenceEngine {
         if (!validateOrCreateTable()) {
             throw new SQLException("Unable to validate or create jobs table '" + tableName + "'. Check credentials.");
         }
+
+        this.jobColumns = "function_name, unique_id, job_handle, priority, background, time_to_run, data" + (hasJsonColumn ? ", json_data" : "");
+        this.findJobQuery = String.format("SELECT %s FROM %s WHERE function_name = ? AND unique_id = ?", jobColumns, tableName);
+        this.findJobByHandleQuery = String.format("SELECT %s FROM %s WHERE job_handle = ?", jobColumns, tableName);
     }
 
     @Override
@@ -110,37 +145,14 @@ public class PostgresPersistenceEngine implements PersistenceEngine {
         Timer.Context context = writeTimer.time();
         PreparedStatement st = null;
         Connection conn = null;
-        ObjectMapper mapper = new ObjectMapper();
 
         try {
             conn = connectionPool.getConnection();
             if(conn != null)
             {
-                String jobJSON = mapper.writeValueAsString(job);
-
-                // Update an existing job if one exists based on unique id
-                st = conn.prepareStatement(updateJobQuery);
-                st.setString(1, job.getJobHandle());
-                st.setString(2, job.getPriority().toString());
-                st.setLong  (3, job.getTimeToRun());
-                st.setString(4, jobJSON);
-                st.setString(5, job.getUniqueID());
-                st.setString(6, job.getFunctionName());
-                int updated = st.executeUpdate();
-
-                // No updates, insert a new record.
-                if(updated == 0)
-                {
-                    st = conn.prepareStatement(insertJobQuery);
-                    st.setString(1, job.getUniqueID());
-                    st.setString(2, job.getFunctionName());
-                    st.setLong(3, job.getTimeToRun());
-                    st.setString(4, job.getPriority().toString());
-                    st.setString(5, job.getJobHandle());
-                    st.setString(6, jobJSON);
-                    int inserted = st.executeUpdate();
-                    LOG.debug("Inserted " + inserted + " records for UUID " + job.getUniqueID());
-                }
+                st = conn.prepareStatement(upsertJobQuery);
+                setJobParameters(st, job);
+                st.executeUpdate();
             }
 
             writeCounter.inc();
@@ -149,21 +161,138 @@ public class PostgresPersistenceEngine implements PersistenceEngine {
         } catch (SQLException se) {
             LOG.error("SQL Error writing job: " , se);
             return false;
-        } catch (IOException e) {
-            LOG.error("I/O Error writing job: " , e);
+        } finally {
+            context.stop();
+            release(conn, st);
+        }
+    }
+
+    @Override
+    public boolean writeBatch(final Collection<Job> jobs) {
+        Timer.Context context = writeTimer.time();
+        PreparedStatement st = null;
+        Connection conn = null;
+
+        try {
+            conn = connectionPool.getConnection();
+            if(conn == null)
+                return false;
+
+            conn.setAutoCommit(false);
+
+            // One upsert per job, sent to the server in one go
+            st = conn.prepareStatement(upsertJobQuery);
+            for(Job job : jobs)
+            {
+                setJobParameters(st, job);
+                st.addBatch();
+            }
+            st.executeBatch();
+
+            conn.commit();
+            LOG.debug("Wrote " + jobs.size() + " jobs");
+
+            writeCounter.inc(jobs.size());
+            pendingCounter.inc(jobs.size());
+            return true;
+        } catch (SQLException se) {
+            LOG.error("SQL Error writing batch of jobs: " , se);
+            rollback(conn);
             return false;
         } finally {
             context.stop();
-            try {
+            release(conn, st);
+        }
+    }
+
+    private static void setJobParameters(PreparedStatement st, Job job) throws SQLException {
+        st.setString (1, job.getUniqueID());
+        st.setString (2, job.getFunctionName());
+        st.setLong   (3, job.getTimeToRun());
+        st.setString (4, job.getPriority().toString());
+        st.setString (5, job.getJobHandle());
+        st.setBoolean(6, job.isBackground());
+        st.setBytes  (7, job.getData());
+    }
+
+    // Rows written before payloads moved to the data column still have them
+    // in json_data until the migration gets to them
+    private Job readJob(ResultSet rs, String functionName, String uniqueID) throws SQLException, IOException {
+        final byte[] data = rs.getBytes("data");
+
+        if(data == null && hasJsonColumn)
+        {
+            final String jobJSON = rs.getString("json_data");
+            if(jobJSON != null)
+                return MAPPER.readValue(jobJSON, Job.class);
+        }
+
+        final String jobHandle = rs.getString("job_handle");
+        return new Job(functionName,
+                       uniqueID,
+                       data != null ? data : new byte[0],
+                       jobHandle != null ? jobHandle.getBytes() : new byte[0],
+                       JobPriority.valueOf(rs.getString("priority")),
+                       rs.getBoolean("background"),
+                       rs.getLong("time_to_run"));
+    }
+
+    @Override
+    public void deleteBatch(final Collection<Job> jobs) {
+        PreparedStatement st = null;
+        Connection conn = null;
+
+        try {
+            conn = connectionPool.getConnection();
+            if(conn != null)
+            {
+                conn.setAutoCommit(false);
+                st = conn.prepareStatement(deleteJobQuery);
+                for(Job job : jobs)
+                {
+                    st.setString(1, job.getFunctionName());
+                    st.setString(2, job.getUniqueID());
+                    st.addBatch();
+                }
+                st.executeBatch();
+                conn.commit();
+                LOG.debug("Deleted batch of " + jobs.size() + " jobs");
+            }
+            deleteCounter.inc(jobs.size());
+            pendingCounter.dec(jobs.size());
+        } catch (SQLException se) {
+            LOG.error("SQL Error deleting batch of jobs: " , se);
+            rollback(conn);
+        } finally {
+            release(conn, st);
+        }
+    }
+
+    private void rollback(Connection conn) {
+        try {
+            if(conn != null)
+                conn.rollback();
+        } catch (SQLException innerEx) {
+            LOG.debug("Error rolling back: " + innerEx);
+        }
+    }
+
+    // Close statements and hand the connection back in auto-commit mode
+    private void release(Connection conn, Statement... statements) {
+        try {
+            for(Statement st : statements)
+            {
                 if(st != null)
                     st.close();
+            }
 
-                if(conn != null)
-                    conn.close();
-
-            } catch (SQLException innerEx) {
-                LOG.debug("Error cleaning up: " + innerEx);
+            if(conn != null)
+            {
+                conn.setAutoCommit(true);
+                conn.close();
             }
+        } catch (SQLException innerEx) {
+            LOG.debug("Error cleaning up: " + innerEx);
         }
     }
 
@@ -250,13 +379,11 @@ public class PostgresPersistenceEngine implements PersistenceEngine {
                 st.setString(1, functionName);
                 st.setString(2, uniqueID);
 
-                ObjectMapper mapper = new ObjectMapper();
                 rs = st.executeQuery();
 
                 if(rs.next())
                 {
-                    String jobJSON = rs.getString("json_data");
-                    job = mapper.readValue(jobJSON, Job.class);
+                    job = readJob(rs, functionName, uniqueID);
                 } else {
                     LOG.warn("No job for unique ID: " + uniqueID + " -- this could be an internal consistency problem...");
                 }
@@ -287,127 +414,112 @@ public class PostgresPersistenceEngine implements PersistenceEngine {
 
     @Override
     public Collection<QueuedJob> readAll() {
-        LinkedList<QueuedJob> jobs = new LinkedList<>();
+        final List<QueuedJob> jobs = new ArrayList<>();
+        readAll(jobs::add);
+        return jobs;
+    }
+
+    // Walks the table in primary key order a page at a time, so every page is
+    // a short index range scan however far in it starts, and hands each row
+    // on as it arrives instead of holding the whole table
+    @Override
+    public void readAll(final Consumer<QueuedJob> consumer) {
+        final Timer.Context context = recoveryTimer.time();
         PreparedStatement st = null;
-        ResultSet rs = null;
         Connection conn = null;
-        // Which page of results are we on?
-        int pageNum = 0;
+        long lastId = 0;
+        long loaded = 0;
+        int pages = 0;
+        int rows;
 
         try {
             conn = connectionPool.getConnection();
-            if(conn != null)
-            {
-
-                LOG.debug("Reading all job data from PostgreSQL");
-                st = conn.prepareStatement(countQuery);
-                rs = st.executeQuery();
-
-                if(rs.next())
-                {
-                    int totalJobs = rs.getInt("jobCount");
-                    int fetchedJobs = 0;
-                    LOG.debug("Reading " + totalJobs + " jobs from PostgreSQL");
-                    do {
-
-
-                        st.setFetchSize(JOBS_PER_PAGE);
-                        st.setMaxRows(JOBS_PER_PAGE);
-
-                        st = conn.prepareStatement(readAllJobsQuery);
-                        st.setInt(1, JOBS_PER_PAGE);
-                        st.setInt(2, (pageNum * JOBS_PER_PAGE));
-
-                        rs = st.executeQuery();
-
-                        while(rs.next())
-                        {
-
-                            try {
-                                final String uniqueId = rs.getString("unique_id");
-                                final long timeToRun = rs.getLong("time_to_run");
-                                final JobPriority jobPriority = JobPriority.valueOf(rs.getString("priority"));
-                                final String functionName = rs.getString("function_name");
-
-                                jobs.add(new QueuedJob(uniqueId, timeToRun, jobPriority, functionName));
-                            } catch (Exception e) {
-                                LOG.error("Unable to load job '" + rs.getString("unique_id") + "'");
-                            }
-                            fetchedJobs += 1;
+            if(conn == null)
+                return;
+
+            LOG.debug("Reading all job data from PostgreSQL");
+            st = conn.prepareStatement(readAllJobsQuery);
+
+            do {
+                st.setLong(1, lastId);
+                st.setInt(2, JOBS_PER_PAGE);
+                rows = 0;
+
+                try (ResultSet rs = st.executeQuery()) {
+                    while(rs.next())
+                    {
+                        rows++;
+                        lastId = rs.getLong("id");
+
+                        final QueuedJob job;
+                        try {
+                            job = new QueuedJob(rs.getString("unique_id"), rs.getLong("time_to_run"),
+                                    JobPriority.valueOf(rs.getString("priority")), rs.getString("function_name"));
+                        } catch (IllegalArgumentException | NullPointerException e) {
+                            LOG.error("Unable to load job '" + rs.getString("unique_id") + "'");
+                            continue;
                         }
 
-                        pageNum += 1;
-                        LOG.debug("Loaded " + fetchedJobs + "...");
-                    } while(fetchedJobs != totalJobs);
+                        consumer.accept(job);
+                        recoveredMeter.mark();
+                        loaded++;
+                    }
                 }
 
-            }
+                if(++pages % RECOVERY_LOG_PAGES == 0)
+                    LOG.info("Loaded " + loaded + " jobs from PostgreSQL so far...");
+            } while(rows == JOBS_PER_PAGE);
 
+            LOG.info("Loaded " + loaded + " jobs from PostgreSQL");
         } catch (SQLException se) {
-            LOG.debug(se.toString());
+            LOG.error("SQL Error reading jobs after id " + lastId + ": ", se);
         } finally {
-            try {
-                if(rs != null)
-                    rs.close();
-
-                if(st != null)
-                    st.close();
-
-                if(conn != null)
-                    conn.close();
-
-            } catch (SQLException innerEx) {
-                LOG.debug("Error cleaning up: " + innerEx);
-            }
+            context.stop();
+            release(conn, st);
         }
-
-        return jobs;
     }
 
     @Override
     public Collection<QueuedJob> getAllForFunction(final String functionName) {
-        LinkedList<QueuedJob> jobs = new LinkedList<>();
+        final List<QueuedJob> jobs = new ArrayList<>();
         PreparedStatement st = null;
-        ResultSet rs = null;
         Connection conn = null;
-        QueuedJob job;
 
         try {
             conn = connectionPool.getConnection();
-            if(conn != null)
-            {
-                st = conn.prepareStatement(findAllJobsForFunctionQuery);
-                st.setString(1, functionName);
-                ObjectMapper mapper = new ObjectMapper();
-                rs = st.executeQuery();
+            if(conn == null)
+                return jobs;
 
+            // The driver only fetches rows in batches through a cursor, which
+            // needs a transaction; otherwise it reads the whole result at once
+            conn.setAutoCommit(false);
+            st = conn.prepareStatement(findAllJobsForFunctionQuery);
+            st.setFetchSize(JOBS_PER_PAGE);
+            st.setString(1, functionName);
+
+            try (ResultSet rs = st.executeQuery()) {
                 while(rs.next())
                 {
-                    job = new QueuedJob(rs.getString("unique_id"), rs.getLong("time_to_run"), JobPriority.valueOf(rs.getString("priority")), functionName);
-                    jobs.add(job);
+                    jobs.add(new QueuedJob(rs.getString("unique_id"), rs.getLong("time_to_run"), JobPriority.valueOf(rs.getString("priority")), functionName));
                 }
             }
+
+            conn.commit();
         } catch (SQLException se) {
-            LOG.debug(se.toString());
+            LOG.error("SQL Error reading jobs for " + functionName + ": ", se);
+            rollback(conn);
         } finally {
-            try {
-                if(rs != null)
-                    rs.close();
-
-                if(st != null)
-                    st.close();
-
-                if(conn != null)
-                    conn.close();
-
-            } catch (SQLException innerEx) {
-                LOG.debug("Error cleaning up: " + innerEx);
-            }
+            release(conn, st);
         }
 
         return jobs;
     }
 
+    @Override
+    public void stop() {
+        connectionPool.close();
+    }
+
     public Job findJobByHandle(String jobHandle) {
         PreparedStatement st = null;
         ResultSet rs = null;
@@ -422,13 +534,11 @@ public class PostgresPersistenceEngine implements PersistenceEngine {
                 st = conn.prepareStatement(findJobByHandleQuery);
                 st.setString(1, jobHandle);
 
-                ObjectMapper mapper = new ObjectMapper();
                 rs = st.executeQuery();
 
                 if(rs.next())
                 {
-                    String jobJSON = rs.getString("json_data");
-                    job = mapper.readValue(jobJSON, Job.class);
+                    job = readJob(rs, rs.getString("function_name"), rs.getString("unique_id"));
                 } else {
                     LOG.warn("No job for job handle: " + jobHandle +
                              " -- this could be an internal consistency problem...");
@@ -456,12 +566,269 @@ public class PostgresPersistenceEngine implements PersistenceEngine {
 
         return job;    }
 
+    /**
+     * Get the table ready to be shared by several servers, which claim jobs
+     * from it as their workers ask for them instead of each loading all of
+     * it. Needs PostgreSQL 9.6 or later.
+     */
+    public void enableClaims() throws SQLException
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            execute(conn, "ALTER TABLE %1$s ADD COLUMN IF NOT EXISTS claimed_by varchar(64), ADD COLUMN IF NOT EXISTS claimed_at timestamptz");
+            // The next jobs to claim for a function are the first entries of this index
+            execute(conn, "CREATE INDEX IF NOT EXISTS %1$s_unclaimed ON %1$s(function_name, (" + PRIORITY_ORDER + "), time_to_run, id) WHERE claimed_by IS NULL");
+            execute(conn, "CREATE INDEX IF NOT EXISTS %1$s_claimed_at ON %1$s(claimed_at) WHERE claimed_by IS NOT NULL");
+        }
+
+        // Rows being claimed by someone else right now are skipped rather than waited for
+        this.claimJobsQuery = String.format(
+                "WITH next AS (SELECT id FROM %1$s WHERE function_name = ? AND " + READY + " ORDER BY " + PRIORITY_ORDER + ", time_to_run, id LIMIT ? FOR UPDATE SKIP LOCKED), " +
+                "claimed AS (UPDATE %1$s j SET claimed_by = ?, claimed_at = now() FROM next WHERE j.id = next.id RETURNING j.*) " +
+                "SELECT %2$s FROM claimed ORDER BY " + PRIORITY_ORDER + ", time_to_run, id", tableName, jobColumns);
+        this.renewClaimsQuery = String.format("UPDATE %s SET claimed_at = now() WHERE claimed_by = ? AND function_name = ? AND unique_id = ANY(?)", tableName);
+        this.releaseClaimsQuery = String.format("UPDATE %s SET claimed_by = NULL, claimed_at = NULL WHERE claimed_by = ? AND function_name = ? AND unique_id = ANY(?)", tableName);
+        this.expireClaimsQuery = String.format("UPDATE %s SET claimed_by = NULL, claimed_at = NULL WHERE claimed_by IS NOT NULL AND claimed_at < now() - ? * interval '1 millisecond' RETURNING function_name", tableName);
+        this.deleteClaimedJobQuery = String.format("DELETE FROM %s WHERE function_name = ? AND unique_id = ? AND claimed_by = ?", tableName);
+        // Writing a job hands back our own claim on it, but not someone else's
+        this.enqueueJobQuery = String.format("INSERT INTO %1$s (unique_id, function_name, time_to_run, priority, job_handle, background, data) VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (function_name, unique_id) DO UPDATE SET time_to_run = EXCLUDED.time_to_run, priority = EXCLUDED.priority, " +
+                "job_handle = EXCLUDED.job_handle, background = EXCLUDED.background, data = EXCLUDED.data, claimed_by = NULL, claimed_at = NULL " +
+                "WHERE %1$s.claimed_by IS NULL OR %1$s.claimed_by = ?", tableName);
+        this.readyJobQuery = String.format("SELECT 1 FROM %s WHERE function_name = ? AND " + READY + " LIMIT 1", tableName);
+        this.countUnclaimedQuery = String.format("SELECT priority, COUNT(*) AS jobCount FROM %s WHERE function_name = ? AND claimed_by IS NULL GROUP BY priority", tableName);
+        this.jobExistsQuery = String.format("SELECT 1 FROM %s WHERE function_name = ? AND unique_id = ?", tableName);
+    }
+
+    /**
+     * Claim up to limit of a function's ready jobs for owner, highest
+     * priority first and then in the order they were written.
+     */
+    public List<Job> claimJobs(final String functionName, final String owner, final int limit)
+    {
+        final List<Job> jobs = new ArrayList<>(limit);
+        final Timer.Context context = claimTimer.time();
+
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement st = conn.prepareStatement(claimJobsQuery)) {
+            st.setString(1, functionName);
+            st.setInt   (2, limit);
+            st.setString(3, owner);
+
+            try (ResultSet rs = st.executeQuery()) {
+                while(rs.next())
+                    jobs.add(readJob(rs, functionName, rs.getString("unique_id")));
+            }
+            claimedMeter.mark(jobs.size());
+        } catch (SQLException | IOException e) {
+            LOG.error("SQL Error claiming jobs for " + functionName + ": ", e);
+        } finally {
+            context.stop();
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Keep owner's claims on jobs that are still being worked on from expiring
+     */
+    public void renewClaims(final String functionName, final String owner, final Collection<String> uniqueIDs)
+    {
+        updateClaims(renewClaimsQuery, functionName, owner, uniqueIDs);
+    }
+
+    /**
+     * Hand jobs owner claimed but didn't get to back to everyone
+     */
+    public void releaseClaims(final String functionName, final String owner, final Collection<String> uniqueIDs)
+    {
+        updateClaims(releaseClaimsQuery, functionName, owner, uniqueIDs);
+    }
+
+    /**
+     * Delete a job owner has claimed. One whose claim expired in the
+     * meantime may be running somewhere else and is left alone.
+     *
+     * @return false if owner had no claim on the job (any more)
+     */
+    public boolean deleteClaimed(final String functionName, final String uniqueID, final String owner)
+    {
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement st = conn.prepareStatement(deleteClaimedJobQuery)) {
+            st.setString(1, functionName);
+            st.setString(2, uniqueID);
+            st.setString(3, owner);
+            final int deleted = st.executeUpdate();
+            deleteCounter.inc(deleted);
+            pendingCounter.dec(deleted);
+            return deleted > 0;
+        } catch (SQLException se) {
+            LOG.error("SQL Error deleting job: ", se);
+            return false;
+        }
+    }
+
+    private void updateClaims(final String query, final String functionName, final String owner, final Collection<String> uniqueIDs)
+    {
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement st = conn.prepareStatement(query)) {
+            st.setString(1, owner);
+            st.setString(2, functionName);
+            st.setArray (3, conn.createArrayOf("varchar", uniqueIDs.toArray()));
+            st.executeUpdate();
+        } catch (SQLException se) {
+            LOG.error("SQL Error updating claims for " + functionName + ": ", se);
+        }
+    }
+
+    /**
+     * Release claims that haven't been renewed for timeoutMillis, left behind
+     * by a server that went away.
+     *
+     * @return The functions that have jobs again
+     */
+    public Set<String> expireClaims(final long timeoutMillis)
+    {
+        final Set<String> functions = new HashSet<>();
+
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement st = conn.prepareStatement(expireClaimsQuery)) {
+            st.setDouble(1, timeoutMillis);
+
+            try (ResultSet rs = st.executeQuery()) {
+                while(rs.next())
+                {
+                    functions.add(rs.getString("function_name"));
+                    expiredCounter.inc();
+                }
+            }
+        } catch (SQLException se) {
+            LOG.error("SQL Error expiring claims: ", se);
+        }
+
+        return functions;
+    }
+
+    /**
+     * Write a job to a shared table and, in the same transaction, tell
+     * everyone listening on channel about it.
+     *
+     * @param owner Whose claim on the job to hand back, if it is already there
+     * @param payload What to send
+     */
+    public boolean enqueue(final Job job, final String owner, final String channel, final String payload)
+    {
+        Timer.Context context = writeTimer.time();
+        PreparedStatement st = null, notify = null;
+        Connection conn = null;
+
+        try {
+            conn = connectionPool.getConnection();
+            if(conn == null)
+                return false;
+
+            conn.setAutoCommit(false);
+
+            st = conn.prepareStatement(enqueueJobQuery);
+            setJobParameters(st, job);
+            st.setString(8, owner);
+            st.executeUpdate();
+
+            // Only delivered once the job is committed
+            notify = conn.prepareStatement("SELECT pg_notify(?, ?)");
+            notify.setString(1, channel);
+            notify.setString(2, payload);
+            notify.executeQuery().close();
+
+            conn.commit();
+
+            writeCounter.inc();
+            pendingCounter.inc();
+            return true;
+        } catch (SQLException se) {
+            LOG.error("SQL Error writing job: " , se);
+            rollback(conn);
+            return false;
+        } finally {
+            context.stop();
+            release(conn, st, notify);
+        }
+    }
+
+    public void notify(final String channel, final String payload)
+    {
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement st = conn.prepareStatement("SELECT pg_notify(?, ?)")) {
+            st.setString(1, channel);
+            st.setString(2, payload);
+            st.executeQuery().close();
+        } catch (SQLException se) {
+            LOG.error("SQL Error notifying " + channel + ": ", se);
+        }
+    }
+
+    /**
+     * @return true if a function has jobs nobody has claimed that can run now
+     */
+    public boolean hasReadyJobs(final String functionName)
+    {
+        return exists(readyJobQuery, functionName);
+    }
+
+    public boolean jobExists(final String functionName, final String uniqueID)
+    {
+        return exists(jobExistsQuery, functionName, uniqueID);
+    }
+
+    private boolean exists(final String query, final String... parameters)
+    {
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement st = conn.prepareStatement(query)) {
+            for(int i = 0; i < parameters.length; i++)
+                st.setString(i + 1, parameters[i]);
+
+            try (ResultSet rs = st.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException se) {
+            LOG.error("SQL Error reading jobs: ", se);
+            return false;
+        }
+    }
+
+    /**
+     * @return How many of a function's jobs nobody has claimed, by priority
+     */
+    public Map<JobPriority, Long> countUnclaimed(final String functionName)
+    {
+        final Map<JobPriority, Long> counts = new EnumMap<>(JobPriority.class);
+
+        try (Connection conn = connectionPool.getConnection();
+             PreparedStatement st = conn.prepareStatement(countUnclaimedQuery)) {
+            st.setString(1, functionName);
+
+            try (ResultSet rs = st.executeQuery()) {
+                while(rs.next())
+                    counts.put(JobPriority.valueOf(rs.getString("priority")), rs.getLong("jobCount"));
+            }
+        } catch (SQLException se) {
+            LOG.error("SQL Error counting jobs for " + functionName + ": ", se);
+        }
+
+        return counts;
+    }
+
+    /**
+     * A connection of its own, outside the pool, for LISTEN
+     */
+    public Connection connect() throws SQLException
+    {
+        return DriverManager.getConnection(url, user, password);
+    }
+
     private boolean validateOrCreateTable()
     {
         PreparedStatement st = null;
-        ResultSet rs = null;
         Connection conn = null;
-        ObjectMapper mapper = new ObjectMapper();
         boolean success = false;
 
         try {
@@ -472,8 +839,8 @@ public class PostgresPersistenceEngine implements PersistenceEngine {
                 ResultSet tables = dbm.getTables(null, null, tableName, null);
                 if(!tables.next())
                 {
-                    final String createQuery = String.format("CREATE TABLE %s(id bigserial, unique_id varchar(255), priority varchar(50), function_name varchar(255), time_to_run bigint, job_handle text, json_data text)", tableName);
-                    final String indexUidQuery = String.format("CREATE INDEX %s_unique_id ON %s(unique_id)", tableName, tableName);
+                    final String createQuery = String.format("CREATE TABLE %s(id bigserial PRIMARY KEY, unique_id varchar(255) NOT NULL, priority varchar(50), function_name varchar(255) NOT NULL, time_to_run bigint, job_handle text, background boolean, data bytea)", tableName);
+                    final String indexUidQuery = String.format("CREATE UNIQUE INDEX %s_function_unique_id ON %s(function_name, unique_id)", tableName, tableName);
                     final String indexJobHandleQuery = String.format("CREATE INDEX %s_job_handle ON %s(job_handle)", tableName, tableName);
                     st = conn.prepareStatement(createQuery);
                     st.executeUpdate();
@@ -493,6 +860,7 @@ public class PostgresPersistenceEngine implements PersistenceEngine {
                     }
                 }  else {
                     LOG.debug("Jobs table '" + tableName + "' already exists.");
+                    migrateTable(conn, dbm);
                     success = true;
                 }
             }
@@ -513,4 +881,115 @@ public class PostgresPersistenceEngine implements PersistenceEngine {
 
         return success;
     }
+
+    // Bring a table from before upserts and the data column up to date
+    private void migrateTable(Connection conn, DatabaseMetaData dbm) throws SQLException
+    {
+        final Set<String> columns = new HashSet<>();
+        try (ResultSet rs = dbm.getColumns(null, null, tableName, null)) {
+            while(rs.next())
+                columns.add(rs.getString("COLUMN_NAME"));
+        }
+        hasJsonColumn = columns.contains("json_data");
+
+        if(!columns.contains("data"))
+        {
+            LOG.info("Adding background and data columns to jobs table '" + tableName + "'");
+            execute(conn, "ALTER TABLE %1$s ADD COLUMN background boolean, ADD COLUMN data bytea");
+        }
+
+        try (ResultSet rs = dbm.getPrimaryKeys(null, null, tableName)) {
+            if(!rs.next())
+                execute(conn, "ALTER TABLE %1$s ADD PRIMARY KEY (id)");
+        }
+
+        if(!hasIndex(dbm, tableName + "_function_unique_id"))
+        {
+            LOG.info("Adding unique index on (function_name, unique_id) to jobs table '" + tableName + "'");
+            // Update-then-insert could race and store a job twice, keep the latest
+            execute(conn, "DELETE FROM %1$s a USING %1$s b WHERE a.function_name = b.function_name AND a.unique_id = b.unique_id AND a.id < b.id");
+            execute(conn, "CREATE UNIQUE INDEX %1$s_function_unique_id ON %1$s(function_name, unique_id)");
+        }
+
+        if(hasJsonColumn)
+            migratePayloads(conn);
+    }
+
+    // Move payloads out of json_data a batch at a time, then drop the column
+    private void migratePayloads(Connection conn) throws SQLException
+    {
+        final String selectQuery = String.format("SELECT id, json_data FROM %s WHERE json_data IS NOT NULL AND id > ? ORDER BY id LIMIT ?", tableName);
+        final String updateQuery = String.format("UPDATE %s SET background = ?, data = ?, json_data = NULL WHERE id = ?", tableName);
+        long lastId = 0;
+        int migrated = 0;
+        int failed = 0;
+
+        conn.setAutoCommit(false);
+        try (PreparedStatement select = conn.prepareStatement(selectQuery);
+             PreparedStatement update = conn.prepareStatement(updateQuery)) {
+            while(true)
+            {
+                int rows = 0;
+                select.setLong(1, lastId);
+                select.setInt(2, MIGRATION_BATCH_SIZE);
+
+                try (ResultSet rs = select.executeQuery()) {
+                    while(rs.next())
+                    {
+                        rows++;
+                        lastId = rs.getLong("id");
+                        try {
+                            Job job = MAPPER.readValue(rs.getString("json_data"), Job.class);
+                            update.setBoolean(1, job.isBackground());
+                            update.setBytes  (2, job.getData());
+                            update.setLong   (3, lastId);
+                            update.addBatch();
+                            migrated++;
+                        } catch (IOException e) {
+                            LOG.error("Unable to migrate job " + lastId + ", leaving it in json_data: ", e);
+                            failed++;
+                        }
+                    }
+                }
+
+                if(rows == 0)
+                    break;
+
+                update.executeBatch();
+                conn.commit();
+            }
+        } catch (SQLException se) {
+            rollback(conn);
+            throw se;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+
+        if(failed == 0)
+        {
+            execute(conn, "ALTER TABLE %1$s DROP COLUMN json_data");
+            hasJsonColumn = false;
+        }
+
+        LOG.info("Moved " + migrated + " payloads out of json_data in '" + tableName + "', " + failed + " left behind");
+    }
+
+    private boolean hasIndex(DatabaseMetaData dbm, String indexName) throws SQLException
+    {
+        try (ResultSet rs = dbm.getIndexInfo(null, null, tableName, false, false)) {
+            while(rs.next())
+            {
+                if(indexName.equalsIgnoreCase(rs.getString("INDEX_NAME")))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void execute(Connection conn, String query) throws SQLException
+    {
+        try (Statement st = conn.createStatement()) {
+            st.executeUpdate(String.format(query, tableName));
+        }
+    }
 }
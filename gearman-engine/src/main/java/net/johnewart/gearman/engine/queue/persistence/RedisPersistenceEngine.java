@@ -11,6 +11,7 @@ import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -73,6 +74,48 @@ public class RedisPersistenceEngine implements PersistenceEngine {
         }
     }
 
+    @Override
+    public boolean writeBatch(Collection<Job> jobs)
+    {
+        Timer.Context context = writeTimer.time();
+        Jedis redisClient = jedisPool.getResource();
+        try {
+            // One round trip for the whole batch
+            Pipeline pipeline = redisClient.pipelined();
+            for (Job job : jobs) {
+                pipeline.hset("gm:" + job.getFunctionName(), job.getUniqueID(), mapper.writeValueAsString(job));
+            }
+            pipeline.sync();
+            LOG.debug("Stored batch of " + jobs.size() + " jobs in redis");
+            writtenCounter.inc(jobs.size());
+            return true;
+        } catch (IOException e) {
+            failedCounter.inc(jobs.size());
+            LOG.error("Error serializing batch of jobs: ", e);
+            return false;
+        } finally {
+            jedisPool.returnResource(redisClient);
+            context.stop();
+        }
+    }
+
+    @Override
+    public void deleteBatch(Collection<Job> jobs)
+    {
+        Jedis redisClient = jedisPool.getResource();
+        try {
+            Pipeline pipeline = redisClient.pipelined();
+            for (Job job : jobs) {
+                pipeline.hdel("gm:" + job.getFunctionName(), job.getUniqueID());
+            }
+            pipeline.sync();
+            LOG.debug("Removed batch of " + jobs.size() + " jobs from redis");
+            deletedCounter.inc(jobs.size());
+        } finally {
+            jedisPool.returnResource(redisClient);
+        }
+    }
+
     public void delete(Job job)
     {
         delete(job.getFunctionName(), job.getUniqueID());
@@ -0,0 +1,99 @@
+package net.johnewart.gearman.engine.queue.persistence.lsm;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Least recently used table blocks, up to a number of bytes, shared by every
+ * table in a store.
+ */
+class BlockCache {
+    interface Loader {
+        byte[] load() throws IOException;
+    }
+
+    private final long capacity;
+    private final Meter hits;
+    private final Meter misses;
+    private final LinkedHashMap<BlockKey, byte[]> blocks = new LinkedHashMap<>(1024, 0.75f, true);
+    private long size;
+
+    BlockCache(final long capacity, final MetricRegistry metricRegistry) {
+        this.capacity = capacity;
+        this.hits = metricRegistry.meter(name("persistence", "lsm", "block-cache", "hits"));
+        this.misses = metricRegistry.meter(name("persistence", "lsm", "block-cache", "misses"));
+    }
+
+    byte[] get(final long table, final int block, final Loader loader) throws IOException {
+        final BlockKey key = new BlockKey(table, block);
+
+        synchronized (this) {
+            final byte[] cached = blocks.get(key);
+            if (cached != null) {
+                hits.mark();
+                return cached;
+            }
+        }
+
+        // Read outside the lock, two readers may race to load the same block
+        misses.mark();
+        final byte[] loaded = loader.load();
+        if (capacity > 0) {
+            put(key, loaded);
+        }
+        return loaded;
+    }
+
+    synchronized void evict(final long table) {
+        final Iterator<Map.Entry<BlockKey, byte[]>> iterator = blocks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<BlockKey, byte[]> entry = iterator.next();
+            if (entry.getKey().table == table) {
+                size -= entry.getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized void put(final BlockKey key, final byte[] block) {
+        final byte[] previous = blocks.put(key, block);
+        size += block.length - (previous != null ? previous.length : 0);
+
+        final Iterator<byte[]> eldest = blocks.values().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    private static final class BlockKey {
+        final long table;
+        final int block;
+
+        BlockKey(final long table, final int block) {
+            this.table = table;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            final BlockKey other = (BlockKey) o;
+            return table == other.table && block == other.block;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (table * 31 + block);
+        }
+    }
+}
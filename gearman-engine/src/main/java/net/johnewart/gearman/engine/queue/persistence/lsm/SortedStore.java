@@ -0,0 +1,793 @@
+package net.johnewart.gearman.engine.queue.persistence.lsm;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.johnewart.gearman.engine.queue.persistence.lsm.SortedTable.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A small embedded log-structured merge store, for data that doesn't fit on
+ * the heap. Writes go to a write-ahead log and a sorted table in memory; once
+ * that holds writeBufferBytes a background thread swaps in an empty one (with
+ * a log of its own) and flushes the full one to a {@link SortedTable} on
+ * disk, after which its log goes. Writers never wait for a flush, the new
+ * memory table just keeps growing until the last one is out. Reads look in
+ * memory, then in the tables from newest to oldest.
+ *
+ * Once there are more than {@link #MAX_TABLES} tables a background thread
+ * merges the newest ones, for as long as they are not much smaller than the
+ * next, so each value is rewritten a logarithmic number of times. Deletes
+ * are dropped when the oldest table is part of the merge.
+ *
+ * Keys are ordered as unsigned bytes, so all keys with a prefix are a range.
+ */
+public class SortedStore implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SortedStore.class);
+
+    private static final int MAX_TABLES = 4;
+    private static final Comparator<byte[]> ORDER = UnsignedBytes.lexicographicalComparator();
+    // Stands in for a delete in the memory table
+    private static final byte[] DELETED = new byte[0];
+    // Rough cost of a memory table entry on top of its key and value
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final Pattern TABLE_NAME = Pattern.compile("(\\d+)-(\\d+)\\.sst");
+    private static final Pattern LOG_NAME = Pattern.compile("(\\d+)\\.log");
+
+    /**
+     * Writes that go to the log together
+     */
+    public static final class Batch {
+        private final List<byte[]> keys = new ArrayList<>();
+        private final List<byte[]> values = new ArrayList<>();
+
+        public Batch put(final byte[] key, final byte[] value) {
+            keys.add(key);
+            values.add(value);
+            return this;
+        }
+
+        public Batch delete(final byte[] key) {
+            keys.add(key);
+            values.add(null);
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return keys.isEmpty();
+        }
+    }
+
+    private static final class Version {
+        final ConcurrentSkipListMap<byte[], byte[]> memtable;
+        // Swapped out and being flushed, null if none
+        final ConcurrentSkipListMap<byte[], byte[]> immutable;
+        // Newest first
+        final List<SortedTable> tables;
+
+        Version(final ConcurrentSkipListMap<byte[], byte[]> memtable,
+                final ConcurrentSkipListMap<byte[], byte[]> immutable,
+                final List<SortedTable> tables) {
+            this.memtable = memtable;
+            this.immutable = immutable;
+            this.tables = tables;
+        }
+    }
+
+    private final File directory;
+    private final long writeBufferBytes;
+    private final boolean syncWrites;
+    private final BlockCache cache;
+    private final ExecutorService flusher;
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private final ExecutorService compactor;
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+    private final Object compactionLock = new Object();
+    private final Timer flushTimer;
+    private final Timer compactionTimer;
+    private final Counter tableCounter;
+
+    private volatile Version version;
+
+    // Guarded by flushLock, taken before writeLock
+    private final Object flushLock = new Object();
+    private long lastFlush;
+
+    // Guarded by writeLock
+    private final Object writeLock = new Object();
+    private final List<File> logFiles = new ArrayList<>();
+    private final List<File> immutableLogFiles = new ArrayList<>();
+    private FileChannel log;
+    private long logNumber;
+    private long memtableBytes;
+    private boolean closed;
+
+    /**
+     * @param writeBufferBytes How much to hold in memory before flushing it
+     *                         to a table
+     * @param blockCacheBytes How much of the tables to keep in memory
+     * @param syncWrites Whether to fsync the log on every write, otherwise a
+     *                   crash of the machine (not of the process) can lose
+     *                   the latest writes
+     */
+    public SortedStore(final File directory,
+                       final long writeBufferBytes,
+                       final long blockCacheBytes,
+                       final boolean syncWrites,
+                       final MetricRegistry metricRegistry) throws IOException
+    {
+        this.directory = directory;
+        this.writeBufferBytes = writeBufferBytes;
+        this.syncWrites = syncWrites;
+        this.cache = new BlockCache(blockCacheBytes, metricRegistry);
+        this.flushTimer = metricRegistry.timer(name("persistence", "lsm", "flush"));
+        this.compactionTimer = metricRegistry.timer(name("persistence", "lsm", "compaction"));
+        this.tableCounter = metricRegistry.counter(name("persistence", "lsm", "tables"));
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create store directory " + directory);
+        }
+
+        this.flusher = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lsm-flush-%d").build());
+        this.compactor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lsm-compaction-%d").build());
+
+        recover();
+
+        if (version.tables.size() > MAX_TABLES) {
+            scheduleCompaction();
+        }
+    }
+
+    public void write(final Batch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final ByteBuffer record = encode(batch);
+
+        synchronized (writeLock) {
+            if (closed) {
+                throw new IOException("Store is closed");
+            }
+
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            if (syncWrites) {
+                log.force(false);
+            }
+
+            final Map<byte[], byte[]> memtable = version.memtable;
+            for (int i = 0; i < batch.keys.size(); i++) {
+                final byte[] key = batch.keys.get(i);
+                final byte[] value = batch.values.get(i);
+                memtable.put(key, value != null ? value : DELETED);
+                memtableBytes += key.length + (value != null ? value.length : 0) + ENTRY_OVERHEAD;
+            }
+
+            if (memtableBytes >= writeBufferBytes) {
+                scheduleFlush();
+            }
+        }
+    }
+
+    /**
+     * @return the value for key, or null if there isn't one
+     */
+    public byte[] get(final byte[] key) throws IOException {
+        final Version current = acquire();
+        try {
+            byte[] value = current.memtable.get(key);
+            if (value == null && current.immutable != null) {
+                value = current.immutable.get(key);
+            }
+            if (value != null) {
+                return value == DELETED ? null : value;
+            }
+
+            for (SortedTable table : current.tables) {
+                final Entry entry = table.get(key);
+                if (entry != null) {
+                    return entry.value;
+                }
+            }
+            return null;
+        } finally {
+            release(current);
+        }
+    }
+
+    /**
+     * Visit every key that starts with prefix, in order, along with its value.
+     */
+    public void scan(final byte[] prefix, final BiConsumer<byte[], byte[]> visitor) throws IOException {
+        scan(prefix, prefix, (key, value) -> {
+            visitor.accept(key, value);
+            return true;
+        });
+    }
+
+    /**
+     * Visit the keys that start with prefix in order, from the first one at
+     * or after from, for as long as visitor returns true.
+     */
+    public void scan(final byte[] prefix, final byte[] from, final BiPredicate<byte[], byte[]> visitor) throws IOException {
+        final byte[] start = compare(from, prefix) > 0 ? from : prefix;
+        final Version current = acquire();
+        try {
+            final List<Iterator<Entry>> sources = new ArrayList<>();
+            sources.add(entries(current.memtable.tailMap(start)));
+            if (current.immutable != null) {
+                sources.add(entries(current.immutable.tailMap(start)));
+            }
+            for (SortedTable table : current.tables) {
+                sources.add(table.iterator(start));
+            }
+
+            final Iterator<Entry> entries = merge(sources);
+            while (entries.hasNext()) {
+                final Entry entry = entries.next();
+                if (!startsWith(entry.key, prefix)) {
+                    break;
+                }
+                if (entry.value != null && !visitor.test(entry.key, entry.value)) {
+                    break;
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            release(current);
+        }
+    }
+
+    /**
+     * Write what's in memory out to a table, and wait for it.
+     */
+    public void flush() throws IOException {
+        flush(false);
+    }
+
+    /**
+     * Merge the newest tables, see above. Runs in the background once there
+     * are too many tables, but can be called at any time.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            final Version current = acquire();
+            final Timer.Context timer = compactionTimer.time();
+            try {
+                final List<SortedTable> inputs = pickTables(current.tables);
+                if (inputs.size() < 2) {
+                    return;
+                }
+
+                final List<Iterator<Entry>> sources = new ArrayList<>();
+                long keys = 0;
+                for (SortedTable input : inputs) {
+                    sources.add(input.iterator(new byte[0]));
+                    keys += input.keys;
+                }
+
+                // With the oldest table in the merge nothing can be hiding
+                // behind a delete any more
+                Iterator<Entry> merged = merge(sources);
+                if (inputs.size() == current.tables.size()) {
+                    merged = withoutDeletes(merged);
+                }
+
+                final long first = inputs.get(inputs.size() - 1).first;
+                final long last = inputs.get(0).last;
+                final SortedTable output;
+                try {
+                    output = SortedTable.write(tableFile(first, last), first, last, merged, keys, cache);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+
+                synchronized (writeLock) {
+                    final Version latest = version;
+                    if (closed || !latest.tables.containsAll(inputs)) {
+                        // Cleared (or closed) while we were at it
+                        output.discard();
+                        return;
+                    }
+
+                    // Tables flushed since are newer than all of the inputs
+                    final List<SortedTable> tables = new ArrayList<>(latest.tables);
+                    final int position = tables.indexOf(inputs.get(0));
+                    tables.removeAll(inputs);
+                    tables.add(position, output);
+                    version = new Version(latest.memtable, latest.immutable, tables);
+                }
+
+                tableCounter.dec(inputs.size() - 1);
+                for (SortedTable input : inputs) {
+                    input.discard();
+                }
+                LOG.debug("Merged " + inputs.size() + " tables into " + output.file);
+            } finally {
+                timer.stop();
+                release(current);
+            }
+        }
+    }
+
+    /**
+     * Drop everything.
+     */
+    public void clear() throws IOException {
+        synchronized (writeLock) {
+            final Version current = version;
+            version = new Version(new ConcurrentSkipListMap<>(ORDER), null, new ArrayList<>());
+            for (SortedTable table : current.tables) {
+                table.discard();
+            }
+            tableCounter.dec(current.tables.size());
+            deleteLogs(immutableLogFiles);
+            startLog();
+            memtableBytes = 0;
+        }
+    }
+
+    public int getTableCount() {
+        return version.tables.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Not interrupted: that would close the files they are using. A
+        // memory table that doesn't make it out is in its log
+        flusher.shutdown();
+        compactor.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            log.force(false);
+            log.close();
+            final Version current = version;
+            version = new Version(current.memtable, current.immutable, new ArrayList<>());
+            for (SortedTable table : current.tables) {
+                table.release();
+            }
+            tableCounter.dec(current.tables.size());
+        }
+    }
+
+    static int compare(final byte[] a, final byte[] b) {
+        return ORDER.compare(a, b);
+    }
+
+    // The newest tables, for as long as the next one is no more than twice
+    // as big as those put together
+    private static List<SortedTable> pickTables(final List<SortedTable> tables) {
+        final List<SortedTable> picked = new ArrayList<>();
+        long size = 0;
+        for (SortedTable table : tables) {
+            final long tableSize = table.file.length();
+            if (picked.size() >= 2 && tableSize > size * 2) {
+                break;
+            }
+            picked.add(table);
+            size += tableSize;
+        }
+        return picked;
+    }
+
+    private void scheduleFlush() {
+        if (flushPending.compareAndSet(false, true)) {
+            try {
+                flusher.execute(() -> {
+                    flushPending.set(false);
+                    try {
+                        flush(true);
+                    } catch (IOException | RuntimeException e) {
+                        LOG.error("Unable to flush " + directory + ": ", e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Closing, the log has it
+                flushPending.set(false);
+            }
+        }
+    }
+
+    // Write out a memory table that is still waiting (a flush failed), then
+    // swap out the current one, if it is full or always, and write that
+    private void flush(final boolean onlyIfFull) throws IOException {
+        synchronized (flushLock) {
+            flushImmutable();
+
+            final boolean swapped;
+            synchronized (writeLock) {
+                swapped = (!onlyIfFull || memtableBytes >= writeBufferBytes) && swapMemtable();
+            }
+
+            if (swapped) {
+                flushImmutable();
+            }
+        }
+    }
+
+    // Caller holds writeLock
+    private boolean swapMemtable() throws IOException {
+        final Version current = version;
+        if (closed || current.memtable.isEmpty() || current.immutable != null) {
+            return false;
+        }
+
+        version = new Version(new ConcurrentSkipListMap<>(ORDER), current.memtable, current.tables);
+        immutableLogFiles.addAll(logFiles);
+        logFiles.clear();
+        startLog();
+        memtableBytes = 0;
+        return true;
+    }
+
+    // Caller holds flushLock
+    private void flushImmutable() throws IOException {
+        final ConcurrentSkipListMap<byte[], byte[]> immutable = version.immutable;
+        if (immutable == null) {
+            return;
+        }
+
+        final int tables;
+        final Timer.Context timer = flushTimer.time();
+        try {
+            final long sequence = lastFlush + 1;
+            final SortedTable table = SortedTable.write(tableFile(sequence, sequence), sequence, sequence,
+                    entries(immutable), immutable.size(), cache);
+
+            synchronized (writeLock) {
+                final Version latest = version;
+                if (closed || latest.immutable != immutable) {
+                    // Cleared (or closed) while we were at it
+                    table.discard();
+                    return;
+                }
+
+                final List<SortedTable> newer = new ArrayList<>();
+                newer.add(table);
+                newer.addAll(latest.tables);
+                version = new Version(latest.memtable, null, newer);
+                lastFlush = sequence;
+                tableCounter.inc();
+                tables = newer.size();
+
+                // Everything in these logs is in the table now
+                deleteLogs(immutableLogFiles);
+            }
+        } finally {
+            timer.stop();
+        }
+
+        if (tables > MAX_TABLES) {
+            scheduleCompaction();
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (compactionPending.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                compactionPending.set(false);
+                try {
+                    compact();
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Unable to compact " + directory + ": ", e);
+                }
+            });
+        }
+    }
+
+    // The current version, with a reference to each of its tables
+    private Version acquire() {
+        while (true) {
+            final Version current = version;
+            int retained = 0;
+            for (SortedTable table : current.tables) {
+                if (!table.retain()) {
+                    break;
+                }
+                retained++;
+            }
+
+            if (retained == current.tables.size()) {
+                return current;
+            }
+
+            // Lost a race with a compaction, try the version it installed
+            for (int i = 0; i < retained; i++) {
+                current.tables.get(i).release();
+            }
+        }
+    }
+
+    private static void release(final Version version) {
+        for (SortedTable table : version.tables) {
+            table.release();
+        }
+    }
+
+    // Caller holds writeLock
+    private void startLog() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        deleteLogs(logFiles);
+
+        final File file = new File(directory, String.format("%020d.log", ++logNumber));
+        log = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        logFiles.add(file);
+    }
+
+    // Caller holds writeLock
+    private static void deleteLogs(final List<File> files) throws IOException {
+        for (File file : files) {
+            Files.deleteIfExists(file.toPath());
+        }
+        files.clear();
+    }
+
+    private void recover() throws IOException {
+        final List<SortedTable> tables = new ArrayList<>();
+        final List<File> logs = new ArrayList<>();
+        final File[] files = directory.listFiles();
+
+        for (File file : files != null ? files : new File[0]) {
+            final Matcher table = TABLE_NAME.matcher(file.getName());
+            final Matcher log = LOG_NAME.matcher(file.getName());
+
+            if (table.matches()) {
+                tables.add(SortedTable.open(file, Long.parseLong(table.group(1)), Long.parseLong(table.group(2)), cache));
+            } else if (log.matches()) {
+                logs.add(file);
+            } else if (file.getName().endsWith(".tmp")) {
+                // A table that was never finished
+                Files.delete(file.toPath());
+            }
+        }
+
+        // Newest first, a merged table ahead of the last table it merged
+        tables.sort((a, b) -> a.last != b.last ? Long.compare(b.last, a.last) : Long.compare(a.first, b.first));
+
+        // A merge that was cut short before its inputs went leaves them
+        // behind, the merged table covers their flushes
+        final List<SortedTable> current = new ArrayList<>();
+        for (SortedTable table : tables) {
+            final SortedTable newer = current.isEmpty() ? null : current.get(current.size() - 1);
+            if (newer != null && newer.first <= table.first && table.last <= newer.last) {
+                table.discard();
+            } else {
+                current.add(table);
+            }
+        }
+
+        lastFlush = current.isEmpty() ? 0 : current.get(0).last;
+        tableCounter.inc(current.size());
+
+        final ConcurrentSkipListMap<byte[], byte[]> memtable = new ConcurrentSkipListMap<>(ORDER);
+        logs.sort((a, b) -> a.getName().compareTo(b.getName()));
+        for (File file : logs) {
+            replay(file, memtable);
+            final Matcher log = LOG_NAME.matcher(file.getName());
+            if (log.matches()) {
+                logNumber = Math.max(logNumber, Long.parseLong(log.group(1)));
+            }
+        }
+
+        // What was in the logs goes out to a table before anything new comes in
+        synchronized (flushLock) {
+            synchronized (writeLock) {
+                version = new Version(new ConcurrentSkipListMap<>(ORDER), memtable.isEmpty() ? null : memtable, current);
+                immutableLogFiles.addAll(logs);
+                if (memtable.isEmpty()) {
+                    deleteLogs(immutableLogFiles);
+                }
+                startLog();
+            }
+            flushImmutable();
+        }
+
+        LOG.info("Opened " + directory + " with " + current.size() + " tables");
+    }
+
+    private static void replay(final File file, final Map<byte[], byte[]> memtable) throws IOException {
+        final ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+
+        while (records.remaining() >= 8) {
+            final int length = records.getInt();
+            final int checksum = records.getInt();
+            if (length <= 0 || length > records.remaining()) {
+                break;
+            }
+
+            final byte[] body = new byte[length];
+            records.get(body);
+
+            final CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                LOG.warn("Bad checksum in " + file + ", ignoring the rest");
+                break;
+            }
+
+            final ByteBuffer batch = ByteBuffer.wrap(body);
+            final int count = batch.getInt();
+            for (int i = 0; i < count; i++) {
+                final byte[] key = bytes(batch);
+                final boolean deleted = batch.get() == 1;
+                final byte[] value = bytes(batch);
+                memtable.put(key, deleted ? DELETED : value);
+            }
+        }
+    }
+
+    // [int length][int crc32][int count] then [int key length][key][byte deleted][int value length][value]
+    private static ByteBuffer encode(final Batch batch) {
+        int length = 4;
+        for (int i = 0; i < batch.keys.size(); i++) {
+            final byte[] value = batch.values.get(i);
+            length += 4 + batch.keys.get(i).length + 1 + 4 + (value != null ? value.length : 0);
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(8 + length);
+        record.position(8);
+        record.putInt(batch.keys.size());
+        for (int i = 0; i < batch.keys.size(); i++) {
+            final byte[] key = batch.keys.get(i);
+            final byte[] value = batch.values.get(i);
+            record.putInt(key.length).put(key);
+            record.put((byte) (value != null ? 0 : 1));
+            record.putInt(value != null ? value.length : 0);
+            if (value != null) {
+                record.put(value);
+            }
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static byte[] bytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private File tableFile(final long first, final long last) {
+        return new File(directory, String.format("%020d-%020d.sst", first, last));
+    }
+
+    private static Iterator<Entry> entries(final Map<byte[], byte[]> memtable) {
+        return Iterators.transform(memtable.entrySet().iterator(),
+                e -> new Entry(e.getKey(), e.getValue() == DELETED ? null : e.getValue()));
+    }
+
+    private static boolean startsWith(final byte[] key, final byte[] prefix) {
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One entry per key, from the first (newest) source that has it
+    private static Iterator<Entry> merge(final List<Iterator<Entry>> sources) {
+        final PriorityQueue<Source> heads = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+            final int comparison = compare(a.entries.peek().key, b.entries.peek().key);
+            return comparison != 0 ? comparison : Integer.compare(a.rank, b.rank);
+        });
+
+        for (int i = 0; i < sources.size(); i++) {
+            final PeekingIterator<Entry> entries = Iterators.peekingIterator(sources.get(i));
+            if (entries.hasNext()) {
+                heads.add(new Source(i, entries));
+            }
+        }
+
+        return new AbstractIterator<Entry>() {
+            @Override
+            protected Entry computeNext() {
+                final Source newest = heads.poll();
+                if (newest == null) {
+                    return endOfData();
+                }
+
+                final Entry entry = newest.entries.next();
+                if (newest.entries.hasNext()) {
+                    heads.add(newest);
+                }
+
+                // Older values for the key are hidden behind this one
+                while (!heads.isEmpty() && compare(heads.peek().entries.peek().key, entry.key) == 0) {
+                    final Source older = heads.poll();
+                    older.entries.next();
+                    if (older.entries.hasNext()) {
+                        heads.add(older);
+                    }
+                }
+
+                return entry;
+            }
+        };
+    }
+
+    private static Iterator<Entry> withoutDeletes(final Iterator<Entry> entries) {
+        return new AbstractIterator<Entry>() {
+            @Override
+            protected Entry computeNext() {
+                while (entries.hasNext()) {
+                    final Entry entry = entries.next();
+                    if (entry.value != null) {
+                        return entry;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private static final class Source {
+        final int rank;
+        final PeekingIterator<Entry> entries;
+
+        Source(final int rank, final PeekingIterator<Entry> entries) {
+            this.rank = rank;
+            this.entries = entries;
+        }
+    }
+}
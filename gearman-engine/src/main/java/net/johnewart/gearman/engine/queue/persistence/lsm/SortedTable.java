@@ -0,0 +1,387 @@
+package net.johnewart.gearman.engine.queue.persistence.lsm;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.johnewart.gearman.engine.queue.persistence.lsm.SortedStore.compare;
+
+/**
+ * An immutable file of key / value pairs in key order: data blocks of about
+ * {@link #BLOCK_SIZE} bytes, a sparse index with the first key of every
+ * block, a bloom filter over the keys and a footer. The index and filter
+ * live on the heap, blocks are read on demand through the {@link BlockCache}.
+ *
+ * Entry:  [int key length][key][byte kind][int value length][value]
+ * Footer: [long index offset][int index length][long filter offset]
+ *         [int filter length][long keys][int magic]
+ */
+class SortedTable {
+    static final int BLOCK_SIZE = 4096;
+
+    private static final byte VALUE = 0;
+    private static final byte TOMBSTONE = 1;
+    private static final int FOOTER_SIZE = 8 + 4 + 8 + 4 + 8 + 4;
+    private static final int MAGIC = 0x4753_5354;
+    // Bloom filter with ten bits and seven probes per key, about 1% false
+    // positives, so looking up a new key rarely touches the disk
+    private static final int BITS_PER_KEY = 10;
+    private static final int PROBES = 7;
+    private static final AtomicLong IDS = new AtomicLong();
+
+    /**
+     * A key and its value, or null for a delete that hides older values
+     */
+    static final class Entry {
+        final byte[] key;
+        final byte[] value;
+
+        Entry(final byte[] key, final byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    final File file;
+    // The flushes whose writes the table holds, the same for a flushed table
+    final long first;
+    final long last;
+    final long keys;
+
+    // Identifies the table's blocks in the cache
+    private final long id = IDS.incrementAndGet();
+    private volatile FileChannel channel;
+    private final BlockCache cache;
+    private final byte[][] firstKeys;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final long[] filter;
+
+    // One for the store while the table is current, one for every reader
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile boolean obsolete;
+
+    private SortedTable(final File file, final long first, final long last, final BlockCache cache) throws IOException {
+        this.file = file;
+        this.first = first;
+        this.last = last;
+        this.cache = cache;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            final ByteBuffer footer = read(channel.size() - FOOTER_SIZE, FOOTER_SIZE);
+            final long indexOffset = footer.getLong();
+            final int indexLength = footer.getInt();
+            final long filterOffset = footer.getLong();
+            final int filterLength = footer.getInt();
+            this.keys = footer.getLong();
+
+            if (footer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a sorted table");
+            }
+
+            final ByteBuffer index = read(indexOffset, indexLength);
+            final int blocks = index.getInt();
+            this.firstKeys = new byte[blocks][];
+            this.offsets = new long[blocks];
+            this.lengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                firstKeys[i] = bytes(index);
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+            }
+
+            final ByteBuffer bits = read(filterOffset, filterLength);
+            this.filter = new long[filterLength / 8];
+            bits.asLongBuffer().get(filter);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static SortedTable open(final File file, final long first, final long last, final BlockCache cache) throws IOException {
+        return new SortedTable(file, first, last, cache);
+    }
+
+    /**
+     * Write entries, which must be in key order, to a new table and fsync it.
+     * The table only appears under its name once it is complete.
+     */
+    static SortedTable write(final File file,
+                             final long first,
+                             final long last,
+                             final Iterator<Entry> entries,
+                             final long expectedKeys,
+                             final BlockCache cache) throws IOException
+    {
+        final long[] filter = new long[(int) Math.min(Integer.MAX_VALUE / 8, Math.max(1, (expectedKeys * BITS_PER_KEY + 63) / 64))];
+        final List<byte[]> firstKeys = new ArrayList<>();
+        final List<long[]> blocks = new ArrayList<>();
+        long keys = 0;
+
+        final File partial = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileStream = new FileOutputStream(partial)) {
+            final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fileStream, 64 * 1024));
+            final DataOutputStream out = new DataOutputStream(counter);
+            final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+            final DataOutputStream blockOut = new DataOutputStream(block);
+
+            while (entries.hasNext()) {
+                final Entry entry = entries.next();
+                if (block.size() == 0) {
+                    firstKeys.add(entry.key);
+                }
+
+                blockOut.writeInt(entry.key.length);
+                blockOut.write(entry.key);
+                blockOut.writeByte(entry.value == null ? TOMBSTONE : VALUE);
+                blockOut.writeInt(entry.value == null ? 0 : entry.value.length);
+                if (entry.value != null) {
+                    blockOut.write(entry.value);
+                }
+                addToFilter(filter, entry.key);
+                keys++;
+
+                if (block.size() >= BLOCK_SIZE) {
+                    blocks.add(new long[] { counter.getCount(), block.size() });
+                    block.writeTo(out);
+                    block.reset();
+                }
+            }
+
+            if (block.size() > 0) {
+                blocks.add(new long[] { counter.getCount(), block.size() });
+                block.writeTo(out);
+            }
+
+            final long indexOffset = counter.getCount();
+            out.writeInt(blocks.size());
+            for (int i = 0; i < blocks.size(); i++) {
+                out.writeInt(firstKeys.get(i).length);
+                out.write(firstKeys.get(i));
+                out.writeLong(blocks.get(i)[0]);
+                out.writeInt((int) blocks.get(i)[1]);
+            }
+
+            final long filterOffset = counter.getCount();
+            for (long bits : filter) {
+                out.writeLong(bits);
+            }
+
+            out.writeLong(indexOffset);
+            out.writeInt((int) (filterOffset - indexOffset));
+            out.writeLong(filterOffset);
+            out.writeInt(filter.length * 8);
+            out.writeLong(keys);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileStream.getFD().sync();
+        }
+
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return open(file, first, last, cache);
+    }
+
+    /**
+     * @return the entry for key, which may be a delete, or null if this
+     *         table knows nothing about it
+     */
+    Entry get(final byte[] key) throws IOException {
+        if (!mightContain(filter, key)) {
+            return null;
+        }
+
+        final int block = blockFor(key);
+        if (block < 0) {
+            return null;
+        }
+
+        final ByteBuffer entries = ByteBuffer.wrap(block(block));
+        while (entries.hasRemaining()) {
+            final Entry entry = readEntry(entries);
+            final int comparison = compare(entry.key, key);
+            if (comparison == 0) {
+                return entry;
+            }
+            if (comparison > 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Every entry from the first key at or after from, deletes included.
+     */
+    Iterator<Entry> iterator(final byte[] from) {
+        return new AbstractIterator<Entry>() {
+            private int block = Math.max(0, blockFor(from));
+            private ByteBuffer entries;
+
+            @Override
+            protected Entry computeNext() {
+                while (true) {
+                    if (entries == null || !entries.hasRemaining()) {
+                        if (block >= offsets.length) {
+                            return endOfData();
+                        }
+                        try {
+                            entries = ByteBuffer.wrap(block(block++));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+
+                    final Entry entry = readEntry(entries);
+                    if (compare(entry.key, from) >= 0) {
+                        return entry;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Take a reference for reading, false if the table is already gone
+     */
+    boolean retain() {
+        int current;
+        do {
+            current = references.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                synchronized (this) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // Nothing left to read from it anyway
+            }
+            cache.evict(id);
+            if (obsolete) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Delete the file once the last reader is done with it
+     */
+    void discard() {
+        obsolete = true;
+        release();
+    }
+
+    // Last block whose first key is at or before key, -1 if key comes first
+    private int blockFor(final byte[] key) {
+        int low = 0;
+        int high = firstKeys.length - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (compare(firstKeys[middle], key) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    private byte[] block(final int block) throws IOException {
+        return cache.get(id, block, () -> read(offsets[block], lengths[block]).array());
+    }
+
+    private ByteBuffer read(final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            readFully(buffer, position);
+        } catch (ClosedChannelException e) {
+            // A reader that was interrupted mid-read closes the channel for
+            // everyone, open it again for the rest
+            reopen();
+            buffer.clear();
+            readFully(buffer, position);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+    }
+
+    private synchronized void reopen() throws IOException {
+        if (references.get() > 0 && !channel.isOpen()) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    private static Entry readEntry(final ByteBuffer entries) {
+        final byte[] key = bytes(entries);
+        final boolean tombstone = entries.get() == TOMBSTONE;
+        final byte[] value = bytes(entries);
+        return new Entry(key, tombstone ? null : value);
+    }
+
+    private static byte[] bytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void addToFilter(final long[] filter, final byte[] key) {
+        final ByteBuffer hash = ByteBuffer.wrap(Hashing.murmur3_128().hashBytes(key).asBytes());
+        final long h1 = hash.getLong();
+        final long h2 = hash.getLong();
+        final long bits = filter.length * 64L;
+        for (int i = 0; i < PROBES; i++) {
+            final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            filter[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean mightContain(final long[] filter, final byte[] key) {
+        final ByteBuffer hash = ByteBuffer.wrap(Hashing.murmur3_128().hashBytes(key).asBytes());
+        final long h1 = hash.getLong();
+        final long h2 = hash.getLong();
+        final long bits = filter.length * 64L;
+        for (int i = 0; i < PROBES; i++) {
+            final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            if ((filter[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
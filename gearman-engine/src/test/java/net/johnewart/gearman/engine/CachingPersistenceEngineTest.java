@@ -0,0 +1,83 @@
+package net.johnewart.gearman.engine;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.engine.factories.JobFactory;
+import net.johnewart.gearman.engine.queue.JobQueue;
+import net.johnewart.gearman.engine.queue.PersistedJobQueue;
+import net.johnewart.gearman.engine.queue.persistence.CachingPersistenceEngine;
+import net.johnewart.gearman.engine.queue.persistence.MemoryPersistenceEngine;
+import org.hamcrest.core.Is;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingPersistenceEngineTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final ReadCountingPersistenceEngine store = new ReadCountingPersistenceEngine();
+
+    @Test
+    public void dispatchesJustWrittenJobsWithoutReadingTheStore() throws Exception
+    {
+        CachingPersistenceEngine engine = new CachingPersistenceEngine(store, 1024 * 1024, metricRegistry);
+        JobQueue jobQueue = new PersistedJobQueue("cached", engine, metricRegistry);
+
+        Job job = JobFactory.generateBackgroundJob("cached");
+        jobQueue.enqueue(job);
+
+        Assert.assertThat(jobQueue.poll(), Is.is(job));
+        Assert.assertThat(store.reads.get(), Is.is(0));
+        Assert.assertThat(metricRegistry.counter("persistence.cache.hits").getCount(), Is.is(1L));
+    }
+
+    @Test
+    public void fallsBackToTheStoreForUncachedJobs() throws Exception
+    {
+        Job job = JobFactory.generateBackgroundJob("uncached");
+        store.write(job);
+
+        CachingPersistenceEngine engine = new CachingPersistenceEngine(store, 1024 * 1024, metricRegistry);
+
+        Assert.assertThat(engine.findJob("uncached", job.getUniqueID()), Is.is(job));
+        Assert.assertThat(store.reads.get(), Is.is(1));
+        Assert.assertThat(metricRegistry.counter("persistence.cache.misses").getCount(), Is.is(1L));
+    }
+
+    @Test
+    public void forgetsDeletedJobs() throws Exception
+    {
+        CachingPersistenceEngine engine = new CachingPersistenceEngine(store, 1024 * 1024, metricRegistry);
+        Job job = JobFactory.generateBackgroundJob("deleted");
+
+        engine.write(job);
+        engine.delete(job);
+
+        Assert.assertNull(engine.findJob("deleted", job.getUniqueID()));
+        Assert.assertThat(engine.size(), Is.is(0L));
+    }
+
+    @Test
+    public void evictsToStayWithinItsBudget() throws Exception
+    {
+        // Room for a handful of small jobs
+        CachingPersistenceEngine engine = new CachingPersistenceEngine(store, 4096, metricRegistry);
+
+        for (int i = 0; i < 100; i++) {
+            engine.write(JobFactory.generateBackgroundJob("evicted"));
+        }
+
+        Assert.assertTrue(engine.size() < 100);
+        Assert.assertThat(metricRegistry.counter("persistence.cache.evictions").getCount(), Is.is(100L - engine.size()));
+    }
+
+    private static class ReadCountingPersistenceEngine extends MemoryPersistenceEngine {
+        final AtomicInteger reads = new AtomicInteger();
+
+        @Override
+        public Job findJob(String functionName, String uniqueID) {
+            reads.incrementAndGet();
+            return super.findJob(functionName, uniqueID);
+        }
+    }
+}
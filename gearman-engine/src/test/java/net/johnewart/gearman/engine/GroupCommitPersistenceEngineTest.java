@@ -0,0 +1,151 @@
+package net.johnewart.gearman.engine;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.engine.factories.JobFactory;
+import net.johnewart.gearman.engine.queue.persistence.DurabilityMode;
+import net.johnewart.gearman.engine.queue.persistence.GroupCommitPersistenceEngine;
+import net.johnewart.gearman.engine.queue.persistence.MemoryPersistenceEngine;
+import org.hamcrest.core.Is;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GroupCommitPersistenceEngineTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final BatchCountingPersistenceEngine store = new BatchCountingPersistenceEngine();
+    private GroupCommitPersistenceEngine engine;
+
+    @After
+    public void stopEngine()
+    {
+        if (engine != null)
+            engine.stop();
+    }
+
+    @Test
+    public void groupsConcurrentWritesIntoBatches() throws Exception
+    {
+        engine = new GroupCommitPersistenceEngine(store, DurabilityMode.GROUP, 64, 50, metricRegistry);
+
+        final int writers = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(writers);
+        final List<Job> jobs = Collections.synchronizedList(new ArrayList<Job>());
+        final AtomicInteger failed = new AtomicInteger();
+
+        for (int i = 0; i < writers; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    Job job = JobFactory.generateBackgroundJob("batched");
+                    jobs.add(job);
+                    if (!engine.write(job))
+                        failed.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        start.countDown();
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        Assert.assertThat(failed.get(), Is.is(0));
+        Assert.assertThat(store.writes.get(), Is.is(writers));
+        Assert.assertTrue("Writes share batches", store.batches.get() < writers);
+        for (Job job : jobs) {
+            Assert.assertNotNull("Durable once write() returns",
+                    store.findJob(job.getFunctionName(), job.getUniqueID()));
+        }
+        Assert.assertThat(metricRegistry.histogram("persistence.batch.size").getCount(), Is.is((long) store.batches.get()));
+    }
+
+    @Test
+    public void readsSeePendingWrites() throws Exception
+    {
+        engine = new GroupCommitPersistenceEngine(store, DurabilityMode.ASYNC, 1000, 60000, metricRegistry);
+        Job job = JobFactory.generateBackgroundJob("pending");
+
+        Assert.assertTrue(engine.write(job));
+        Assert.assertNull("Nothing written yet", store.findJob("pending", job.getUniqueID()));
+        Assert.assertThat(engine.findJob("pending", job.getUniqueID()), Is.is(job));
+
+        engine.flush();
+        Assert.assertThat(store.findJob("pending", job.getUniqueID()), Is.is(job));
+    }
+
+    @Test
+    public void coalescesWriteAndDeleteOfTheSameJob() throws Exception
+    {
+        engine = new GroupCommitPersistenceEngine(store, DurabilityMode.ASYNC, 1000, 60000, metricRegistry);
+        Job job = JobFactory.generateBackgroundJob("shortLived");
+
+        engine.write(job);
+        engine.delete(job);
+        Assert.assertNull(engine.findJob("shortLived", job.getUniqueID()));
+
+        engine.flush();
+        Assert.assertThat("Only the delete reaches the store", store.writes.get(), Is.is(0));
+        Assert.assertThat(store.deletes.get(), Is.is(1));
+    }
+
+    @Test
+    public void writesOutPendingJobsThenStopsTheStoreOnStop() throws Exception
+    {
+        engine = new GroupCommitPersistenceEngine(store, DurabilityMode.ASYNC, 1000, 60000, metricRegistry);
+        Job job = JobFactory.generateBackgroundJob("stopping");
+        engine.write(job);
+
+        engine.stop();
+        Assert.assertThat(store.writes.get(), Is.is(1));
+        Assert.assertTrue(store.stopped);
+        engine = null;
+    }
+
+    @Test
+    public void reportsFailedBatchToWriters() throws Exception
+    {
+        store.failWrites = true;
+        engine = new GroupCommitPersistenceEngine(store, DurabilityMode.GROUP, 64, 1, metricRegistry);
+
+        Assert.assertFalse(engine.write(JobFactory.generateBackgroundJob("failing")));
+        Assert.assertThat(metricRegistry.counter("persistence.failed").getCount(), Is.is(1L));
+    }
+
+    private static class BatchCountingPersistenceEngine extends MemoryPersistenceEngine {
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger writes = new AtomicInteger();
+        final AtomicInteger deletes = new AtomicInteger();
+        volatile boolean failWrites = false;
+        volatile boolean stopped = false;
+
+        @Override
+        public boolean writeBatch(Collection<Job> jobs) {
+            batches.incrementAndGet();
+            writes.addAndGet(jobs.size());
+            return !failWrites && super.writeBatch(jobs);
+        }
+
+        @Override
+        public void deleteBatch(Collection<Job> jobs) {
+            deletes.addAndGet(jobs.size());
+            super.deleteBatch(jobs);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+    }
+}
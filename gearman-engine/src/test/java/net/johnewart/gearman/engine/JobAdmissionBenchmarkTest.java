@@ -0,0 +1,133 @@
+package net.johnewart.gearman.engine;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.constants.JobPriority;
+import net.johnewart.gearman.engine.core.JobManager;
+import net.johnewart.gearman.engine.factories.TestJobHandleFactory;
+import net.johnewart.gearman.engine.factories.TestUniqueIdFactory;
+import net.johnewart.gearman.engine.metrics.MetricsEngine;
+import net.johnewart.gearman.engine.queue.factories.MemoryJobQueueFactory;
+import net.johnewart.gearman.engine.storage.NoopExceptionStorageEngine;
+import org.hamcrest.core.Is;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Submit throughput with many concurrent submitters ("channels"), for
+ * distinct unique ids, ids that all share one hash code, and ids that every
+ * submitter sends (so all but one submission is coalesced).
+ */
+public class JobAdmissionBenchmarkTest {
+    private static Logger LOG = LoggerFactory.getLogger(JobAdmissionBenchmarkTest.class);
+
+    private static final int CHANNELS = 32;
+    private static final int JOBS_PER_CHANNEL = 512;
+    private static final String[] FUNCTIONS = {"alpha", "bravo", "charlie", "delta"};
+
+    @Test
+    public void admitsDistinctUniqueIds() throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < CHANNELS * JOBS_PER_CHANNEL; i++) {
+            ids.add("job-" + i);
+        }
+
+        run("distinct ids", ids, false);
+    }
+
+    @Test
+    public void admitsCollidingUniqueIds() throws Exception {
+        // "Aa" and "BB" share a hash code, so every string built from a
+        // fixed number of them does too
+        List<String> ids = new ArrayList<>();
+        ids.add("");
+        while (ids.size() < CHANNELS * JOBS_PER_CHANNEL) {
+            List<String> next = new ArrayList<>();
+            for (String id : ids) {
+                next.add(id + "Aa");
+                next.add(id + "BB");
+            }
+            ids = next;
+        }
+        ids = ids.subList(0, CHANNELS * JOBS_PER_CHANNEL);
+        Assert.assertThat(ids.get(0).hashCode(), Is.is(ids.get(ids.size() - 1).hashCode()));
+
+        run("colliding ids", ids, false);
+    }
+
+    @Test
+    public void coalescesDuplicateUniqueIds() throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < JOBS_PER_CHANNEL; i++) {
+            ids.add("shared-" + i);
+        }
+
+        run("duplicate ids", ids, true);
+    }
+
+    private void run(String scenario, final List<String> ids, final boolean shared) throws Exception {
+        final MetricsEngine metricsEngine = new MetricsEngine(new MetricRegistry());
+        final JobManager jobManager = new JobManager(new MemoryJobQueueFactory(new MetricRegistry()),
+                new TestJobHandleFactory(),
+                new TestUniqueIdFactory(),
+                new NoopExceptionStorageEngine(),
+                metricsEngine);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(CHANNELS);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Set<Job> admitted = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<Job, Boolean>()));
+
+        for (int c = 0; c < CHANNELS; c++) {
+            final int channel = c;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < JOBS_PER_CHANNEL; i++) {
+                            final int index = shared ? i : channel * JOBS_PER_CHANNEL + i;
+                            final String uniqueId = ids.get(index);
+                            final String functionName = FUNCTIONS[index % FUNCTIONS.length];
+                            final Job job = new Job(functionName, uniqueId, new byte[]{'x'},
+                                    JobPriority.NORMAL, true, -1);
+                            admitted.add(jobManager.storeJob(job));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        final long startedAt = System.nanoTime();
+        start.countDown();
+        Assert.assertTrue("Submitters finished", done.await(120, TimeUnit.SECONDS));
+        final long elapsed = System.nanoTime() - startedAt;
+
+        Assert.assertNull(failure.get());
+
+        final int submissions = CHANNELS * JOBS_PER_CHANNEL;
+        final int expected = shared ? JOBS_PER_CHANNEL : submissions;
+        Assert.assertThat("Each unique id is admitted exactly once", admitted.size(), Is.is(expected));
+        Assert.assertThat(metricsEngine.getEnqueuedJobCount(), Is.is((long) expected));
+        jobManager.stop();
+
+        LOG.info(String.format("%s: %d channels, %.0f submits/sec",
+                scenario, CHANNELS, submissions / (elapsed / 1e9)));
+    }
+}
@@ -0,0 +1,221 @@
+package net.johnewart.gearman.engine;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSet;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.common.JobState;
+import net.johnewart.gearman.common.JobStatus;
+import net.johnewart.gearman.common.interfaces.EngineClient;
+import net.johnewart.gearman.common.interfaces.EngineWorker;
+import net.johnewart.gearman.common.packets.Packet;
+import net.johnewart.gearman.engine.core.JobManager;
+import net.johnewart.gearman.engine.factories.JobFactory;
+import net.johnewart.gearman.engine.factories.TestJobHandleFactory;
+import net.johnewart.gearman.engine.factories.TestUniqueIdFactory;
+import net.johnewart.gearman.engine.metrics.MetricsEngine;
+import net.johnewart.gearman.engine.queue.factories.MemoryJobQueueFactory;
+import net.johnewart.gearman.engine.storage.NoopExceptionStorageEngine;
+import org.hamcrest.core.Is;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Drives grab / complete cycles from several threads at once, each thread
+ * working its own function queue, and checks that the bookkeeping comes out
+ * clean. Throughput per thread count is logged so scaling can be compared
+ * across machines.
+ */
+public class JobManagerConcurrencyTest {
+    private static Logger LOG = LoggerFactory.getLogger(JobManagerConcurrencyTest.class);
+
+    private static final int JOBS_PER_THREAD = 5000;
+
+    @Test
+    public void completesUnrelatedJobsConcurrently() throws Exception {
+        final int cores = Runtime.getRuntime().availableProcessors();
+
+        for (int threads = 1; threads <= Math.max(4, cores); threads *= 2) {
+            double jobsPerSecond = runCompletions(threads);
+            LOG.info(String.format("%d completion threads: %.0f jobs/sec", threads, jobsPerSecond));
+        }
+    }
+
+    @Test
+    public void duplicateCompletionsAreOnlyCountedOnce() throws Exception {
+        MetricsEngine metricsEngine = new MetricsEngine(new MetricRegistry());
+        final JobManager jobManager = buildJobManager(metricsEngine);
+        final CountingClient client = new CountingClient();
+        final StubWorker worker = new StubWorker("duplicates");
+
+        jobManager.storeJobForClient(JobFactory.generateForegroundJob("duplicates"), client);
+        final Job job = jobManager.nextJobForWorker(worker);
+
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        jobManager.handleWorkCompletion(job, new byte[]{'o', 'k'});
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        Assert.assertThat(client.results.get(), Is.is(1));
+        Assert.assertThat(metricsEngine.getCompletedJobCount(), Is.is(1L));
+        Assert.assertThat(job.getState(), Is.is(JobState.COMPLETE));
+        Assert.assertNull(jobManager.getCurrentJobForWorker(worker));
+        jobManager.stop();
+    }
+
+    private double runCompletions(final int threads) throws Exception {
+        final MetricsEngine metricsEngine = new MetricsEngine(new MetricRegistry());
+        final JobManager jobManager = buildJobManager(metricsEngine);
+        final List<CountingClient> clients = new ArrayList<>();
+        final List<StubWorker> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            final String functionName = "function-" + t;
+            final CountingClient client = new CountingClient();
+            for (int i = 0; i < JOBS_PER_THREAD; i++) {
+                jobManager.storeJobForClient(JobFactory.generateForegroundJob(functionName), client);
+            }
+            clients.add(client);
+            workers.add(new StubWorker(functionName));
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final byte[] result = {'d', 'o', 'n', 'e'};
+
+        for (final StubWorker worker : workers) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Job job;
+                        while ((job = jobManager.nextJobForWorker(worker)) != null) {
+                            jobManager.handleWorkCompletion(job, result);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        final long startedAt = System.nanoTime();
+        start.countDown();
+        Assert.assertTrue("Completion threads finished", done.await(60, TimeUnit.SECONDS));
+        final long elapsed = System.nanoTime() - startedAt;
+
+        Assert.assertNull(failure.get());
+        Assert.assertThat(metricsEngine.getCompletedJobCount(), Is.is((long) threads * JOBS_PER_THREAD));
+        Assert.assertThat(metricsEngine.getActiveJobCount(), Is.is(0L));
+        for (CountingClient client : clients) {
+            Assert.assertThat(client.results.get(), Is.is(JOBS_PER_THREAD));
+        }
+        for (StubWorker worker : workers) {
+            Assert.assertNull(jobManager.getCurrentJobForWorker(worker));
+        }
+        jobManager.stop();
+
+        return (threads * JOBS_PER_THREAD) / (elapsed / 1e9);
+    }
+
+    private static JobManager buildJobManager(MetricsEngine metricsEngine) {
+        return new JobManager(new MemoryJobQueueFactory(new MetricRegistry()),
+                new TestJobHandleFactory(),
+                new TestUniqueIdFactory(),
+                new NoopExceptionStorageEngine(),
+                metricsEngine);
+    }
+
+    private static class StubWorker implements EngineWorker {
+        private final Set<String> abilities;
+
+        StubWorker(String functionName) {
+            this.abilities = ImmutableSet.of(functionName);
+        }
+
+        @Override
+        public Set<String> getAbilities() {
+            return abilities;
+        }
+
+        @Override
+        public void wakeUp() {
+        }
+
+        @Override
+        public void markAsleep() {
+        }
+    }
+
+    private static class CountingClient implements EngineClient {
+        final AtomicInteger results = new AtomicInteger();
+
+        @Override
+        public Job getCurrentJob() {
+            return null;
+        }
+
+        @Override
+        public void setCurrentJob(Job job) {
+        }
+
+        @Override
+        public void sendWorkResults(String jobHandle, byte[] data) {
+            results.incrementAndGet();
+        }
+
+        @Override
+        public void sendWorkData(String jobHandle, byte[] data) {
+        }
+
+        @Override
+        public void sendWorkException(String jobHandle, byte[] exception) {
+        }
+
+        @Override
+        public void sendWorkFail(String jobHandle) {
+        }
+
+        @Override
+        public void sendWorkWarning(String jobHandle, byte[] warning) {
+        }
+
+        @Override
+        public void sendWorkStatus(JobStatus jobStatus) {
+        }
+
+        @Override
+        public void send(Packet packet) {
+        }
+    }
+}
@@ -7,22 +7,44 @@ import net.johnewart.gearman.common.JobStatus;
 import net.johnewart.gearman.common.interfaces.EngineClient;
 import net.johnewart.gearman.common.interfaces.EngineWorker;
 import net.johnewart.gearman.common.interfaces.JobHandleFactory;
+import net.johnewart.gearman.common.interfaces.PushEngineWorker;
+import net.johnewart.gearman.common.packets.SharedPacket;
+import net.johnewart.gearman.common.packets.response.WorkCompleteResponse;
+import net.johnewart.gearman.common.packets.response.WorkDataResponse;
+import net.johnewart.gearman.engine.core.JobLeases;
 import net.johnewart.gearman.engine.core.JobManager;
 import net.johnewart.gearman.engine.core.UniqueIdFactory;
+import net.johnewart.gearman.engine.core.WorkerPool;
+import net.johnewart.gearman.engine.exceptions.EnqueueException;
+import net.johnewart.gearman.engine.exceptions.QueueFullException;
 import net.johnewart.gearman.engine.factories.JobFactory;
 import net.johnewart.gearman.engine.factories.TestJobHandleFactory;
 import net.johnewart.gearman.engine.factories.TestUniqueIdFactory;
 import net.johnewart.gearman.engine.metrics.MetricsEngine;
+import net.johnewart.gearman.engine.queue.JobQueue;
+import net.johnewart.gearman.engine.queue.factories.JobQueueFactory;
 import net.johnewart.gearman.engine.queue.factories.MemoryJobQueueFactory;
 import net.johnewart.gearman.engine.storage.NoopExceptionStorageEngine;
 import org.hamcrest.core.Is;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.Seconds;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.mockito.Matchers.any;
 
 public class JobManagerTest {
     private JobManager jobManager;
@@ -48,6 +70,11 @@ public class JobManagerTest {
         when(worker.getAbilities()).thenReturn(abilities);
     }
 
+    @After
+    public void stopJobManager() {
+        jobManager.stop();
+    }
+
     @Test
     public void insertsJobsIntoJobStore() throws Exception {
         Job job = JobFactory.generateForegroundJob("reverseString");
@@ -186,6 +213,268 @@ public class JobManagerTest {
         verify(worker).wakeUp();
     }
 
+    @Test
+    public void wakesWorkersForJobsFromOtherServers() throws Exception
+    {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final AtomicReference<Consumer<String>> jobListener = new AtomicReference<>();
+        final JobQueueFactory sharedFactory = new MemoryJobQueueFactory(metricRegistry) {
+            @Override
+            public boolean isShared() {
+                return true;
+            }
+
+            @Override
+            public void setJobListener(Consumer<String> listener) {
+                jobListener.set(listener);
+            }
+        };
+        jobManager.stop();
+        jobManager = new JobManager(sharedFactory, jobHandleFactory, uniqueIdFactory, new NoopExceptionStorageEngine(), metricsEngine);
+
+        // The queue is there to poll before any job is submitted here
+        jobManager.registerWorkerAbility("reverseString", worker);
+        Assert.assertTrue(jobManager.getJobQueues().containsKey("reverseString"));
+
+        jobManager.markWorkerAsAsleep(worker);
+        verify(worker, never()).wakeUp();
+
+        // Another server queues a job and says so
+        jobManager.getJobQueues().get("reverseString").enqueue(JobFactory.generateBackgroundJob("reverseString"));
+        jobListener.get().accept("reverseString");
+        verify(worker).wakeUp();
+
+        // Nobody here can do this one
+        jobListener.get().accept("computeSomethingElse");
+        Assert.assertFalse(jobManager.getJobQueues().containsKey("computeSomethingElse"));
+    }
+
+    @Test
+    public void turnsAwayForegroundJobsOnSharedQueues() throws Exception
+    {
+        final JobQueueFactory sharedFactory = new MemoryJobQueueFactory(new MetricRegistry()) {
+            @Override
+            public boolean isShared() {
+                return true;
+            }
+        };
+        jobManager.stop();
+        jobManager = new JobManager(sharedFactory, jobHandleFactory, uniqueIdFactory, new NoopExceptionStorageEngine(), metricsEngine);
+
+        Job job = JobFactory.generateForegroundJob("reverseString");
+        try {
+            jobManager.storeJobForClient(job, mock(EngineClient.class));
+            Assert.fail("Foreground job was accepted");
+        } catch (EnqueueException e) {
+            Assert.assertTrue(e.getCause() instanceof UnsupportedOperationException);
+        }
+
+        // Nothing is left waiting on it
+        Assert.assertTrue(jobManager.getClientsForJob(job).isEmpty());
+        Assert.assertFalse(jobManager.getJobQueues().containsKey("reverseString"));
+
+        Job background = JobFactory.generateBackgroundJob("reverseString");
+        Assert.assertNotNull(jobManager.storeJobForClient(background, mock(EngineClient.class)));
+    }
+
+    @Test
+    public void forgetsClientsOfRejectedSubmissions() throws Exception
+    {
+        jobManager.storeJob(JobFactory.generateBackgroundJob("reverseString"));
+        jobManager.getJobQueues().get("reverseString").setCapacity(1);
+
+        for (int i = 0; i < 100; i++) {
+            try {
+                jobManager.storeJobForClient(JobFactory.generateForegroundJob("reverseString"), mock(EngineClient.class));
+                Assert.fail("Job was accepted by a full queue");
+            } catch (EnqueueException e) {
+                Assert.assertTrue(e.getCause() instanceof QueueFullException);
+            }
+        }
+
+        Assert.assertEquals(0, jobManager.getWaitedOnJobCount());
+    }
+
+    @Test
+    public void wakesOnlyOneSleepingWorkerPerJob() throws Exception
+    {
+        final ImmutableSet<String> abilities = ImmutableSet.of("reverseString");
+        EngineWorker first = mock(EngineWorker.class);
+        EngineWorker second = mock(EngineWorker.class);
+        EngineWorker third = mock(EngineWorker.class);
+        for (EngineWorker w : new EngineWorker[] { first, second, third }) {
+            when(w.getAbilities()).thenReturn(abilities);
+            jobManager.registerWorkerAbility("reverseString", w);
+            jobManager.markWorkerAsAsleep(w);
+        }
+
+        jobManager.storeJob(JobFactory.generateBackgroundJob("reverseString"));
+
+        // FIFO by default, so the longest sleeper gets it
+        verify(first).wakeUp();
+        verify(second, never()).wakeUp();
+        verify(third, never()).wakeUp();
+
+        Assert.assertThat(metricsEngine.getNoOpsSent(), Is.is(1L));
+        Assert.assertThat(jobManager.getWorkerPool("reverseString").getNumberOfSleepingWorkers(), Is.is(2));
+    }
+
+    @Test
+    public void wakesMostRecentSleeperWithLifoPolicy() throws Exception
+    {
+        jobManager.setWakeupPolicy(WorkerPool.WakeupPolicy.LIFO);
+
+        final ImmutableSet<String> abilities = ImmutableSet.of("reverseString");
+        EngineWorker first = mock(EngineWorker.class);
+        EngineWorker second = mock(EngineWorker.class);
+        for (EngineWorker w : new EngineWorker[] { first, second }) {
+            when(w.getAbilities()).thenReturn(abilities);
+            jobManager.registerWorkerAbility("reverseString", w);
+            jobManager.markWorkerAsAsleep(w);
+        }
+
+        jobManager.storeJob(JobFactory.generateBackgroundJob("reverseString"));
+
+        verify(second).wakeUp();
+        verify(first, never()).wakeUp();
+    }
+
+    @Test
+    public void sweepWakesWorkerWhenWakeupWasLost() throws Exception
+    {
+        final ImmutableSet<String> abilities = ImmutableSet.of("reverseString");
+        EngineWorker first = mock(EngineWorker.class);
+        EngineWorker second = mock(EngineWorker.class);
+        for (EngineWorker w : new EngineWorker[] { first, second }) {
+            when(w.getAbilities()).thenReturn(abilities);
+            jobManager.registerWorkerAbility("reverseString", w);
+            jobManager.markWorkerAsAsleep(w);
+        }
+
+        jobManager.storeJob(JobFactory.generateBackgroundJob("reverseString"));
+        verify(first).wakeUp();
+
+        // The woken worker goes away without grabbing the job
+        jobManager.unregisterWorker(first);
+        jobManager.sweepSleepingWorkers();
+
+        verify(second).wakeUp();
+    }
+
+    @Test
+    public void wakesSleepingWorkersWhenEpochJobsComeDue() throws Exception
+    {
+        final long currentMilliseconds = new DateTime().toDate().getTime();
+        DateTimeUtils.setCurrentMillisFixed(currentMilliseconds);
+        try
+        {
+            final ImmutableSet<String> abilities = ImmutableSet.of("reverseString");
+            EngineWorker first = mock(EngineWorker.class);
+            EngineWorker second = mock(EngineWorker.class);
+            for (EngineWorker w : new EngineWorker[] { first, second }) {
+                when(w.getAbilities()).thenReturn(abilities);
+                jobManager.registerWorkerAbility("reverseString", w);
+            }
+
+            jobManager.storeJob(JobFactory.generateFutureJob("reverseString", Seconds.seconds(30)));
+            jobManager.storeJob(JobFactory.generateFutureJob("reverseString", Seconds.seconds(30)));
+
+            // Nothing is due, so the workers stay asleep
+            jobManager.markWorkerAsAsleep(first);
+            jobManager.markWorkerAsAsleep(second);
+            jobManager.sweepSleepingWorkers();
+            verify(first, never()).wakeUp();
+            verify(second, never()).wakeUp();
+
+            DateTimeUtils.setCurrentMillisFixed(currentMilliseconds + 60 * 1000);
+            jobManager.sweepSleepingWorkers();
+
+            verify(first).wakeUp();
+            verify(second).wakeUp();
+        }
+        finally
+        {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void countsGrabsThatFindNoJob() throws Exception
+    {
+        Assert.assertThat(jobManager.nextJobForWorker(worker), Is.is((Job) null));
+        Assert.assertThat(metricsEngine.getWastedGrabs(), Is.is(1L));
+    }
+
+    @Test
+    public void pushesJobsToWorkersWithCredits() throws Exception
+    {
+        PushEngineWorker pushWorker = mock(PushEngineWorker.class);
+        when(pushWorker.getAbilities()).thenReturn(ImmutableSet.of("reverseString"));
+        when(pushWorker.pushJob(any(Job.class))).thenReturn(true);
+
+        jobManager.registerWorkerAbility("reverseString", pushWorker);
+        jobManager.setWorkerCredits(pushWorker, 2);
+
+        Job first = JobFactory.generateBackgroundJob("reverseString");
+        Job second = JobFactory.generateBackgroundJob("reverseString");
+        Job third = JobFactory.generateBackgroundJob("reverseString");
+        jobManager.storeJob(first);
+        jobManager.storeJob(second);
+        jobManager.storeJob(third);
+
+        // Two credits, so the third job waits in the queue
+        verify(pushWorker).pushJob(first);
+        verify(pushWorker).pushJob(second);
+        verify(pushWorker, never()).pushJob(third);
+        Assert.assertThat(jobManager.getOrCreateJobQueue("reverseString").size(), Is.is(1L));
+        Assert.assertThat(jobManager.getCurrentJobsForWorker(pushWorker).size(), Is.is(2));
+
+        // Finishing one hands its credit back
+        jobManager.handleWorkCompletion(first, new byte[0]);
+
+        verify(pushWorker).pushJob(third);
+        Assert.assertThat(jobManager.getOrCreateJobQueue("reverseString").size(), Is.is(0L));
+    }
+
+    @Test
+    public void pushesQueuedJobsWhenCreditsAreGranted() throws Exception
+    {
+        PushEngineWorker pushWorker = mock(PushEngineWorker.class);
+        when(pushWorker.getAbilities()).thenReturn(ImmutableSet.of("reverseString"));
+        when(pushWorker.pushJob(any(Job.class))).thenReturn(true);
+
+        jobManager.storeJob(JobFactory.generateBackgroundJob("reverseString"));
+        jobManager.storeJob(JobFactory.generateBackgroundJob("reverseString"));
+
+        jobManager.registerWorkerAbility("reverseString", pushWorker);
+        jobManager.setWorkerCredits(pushWorker, 1);
+
+        verify(pushWorker, times(1)).pushJob(any(Job.class));
+        Assert.assertThat(jobManager.getOrCreateJobQueue("reverseString").size(), Is.is(1L));
+    }
+
+    @Test
+    public void requeuesJobWhenPushFails() throws Exception
+    {
+        PushEngineWorker pushWorker = mock(PushEngineWorker.class);
+        when(pushWorker.getAbilities()).thenReturn(ImmutableSet.of("reverseString"));
+        when(pushWorker.pushJob(any(Job.class))).thenReturn(false);
+
+        jobManager.registerWorkerAbility("reverseString", pushWorker);
+        jobManager.setWorkerCredits(pushWorker, 4);
+
+        Job job = JobFactory.generateBackgroundJob("reverseString");
+        jobManager.storeJob(job);
+
+        // Tried once, then the worker is no longer pushed to
+        verify(pushWorker, times(1)).pushJob(any(Job.class));
+        Assert.assertThat(jobManager.getOrCreateJobQueue("reverseString").size(), Is.is(1L));
+        Assert.assertThat(jobManager.getCurrentJobForWorker(pushWorker), Is.is((Job) null));
+
+        // Plain GRAB_JOB still gets it
+        Assert.assertThat(jobManager.nextJobForWorker(worker).equals(job), Is.is(true));
+    }
+
     @Test
     public void handlesExceptionsWhenWakingWorkers() throws Exception
     {
@@ -294,12 +583,105 @@ public class JobManagerTest {
         // Complete the job
         jobManager.handleWorkCompletion(nextJob, result);
 
-        verify(mockClientOne).sendWorkResults(jobOne.getJobHandle(), result);
-        verify(mockClientTwo).sendWorkResults(jobOne.getJobHandle(), result);
+        // Both get the same packet, encoded once
+        for (EngineClient client : new EngineClient[] { mockClientOne, mockClientTwo }) {
+            ArgumentCaptor<SharedPacket> results = ArgumentCaptor.forClass(SharedPacket.class);
+            verify(client).sendWorkResults(results.capture());
+            WorkCompleteResponse response = (WorkCompleteResponse) results.getValue().getPacket();
+            Assert.assertThat(response.getJobHandle(), Is.is(jobOne.getJobHandle()));
+            Assert.assertArrayEquals(result, response.getData());
+        }
+    }
+
+    @Test
+    public void sharesWorkDataBetweenClients() throws Exception {
+        EngineClient mockClientOne = mock(EngineClient.class);
+        EngineClient mockClientTwo = mock(EngineClient.class);
+
+        Job jobOne = JobFactory.generateForegroundJob("reverseString");
+        Job jobTwo = JobFactory.generateForegroundJob("reverseString");
+        jobTwo.setUniqueID(jobOne.getUniqueID());
+
+        jobManager.storeJobForClient(jobOne, mockClientOne);
+        jobManager.storeJobForClient(jobTwo, mockClientTwo);
+
+        Job nextJob = jobManager.nextJobForWorker(worker);
+        byte[] data = new byte[4096];
+        jobManager.handleWorkData(nextJob, data);
+
+        ArgumentCaptor<SharedPacket> one = ArgumentCaptor.forClass(SharedPacket.class);
+        ArgumentCaptor<SharedPacket> two = ArgumentCaptor.forClass(SharedPacket.class);
+        verify(mockClientOne).sendWorkData(one.capture());
+        verify(mockClientTwo).sendWorkData(two.capture());
+
+        Assert.assertSame(one.getValue(), two.getValue());
+        Assert.assertArrayEquals(data, ((WorkDataResponse) one.getValue().getPacket()).getData());
+        verify(mockClientOne, never()).sendWorkData(any(String.class), any(byte[].class));
     }
 
     // TODO: Verify that it will coalesce results if a job is submitted while a worker is working on the same one
 
+    @Test
+    public void failsJobsThatOutliveTheirTimeout() throws Exception
+    {
+        EngineClient mockClient = mock(EngineClient.class);
+        jobManager.registerWorkerAbility("reverseString", worker, 200);
+
+        Job job = JobFactory.generateForegroundJob("reverseString");
+        jobManager.storeJobForClient(job, mockClient);
+        jobManager.nextJobForWorker(worker);
+        Assert.assertThat(jobManager.getLeasedJobCount(), Is.is(1));
+
+        verify(mockClient, timeout(5000)).sendWorkFail(job.getJobHandle());
+        Assert.assertThat(jobManager.getLeasedJobCount(), Is.is(0));
+        Assert.assertTrue(jobManager.getCurrentJobsForWorker(worker).isEmpty());
+        Assert.assertNull(jobManager.getJobByJobHandle(job.getJobHandle()));
+    }
+
+    @Test
+    public void reEnqueuesJobsThatOutliveTheirTimeout() throws Exception
+    {
+        EngineClient mockClient = mock(EngineClient.class);
+        jobManager.setLeaseExpiryPolicy(JobLeases.ExpiryPolicy.REENQUEUE);
+        jobManager.registerWorkerAbility("reverseString", worker, 200);
+
+        Job job = JobFactory.generateForegroundJob("reverseString");
+        jobManager.storeJobForClient(job, mockClient);
+        jobManager.nextJobForWorker(worker);
+
+        final JobQueue jobQueue = jobManager.getOrCreateJobQueue("reverseString");
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (jobQueue.size() == 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(50);
+        }
+
+        Assert.assertThat(jobQueue.size(), Is.is(1L));
+        Assert.assertTrue(jobManager.getCurrentJobsForWorker(worker).isEmpty());
+        verify(mockClient, never()).sendWorkFail(any(String.class));
+
+        // Clients stay attached and get the result from the next worker
+        Job nextJob = jobManager.nextJobForWorker(worker);
+        jobManager.handleWorkCompletion(nextJob, new byte[] {'o', 'k'});
+        verify(mockClient).sendWorkResults(job.getJobHandle(), new byte[] {'o', 'k'});
+    }
+
+    @Test
+    public void completionReleasesTheLease() throws Exception
+    {
+        EngineClient mockClient = mock(EngineClient.class);
+        jobManager.registerWorkerAbility("reverseString", worker, 200);
+
+        Job job = JobFactory.generateForegroundJob("reverseString");
+        jobManager.storeJobForClient(job, mockClient);
+        Job nextJob = jobManager.nextJobForWorker(worker);
+        jobManager.handleWorkCompletion(nextJob, new byte[0]);
+
+        Assert.assertThat(jobManager.getLeasedJobCount(), Is.is(0));
+        Thread.sleep(500);
+        verify(mockClient, never()).sendWorkFail(any(String.class));
+    }
+
     @Test
     public void sendsWorkDataResultsToClients() throws Exception {
 
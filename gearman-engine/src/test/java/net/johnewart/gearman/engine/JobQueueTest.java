@@ -4,20 +4,32 @@ import com.codahale.metrics.MetricRegistry;
 import net.johnewart.gearman.common.Job;
 import net.johnewart.gearman.engine.core.QueuedJob;
 import net.johnewart.gearman.engine.exceptions.JobQueueFactoryException;
+import net.johnewart.gearman.engine.exceptions.QueueFullException;
 import net.johnewart.gearman.engine.factories.JobFactory;
 import net.johnewart.gearman.engine.queue.JobQueue;
 import net.johnewart.gearman.engine.queue.factories.MemoryJobQueueFactory;
+import net.johnewart.gearman.engine.queue.factories.PersistedJobQueueFactory;
+import net.johnewart.gearman.engine.queue.persistence.MemoryPersistenceEngine;
 import org.hamcrest.core.Is;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
 import org.joda.time.Seconds;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class JobQueueTest {
+    private static Logger LOG = LoggerFactory.getLogger(JobQueueTest.class);
+
     private JobQueue jobQueue;
     private final String queueName = "delayedJobs";
     private final MemoryJobQueueFactory memoryJobQueueFactory;
@@ -35,6 +47,12 @@ public class JobQueueTest {
         jobQueue = memoryJobQueueFactory.build(queueName);
     }
 
+    @After
+    public void resetClock()
+    {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
     @Test
     public void doesNotRunEpochJobsEarly() throws Exception
     {
@@ -71,6 +89,66 @@ public class JobQueueTest {
 
     }
 
+    @Test
+    public void runsNearerEpochJobsBeforeLaterOnes() throws Exception
+    {
+        long currentMilliseconds = new DateTime().toDate().getTime();
+        DateTimeUtils.setCurrentMillisFixed(currentMilliseconds);
+
+        Job laterJob = JobFactory.generateFutureJob(queueName, Seconds.seconds(7200));
+        Job soonerJob = JobFactory.generateFutureJob(queueName, Seconds.seconds(30));
+
+        jobQueue.enqueue(laterJob);
+        jobQueue.enqueue(soonerJob);
+
+        Assert.assertTrue("Nothing is ready yet", jobQueue.isEmpty());
+
+        DateTimeUtils.setCurrentMillisFixed(currentMilliseconds + 60 * 1000);
+        Assert.assertThat("The nearer job is not stuck behind the later one",
+                jobQueue.poll(),
+                Is.is(soonerJob));
+        Assert.assertNull(jobQueue.poll());
+
+        DateTimeUtils.setCurrentMillisFixed(currentMilliseconds + 7300 * 1000);
+        Assert.assertThat(jobQueue.poll(), Is.is(laterJob));
+    }
+
+    @Test
+    public void removesEpochJobsBeforeTheyRun() throws Exception
+    {
+        long currentMilliseconds = new DateTime().toDate().getTime();
+        DateTimeUtils.setCurrentMillisFixed(currentMilliseconds);
+
+        Job futureJob = JobFactory.generateFutureJob(queueName, Seconds.seconds(30));
+        jobQueue.enqueue(futureJob);
+
+        Assert.assertTrue(jobQueue.remove(futureJob));
+        Assert.assertThat(jobQueue.size(), Is.is(0L));
+
+        DateTimeUtils.setCurrentMillisFixed(currentMilliseconds + 60 * 1000);
+        Assert.assertNull(jobQueue.poll());
+    }
+
+    @Test
+    public void countsFutureJobsByHour() throws Exception
+    {
+        long currentMilliseconds = new DateTime().toDate().getTime();
+        DateTimeUtils.setCurrentMillisFixed(currentMilliseconds);
+
+        jobQueue.enqueue(JobFactory.generateBackgroundJob(queueName));
+        jobQueue.enqueue(JobFactory.generateFutureJob(queueName, Seconds.seconds(30)));
+        jobQueue.enqueue(JobFactory.generateFutureJob(queueName, Seconds.seconds(5 * 3600 + 1800)));
+
+        Map<Integer, Long> counts = jobQueue.futureCounts();
+
+        Assert.assertThat("Ready and soon-to-run jobs count as now",
+                counts.get(0),
+                Is.is(2L));
+        Assert.assertThat("Later jobs are counted to within a scheduler slot",
+                counts.get(4) != null ? counts.get(4) : counts.get(5),
+                Is.is(1L));
+    }
+
     @Test
     public void runsJobsInPriorityOrder() throws Exception
     {
@@ -215,4 +293,172 @@ public class JobQueueTest {
                 jobQueue.remove(null));
     }
 
+    @Test
+    public void turnsJobsAwayBetweenWatermarks() throws Exception
+    {
+        final AtomicInteger drained = new AtomicInteger();
+        jobQueue.setWatermarks(4, 2);
+
+        for (int i = 0; i < 4; i++)
+        {
+            jobQueue.enqueue(JobFactory.generateBackgroundJob(queueName));
+        }
+
+        try {
+            jobQueue.enqueue(JobFactory.generateBackgroundJob(queueName));
+            Assert.fail("Full queue took a job");
+        } catch (QueueFullException e) {
+            // Expected
+        }
+
+        Assert.assertTrue(jobQueue.isSaturated());
+        jobQueue.whenDrained(drained::incrementAndGet);
+
+        // Still above the low watermark, keeps turning jobs away
+        jobQueue.poll();
+        try {
+            jobQueue.enqueue(JobFactory.generateBackgroundJob(queueName));
+            Assert.fail("Queue took a job before draining");
+        } catch (QueueFullException e) {
+            // Expected
+        }
+        Assert.assertThat(drained.get(), Is.is(0));
+
+        jobQueue.poll();
+        Assert.assertFalse(jobQueue.isSaturated());
+        Assert.assertThat(drained.get(), Is.is(1));
+        jobQueue.enqueue(JobFactory.generateBackgroundJob(queueName));
+
+        // Not saturated, runs straight away
+        jobQueue.whenDrained(drained::incrementAndGet);
+        Assert.assertThat(drained.get(), Is.is(2));
+    }
+
+    @Test
+    public void pollSkipsRemovedJobs() throws Exception
+    {
+        Job removedJob = JobFactory.generateBackgroundJob(queueName);
+        Job keptJob = JobFactory.generateBackgroundJob(queueName);
+
+        jobQueue.enqueue(removedJob);
+        jobQueue.enqueue(keptJob);
+        Assert.assertTrue(jobQueue.remove(removedJob));
+
+        Assert.assertThat(jobQueue.getAllJobs().size(), Is.is(1));
+        Assert.assertThat(jobQueue.poll(), Is.is(keptJob));
+        Assert.assertTrue("Only a removed job is left behind", jobQueue.isEmpty());
+        Assert.assertNull(jobQueue.poll());
+
+        // Same unique ID can come back once removed
+        jobQueue.enqueue(removedJob);
+        Assert.assertThat(jobQueue.poll(), Is.is(removedJob));
+        Assert.assertThat(jobQueue.size(), Is.is(0L));
+    }
+
+    @Test
+    public void queueOperationsDoNotSlowDownWithDepth() throws Exception
+    {
+        final int operations = 10000;
+
+        for (int depth = 1000; depth <= 100000; depth *= 10)
+        {
+            final JobQueue queue = memoryJobQueueFactory.build("depth-" + depth);
+
+            for (int i = 0; i < depth; i++)
+            {
+                queue.enqueue(JobFactory.generateLowPriorityBackgroundJob(queue.getName()));
+            }
+
+            final Job[] jobs = new Job[operations];
+            for (int i = 0; i < operations; i++)
+            {
+                jobs[i] = JobFactory.generateBackgroundJob(queue.getName());
+            }
+
+            long startedAt = System.nanoTime();
+            for (Job job : jobs)
+            {
+                queue.enqueue(job);
+            }
+            final long enqueueing = System.nanoTime() - startedAt;
+
+            // Removing from the middle of a deep queue is the expensive case
+            startedAt = System.nanoTime();
+            for (int i = 0; i < operations; i += 2)
+            {
+                Assert.assertTrue(queue.remove(jobs[i]));
+            }
+            final long removing = System.nanoTime() - startedAt;
+
+            startedAt = System.nanoTime();
+            for (int i = 1; i < operations; i += 2)
+            {
+                Assert.assertThat(queue.poll(), Is.is(jobs[i]));
+            }
+            final long polling = System.nanoTime() - startedAt;
+
+            Assert.assertThat(queue.size(), Is.is((long) depth));
+
+            LOG.info(String.format("depth %d: enqueue %.0f ns, remove %.0f ns, poll %.0f ns",
+                    depth,
+                    (double) enqueueing / operations,
+                    (double) removing / (operations / 2),
+                    (double) polling / (operations / 2)));
+        }
+    }
+
+    @Test
+    public void restoresStreamedJobsWithoutReadingThemAgain() throws Exception
+    {
+        // Reads of a single function's jobs, other than those readAll() makes
+        final AtomicInteger functionReads = new AtomicInteger();
+        final AtomicBoolean readingAll = new AtomicBoolean();
+        final MemoryPersistenceEngine persistenceEngine = new MemoryPersistenceEngine() {
+            @Override
+            public Collection<QueuedJob> readAll() {
+                readingAll.set(true);
+                try {
+                    return super.readAll();
+                } finally {
+                    readingAll.set(false);
+                }
+            }
+
+            @Override
+            public Collection<QueuedJob> getAllForFunction(String functionName) {
+                if (!readingAll.get())
+                {
+                    functionReads.incrementAndGet();
+                }
+                return super.getAllForFunction(functionName);
+            }
+        };
+
+        for (int i = 0; i < 10; i++)
+        {
+            persistenceEngine.write(JobFactory.generateBackgroundJob(i % 2 == 0 ? "even" : "odd"));
+        }
+
+        final PersistedJobQueueFactory factory = new PersistedJobQueueFactory(persistenceEngine, metricRegistry);
+        final Map<String, JobQueue> queues = new HashMap<>();
+        factory.loadPersistedJobs(queuedJob -> {
+            try {
+                if (!queues.containsKey(queuedJob.functionName))
+                {
+                    queues.put(queuedJob.functionName, factory.build(queuedJob.functionName));
+                }
+                Assert.assertTrue(queues.get(queuedJob.functionName).restore(queuedJob));
+            } catch (JobQueueFactoryException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        Assert.assertThat(functionReads.get(), Is.is(0));
+        Assert.assertThat(queues.get("even").getAllJobs().size(), Is.is(5));
+        Assert.assertThat(queues.get("odd").getAllJobs().size(), Is.is(5));
+
+        // Queues built afterwards load their own jobs as before
+        Assert.assertThat(factory.build("even").getAllJobs().size(), Is.is(5));
+        Assert.assertThat(functionReads.get(), Is.is(1));
+    }
 }
@@ -0,0 +1,184 @@
+package net.johnewart.gearman.engine;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.engine.core.QueuedJob;
+import net.johnewart.gearman.engine.factories.JobFactory;
+import net.johnewart.gearman.engine.queue.persistence.JournalPersistenceEngine;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JournalPersistenceEngineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JournalPersistenceEngine engine;
+
+    @After
+    public void stopEngine()
+    {
+        if (engine != null)
+            engine.stop();
+    }
+
+    private JournalPersistenceEngine open(int segmentSize) throws Exception
+    {
+        if (engine != null)
+            engine.stop();
+        engine = new JournalPersistenceEngine(folder.getRoot(), segmentSize, 0, 0.5, new MetricRegistry());
+        return engine;
+    }
+
+    private static Set<String> uniqueIDs(Iterable<QueuedJob> jobs)
+    {
+        Set<String> ids = new HashSet<>();
+        for (QueuedJob job : jobs) {
+            ids.add(job.getUniqueID());
+        }
+        return ids;
+    }
+
+    @Test
+    public void recoversWhatIsLeftAfterARestart() throws Exception
+    {
+        open(1024 * 1024);
+
+        List<Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Job job = JobFactory.generateBackgroundJob("journaled");
+            jobs.add(job);
+            assertTrue(engine.write(job));
+        }
+        engine.delete(jobs.get(0));
+        engine.delete("journaled", jobs.get(1).getUniqueID());
+
+        open(1024 * 1024);
+
+        assertEquals(8, engine.getAllForFunction("journaled").size());
+        assertNull(engine.findJob("journaled", jobs.get(0).getUniqueID()));
+
+        Job recovered = engine.findJob("journaled", jobs.get(5).getUniqueID());
+        assertNotNull(recovered);
+        assertArrayEquals(jobs.get(5).getData(), recovered.getData());
+        assertEquals(jobs.get(5).getJobHandle(), recovered.getJobHandle());
+        assertEquals(jobs.get(5).getPriority(), recovered.getPriority());
+    }
+
+    @Test
+    public void ignoresATornWriteAtTheEnd() throws Exception
+    {
+        open(1024 * 1024);
+
+        Job job = JobFactory.generateBackgroundJob("journaled");
+        engine.write(job);
+        engine.stop();
+        engine = null;
+
+        // Half a record: a length and checksum but the body never made it
+        File[] segments = folder.getRoot().listFiles();
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            long end = 0;
+            while (file.length() > end + 8) {
+                file.seek(end);
+                int length = file.readInt();
+                if (length == 0)
+                    break;
+                end += 8 + length;
+            }
+            file.seek(end);
+            file.writeInt(200);
+            file.writeInt(12345);
+        }
+
+        open(1024 * 1024);
+        assertNotNull(engine.findJob("journaled", job.getUniqueID()));
+
+        // Appends carry on over the torn record
+        Job next = JobFactory.generateBackgroundJob("journaled");
+        engine.write(next);
+        open(1024 * 1024);
+        assertEquals(2, engine.readAll().size());
+    }
+
+    @Test
+    public void compactsSegmentsOfDeletedJobs() throws Exception
+    {
+        open(4096);
+
+        List<Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Job job = JobFactory.generateBackgroundJob("journaled");
+            jobs.add(job);
+            engine.write(job);
+        }
+
+        Set<String> live = new HashSet<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            if (i % 10 == 0)
+                live.add(jobs.get(i).getUniqueID());
+            else
+                engine.delete(jobs.get(i));
+        }
+
+        int before = engine.getSegmentCount();
+        engine.compact();
+        int after = engine.getSegmentCount();
+        assertTrue("segments went from " + before + " to " + after, after < before / 2);
+        assertEquals(live, uniqueIDs(engine.readAll()));
+
+        open(4096);
+        assertEquals(live, uniqueIDs(engine.readAll()));
+        for (String uniqueID : live) {
+            assertNotNull(engine.findJob("journaled", uniqueID));
+        }
+    }
+
+    @Test
+    public void keepsDeletesOfRewrittenJobsThroughCompaction() throws Exception
+    {
+        open(4096);
+
+        Job kept = JobFactory.generateBackgroundJob("journaled");
+        Job deleted = JobFactory.generateBackgroundJob("journaled");
+        engine.write(kept);
+        engine.write(deleted);
+
+        // Enough live jobs to keep the first segment from being compacted
+        while (engine.getSegmentCount() == 1) {
+            engine.write(JobFactory.generateBackgroundJob("journaled"));
+        }
+
+        // Written again, as a re-enqueue does, then deleted, in the second segment
+        engine.write(deleted);
+        engine.delete(deleted);
+
+        while (engine.getSegmentCount() == 2) {
+            Job filler = JobFactory.generateBackgroundJob("journaled");
+            engine.write(filler);
+            engine.delete(filler);
+        }
+
+        int before = engine.getSegmentCount();
+        engine.compact();
+        assertTrue(engine.getSegmentCount() < before);
+
+        open(4096);
+        assertNull(engine.findJob("journaled", deleted.getUniqueID()));
+        assertNotNull(engine.findJob("journaled", kept.getUniqueID()));
+    }
+}
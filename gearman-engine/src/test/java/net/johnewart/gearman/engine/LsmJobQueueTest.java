@@ -0,0 +1,179 @@
+package net.johnewart.gearman.engine;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.constants.JobPriority;
+import net.johnewart.gearman.engine.factories.JobFactory;
+import net.johnewart.gearman.engine.queue.LsmJobQueue;
+import net.johnewart.gearman.engine.queue.persistence.DurabilityMode;
+import net.johnewart.gearman.engine.queue.persistence.GroupCommitPersistenceEngine;
+import net.johnewart.gearman.engine.queue.persistence.LsmPersistenceEngine;
+import net.johnewart.gearman.engine.queue.persistence.PersistenceEngine;
+import org.joda.time.Seconds;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LsmJobQueueTest {
+    private static final String FUNCTION = "stored";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<LsmPersistenceEngine> stores = new ArrayList<>();
+    private GroupCommitPersistenceEngine groupCommit;
+
+    @After
+    public void stopStores()
+    {
+        if (groupCommit != null)
+            groupCommit.stop();
+        for (LsmPersistenceEngine store : stores)
+            store.stop();
+    }
+
+    private LsmPersistenceEngine open() throws Exception
+    {
+        LsmPersistenceEngine store = new LsmPersistenceEngine(folder.getRoot(), 16 * 1024, 1024 * 1024, new MetricRegistry());
+        stores.add(store);
+        return store;
+    }
+
+    private void close(LsmPersistenceEngine store)
+    {
+        stores.remove(store);
+        store.stop();
+    }
+
+    private static LsmJobQueue queue(LsmPersistenceEngine store, PersistenceEngine persistenceEngine)
+    {
+        return new LsmJobQueue(FUNCTION, store, persistenceEngine, new MetricRegistry());
+    }
+
+    @Test
+    public void handsOutJobsByPriorityThenSubmissionAcrossRefills() throws Exception
+    {
+        LsmPersistenceEngine store = open();
+        LsmJobQueue queue = queue(store, store);
+
+        List<Job> normal = new ArrayList<>(), high = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            Job job = JobFactory.generateBackgroundJob(FUNCTION);
+            normal.add(job);
+            queue.enqueue(job);
+            if (i % 5 == 0) {
+                Job urgent = JobFactory.generateHighPriorityBackgroundJob(FUNCTION);
+                high.add(urgent);
+                queue.enqueue(urgent);
+            }
+        }
+        assertEquals(600, queue.size());
+        assertEquals(100, queue.size(JobPriority.HIGH));
+
+        for (Job expected : high) {
+            assertEquals(expected.getUniqueID(), queue.poll().getUniqueID());
+        }
+
+        // Given back, it goes to the end
+        Job first = queue.poll();
+        assertEquals(normal.get(0).getUniqueID(), first.getUniqueID());
+        queue.enqueue(first);
+
+        for (Job expected : normal.subList(1, normal.size())) {
+            Job polled = queue.poll();
+            assertEquals(expected.getUniqueID(), polled.getUniqueID());
+            assertTrue(queue.uniqueIdInUse(polled.getUniqueID()));
+            assertFalse(queue.remove(polled));
+        }
+        assertEquals(first.getUniqueID(), queue.poll().getUniqueID());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void skipsJobsRemovedAheadOfItsReading() throws Exception
+    {
+        LsmPersistenceEngine store = open();
+        List<Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Job job = JobFactory.generateBackgroundJob(FUNCTION);
+            jobs.add(job);
+            store.write(job);
+        }
+
+        // Deletes wait in their batch for as long as the test runs
+        groupCommit = new GroupCommitPersistenceEngine(store, DurabilityMode.GROUP, 1000, 60000, new MetricRegistry());
+        LsmJobQueue queue = queue(store, groupCommit);
+
+        // Some read into the first window, the rest still ahead of it
+        assertEquals(jobs.get(0).getUniqueID(), queue.poll().getUniqueID());
+        Set<String> removed = new HashSet<>();
+        for (int i = 1; i < jobs.size(); i += 2) {
+            assertTrue(queue.remove(jobs.get(i)));
+            removed.add(jobs.get(i).getUniqueID());
+        }
+        assertEquals(149, queue.size());
+
+        Job polled;
+        int count = 0;
+        while ((polled = queue.poll()) != null) {
+            assertFalse(removed.contains(polled.getUniqueID()));
+            count++;
+        }
+        assertEquals(149, count);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void countsAndSchedulesStoredJobsWhenBuilt() throws Exception
+    {
+        LsmPersistenceEngine store = open();
+        LsmJobQueue queue = queue(store, store);
+        for (int i = 0; i < 200; i++) {
+            queue.enqueue(JobFactory.generateLowPriorityBackgroundJob(FUNCTION));
+        }
+        Job future = JobFactory.generateFutureJob(FUNCTION, Seconds.seconds(36000));
+        queue.enqueue(future);
+        store.write(JobFactory.generateBackgroundJob("other"));
+        close(store);
+
+        store = open();
+        assertEquals(new HashSet<>(Arrays.asList(FUNCTION, "other")), new HashSet<>(store.getFunctionNames()));
+
+        queue = queue(store, store);
+        assertEquals(201, queue.size());
+        assertEquals(200, queue.size(JobPriority.LOW));
+        Map<Integer, Long> futureCounts = queue.futureCounts();
+        assertEquals(Long.valueOf(0), futureCounts.get(0));
+        assertEquals(1, futureCounts.values().stream().mapToLong(Long::longValue).sum());
+
+        for (int i = 0; i < 200; i++) {
+            Job polled = queue.poll();
+            assertNotNull(polled);
+            assertEquals(JobPriority.LOW, polled.getPriority());
+            queue.remove(polled);
+        }
+        // The epoch job isn't due for hours
+        assertNull(queue.poll());
+        assertEquals(1, queue.size());
+
+        assertTrue(queue.remove(future));
+        assertEquals(0, queue.size());
+        assertNull(store.findJob(FUNCTION, future.getUniqueID()));
+    }
+}
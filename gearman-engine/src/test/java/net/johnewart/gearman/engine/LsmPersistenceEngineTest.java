@@ -0,0 +1,131 @@
+package net.johnewart.gearman.engine;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.constants.JobPriority;
+import net.johnewart.gearman.engine.core.QueuedJob;
+import net.johnewart.gearman.engine.factories.JobFactory;
+import net.johnewart.gearman.engine.queue.persistence.LsmPersistenceEngine;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class LsmPersistenceEngineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<LsmPersistenceEngine> engines = new ArrayList<>();
+
+    @After
+    public void stopEngines()
+    {
+        for (LsmPersistenceEngine engine : engines)
+            engine.stop();
+    }
+
+    // A small write buffer so the jobs end up spread over several tables
+    private LsmPersistenceEngine open() throws Exception
+    {
+        LsmPersistenceEngine engine = new LsmPersistenceEngine(folder.getRoot(), 16 * 1024, 1024 * 1024, new MetricRegistry());
+        engines.add(engine);
+        return engine;
+    }
+
+    private static Set<String> uniqueIDs(Iterable<QueuedJob> jobs)
+    {
+        Set<String> ids = new HashSet<>();
+        for (QueuedJob job : jobs) {
+            ids.add(job.getUniqueID());
+        }
+        return ids;
+    }
+
+    @Test
+    public void listsJobsByPriorityThenSubmissionAcrossRestarts() throws Exception
+    {
+        LsmPersistenceEngine engine = open();
+
+        List<Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Job job = i % 3 == 0
+                    ? JobFactory.generateHighPriorityBackgroundJob("stored")
+                    : JobFactory.generateLowPriorityBackgroundJob("stored");
+            jobs.add(job);
+            engine.write(job);
+        }
+        engine.delete(jobs.get(0));
+        engine.write(JobFactory.generateBackgroundJob("other"));
+
+        engines.remove(engine);
+        engine.stop();
+        engine = open();
+
+        List<QueuedJob> queued = new ArrayList<>(engine.getAllForFunction("stored"));
+        assertEquals(299, queued.size());
+        assertEquals(jobs.get(3).getUniqueID(), queued.get(0).getUniqueID());
+        assertEquals(jobs.get(1).getUniqueID(), queued.get(99).getUniqueID());
+        assertEquals(JobPriority.LOW, queued.get(298).getPriority());
+        assertEquals(300, engine.readAll().size());
+
+        assertNull(engine.findJob("stored", jobs.get(0).getUniqueID()));
+        Job found = engine.findJob("stored", jobs.get(7).getUniqueID());
+        assertNotNull(found);
+        assertArrayEquals(jobs.get(7).getData(), found.getData());
+        assertEquals(jobs.get(7).getJobHandle(), found.getJobHandle());
+    }
+
+    @Test
+    public void mergesTablesWithoutLosingOrResurrectingJobs() throws Exception
+    {
+        LsmPersistenceEngine engine = open();
+
+        List<Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Job job = JobFactory.generateBackgroundJob("stored");
+            jobs.add(job);
+            engine.write(job);
+        }
+
+        Set<String> live = new HashSet<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            if (i % 10 == 0)
+                live.add(jobs.get(i).getUniqueID());
+            else
+                engine.delete(jobs.get(i));
+        }
+
+        assertEquals(live, uniqueIDs(engine.readAll()));
+
+        engines.remove(engine);
+        engine.stop();
+        engine = open();
+        assertEquals(live, uniqueIDs(engine.readAll()));
+        for (String uniqueID : live) {
+            assertNotNull(engine.findJob("stored", uniqueID));
+        }
+    }
+
+    @Test
+    public void replaysItsLogAfterACrash() throws Exception
+    {
+        LsmPersistenceEngine crashed = open();
+        Job job = JobFactory.generateBackgroundJob("stored");
+        crashed.write(job);
+
+        // Never stopped, the job is only in the log
+        LsmPersistenceEngine engine = open();
+        assertNotNull(engine.findJob("stored", job.getUniqueID()));
+        assertEquals(1, engine.readAll().size());
+    }
+}
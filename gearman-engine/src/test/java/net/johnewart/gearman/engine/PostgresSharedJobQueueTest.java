@@ -0,0 +1,137 @@
+package net.johnewart.gearman.engine;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.engine.factories.JobFactory;
+import net.johnewart.gearman.engine.queue.PostgresSharedJobQueue;
+import net.johnewart.gearman.engine.queue.persistence.PostgresPersistenceEngine;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs against a real PostgreSQL (9.6 or later), only when one is given:
+ * -Dgearman.test.postgres=host:port/database, with gearman.test.postgres.user
+ * and gearman.test.postgres.password if they aren't postgres and empty.
+ */
+public class PostgresSharedJobQueueTest {
+    private static final String FUNCTION = "reverseString";
+
+    private PostgresPersistenceEngine engine;
+    private String table;
+
+    @Before
+    public void connect() throws Exception
+    {
+        final String server = System.getProperty("gearman.test.postgres");
+        Assume.assumeTrue("No PostgreSQL to test against", server != null);
+
+        final String[] hostAndDatabase = server.split("/", 2);
+        final String[] hostAndPort = hostAndDatabase[0].split(":", 2);
+        table = "gearman_test_" + Long.toHexString(System.nanoTime());
+
+        engine = new PostgresPersistenceEngine(hostAndPort[0],
+                hostAndPort.length > 1 ? Integer.parseInt(hostAndPort[1]) : 5432,
+                hostAndDatabase.length > 1 ? hostAndDatabase[1] : "postgres",
+                System.getProperty("gearman.test.postgres.user", "postgres"),
+                System.getProperty("gearman.test.postgres.password", ""),
+                table,
+                new MetricRegistry());
+        engine.enableClaims();
+    }
+
+    @After
+    public void dropTable() throws Exception
+    {
+        if (engine != null) {
+            try (Connection conn = engine.connect();
+                 Statement st = conn.createStatement()) {
+                st.execute("DROP TABLE IF EXISTS " + table);
+            }
+        }
+    }
+
+    private PostgresSharedJobQueue queue(String owner)
+    {
+        return new PostgresSharedJobQueue(FUNCTION, engine, owner, table, 1);
+    }
+
+    @Test
+    public void claimsEachJobForOneServer() throws Exception
+    {
+        PostgresSharedJobQueue first = queue("first"), second = queue("second");
+        Job job = JobFactory.generateBackgroundJob(FUNCTION);
+        second.enqueue(job);
+
+        Job claimed = first.poll();
+        assertNotNull(claimed);
+        assertEquals(job.getUniqueID(), claimed.getUniqueID());
+        assertNull(second.poll());
+        assertTrue(second.uniqueIdInUse(job.getUniqueID()));
+
+        first.remove(claimed);
+        assertNull(engine.findJob(FUNCTION, job.getUniqueID()));
+        assertNull(second.poll());
+    }
+
+    @Test
+    public void keepsRenewedClaimsAndHandsBackExpiredOnes() throws Exception
+    {
+        PostgresSharedJobQueue first = queue("first"), second = queue("second");
+        Job job = JobFactory.generateBackgroundJob(FUNCTION);
+        first.enqueue(job);
+        assertNotNull(first.poll());
+
+        Thread.sleep(500);
+        first.renewClaims(Long.MAX_VALUE);
+        assertEquals(Collections.emptySet(), engine.expireClaims(400));
+        assertNull(second.poll());
+
+        // The first server stops renewing, as if it went away
+        Thread.sleep(500);
+        assertEquals(Collections.singleton(FUNCTION), engine.expireClaims(400));
+        Job reclaimed = second.poll();
+        assertNotNull(reclaimed);
+        assertEquals(job.getUniqueID(), reclaimed.getUniqueID());
+
+        // Finishing late doesn't take the job away from its new owner
+        first.remove(job);
+        assertNotNull(engine.findJob(FUNCTION, job.getUniqueID()));
+        second.remove(reclaimed);
+        assertNull(engine.findJob(FUNCTION, job.getUniqueID()));
+    }
+
+    @Test
+    public void announcesNewJobsOnceTheyAreCommitted() throws Exception
+    {
+        try (Connection conn = engine.connect();
+             Statement st = conn.createStatement()) {
+            st.execute("LISTEN \"" + table + "\"");
+
+            queue("first").enqueue(JobFactory.generateBackgroundJob(FUNCTION));
+
+            PGNotification[] notifications = null;
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((notifications == null || notifications.length == 0) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                notifications = ((PGConnection) conn).getNotifications();
+            }
+
+            assertNotNull(notifications);
+            assertEquals(1, notifications.length);
+            assertEquals("first " + FUNCTION, notifications[0].getParameter());
+        }
+    }
+}
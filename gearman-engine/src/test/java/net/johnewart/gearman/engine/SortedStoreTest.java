@@ -0,0 +1,194 @@
+package net.johnewart.gearman.engine;
+
+import com.codahale.metrics.MetricRegistry;
+import net.johnewart.gearman.engine.queue.persistence.lsm.SortedStore;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SortedStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<SortedStore> stores = new ArrayList<>();
+
+    @After
+    public void closeStores() throws Exception
+    {
+        for (SortedStore store : stores)
+            store.close();
+    }
+
+    private SortedStore open(long writeBufferBytes) throws Exception
+    {
+        SortedStore store = new SortedStore(folder.getRoot(), writeBufferBytes, 1024 * 1024, false, new MetricRegistry());
+        stores.add(store);
+        return store;
+    }
+
+    private static byte[] key(int i)
+    {
+        return String.format("key-%04d", i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] value(long version)
+    {
+        return ByteBuffer.allocate(64).putLong(version).array();
+    }
+
+    private static long version(byte[] value)
+    {
+        return ByteBuffer.wrap(value).getLong();
+    }
+
+    private int logCount()
+    {
+        File[] logs = folder.getRoot().listFiles((dir, name) -> name.endsWith(".log"));
+        return logs == null ? 0 : logs.length;
+    }
+
+    private static int count(SortedStore store) throws Exception
+    {
+        AtomicInteger count = new AtomicInteger();
+        store.scan("key-".getBytes(StandardCharsets.UTF_8), (k, v) -> count.incrementAndGet());
+        return count.get();
+    }
+
+    @Test
+    public void recoversMemoryTablesThatNeverMadeItToATable() throws Exception
+    {
+        SortedStore store = open(4096);
+        // Stands where the first table would be written, so every flush fails
+        File blocker = new File(folder.getRoot(), String.format("%020d-%020d.sst.tmp", 1, 1));
+        assertTrue(blocker.mkdirs());
+
+        int i = 0;
+        // Until the full memory table has been swapped out for a new one
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (logCount() < 2 && System.nanoTime() < deadline) {
+            store.write(new SortedStore.Batch().put(key(i), value(i)));
+            i++;
+            Thread.sleep(1);
+        }
+        assertEquals(2, logCount());
+
+        // Writes carry on while the swapped out table can't be written
+        for (int j = 0; j < 50; j++, i++) {
+            store.write(new SortedStore.Batch().put(key(i), value(i)));
+        }
+        store.write(new SortedStore.Batch().delete(key(0)).put(key(1), value(1000)));
+        int written = i;
+
+        assertNull(store.get(key(0)));
+        assertEquals(1000, version(store.get(key(1))));
+        assertEquals(written - 1, count(store));
+        assertEquals(0, store.getTableCount());
+
+        // Gone without a table, all that is left are the logs
+        stores.remove(store);
+        store.close();
+        assertTrue(logCount() >= 2);
+
+        store = open(4096);
+        assertEquals(1, store.getTableCount());
+        assertEquals(1, logCount());
+        assertNull(store.get(key(0)));
+        assertEquals(1000, version(store.get(key(1))));
+        for (int j = 2; j < written; j++) {
+            assertEquals(j, version(store.get(key(j))));
+        }
+        assertEquals(written - 1, count(store));
+    }
+
+    @Test
+    public void readsWhileFlushingAndMerging() throws Exception
+    {
+        SortedStore writing = open(16 * 1024);
+        int keys = 200, updates = 20000;
+        // Latest version written for each key, -1 once deleted
+        AtomicLongArray written = new AtomicLongArray(keys);
+        for (int k = 0; k < keys; k++) {
+            written.set(k, Long.MIN_VALUE);
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 3; r++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        int k = ThreadLocalRandom.current().nextInt(keys);
+                        long expected = written.get(k);
+                        byte[] value = writing.get(key(k));
+                        if (expected == -1) {
+                            assertNull("key " + k + " came back", value);
+                        } else if (expected >= 0 && k < keys - 10) {
+                            // The others may be deleted after expected was read
+                            assertNotNull("key " + k + " went missing", value);
+                            assertTrue("key " + k + " went back in time", version(value) >= expected);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        for (int i = 0; i < updates; i++) {
+            int k = i % keys;
+            // The last few keys end up deleted for good
+            if (k >= keys - 10 && i >= updates - keys) {
+                writing.write(new SortedStore.Batch().delete(key(k)));
+                written.set(k, -1);
+            } else {
+                writing.write(new SortedStore.Batch().put(key(k), value(i)));
+                written.set(k, i);
+            }
+        }
+
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        writing.flush();
+        writing.compact();
+        assertTrue(writing.getTableCount() > 0);
+        assertEquals(keys - 10, count(writing));
+
+        stores.remove(writing);
+        writing.close();
+        SortedStore store = open(16 * 1024);
+        for (int k = 0; k < keys; k++) {
+            if (written.get(k) == -1) {
+                assertNull(store.get(key(k)));
+            } else {
+                assertEquals(written.get(k), version(store.get(key(k))));
+            }
+        }
+    }
+}
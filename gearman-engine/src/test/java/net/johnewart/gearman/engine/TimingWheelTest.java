@@ -0,0 +1,200 @@
+package net.johnewart.gearman.engine;
+
+import com.google.common.collect.ImmutableMap;
+import net.johnewart.gearman.constants.JobPriority;
+import net.johnewart.gearman.engine.core.QueuedJob;
+import net.johnewart.gearman.engine.queue.TimingWheel;
+import org.hamcrest.core.Is;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class TimingWheelTest {
+    private static Logger LOG = LoggerFactory.getLogger(TimingWheelTest.class);
+
+    private static final long START = 1400000000L;
+
+    @Test
+    public void releasesJobsExactlyWhenDue() throws Exception
+    {
+        final TimingWheel wheel = new TimingWheel(START);
+        final Random random = new Random(42);
+        final Set<QueuedJob> scheduled = new HashSet<>();
+
+        for (int i = 0; i < 20000; i++)
+        {
+            // Anywhere from a second to ten days out
+            final QueuedJob job = futureJob("job-" + i, START + 1 + random.nextInt(10 * 24 * 3600));
+            Assert.assertTrue(wheel.schedule(job));
+            scheduled.add(job);
+        }
+
+        Assert.assertThat(wheel.size(), Is.is(20000L));
+
+        long previous = START;
+        long now = START;
+        final List<QueuedJob> released = new ArrayList<>();
+
+        while (!wheel.isEmpty())
+        {
+            now += 1 + random.nextInt(1800);
+            released.clear();
+            wheel.advance(now, released::add);
+
+            for (QueuedJob job : released)
+            {
+                Assert.assertTrue("Not released early", job.getTimeToRun() <= now);
+                Assert.assertTrue("Not released late", job.getTimeToRun() > previous);
+                Assert.assertTrue(scheduled.remove(job));
+            }
+
+            previous = now;
+        }
+
+        Assert.assertTrue(scheduled.isEmpty());
+    }
+
+    @Test
+    public void doesNotScheduleJobsThatAreAlreadyDue() throws Exception
+    {
+        final TimingWheel wheel = new TimingWheel(START);
+
+        Assert.assertFalse(wheel.schedule(futureJob("past", START - 10)));
+        Assert.assertFalse(wheel.schedule(futureJob("now", START)));
+        Assert.assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void cancelledJobsAreNotReleased() throws Exception
+    {
+        final TimingWheel wheel = new TimingWheel(START);
+        final QueuedJob kept = futureJob("kept", START + 100);
+        final QueuedJob cancelled = futureJob("cancelled", START + 100);
+        final QueuedJob revived = futureJob("revived", START + 5000);
+
+        wheel.schedule(kept);
+        wheel.schedule(cancelled);
+        wheel.schedule(revived);
+        wheel.cancel(cancelled);
+        wheel.cancel(revived);
+        wheel.schedule(revived);
+
+        Assert.assertThat(wheel.size(), Is.is(2L));
+
+        final List<QueuedJob> released = new ArrayList<>();
+        wheel.advance(START + 10000, released::add);
+
+        Assert.assertThat(released.size(), Is.is(2));
+        Assert.assertTrue(released.contains(kept));
+        Assert.assertTrue(released.contains(revived));
+        Assert.assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void countsJobsByHour() throws Exception
+    {
+        final TimingWheel wheel = new TimingWheel(START);
+
+        wheel.schedule(futureJob("soon", START + 30));
+        wheel.schedule(futureJob("later", START + 600));
+        wheel.schedule(futureJob("tomorrow", START + 25 * 3600));
+        wheel.schedule(futureJob("gone", START + 25 * 3600 + 1));
+        wheel.cancel(futureJob("gone", START + 25 * 3600 + 1));
+
+        final ImmutableMap<Integer, Long> counts = wheel.hourlyCounts(START);
+
+        Assert.assertThat(counts.get(0), Is.is(2L));
+        // A day out sits in a slot a bit over an hour wide
+        long tomorrow = 0;
+        for (Map.Entry<Integer, Long> count : counts.entrySet())
+        {
+            if (count.getKey() > 0)
+            {
+                Assert.assertTrue(count.getKey() >= 23 && count.getKey() <= 25);
+                tomorrow += count.getValue();
+            }
+        }
+        Assert.assertThat(tomorrow, Is.is(1L));
+        Assert.assertThat(wheel.size(), Is.is(3L));
+    }
+
+    @Test
+    public void countsLeaveOutJobsCancelledAfterTheClockMoves() throws Exception
+    {
+        final TimingWheel wheel = new TimingWheel(START);
+        final Random random = new Random(7);
+        final List<QueuedJob> jobs = new ArrayList<>();
+
+        for (int i = 0; i < 2000; i++)
+        {
+            final QueuedJob job = futureJob("job-" + i, START + 3600 + random.nextInt(3 * 24 * 3600));
+            wheel.schedule(job);
+            jobs.add(job);
+        }
+
+        // Some cascade down a level or two before half of them are cancelled
+        final long now = START + 1800;
+        wheel.advance(now, job -> Assert.fail("Nothing is due yet"));
+        for (int i = 0; i < jobs.size(); i += 2)
+        {
+            Assert.assertTrue(wheel.cancel(jobs.get(i)));
+        }
+        // Given back again
+        wheel.schedule(jobs.get(0));
+
+        long counted = 0;
+        for (long count : wheel.hourlyCounts(now).values())
+        {
+            counted += count;
+        }
+        Assert.assertThat(counted, Is.is(1001L));
+        Assert.assertThat(wheel.size(), Is.is(1001L));
+    }
+
+    @Test
+    public void schedulesManyJobsQuickly() throws Exception
+    {
+        final int jobs = 1000000;
+        final TimingWheel wheel = new TimingWheel(START);
+        final Random random = new Random(7);
+        final List<QueuedJob> queuedJobs = new ArrayList<>(jobs);
+
+        for (int i = 0; i < jobs; i++)
+        {
+            queuedJobs.add(futureJob("job-" + i, START + 1 + random.nextInt(30 * 24 * 3600)));
+        }
+
+        long startedAt = System.nanoTime();
+        for (QueuedJob job : queuedJobs)
+        {
+            wheel.schedule(job);
+        }
+        final long scheduling = System.nanoTime() - startedAt;
+
+        final int[] released = {0};
+        startedAt = System.nanoTime();
+        for (long now = START; !wheel.isEmpty(); now += 60)
+        {
+            wheel.advance(now, job -> released[0]++);
+        }
+        final long releasing = System.nanoTime() - startedAt;
+
+        Assert.assertThat(released[0], Is.is(jobs));
+
+        LOG.info(String.format("%d jobs: %.0f schedules/sec, %.0f releases/sec",
+                jobs, jobs / (scheduling / 1e9), jobs / (releasing / 1e9)));
+    }
+
+    private static QueuedJob futureJob(String uniqueId, long timeToRun)
+    {
+        return new QueuedJob(uniqueId, timeToRun, JobPriority.NORMAL, "delayedJobs");
+    }
+}
@@ -0,0 +1,99 @@
+package net.johnewart.gearman.integ;
+
+import net.johnewart.gearman.common.packets.request.EchoRequest;
+import net.johnewart.gearman.engine.queue.factories.MemoryJobQueueFactory;
+import net.johnewart.gearman.server.config.GearmanServerConfiguration;
+import net.johnewart.gearman.server.net.ServerListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the same ECHO_REQ load against the server with each transport and
+ * reports round trips per second.
+ *
+ *   TransportLoadTest [connections] [requests per connection]
+ */
+public class TransportLoadTest {
+    private static final Logger LOG = LoggerFactory.getLogger(TransportLoadTest.class);
+
+    private final int connections;
+    private final int requests;
+
+    public TransportLoadTest(int connections, int requests) {
+        this.connections = connections;
+        this.requests = requests;
+    }
+
+    public static void main(String... args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        TransportLoadTest loadTest = new TransportLoadTest(connections, requests);
+        loadTest.runTest(ServerListener.Transport.NIO, 1, 9100);
+        loadTest.runTest(ServerListener.Transport.EPOLL, 1, 9101);
+        loadTest.runTest(ServerListener.Transport.EPOLL, Math.max(4, Runtime.getRuntime().availableProcessors()), 9102);
+        System.exit(0);
+    }
+
+    public void runTest(ServerListener.Transport transport, int listeners, int port) throws Exception {
+        GearmanServerConfiguration config = new GearmanServerConfiguration();
+        config.setHostName("localhost");
+        config.setPort(port);
+        config.setTransport(transport);
+        config.setListeners(listeners);
+        config.setJobQueueFactory(new MemoryJobQueueFactory(config.getMetricRegistry()));
+
+        final ServerListener server = new ServerListener(config);
+        Thread serverThread = new Thread(server::start);
+        serverThread.start();
+        Thread.sleep(2000);
+
+        final byte[] request = new EchoRequest("0123456789abcdef0123456789abcdef").toByteArray();
+        final CountDownLatch done = new CountDownLatch(connections);
+        final AtomicLong failures = new AtomicLong();
+        final List<Thread> clients = new ArrayList<>();
+
+        for (int i = 0; i < connections; i++) {
+            clients.add(new Thread(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    byte[] response = new byte[request.length];
+
+                    for (int r = 0; r < requests; r++) {
+                        out.write(request);
+                        in.readFully(response);
+                    }
+                } catch (IOException e) {
+                    LOG.error("Client failed: ", e);
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }));
+        }
+
+        long startedAt = System.nanoTime();
+        clients.forEach(Thread::start);
+        done.await();
+        long elapsed = System.nanoTime() - startedAt;
+
+        LOG.info(String.format("%s, %d listener(s): %d connections x %d echoes, %.0f round trips/sec%s",
+                server.getTransport(), listeners, connections, requests,
+                (double) connections * requests / (elapsed / 1e9),
+                failures.get() > 0 ? ", " + failures.get() + " failed connections" : ""));
+
+        server.stop();
+        serverThread.join();
+    }
+}
@@ -0,0 +1,202 @@
+package net.johnewart.gearman.integ;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import net.johnewart.gearman.common.packets.Packet;
+import net.johnewart.gearman.common.packets.request.EchoRequest;
+import net.johnewart.gearman.engine.queue.factories.MemoryJobQueueFactory;
+import net.johnewart.gearman.net.Connection;
+import net.johnewart.gearman.server.config.GearmanServerConfiguration;
+import net.johnewart.gearman.server.net.ServerListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Round trip latency of ECHO_REQ / ECHO_RES over loopback TCP and over the
+ * server's Unix domain socket (epoll, so Linux only), measured two ways:
+ * from a Netty epoll client that sends the next request from its event loop
+ * as each response arrives, which is down to the transport alone, and
+ * through the blocking {@link Connection} the client and worker use. Each
+ * connection is warmed up before it is measured.
+ *
+ *   UnixSocketLatencyBenchmark [round trips] [payload bytes]
+ */
+public class UnixSocketLatencyBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(UnixSocketLatencyBenchmark.class);
+
+    private final int roundTrips;
+    private final int payloadSize;
+
+    public UnixSocketLatencyBenchmark(int roundTrips, int payloadSize) {
+        this.roundTrips = roundTrips;
+        this.payloadSize = payloadSize;
+    }
+
+    public static void main(String... args) throws Exception {
+        int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int payloadSize = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        new UnixSocketLatencyBenchmark(roundTrips, payloadSize).runTest(9120);
+        System.exit(0);
+    }
+
+    public void runTest(int port) throws Exception {
+        File socketFile = File.createTempFile("gearman", ".sock");
+
+        GearmanServerConfiguration config = new GearmanServerConfiguration();
+        config.setHostName("localhost");
+        config.setPort(port);
+        config.setTransport(ServerListener.Transport.EPOLL);
+        config.setUnixSocketPath(socketFile.getAbsolutePath());
+        config.setJobQueueFactory(new MemoryJobQueueFactory(config.getMetricRegistry()));
+
+        final ServerListener server = new ServerListener(config);
+        Thread serverThread = new Thread(server::start);
+        serverThread.start();
+        Thread.sleep(2000);
+
+        char[] payload = new char[payloadSize];
+        Arrays.fill(payload, 'x');
+        EchoRequest echo = new EchoRequest(new String(payload));
+
+        EventLoopGroup group = new EpollEventLoopGroup(1);
+        byte[] request = echo.toByteArray();
+
+        // Twice over, so neither gets the benefit of going second
+        for (int run = 0; run < 2; run++) {
+            report("epoll tcp       ", measure(group, EpollSocketChannel.class,
+                    new InetSocketAddress("localhost", port), request));
+            report("epoll unix      ", measure(group, EpollDomainSocketChannel.class,
+                    new DomainSocketAddress(socketFile.getAbsolutePath()), request));
+            report("Connection tcp  ", measure(new Connection("localhost", port), echo));
+            report("Connection unix ", measure(Connection.forUnixSocket(socketFile.getAbsolutePath()), echo));
+        }
+
+        group.shutdownGracefully().syncUninterruptibly();
+        server.stop();
+        serverThread.join();
+    }
+
+    private long[] measure(Connection connection, EchoRequest echo) throws Exception {
+        for (int i = 0; i < roundTrips / 5; i++) {
+            roundTrip(connection, echo);
+        }
+
+        long[] nanos = new long[roundTrips];
+        for (int i = 0; i < roundTrips; i++) {
+            long startedAt = System.nanoTime();
+            roundTrip(connection, echo);
+            nanos[i] = System.nanoTime() - startedAt;
+        }
+
+        connection.close();
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    private long[] measure(EventLoopGroup group, Class<? extends Channel> channelClass,
+                           SocketAddress address, byte[] request) throws Exception {
+        final PingPong pingPong = new PingPong(request, roundTrips / 5, roundTrips);
+
+        Channel channel = new Bootstrap()
+                .group(group)
+                .channel(channelClass)
+                .handler(pingPong)
+                .connect(address).sync().channel();
+
+        pingPong.done.await();
+        channel.close().sync();
+        Arrays.sort(pingPong.nanos);
+        return pingPong.nanos;
+    }
+
+    // Sends a request, and the next one as soon as a whole response is in
+    private static class PingPong extends ChannelInboundHandlerAdapter {
+        private final byte[] request;
+        private final int warmup;
+        private final long[] nanos;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private int sent;
+        private int pending;
+        private long startedAt;
+
+        PingPong(byte[] request, int warmup, int roundTrips) {
+            this.request = request;
+            this.warmup = warmup;
+            this.nanos = new long[roundTrips];
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            send(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf in = (ByteBuf) msg;
+            pending -= in.readableBytes();
+            in.release();
+
+            if (pending > 0) {
+                return;
+            }
+
+            if (sent > warmup) {
+                nanos[sent - warmup - 1] = System.nanoTime() - startedAt;
+            }
+
+            if (sent - warmup < nanos.length) {
+                send(ctx);
+            } else {
+                done.countDown();
+            }
+        }
+
+        private void send(ChannelHandlerContext ctx) {
+            // The response is the request with a different magic
+            pending = request.length;
+            sent++;
+            startedAt = System.nanoTime();
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(request));
+        }
+    }
+
+    private static void roundTrip(Connection connection, EchoRequest echo) throws Exception {
+        connection.sendPacket(echo);
+        Packet response = connection.getNextPacket();
+        if (response == null) {
+            throw new IllegalStateException("No ECHO_RES from " + connection);
+        }
+    }
+
+    private void report(String transport, long[] nanos) {
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+
+        LOG.info(String.format("%s %d round trips of %d bytes: mean %.1fus, p50 %.1fus, p99 %.1fus, p99.9 %.1fus",
+                transport, nanos.length, payloadSize,
+                total / (double) nanos.length / 1000,
+                percentile(nanos, 0.50), percentile(nanos, 0.99), percentile(nanos, 0.999)));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1000.0;
+    }
+}
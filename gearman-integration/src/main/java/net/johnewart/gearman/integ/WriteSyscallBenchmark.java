@@ -0,0 +1,124 @@
+package net.johnewart.gearman.integ;
+
+import net.johnewart.gearman.common.packets.request.SubmitJob;
+import net.johnewart.gearman.engine.queue.factories.MemoryJobQueueFactory;
+import net.johnewart.gearman.server.config.GearmanServerConfiguration;
+import net.johnewart.gearman.server.net.ServerListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clients pipeline batches of background submissions and read back the
+ * JOB_CREATED responses, then reports how many write syscalls the process
+ * made per job (from /proc/self/io, so Linux only). The clients' plain
+ * sockets send() rather than write(), so only the server's writes count.
+ *
+ *   WriteSyscallBenchmark [connections] [batches per connection] [jobs per batch]
+ */
+public class WriteSyscallBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteSyscallBenchmark.class);
+
+    private final int connections;
+    private final int batches;
+    private final int batchSize;
+
+    public WriteSyscallBenchmark(int connections, int batches, int batchSize) {
+        this.connections = connections;
+        this.batches = batches;
+        this.batchSize = batchSize;
+    }
+
+    public static void main(String... args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int batches = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        new WriteSyscallBenchmark(connections, batches, batchSize).runTest(9110);
+        System.exit(0);
+    }
+
+    public void runTest(int port) throws Exception {
+        GearmanServerConfiguration config = new GearmanServerConfiguration();
+        config.setHostName("localhost");
+        config.setPort(port);
+        config.setJobQueueFactory(new MemoryJobQueueFactory(config.getMetricRegistry()));
+
+        final ServerListener server = new ServerListener(config);
+        Thread serverThread = new Thread(server::start);
+        serverThread.start();
+        Thread.sleep(2000);
+
+        final AtomicLong failures = new AtomicLong();
+        final List<Thread> clients = new ArrayList<>();
+
+        for (int i = 0; i < connections; i++) {
+            final int connection = i;
+            clients.add(new Thread(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    byte[] header = new byte[12];
+
+                    for (int b = 0; b < batches; b++) {
+                        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+                        for (int j = 0; j < batchSize; j++) {
+                            String uniqueId = connection + "-" + b + "-" + j;
+                            batch.write(new SubmitJob("benchmark", uniqueId, new byte[64], true).toByteArray());
+                        }
+                        out.write(batch.toByteArray());
+
+                        for (int j = 0; j < batchSize; j++) {
+                            in.readFully(header);
+                            int size = ((header[8] & 0xff) << 24) | ((header[9] & 0xff) << 16) |
+                                       ((header[10] & 0xff) << 8) | (header[11] & 0xff);
+                            in.readFully(new byte[size]);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOG.error("Client failed: ", e);
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+
+        long writesBefore = writeSyscalls();
+        long startedAt = System.nanoTime();
+        clients.forEach(Thread::start);
+        for (Thread client : clients) {
+            client.join();
+        }
+        long elapsed = System.nanoTime() - startedAt;
+        long writes = writeSyscalls() - writesBefore;
+        long jobs = (long) connections * batches * batchSize;
+
+        LOG.info(String.format("%d connections x %d batches of %d jobs: %.3f write syscalls per job, %.0f jobs/sec%s",
+                connections, batches, batchSize,
+                (double) writes / jobs,
+                jobs / (elapsed / 1e9),
+                failures.get() > 0 ? ", " + failures.get() + " failed connections" : ""));
+
+        server.stop();
+        serverThread.join();
+    }
+
+    private static long writeSyscalls() throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc/self/io"))) {
+            if (line.startsWith("syscw:")) {
+                return Long.parseLong(line.substring(6).trim());
+            }
+        }
+        return -1;
+    }
+}
@@ -35,7 +35,7 @@ public class ClusterJobManager extends JobManager implements MessageListener<Wor
     }
 
     @Override
-    public synchronized void handleWorkCompletion(Job job, byte[] data)
+    public void handleWorkCompletion(Job job, byte[] data)
     {
         LOG.info("Work Complete!");
         super.handleWorkCompletion(job, data);
@@ -45,7 +45,7 @@ public class ClusterJobManager extends JobManager implements MessageListener<Wor
     }
 
     @Override
-    public synchronized Job storeJobForClient(Job job, EngineClient client) {
+    public Job storeJobForClient(Job job, EngineClient client) {
         try
         {
             Job storedJob = super.storeJobForClient(job, client);
@@ -86,8 +86,7 @@ public class ClusterJobManager extends JobManager implements MessageListener<Wor
             case SUBMIT_JOB:
                 // Wake up any relevant workers
                 LOG.debug("Job submitted for " + workMessage.functionName + ".");
-                getWorkerPool(workMessage.functionName)
-                        .wakeupWorkers();
+                wakeupWorkers(workMessage.functionName, 1);
                 break;
             case WORK_DATA:
                 LOG.debug("Data for " + workMessage.uniqueId + " in  " + workMessage.functionName);
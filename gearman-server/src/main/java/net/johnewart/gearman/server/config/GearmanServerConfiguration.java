@@ -6,8 +6,10 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.health.HealthCheck;
 import com.codahale.metrics.health.HealthCheckRegistry;
 import net.johnewart.gearman.common.interfaces.JobHandleFactory;
+import net.johnewart.gearman.engine.core.JobLeases;
 import net.johnewart.gearman.engine.core.JobManager;
 import net.johnewart.gearman.engine.core.UniqueIdFactory;
+import net.johnewart.gearman.engine.core.WorkerPool;
 import net.johnewart.gearman.engine.metrics.MetricsEngine;
 import net.johnewart.gearman.engine.metrics.QueueMetrics;
 import net.johnewart.gearman.engine.queue.factories.JobQueueFactory;
@@ -19,6 +21,9 @@ import net.johnewart.gearman.server.cluster.core.ClusterJobManager;
 import net.johnewart.gearman.server.cluster.queue.factories.HazelcastJobQueueFactory;
 import net.johnewart.gearman.server.cluster.util.HazelcastJobHandleFactory;
 import net.johnewart.gearman.server.cluster.util.HazelcastUniqueIdFactory;
+import net.johnewart.gearman.server.net.PacketDispatcher;
+import net.johnewart.gearman.server.net.ServerListener;
+import net.johnewart.gearman.server.net.SlowConsumerHandler;
 import net.johnewart.gearman.server.util.JobQueueMonitor;
 import net.johnewart.gearman.server.util.SnapshottingJobQueueMonitor;
 import org.slf4j.LoggerFactory;
@@ -31,6 +36,22 @@ public class GearmanServerConfiguration implements ServerConfiguration {
     private boolean enableSSL;
     private boolean debugging;
     private String hostName;
+    private ServerListener.Transport transport = ServerListener.Transport.NIO;
+    private int bossThreads = 1;
+    private int workerThreads = 0;
+    private int listeners = 1;
+    private String unixSocketPath;
+    private PacketDispatcher.ExecutionModel executionModel = PacketDispatcher.ExecutionModel.INLINE;
+    private int engineThreads = 16;
+    private int queueCapacity = 0;
+    private int queueLowWatermark = -1;
+    private boolean pauseSaturatedClients = false;
+    private int writeBufferHighWaterMark = 64 * 1024;
+    private int writeBufferLowWaterMark = 32 * 1024;
+    private SlowConsumerHandler.Policy slowConsumerPolicy = SlowConsumerHandler.Policy.NONE;
+    private long maxPendingOutboundBytes = 0;
+    private long workerProbeInterval = 0;
+    private int workerMissedProbes = 2;
     private JobQueueFactory jobQueueFactory;
     private JobManager jobManager;
     private JobQueueMonitor jobQueueMonitor;
@@ -43,6 +64,9 @@ public class GearmanServerConfiguration implements ServerConfiguration {
     private MetricRegistry metricRegistry;
     private QueueMetrics queueMetrics;
     private HealthCheckRegistry healthCheckRegistry;
+    private WorkerPool.WakeupPolicy workerWakeupPolicy;
+    // What to do with a job that outlives its worker's CAN_DO_TIMEOUT
+    private JobLeases.ExpiryPolicy jobTimeoutPolicy;
     private Object configLock = new Object();
 
     public void setPort(int port) {
@@ -85,6 +109,89 @@ public class GearmanServerConfiguration implements ServerConfiguration {
         this.hostName = hostName;
     }
 
+    public void setTransport(ServerListener.Transport transport) {
+        this.transport = transport;
+    }
+
+    public void setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public void setListeners(int listeners) {
+        this.listeners = listeners;
+    }
+
+    public void setUnixSocketPath(String unixSocketPath) {
+        this.unixSocketPath = unixSocketPath;
+    }
+
+    public void setExecutionModel(PacketDispatcher.ExecutionModel executionModel) {
+        this.executionModel = executionModel;
+    }
+
+    public void setEngineThreads(int engineThreads) {
+        this.engineThreads = engineThreads;
+    }
+
+    // Jobs each queue will hold, 0 for no limit
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        applyQueueWatermarks();
+    }
+
+    // Jobs a full queue has to drain to, -1 for three quarters of the capacity
+    public void setQueueLowWatermark(int queueLowWatermark) {
+        this.queueLowWatermark = queueLowWatermark;
+        applyQueueWatermarks();
+    }
+
+    public void setPauseSaturatedClients(boolean pauseSaturatedClients) {
+        this.pauseSaturatedClients = pauseSaturatedClients;
+    }
+
+    public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    }
+
+    public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerHandler.Policy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    public void setMaxPendingOutboundBytes(long maxPendingOutboundBytes) {
+        this.maxPendingOutboundBytes = maxPendingOutboundBytes;
+    }
+
+    public void setWorkerProbeInterval(long workerProbeInterval) {
+        this.workerProbeInterval = workerProbeInterval;
+    }
+
+    public void setWorkerMissedProbes(int workerMissedProbes) {
+        this.workerMissedProbes = workerMissedProbes;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getQueueLowWatermark() {
+        return queueLowWatermark;
+    }
+
+    private void applyQueueWatermarks() {
+        if (jobManager != null && queueCapacity > 0) {
+            final int low = queueLowWatermark < 0 ? queueCapacity / 4 * 3 : queueLowWatermark;
+            jobManager.setQueueWatermarks(queueCapacity, low);
+        }
+    }
+
     public void setJobQueueFactory(JobQueueFactory jobQueueFactory) {
         this.jobQueueFactory = jobQueueFactory;
     }
@@ -97,6 +204,28 @@ public class GearmanServerConfiguration implements ServerConfiguration {
         this.jobQueueMonitor = jobQueueMonitor;
     }
 
+    public WorkerPool.WakeupPolicy getWorkerWakeupPolicy() {
+        return workerWakeupPolicy;
+    }
+
+    public void setWorkerWakeupPolicy(WorkerPool.WakeupPolicy workerWakeupPolicy) {
+        this.workerWakeupPolicy = workerWakeupPolicy;
+        if (jobManager != null && workerWakeupPolicy != null) {
+            jobManager.setWakeupPolicy(workerWakeupPolicy);
+        }
+    }
+
+    public JobLeases.ExpiryPolicy getJobTimeoutPolicy() {
+        return jobTimeoutPolicy;
+    }
+
+    public void setJobTimeoutPolicy(JobLeases.ExpiryPolicy jobTimeoutPolicy) {
+        this.jobTimeoutPolicy = jobTimeoutPolicy;
+        if (jobManager != null && jobTimeoutPolicy != null) {
+            jobManager.setLeaseExpiryPolicy(jobTimeoutPolicy);
+        }
+    }
+
     public void setExceptionStore(ExceptionStoreConfiguration exceptionStoreConfiguration) {
         this.exceptionStoreConfiguration = exceptionStoreConfiguration;
     }
@@ -134,10 +263,87 @@ public class GearmanServerConfiguration implements ServerConfiguration {
         return hostName;
     }
 
+    @Override
+    public ServerListener.Transport getTransport() {
+        return transport;
+    }
+
+    @Override
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    @Override
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    @Override
+    public int getListeners() {
+        return listeners;
+    }
+
+    @Override
+    public String getUnixSocketPath() {
+        return unixSocketPath;
+    }
+
+    @Override
+    public PacketDispatcher.ExecutionModel getExecutionModel() {
+        return executionModel;
+    }
+
+    @Override
+    public int getEngineThreads() {
+        return engineThreads;
+    }
+
+    @Override
+    public boolean isPauseSaturatedClients() {
+        return pauseSaturatedClients;
+    }
+
+    @Override
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    @Override
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    @Override
+    public SlowConsumerHandler.Policy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    @Override
+    public long getMaxPendingOutboundBytes() {
+        return maxPendingOutboundBytes;
+    }
+
+    @Override
+    public long getWorkerProbeInterval() {
+        return workerProbeInterval;
+    }
+
+    @Override
+    public int getWorkerMissedProbes() {
+        return workerMissedProbes;
+    }
+
     @Override
     public JobQueueFactory getJobQueueFactory() {
         if (jobQueueFactory == null && getPersistenceEngine() != null) {
             jobQueueFactory = getPersistenceEngine().getJobQueueFactory(getMetricRegistry());
+
+            // A write waiting on the store holds up every other channel on
+            // its event loop, and with group commit it waits for the batch
+            if (executionModel == PacketDispatcher.ExecutionModel.INLINE && getPersistenceEngine().isWriteWaiting()) {
+                LOG.warn("Submissions wait for " + getPersistenceEngine().getDurability() + " writes on the event loops, " +
+                         "set executionModel to POOLED or PER_FUNCTION so they don't hold up other clients");
+            }
         }
 
         return jobQueueFactory;
@@ -151,6 +357,13 @@ public class GearmanServerConfiguration implements ServerConfiguration {
                                         getUniqueIdFactory(),
                                         getExceptionStorageEngine(),
                                         getQueueMetrics());
+            if (workerWakeupPolicy != null) {
+                jobManager.setWakeupPolicy(workerWakeupPolicy);
+            }
+            if (jobTimeoutPolicy != null) {
+                jobManager.setLeaseExpiryPolicy(jobTimeoutPolicy);
+            }
+            applyQueueWatermarks();
         }
 
         return jobManager;
@@ -222,6 +435,12 @@ public class GearmanServerConfiguration implements ServerConfiguration {
         this.jobHandleFactory = new HazelcastJobHandleFactory(clusterConfiguration.getHazelcastInstance(), getHostName());
         this.uniqueIdFactory = new HazelcastUniqueIdFactory(clusterConfiguration.getHazelcastInstance());
         this.jobManager = new ClusterJobManager(jobQueueFactory, jobHandleFactory, uniqueIdFactory, clusterConfiguration.getHazelcastInstance(), queueMetrics);
+        if (workerWakeupPolicy != null) {
+            this.jobManager.setWakeupPolicy(workerWakeupPolicy);
+        }
+        if (jobTimeoutPolicy != null) {
+            this.jobManager.setLeaseExpiryPolicy(jobTimeoutPolicy);
+        }
         this.jobQueueMonitor = new SnapshottingJobQueueMonitor(queueMetrics);
     }
 
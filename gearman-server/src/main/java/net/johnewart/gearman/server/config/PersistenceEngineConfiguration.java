@@ -6,10 +6,21 @@ import net.johnewart.gearman.engine.exceptions.JobQueueFactoryException;
 import net.johnewart.gearman.engine.healthchecks.RedisHealthCheck;
 import net.johnewart.gearman.engine.queue.factories.DynamoDBPersistedJobQueueFactory;
 import net.johnewart.gearman.engine.queue.factories.JobQueueFactory;
+import net.johnewart.gearman.engine.queue.factories.JournalPersistedJobQueueFactory;
+import net.johnewart.gearman.engine.queue.factories.LsmPersistedJobQueueFactory;
 import net.johnewart.gearman.engine.queue.factories.MemoryJobQueueFactory;
+import net.johnewart.gearman.engine.queue.factories.PersistedJobQueueFactory;
 import net.johnewart.gearman.engine.queue.factories.PostgreSQLPersistedJobQueueFactory;
+import net.johnewart.gearman.engine.queue.factories.PostgreSQLSharedJobQueueFactory;
 import net.johnewart.gearman.engine.queue.factories.RedisPersistedJobQueueFactory;
+import net.johnewart.gearman.engine.queue.persistence.CachingPersistenceEngine;
+import net.johnewart.gearman.engine.queue.persistence.DurabilityMode;
+import net.johnewart.gearman.engine.queue.persistence.GroupCommitPersistenceEngine;
+import net.johnewart.gearman.engine.queue.persistence.LsmPersistenceEngine;
+import net.johnewart.gearman.engine.queue.persistence.PersistenceEngine;
 import net.johnewart.gearman.server.config.persistence.DynamoDBConfiguration;
+import net.johnewart.gearman.server.config.persistence.JournalConfiguration;
+import net.johnewart.gearman.server.config.persistence.LsmConfiguration;
 import net.johnewart.gearman.server.config.persistence.PostgreSQLConfiguration;
 import net.johnewart.gearman.server.config.persistence.RedisConfiguration;
 import redis.clients.jedis.Jedis;
@@ -20,14 +31,29 @@ public class PersistenceEngineConfiguration {
     private static final String ENGINE_REDIS = "redis";
     private static final String ENGINE_POSTGRES = "postgres";
     private static final String ENGINE_DYNAMODB = "dynamodb";
+    private static final String ENGINE_JOURNAL = "journal";
+    private static final String ENGINE_LSM = "lsm";
 
     private RedisConfiguration redis;
     private PostgreSQLConfiguration postgreSQL;
     private DynamoDBConfiguration dynamoDB;
+    private JournalConfiguration journal;
+    private LsmConfiguration lsm;
 
     private String engine;
     private JobQueueFactory jobQueueFactory;
 
+    // sync, group or async -- see DurabilityMode
+    private String durability = "sync";
+    // Group / async commit flushes a batch once it has this many jobs...
+    private int batchSize = 256;
+    // ...or its oldest job has waited this long
+    private long batchDelay = 5;
+    // Recently written jobs kept in memory so dispatch doesn't read them
+    // back from a remote store (redis, postgres, dynamodb), 0 turns the
+    // cache off. Local stores never have one
+    private int cacheMegabytes = 64;
+
     public String getEngine() {
         return engine;
     }
@@ -56,6 +82,65 @@ public class PersistenceEngineConfiguration {
 
     public void setDynamoDB(DynamoDBConfiguration dynamoDB) { this.dynamoDB = dynamoDB; }
 
+    public JournalConfiguration getJournal() {
+        return journal;
+    }
+
+    public void setJournal(JournalConfiguration journal) {
+        this.journal = journal;
+    }
+
+    public LsmConfiguration getLsm() {
+        return lsm;
+    }
+
+    public void setLsm(LsmConfiguration lsm) {
+        this.lsm = lsm;
+    }
+
+    public String getDurability() {
+        return durability;
+    }
+
+    public void setDurability(String durability) {
+        this.durability = durability;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return DurabilityMode.valueOf(durability.toUpperCase());
+    }
+
+    /**
+     * @return Whether submitting a job waits for it to reach the store
+     */
+    public boolean isWriteWaiting() {
+        return !ENGINE_MEMORY.equals(getEngine()) && getDurabilityMode() != DurabilityMode.ASYNC;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getBatchDelay() {
+        return batchDelay;
+    }
+
+    public void setBatchDelay(long batchDelay) {
+        this.batchDelay = batchDelay;
+    }
+
+    public int getCacheMegabytes() {
+        return cacheMegabytes;
+    }
+
+    public void setCacheMegabytes(int cacheMegabytes) {
+        this.cacheMegabytes = cacheMegabytes;
+    }
+
     public JobQueueFactory getJobQueueFactory(MetricRegistry metricRegistry) {
         if(jobQueueFactory == null) {
             switch (getEngine()) {
@@ -64,7 +149,7 @@ public class PersistenceEngineConfiguration {
                     break;
                 case ENGINE_DYNAMODB:
                     try {
-                        jobQueueFactory = new DynamoDBPersistedJobQueueFactory(
+                        jobQueueFactory = decorate(new DynamoDBPersistedJobQueueFactory(
                                 dynamoDB.getEndpoint(),
                                 dynamoDB.getAccessKey(),
                                 dynamoDB.getSecretKey(),
@@ -72,14 +157,31 @@ public class PersistenceEngineConfiguration {
                                 dynamoDB.getReadUnits(),
                                 dynamoDB.getWriteUnits(),
                                 metricRegistry
-                        );
+                        ), metricRegistry);
                     } catch (JobQueueFactoryException e) {
                         jobQueueFactory = null;
                     }
                     break;
                 case ENGINE_POSTGRES:
                     try {
-                        jobQueueFactory = new PostgreSQLPersistedJobQueueFactory(
+                        if (postgreSQL.isShared()) {
+                            // Every write has to reach the table for the other
+                            // servers to see it, so no group commit or cache
+                            jobQueueFactory = new PostgreSQLSharedJobQueueFactory(
+                                    postgreSQL.getHost(),
+                                    postgreSQL.getPort(),
+                                    postgreSQL.getDbName(),
+                                    postgreSQL.getUser(),
+                                    postgreSQL.getPassword(),
+                                    postgreSQL.getTable(),
+                                    postgreSQL.getClaimBatchSize(),
+                                    postgreSQL.getClaimTimeoutSeconds(),
+                                    metricRegistry
+                            );
+                            break;
+                        }
+
+                        jobQueueFactory = decorate(new PostgreSQLPersistedJobQueueFactory(
                                 postgreSQL.getHost(),
                                 postgreSQL.getPort(),
                                 postgreSQL.getDbName(),
@@ -87,17 +189,52 @@ public class PersistenceEngineConfiguration {
                                 postgreSQL.getPassword(),
                                 postgreSQL.getTable(),
                                 metricRegistry
+                        ), metricRegistry);
+                    } catch (JobQueueFactoryException e) {
+                        jobQueueFactory = null;
+                    }
+                    break;
+                case ENGINE_JOURNAL:
+                    // The journal batches its own fsyncs: sync and group
+                    // writes wait for a shared fsync, async ones don't wait
+                    try {
+                        jobQueueFactory = new JournalPersistedJobQueueFactory(
+                                journal.getDirectory(),
+                                journal.getSegmentMegabytes(),
+                                getDurabilityMode() == DurabilityMode.ASYNC ? batchDelay : 0,
+                                journal.getCompactionThreshold(),
+                                metricRegistry
+                        );
+                    } catch (JobQueueFactoryException e) {
+                        jobQueueFactory = null;
+                    }
+                    // Local, nothing to gain from group commit or the job cache
+                    break;
+                case ENGINE_LSM:
+                    try {
+                        final LsmPersistenceEngine store = LsmPersistedJobQueueFactory.openStore(
+                                lsm.getDirectory(),
+                                lsm.getWriteBufferMegabytes(),
+                                lsm.getBlockCacheMegabytes(),
+                                metricRegistry
+                        );
+                        // Local, so only group commit goes in front of it:
+                        // the block cache already keeps what a job cache would
+                        jobQueueFactory = new LsmPersistedJobQueueFactory(
+                                store,
+                                withGroupCommit(store, metricRegistry),
+                                metricRegistry
                         );
                     } catch (JobQueueFactoryException e) {
                         jobQueueFactory = null;
                     }
                     break;
                 case ENGINE_REDIS:
-                    jobQueueFactory = new RedisPersistedJobQueueFactory(
+                    jobQueueFactory = decorate(new RedisPersistedJobQueueFactory(
                             redis.getHost(),
                             redis.getPort(),
                             metricRegistry
-                    );
+                    ), metricRegistry);
                     break;
                 default:
                     jobQueueFactory = null;
@@ -111,6 +248,40 @@ public class PersistenceEngineConfiguration {
         return jobQueueFactory;
     }
 
+    // Put group commit and the job cache in front of a store across the
+    // network, where each write and read is a round trip
+    private JobQueueFactory decorate(PersistedJobQueueFactory factory, MetricRegistry metricRegistry) {
+        PersistenceEngine persistenceEngine = withGroupCommit(factory.getPersistenceEngine(), metricRegistry);
+
+        if(cacheMegabytes > 0) {
+            persistenceEngine = new CachingPersistenceEngine(
+                    persistenceEngine,
+                    cacheMegabytes * 1024L * 1024L,
+                    metricRegistry
+            );
+        }
+
+        if(persistenceEngine == factory.getPersistenceEngine()) {
+            return factory;
+        }
+
+        return new PersistedJobQueueFactory(persistenceEngine, metricRegistry);
+    }
+
+    private PersistenceEngine withGroupCommit(PersistenceEngine persistenceEngine, MetricRegistry metricRegistry) {
+        if(getDurabilityMode() == DurabilityMode.SYNC) {
+            return persistenceEngine;
+        }
+
+        return new GroupCommitPersistenceEngine(
+                persistenceEngine,
+                getDurabilityMode(),
+                batchSize,
+                batchDelay,
+                metricRegistry
+        );
+    }
+
     public HealthCheck getHealthCheck()
     {
         switch(getEngine()) {
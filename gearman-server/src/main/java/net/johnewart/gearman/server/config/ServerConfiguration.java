@@ -5,6 +5,9 @@ import net.johnewart.gearman.common.interfaces.JobHandleFactory;
 import net.johnewart.gearman.engine.core.JobManager;
 import net.johnewart.gearman.engine.core.UniqueIdFactory;
 import net.johnewart.gearman.engine.queue.factories.JobQueueFactory;
+import net.johnewart.gearman.server.net.PacketDispatcher;
+import net.johnewart.gearman.server.net.ServerListener;
+import net.johnewart.gearman.server.net.SlowConsumerHandler;
 import net.johnewart.gearman.server.util.JobQueueMonitor;
 
 public interface ServerConfiguration {
@@ -18,6 +21,55 @@ public interface ServerConfiguration {
 
     String getHostName();
 
+    ServerListener.Transport getTransport();
+
+    // Threads accepting connections
+    int getBossThreads();
+
+    // Threads doing channel I/O, 0 for Netty's default of twice the cores
+    int getWorkerThreads();
+
+    // Sockets bound to the port with SO_REUSEPORT (epoll only)
+    int getListeners();
+
+    // Unix domain socket to also listen on for local clients and workers,
+    // null for none (epoll only)
+    String getUnixSocketPath();
+
+    // Where packets are handled, on the event loop or handed off
+    PacketDispatcher.ExecutionModel getExecutionModel();
+
+    // Threads (and lanes) packets are handed off to
+    int getEngineThreads();
+
+    // Stop reading from clients that submit to full queues until they drain
+    boolean isPauseSaturatedClients();
+
+    // Bytes waiting to be written before a connection is unwritable, and
+    // what it has to get back down to
+    int getWriteBufferHighWaterMark();
+
+    int getWriteBufferLowWaterMark();
+
+    // What to do while a connection is unwritable
+    SlowConsumerHandler.Policy getSlowConsumerPolicy();
+
+    // Bytes waiting to be written past which a connection is closed, 0 for
+    // no limit (only checked once over the high water mark)
+    long getMaxPendingOutboundBytes();
+
+    // Seconds a worker can be silent before it is sent an ECHO_REQ probe, 0
+    // to never probe. Only for workers that answer an ECHO_REQ they didn't
+    // ask for: the protocol has servers answer ECHO_REQ, not send it, and
+    // gearmand never does. A worker that runs jobs on the thread reading its
+    // socket can't answer mid-job, so the probes it may miss have to span
+    // its longest job, and a hung one is found no sooner than that.
+    long getWorkerProbeInterval();
+
+    // Probes a worker can leave unanswered before it is disconnected (and
+    // its jobs re-enqueued)
+    int getWorkerMissedProbes();
+
     JobQueueFactory getJobQueueFactory();
 
     JobManager getJobManager();
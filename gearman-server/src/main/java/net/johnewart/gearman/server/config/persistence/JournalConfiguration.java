@@ -0,0 +1,33 @@
+package net.johnewart.gearman.server.config.persistence;
+
+public class JournalConfiguration {
+    public String directory;
+    // Size of each segment file
+    public int segmentMegabytes = 64;
+    // Compact segments whose live jobs take up less than this fraction of them
+    public double compactionThreshold = 0.5;
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public int getSegmentMegabytes() {
+        return segmentMegabytes;
+    }
+
+    public void setSegmentMegabytes(int segmentMegabytes) {
+        this.segmentMegabytes = segmentMegabytes;
+    }
+
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+}
@@ -0,0 +1,33 @@
+package net.johnewart.gearman.server.config.persistence;
+
+public class LsmConfiguration {
+    public String directory;
+    // Writes held in memory before they go to a table on disk
+    public int writeBufferMegabytes = 64;
+    // Table blocks kept in memory
+    public int blockCacheMegabytes = 256;
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public int getWriteBufferMegabytes() {
+        return writeBufferMegabytes;
+    }
+
+    public void setWriteBufferMegabytes(int writeBufferMegabytes) {
+        this.writeBufferMegabytes = writeBufferMegabytes;
+    }
+
+    public int getBlockCacheMegabytes() {
+        return blockCacheMegabytes;
+    }
+
+    public void setBlockCacheMegabytes(int blockCacheMegabytes) {
+        this.blockCacheMegabytes = blockCacheMegabytes;
+    }
+}
@@ -7,6 +7,13 @@ public class PostgreSQLConfiguration {
     private String password;
     private String user;
     private String table = "jobs";
+    // Servers share the table and claim jobs from it rather than each
+    // loading it into memory, only background jobs can be submitted
+    private boolean shared = false;
+    // Jobs a shared server claims at a time
+    private int claimBatchSize = 10;
+    // Claims of a server that stops renewing them go back after this long
+    private int claimTimeoutSeconds = 60;
 
     public String getTable() {
         return table;
@@ -16,6 +23,30 @@ public class PostgreSQLConfiguration {
         this.table = table;
     }
 
+    public boolean isShared() {
+        return shared;
+    }
+
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    public int getClaimBatchSize() {
+        return claimBatchSize;
+    }
+
+    public void setClaimBatchSize(int claimBatchSize) {
+        this.claimBatchSize = claimBatchSize;
+    }
+
+    public int getClaimTimeoutSeconds() {
+        return claimTimeoutSeconds;
+    }
+
+    public void setClaimTimeoutSeconds(int claimTimeoutSeconds) {
+        this.claimTimeoutSeconds = claimTimeoutSeconds;
+    }
+
     public String getDbName() {
         return dbName;
     }
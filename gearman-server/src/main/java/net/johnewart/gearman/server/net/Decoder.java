@@ -1,100 +1,84 @@
 package net.johnewart.gearman.server.net;
 
-import com.google.common.primitives.Ints;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
 import net.johnewart.gearman.common.packets.Packet;
 import net.johnewart.gearman.common.packets.PacketFactory;
-import net.johnewart.gearman.util.ByteArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
+import java.nio.charset.Charset;
 import java.util.List;
 
-public class Decoder extends ReplayingDecoder<Decoder.DecodingState> {
+/**
+ * Splits the stream into binary packets and newline-terminated text
+ * (administrative) commands. Headers are read where they sit in the
+ * cumulation buffer and nothing is decoded until the whole packet has
+ * arrived, so a packet's bytes are only copied when the packet is built.
+ */
+public class Decoder extends ByteToMessageDecoder {
 
-    private final Logger LOG = LoggerFactory.getLogger(Decoder.class);
-    private Packet packet;
-    private byte[] packetData;
-    private int messageLength;
-    private ByteArray textCommand;
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_TEXT_COMMAND_LENGTH = 1024;
 
-    public Decoder() {
-        this.reset();
-    }
+    private final Logger LOG = LoggerFactory.getLogger(Decoder.class);
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf buffer, List<Object> decoded)
             throws Exception {
 
+        if (!buffer.isReadable())
+        {
+            return;
+        }
 
-        switch (state()) {
-            case HEADER:
-                byte[] header = new byte[12];
-                byte firstByte = buffer.readByte();
-                textCommand = null;
-
-                // Binary packets are prefixed with 0
-                if(firstByte == 0)
+        final int start = buffer.readerIndex();
+
+        // Binary packets are prefixed with 0
+        if (buffer.getByte(start) == 0)
+        {
+            if (buffer.readableBytes() < HEADER_SIZE)
+            {
+                return;
+            }
+
+            final int messageLength = buffer.getInt(start + 8);
+            if (messageLength < 0)
+            {
+                throw new CorruptedFrameException("Negative packet size: " + messageLength);
+            }
+
+            if (buffer.readableBytes() < HEADER_SIZE + messageLength)
+            {
+                return;
+            }
+
+            final Packet packet = PacketFactory.packetFromBuffer(buffer.readSlice(HEADER_SIZE + messageLength));
+            if (packet != null)
+            {
+                LOG.debug("---> {}", packet.getType());
+                decoded.add(packet);
+            }
+        } else {
+            final int end = buffer.indexOf(start, buffer.writerIndex(), (byte) 10);
+
+            if (end < 0)
+            {
+                if (buffer.readableBytes() > MAX_TEXT_COMMAND_LENGTH)
                 {
-                    header[0] = 0;
-                    buffer.readBytes(header, 1, 11);
-                    messageLength = Ints.fromByteArray(Arrays.copyOfRange(header, 8, 12));
-                    packetData = Arrays.copyOf(header, messageLength + 12);
-                } else {
-                    textCommand = new ByteArray(1024);
-                    textCommand.push(firstByte);
+                    throw new TooLongFrameException("Text command longer than " + MAX_TEXT_COMMAND_LENGTH + " bytes");
                 }
+                return;
+            }
 
-                checkpoint(DecodingState.PAYLOAD);
-
-            case PAYLOAD:
-                if(textCommand == null)
-                {
-
-                    buffer.readBytes(packetData, 12, messageLength);
-                    try {
-                        packet = PacketFactory.packetFromBytes(packetData);
-                        LOG.debug("---> " + packet.getType());
-                        decoded.add(packet);
-                    } finally {
-                        this.reset();
-                    }
-                } else {
-                    int textOffset = 1;
-                    byte b;
-                    do {
-                        b = buffer.readByte();
-                        textCommand.push(b);
-                    } while (b != 10);
-
-                    try {
-                        String result = textCommand.toString().trim();
-                        LOG.debug("Text command: " + result);
-                        decoded.add(result);
-                    } finally {
-                        this.reset();
-                    }
-                }
-                break;
+            String result = buffer.toString(start, end - start, Charset.defaultCharset()).trim();
+            buffer.readerIndex(end + 1);
 
-            default:
-                throw new Exception("Unknown decoding state: " + state());
+            LOG.debug("Text command: " + result);
+            decoded.add(result);
         }
     }
-
-    private void reset() {
-        checkpoint(DecodingState.HEADER);
-        this.packet = null;
-        this.packetData = null;
-        this.messageLength = -1;
-    }
-
-    public enum DecodingState {
-        HEADER,
-        PAYLOAD,
-        TEXT // Text command
-    }
-}
\ No newline at end of file
+}
@@ -1,19 +1,36 @@
 package net.johnewart.gearman.server.net;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
 import net.johnewart.gearman.common.packets.Packet;
+import net.johnewart.gearman.common.packets.response.NoJob;
+import net.johnewart.gearman.common.packets.response.NoOp;
 import net.johnewart.gearman.constants.GearmanConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.CharBuffer;
+import java.util.List;
+
+/**
+ * Writes packets straight into buffers from the channel's (pooled)
+ * allocator. Large job data is passed along as its own buffer rather than
+ * copied in after the header, and packets that never change are encoded
+ * once and shared.
+ */
 @ChannelHandler.Sharable
-public class Encoder extends MessageToByteEncoder<Object> {
+public class Encoder extends MessageToMessageEncoder<Object> {
 
     private static Logger LOG = LoggerFactory.getLogger(Encoder.class);
 
+    private static final ByteBuf NOOP = constant(new NoOp());
+    private static final ByteBuf NO_JOB = constant(new NoJob());
+
     public static Encoder getInstance() {
         return InstanceHolder.INSTANCE;
     }
@@ -31,17 +48,42 @@ public class Encoder extends MessageToByteEncoder<Object> {
         return message.getBytes(GearmanConstants.CHARSET);
     }
 
+    public static ByteBuf encodePacket(ByteBufAllocator allocator, Packet packet) {
+        LOG.debug("<--- {}", packet.getType());
+
+        switch (packet.getType()) {
+            case NOOP:
+                return NOOP.duplicate();
+            case NO_JOB:
+                return NO_JOB.duplicate();
+        }
+
+        return packet.encode(allocator);
+    }
+
+    // Already encoded (shared packets), passed along as is
+    @Override
+    public boolean acceptOutboundMessage(Object msg) throws Exception {
+        return !(msg instanceof ByteBuf);
+    }
+
     @Override
-    protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) {
+    protected void encode(ChannelHandlerContext ctx, Object msg, List<Object> out) {
         if (msg instanceof Packet) {
-            out.writeBytes(encodePacket((Packet) msg));
+            out.add(encodePacket(ctx.alloc(), (Packet) msg));
         } else if (msg instanceof String) {
-            out.writeBytes(encodeString((String) msg));
+            LOG.debug("<--- " + msg);
+            out.add(ByteBufUtil.encodeString(ctx.alloc(), CharBuffer.wrap((String) msg), GearmanConstants.CHARSET));
         } else {
             LOG.error("Unable to encode this thing: " + msg);
+            out.add(Unpooled.EMPTY_BUFFER);
         }
     }
 
+    private static ByteBuf constant(Packet packet) {
+        return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(packet.toByteArray()));
+    }
+
     private static final class InstanceHolder {
         private static final Encoder INSTANCE = new Encoder();
     }
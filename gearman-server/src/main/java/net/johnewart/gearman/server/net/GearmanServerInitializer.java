@@ -1,8 +1,9 @@
 package net.johnewart.gearman.server.net;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.ssl.SslHandler;
 import net.johnewart.gearman.server.net.ssl.GearmanSslContextFactory;
 import org.slf4j.Logger;
@@ -10,23 +11,52 @@ import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLEngine;
 
-public class GearmanServerInitializer extends ChannelInitializer<SocketChannel> {
+public class GearmanServerInitializer extends ChannelInitializer<Channel> {
     private final NetworkManager networkManager;
     private final boolean enableSSL;
+    private final PacketDispatcher packetDispatcher;
+    private final SlowConsumerHandler.Settings slowConsumerSettings;
+    private final WorkerLivenessHandler.Settings livenessSettings;
     private final Logger LOG = LoggerFactory.getLogger(GearmanServerInitializer.class);
 
 
     public GearmanServerInitializer(NetworkManager networkManager,
                                     boolean enableSSL)
+    {
+        this(networkManager, enableSSL, PacketDispatcher.inline());
+    }
+
+    public GearmanServerInitializer(NetworkManager networkManager,
+                                    boolean enableSSL,
+                                    PacketDispatcher packetDispatcher)
+    {
+        this(networkManager, enableSSL, packetDispatcher,
+             SlowConsumerHandler.Settings.none(), WorkerLivenessHandler.Settings.none());
+    }
+
+    public GearmanServerInitializer(NetworkManager networkManager,
+                                    boolean enableSSL,
+                                    PacketDispatcher packetDispatcher,
+                                    SlowConsumerHandler.Settings slowConsumerSettings,
+                                    WorkerLivenessHandler.Settings livenessSettings)
     {
         this.networkManager = networkManager;
         this.enableSSL = enableSSL;
+        this.packetDispatcher = packetDispatcher;
+        this.slowConsumerSettings = slowConsumerSettings;
+        this.livenessSettings = livenessSettings;
     }
 
     @Override
-    public void initChannel(SocketChannel ch) throws Exception {
+    public void initChannel(Channel ch) throws Exception {
         ChannelPipeline pipeline = ch.pipeline();
 
+        // Responses written while handling a read go out together once the
+        // read is done, and flushes from other threads are coalesced by
+        // the event loop, rather than a write syscall per packet
+        pipeline.addLast("flushConsolidation",
+                new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true));
+
         if(enableSSL)
         {
             LOG.info("Enabling SSL");
@@ -36,9 +66,20 @@ public class GearmanServerInitializer extends ChannelInitializer<SocketChannel>
             pipeline.addLast("ssl", new SslHandler(engine));
         }
 
+        if (livenessSettings.isEnabled())
+        {
+            pipeline.addLast("idle", livenessSettings.newIdleStateHandler());
+        }
+
         pipeline.addLast("decoder", new Decoder());
         pipeline.addLast("encoder", new Encoder());
+        pipeline.addLast("slowConsumer", new SlowConsumerHandler(slowConsumerSettings));
+
+        if (livenessSettings.isEnabled())
+        {
+            pipeline.addLast("liveness", new WorkerLivenessHandler(networkManager, livenessSettings));
+        }
 
-        pipeline.addLast("handler", new PacketHandler(networkManager));
+        pipeline.addLast("handler", new PacketHandler(networkManager, packetDispatcher));
     }
 }
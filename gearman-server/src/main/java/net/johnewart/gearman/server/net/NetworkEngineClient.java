@@ -4,6 +4,7 @@ import io.netty.channel.Channel;
 import net.johnewart.gearman.common.JobStatus;
 import net.johnewart.gearman.common.interfaces.EngineClient;
 import net.johnewart.gearman.common.packets.Packet;
+import net.johnewart.gearman.common.packets.SharedPacket;
 import net.johnewart.gearman.common.packets.response.WorkCompleteResponse;
 import net.johnewart.gearman.common.packets.response.WorkDataResponse;
 import net.johnewart.gearman.common.packets.response.WorkExceptionResponse;
@@ -42,6 +43,18 @@ public class NetworkEngineClient implements EngineClient {
         send(new WorkDataResponse(jobHandle, data));
     }
 
+    @Override
+    public void sendWorkResults(SharedPacket<WorkCompleteResponse> results)
+    {
+        OutboundBatcher.writeAndFlush(channel, results.retainedBuffer());
+    }
+
+    @Override
+    public void sendWorkData(SharedPacket<WorkDataResponse> data)
+    {
+        OutboundBatcher.writeAndFlush(channel, data.retainedBuffer());
+    }
+
     @Override
     public void sendWorkException(String jobHandle, byte[] exception) {
         send(new WorkExceptionResponse(jobHandle, exception));
@@ -65,7 +78,25 @@ public class NetworkEngineClient implements EngineClient {
     @Override
     public void send(Packet packet)
     {
-        channel.writeAndFlush(packet);
+        OutboundBatcher.writeAndFlush(channel, packet);
+    }
+
+    public boolean isWritable()
+    {
+        return channel.isWritable();
+    }
+
+    /**
+     * Run something once this client is keeping up with what is sent to it
+     */
+    public void whenWritable(Runnable callback)
+    {
+        SlowConsumerHandler.whenWritable(channel, callback);
+    }
+
+    public long getPendingOutboundBytes()
+    {
+        return SlowConsumerHandler.pendingOutboundBytes(channel);
     }
 
 }
@@ -1,18 +1,23 @@
 package net.johnewart.gearman.server.net;
 
 import io.netty.channel.Channel;
-import net.johnewart.gearman.common.interfaces.EngineWorker;
+import net.johnewart.gearman.common.Job;
+import net.johnewart.gearman.common.interfaces.PushEngineWorker;
 import net.johnewart.gearman.common.packets.Packet;
+import net.johnewart.gearman.common.packets.response.JobAssign;
+import net.johnewart.gearman.common.packets.response.JobAssignUniq;
 import net.johnewart.gearman.common.packets.response.NoOp;
 
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class NetworkEngineWorker implements EngineWorker {
+public class NetworkEngineWorker implements PushEngineWorker {
     private final Channel channel;
     private final Set<String> abilities;
     private Boolean awake;
+    // Whether pushed jobs are sent as JOB_ASSIGN_UNIQ rather than JOB_ASSIGN
+    private volatile boolean pushUniqueIds;
 
     public NetworkEngineWorker(Channel channel)
     {
@@ -23,7 +28,12 @@ public class NetworkEngineWorker implements EngineWorker {
 
     public void send(Packet packet)
     {
-        channel.writeAndFlush(packet);
+        OutboundBatcher.writeAndFlush(channel, packet);
+    }
+
+    public long getPendingOutboundBytes()
+    {
+        return SlowConsumerHandler.pendingOutboundBytes(channel);
     }
 
     public void addAbility(String ability)
@@ -55,6 +65,29 @@ public class NetworkEngineWorker implements EngineWorker {
         }
     }
 
+    @Override
+    public boolean pushJob(Job job)
+    {
+        if (!channel.isActive())
+            return false;
+
+        if (pushUniqueIds)
+        {
+            send(new JobAssignUniq(job.getJobHandle(), job.getFunctionName(), job.getUniqueID(), job.getData()));
+        }
+        else
+        {
+            send(new JobAssign(job.getJobHandle(), job.getFunctionName(), job.getData()));
+        }
+
+        return true;
+    }
+
+    public void setPushUniqueIds(boolean pushUniqueIds)
+    {
+        this.pushUniqueIds = pushUniqueIds;
+    }
+
     public void removeAbility(String functionName) {
         this.abilities.remove(functionName);
     }
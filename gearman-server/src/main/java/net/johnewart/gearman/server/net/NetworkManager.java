@@ -4,6 +4,7 @@ import com.codahale.metrics.annotation.Metered;
 import com.codahale.metrics.annotation.Timed;
 import com.google.common.collect.ImmutableList;
 import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
 import net.johnewart.gearman.common.Job;
 import net.johnewart.gearman.common.JobStatus;
 import net.johnewart.gearman.common.interfaces.EngineClient;
@@ -13,6 +14,7 @@ import net.johnewart.gearman.common.packets.request.GetStatus;
 import net.johnewart.gearman.common.packets.request.OptionRequest;
 import net.johnewart.gearman.common.packets.request.SubmitJob;
 import net.johnewart.gearman.common.packets.response.EchoResponse;
+import net.johnewart.gearman.common.packets.response.ErrorResponse;
 import net.johnewart.gearman.common.packets.response.JobAssign;
 import net.johnewart.gearman.common.packets.response.JobAssignUniq;
 import net.johnewart.gearman.common.packets.response.JobCreated;
@@ -29,10 +31,13 @@ import net.johnewart.gearman.constants.JobPriority;
 import net.johnewart.gearman.constants.PacketType;
 import net.johnewart.gearman.engine.core.JobManager;
 import net.johnewart.gearman.engine.exceptions.EnqueueException;
+import net.johnewart.gearman.engine.exceptions.QueueFullException;
+import net.johnewart.gearman.engine.queue.JobQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -43,56 +48,94 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class NetworkManager
 {
+    // A channel's worker and client live on the channel itself, the maps
+    // below are only an index of who is connected (for the dashboard)
+    private static final AttributeKey<NetworkEngineWorker> WORKER = AttributeKey.valueOf("gearman.worker");
+    private static final AttributeKey<NetworkEngineClient> CLIENT = AttributeKey.valueOf("gearman.client");
+
     private final JobManager jobManager;
     private final ConcurrentHashMap<Channel, NetworkEngineWorker> workers;
     private final ConcurrentHashMap<Channel, NetworkEngineClient> clients;
+    // Stop reading from a client that submits to a full queue until it drains
+    private final boolean pauseSaturatedClients;
+    private final SlowConsumerHandler.Policy slowConsumerPolicy;
     private static Logger LOG = LoggerFactory.getLogger(NetworkManager.class);
 
     public NetworkManager(JobManager jobManager)
+    {
+        this(jobManager, false);
+    }
+
+    public NetworkManager(JobManager jobManager, boolean pauseSaturatedClients)
+    {
+        this(jobManager, pauseSaturatedClients, SlowConsumerHandler.Policy.NONE);
+    }
+
+    public NetworkManager(JobManager jobManager,
+                          boolean pauseSaturatedClients,
+                          SlowConsumerHandler.Policy slowConsumerPolicy)
     {
         this.jobManager = jobManager;
         this.workers = new ConcurrentHashMap<>();
         this.clients = new ConcurrentHashMap<>();
+        this.pauseSaturatedClients = pauseSaturatedClients;
+        this.slowConsumerPolicy = slowConsumerPolicy;
     }
 
-    public synchronized void channelDisconnected(Channel channel)
+    public void channelDisconnected(Channel channel)
     {
-        if (workers.containsKey(channel))
+        // Only this channel's state is touched, other channels can come and
+        // go at the same time
+        NetworkEngineWorker worker = channel.attr(WORKER).getAndSet(null);
+        if (worker != null)
         {
-            NetworkEngineWorker worker = workers.get(channel);
             jobManager.unregisterWorker(worker);
-            workers.remove(channel);
+            workers.remove(channel, worker);
         }
-        else if (clients.containsKey(channel))
+
+        NetworkEngineClient client = channel.attr(CLIENT).getAndSet(null);
+        if (client != null)
         {
-            EngineClient client = clients.get(channel);
             jobManager.unregisterClient(client);
-            clients.remove(channel);
+            clients.remove(channel, client);
         }
     }
 
+    public boolean isWorker(Channel channel)
+    {
+        return channel.attr(WORKER).get() != null;
+    }
+
     public void sleepingWorker(Channel channel)
     {
-        // Remove from any worker lists
-        if (workers.containsKey(channel))
+        NetworkEngineWorker worker = channel.attr(WORKER).get();
+        if (worker != null)
         {
-            NetworkEngineWorker worker = workers.get(channel);
             jobManager.markWorkerAsAsleep(worker);
         }
     }
 
     public void registerAbility(String functionName, Channel channel)
+    {
+        registerAbility(functionName, channel, 0);
+    }
+
+    /**
+     * @param timeoutSeconds How long the worker may spend on each job for
+     *                       the function (CAN_DO_TIMEOUT), 0 for no limit
+     */
+    public void registerAbility(String functionName, Channel channel, int timeoutSeconds)
     {
         NetworkEngineWorker worker = findOrCreateWorker(channel);
         worker.addAbility(functionName);
-        jobManager.registerWorkerAbility(functionName, worker);
+        jobManager.registerWorkerAbility(functionName, worker, TimeUnit.SECONDS.toMillis(Math.max(0, timeoutSeconds)));
     }
 
     public void unregisterAbility(String functionName, Channel channel)
     {
-        if (workers.containsKey(channel))
+        NetworkEngineWorker worker = channel.attr(WORKER).get();
+        if (worker != null)
         {
-            NetworkEngineWorker worker = workers.get(channel);
             worker.removeAbility(functionName);
             jobManager.unregisterWorkerAbility(functionName, worker);
         }
@@ -100,9 +143,9 @@ public class NetworkManager
 
     public void nextJobForWorker(Channel channel, boolean uniqueID)
     {
-        if (workers.containsKey(channel))
+        NetworkEngineWorker worker = channel.attr(WORKER).get();
+        if (worker != null)
         {
-            NetworkEngineWorker worker = workers.get(channel);
             Job nextJob = jobManager.nextJobForWorker(worker);
 
             if (nextJob != null)
@@ -160,8 +203,17 @@ public class NetworkManager
             timeToRun = packet.getEpoch();
         }
 
+        // The packet's data was decoded just for this job, no need to copy it
+        final Job inputJob = new Job.Builder()
+                .functionName(funcName)
+                .uniqueID(uniqueID)
+                .data(data)
+                .priority(priority)
+                .background(isBackground)
+                .timeToRun(timeToRun)
+                .build();
+
         // This could return an existing job, or the newly generated one
-        final Job inputJob = new Job(funcName, uniqueID, data, priority, isBackground, timeToRun);
         try
         {
             Job storedJob = jobManager.storeJobForClient(inputJob, client);
@@ -173,13 +225,46 @@ public class NetworkManager
             }
             else
             {
-                // TODO: send a failure/error packet?
+                client.send(new ErrorResponse("ERR_ENQUEUE_FAILED", "Unable to store job"));
             }
         } catch (EnqueueException e) {
-            // TODO: Send a failure / error packet?
+            if (e.getCause() instanceof QueueFullException)
+            {
+                client.send(new ErrorResponse("ERR_QUEUE_FULL", "Queue for " + funcName + " is full"));
+                pauseUntilDrained(funcName, channel);
+            }
+            else if (e.getCause() instanceof UnsupportedOperationException)
+            {
+                client.send(new ErrorResponse("ERR_NOT_SUPPORTED", e.getMessage()));
+            }
+            else
+            {
+                LOG.error("Unable to store job: ", e);
+                client.send(new ErrorResponse("ERR_ENQUEUE_FAILED", "Unable to store job: " + e.getMessage()));
+            }
         }
     }
 
+    // Anything else the client sends would be turned away as well, so stop
+    // reading from it rather than let its packets pile up
+    private void pauseUntilDrained(String functionName, Channel channel)
+    {
+        if (!pauseSaturatedClients || ReadPauses.isPaused(channel, ReadPauses.Reason.QUEUE_FULL))
+        {
+            return;
+        }
+
+        final JobQueue jobQueue = jobManager.getJobQueues().get(functionName);
+        if (jobQueue == null)
+        {
+            return;
+        }
+
+        LOG.debug("Queue for " + functionName + " is full, pausing " + channel);
+        ReadPauses.pause(channel, ReadPauses.Reason.QUEUE_FULL);
+        jobQueue.whenDrained(() -> ReadPauses.resume(channel, ReadPauses.Reason.QUEUE_FULL));
+    }
+
     public void checkJobStatus(GetStatus getStatus, Channel channel)
     {
         EngineClient client = findOrCreateClient(channel);
@@ -199,15 +284,16 @@ public class NetworkManager
 
     private EngineClient findOrCreateClient(Channel channel)
     {
-        NetworkEngineClient client;
+        NetworkEngineClient client = channel.attr(CLIENT).get();
 
-        if (clients.containsKey(channel))
-        {
-            client = clients.get(channel);
-        }
-        else
+        if (client == null)
         {
             client = new NetworkEngineClient(channel);
+            NetworkEngineClient existing = channel.attr(CLIENT).setIfAbsent(client);
+            if (existing != null)
+            {
+                return existing;
+            }
             clients.put(channel, client);
         }
 
@@ -216,15 +302,16 @@ public class NetworkManager
 
     private NetworkEngineWorker findOrCreateWorker(Channel channel)
     {
-        NetworkEngineWorker worker;
+        NetworkEngineWorker worker = channel.attr(WORKER).get();
 
-        if (workers.containsKey(channel))
-        {
-            worker = workers.get(channel);
-        }
-        else
+        if (worker == null)
         {
             worker = new NetworkEngineWorker(channel);
+            NetworkEngineWorker existing = channel.attr(WORKER).setIfAbsent(worker);
+            if (existing != null)
+            {
+                return existing;
+            }
             workers.put(channel, worker);
         }
 
@@ -233,9 +320,8 @@ public class NetworkManager
 
     public void workResponse(WorkResponse response, Channel channel)
     {
-        if (workers.containsKey(channel))
+        if (channel.attr(WORKER).get() != null)
         {
-            NetworkEngineWorker worker = workers.get(channel);
             Job currentJob = jobManager.getJobByJobHandle(response.getJobHandle());
 
             if (currentJob != null)
@@ -248,6 +334,7 @@ public class NetworkManager
 
                     case WORK_DATA:
                         jobManager.handleWorkData(currentJob, ((WorkDataResponse) response).getData());
+                        pauseUntilClientsCatchUp(currentJob, channel);
                         break;
 
                     case WORK_EXCEPTION:
@@ -256,6 +343,7 @@ public class NetworkManager
 
                     case WORK_WARNING:
                         jobManager.handleWorkWarning(currentJob, ((WorkWarningResponse) response).getData());
+                        pauseUntilClientsCatchUp(currentJob, channel);
                         break;
 
                     case WORK_FAIL:
@@ -269,6 +357,29 @@ public class NetworkManager
         }
     }
 
+    // A worker streaming data to a client that can't keep up would only fill
+    // the server's heap, stop reading from the worker until it can
+    private void pauseUntilClientsCatchUp(Job job, Channel workerChannel)
+    {
+        if (slowConsumerPolicy != SlowConsumerHandler.Policy.PAUSE_WORKER ||
+                ReadPauses.isPaused(workerChannel, ReadPauses.Reason.SLOW_CONSUMER))
+        {
+            return;
+        }
+
+        for (EngineClient client : jobManager.getClientsForJob(job))
+        {
+            if (client instanceof NetworkEngineClient && !((NetworkEngineClient) client).isWritable())
+            {
+                LOG.debug("Client for " + job.getJobHandle() + " is behind, pausing " + workerChannel);
+                ReadPauses.pause(workerChannel, ReadPauses.Reason.SLOW_CONSUMER);
+                ((NetworkEngineClient) client).whenWritable(
+                        () -> ReadPauses.resume(workerChannel, ReadPauses.Reason.SLOW_CONSUMER));
+                return;
+            }
+        }
+    }
+
     public JobManager getJobManager()
     {
         return jobManager;
@@ -324,7 +435,7 @@ public class NetworkManager
     public void handleEchoRequest(EchoRequest request, Channel channel)
     {
         EchoResponse response = new EchoResponse(request);
-        channel.write(response);
+        OutboundBatcher.writeAndFlush(channel, response);
     }
 
     public void resetWorkerAbilities(Channel channel)
@@ -335,9 +446,36 @@ public class NetworkManager
 
     public void handleOptionRequest(OptionRequest packet, Channel channel)
     {
+        final String option = packet.getOption();
+        final int separator = option.indexOf('=');
+        final String name = separator < 0 ? option : option.substring(0, separator);
+
+        if (name.equals(OptionRequest.PUSH_CREDITS) || name.equals(OptionRequest.PUSH_CREDITS_UNIQ))
+        {
+            final int credits;
+            try
+            {
+                credits = Integer.parseInt(option.substring(separator + 1));
+            }
+            catch (NumberFormatException | IndexOutOfBoundsException e)
+            {
+                OutboundBatcher.writeAndFlush(channel, new ErrorResponse("ERR_INVALID_OPTION", "Expected " + name + "=<credits>"));
+                return;
+            }
+
+            NetworkEngineWorker worker = findOrCreateWorker(channel);
+            worker.setPushUniqueIds(name.equals(OptionRequest.PUSH_CREDITS_UNIQ));
+
+            // Acknowledge before anything gets pushed; pushed jobs take the
+            // same path, so off the event loop they can't overtake it
+            OutboundBatcher.writeAndFlush(channel, new OptionResponse(option + OptionRequest.PUSH_GRANTED));
+            jobManager.setWorkerCredits(worker, credits);
+            return;
+        }
+
         //TODO: mark that the client wants exceptions (why would it not want them?)
-        OptionResponse response = new OptionResponse(packet.getOption());
-        channel.write(response);
+        OptionResponse response = new OptionResponse(option);
+        OutboundBatcher.writeAndFlush(channel, response);
     }
 }
 
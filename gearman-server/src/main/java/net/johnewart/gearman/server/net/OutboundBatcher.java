@@ -0,0 +1,118 @@
+package net.johnewart.gearman.server.net;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes packets to channels from threads other than the channel's event
+ * loop (e.g. a worker's WORK_COMPLETE fanning out to clients on other loops,
+ * or anything handled off the loops). Netty would queue a task, and wake the
+ * loop up, for every such write and flush each one on its own; here writes
+ * headed for the same loop are queued together and written by one task,
+ * which flushes every channel it wrote to once.
+ */
+public final class OutboundBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(OutboundBatcher.class);
+
+    private static final ConcurrentHashMap<EventLoop, Batch> BATCHES = new ConcurrentHashMap<>();
+
+    private OutboundBatcher()
+    {
+    }
+
+    public static void writeAndFlush(final Channel channel, final Object message)
+    {
+        final EventLoop eventLoop = channel.eventLoop();
+
+        if (eventLoop.inEventLoop())
+        {
+            channel.writeAndFlush(message);
+            return;
+        }
+
+        Batch batch = BATCHES.get(eventLoop);
+        if (batch == null)
+        {
+            batch = BATCHES.computeIfAbsent(eventLoop, Batch::new);
+        }
+
+        batch.add(channel, message);
+    }
+
+    private static final class Batch implements Runnable {
+        private final EventLoop eventLoop;
+        private final Queue<Write> writes = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Only touched on the event loop
+        private final Set<Channel> written = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        Batch(final EventLoop eventLoop)
+        {
+            this.eventLoop = eventLoop;
+            eventLoop.terminationFuture().addListener(future -> BATCHES.remove(eventLoop, this));
+        }
+
+        void add(final Channel channel, final Object message)
+        {
+            writes.add(new Write(channel, message));
+
+            if (scheduled.compareAndSet(false, true))
+            {
+                try {
+                    eventLoop.execute(this);
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("Event loop shut down, dropping writes");
+                    Write write;
+                    while ((write = writes.poll()) != null)
+                    {
+                        ReferenceCountUtil.release(write.message);
+                    }
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            // Anything added from here on schedules another run
+            scheduled.set(false);
+
+            Write write;
+            while ((write = writes.poll()) != null)
+            {
+                write.channel.write(write.message);
+                written.add(write.channel);
+            }
+
+            for (Channel channel : written)
+            {
+                channel.flush();
+            }
+            written.clear();
+        }
+    }
+
+    private static final class Write {
+        final Channel channel;
+        final Object message;
+
+        Write(final Channel channel, final Object message)
+        {
+            this.channel = channel;
+            this.message = message;
+        }
+    }
+}
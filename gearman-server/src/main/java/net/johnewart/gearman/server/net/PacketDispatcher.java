@@ -0,0 +1,259 @@
+package net.johnewart.gearman.server.net;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Decides which thread handles incoming packets. INLINE handles them on the
+ * channel's event loop. POOLED hands them to a shared pool so that engine
+ * calls which block (persistence, locks) don't hold up every other channel
+ * on the same loop. PER_FUNCTION also runs work for each function on its
+ * own single-threaded lane (by hash), so a function's packets are handled in
+ * order and never contend with each other; anything without a function
+ * goes to the pool.
+ *
+ * Whatever the model, a channel's packets are handled one at a time in the
+ * order they arrived. A channel whose packets back up (the engine is slow)
+ * stops being read from until they have mostly been handled, rather than
+ * piling them up on the heap.
+ */
+public class PacketDispatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(PacketDispatcher.class);
+
+    // Packets waiting for a channel before it is no longer read from, and
+    // how few there must be again before reading resumes
+    private static final int PAUSE_BACKLOG = 32;
+    private static final int RESUME_BACKLOG = 8;
+    // How long stop() waits for packets already handed over
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+
+    public enum ExecutionModel {
+        INLINE,
+        POOLED,
+        PER_FUNCTION
+    }
+
+    private final ExecutionModel executionModel;
+    private final ExecutorService pool;
+    private final ExecutorService[] lanes;
+    private final Timer queueingDelay;
+    private final Counter pendingCounter;
+
+    public PacketDispatcher(final ExecutionModel executionModel,
+                            final int threads,
+                            final MetricRegistry metricRegistry)
+    {
+        this.executionModel = executionModel == null ? ExecutionModel.INLINE : executionModel;
+        this.queueingDelay = metricRegistry.timer(name("server", "dispatch", "delay"));
+        this.pendingCounter = metricRegistry.counter(name("server", "dispatch", "pending"));
+
+        if (this.executionModel == ExecutionModel.INLINE)
+        {
+            this.pool = null;
+            this.lanes = new ExecutorService[0];
+        } else {
+            this.pool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("gearman-engine-%d")
+                    .build());
+
+            this.lanes = new ExecutorService[this.executionModel == ExecutionModel.PER_FUNCTION ? Math.max(1, threads) : 0];
+            final ThreadFactoryBuilder laneThreads = new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("gearman-lane-%d");
+            for (int i = 0; i < lanes.length; i++)
+            {
+                lanes[i] = Executors.newSingleThreadExecutor(laneThreads.build());
+            }
+        }
+    }
+
+    /**
+     * An inline dispatcher, packets are handled on the event loop.
+     */
+    public static PacketDispatcher inline()
+    {
+        return new PacketDispatcher(ExecutionModel.INLINE, 0, new MetricRegistry());
+    }
+
+    public ExecutionModel getExecutionModel()
+    {
+        return executionModel;
+    }
+
+    public ChannelQueue newChannelQueue(final Channel channel)
+    {
+        return new ChannelQueue(channel);
+    }
+
+    /**
+     * Stop taking work and wait for what was already handed over to finish,
+     * so nothing is still using the engine once this returns.
+     */
+    public void stop()
+    {
+        if (pool != null)
+        {
+            pool.shutdown();
+        }
+
+        for (ExecutorService lane : lanes)
+        {
+            lane.shutdown();
+        }
+
+        try
+        {
+            if (pool != null && !pool.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            {
+                LOG.warn("Packets still being handled after " + STOP_TIMEOUT_SECONDS + "s, stopping anyway");
+            }
+
+            for (ExecutorService lane : lanes)
+            {
+                if (!lane.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                {
+                    LOG.warn("Packets still being handled after " + STOP_TIMEOUT_SECONDS + "s, stopping anyway");
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ExecutorService executorFor(final String functionName)
+    {
+        if (functionName == null || lanes.length == 0)
+        {
+            return pool;
+        }
+
+        return lanes[(functionName.hashCode() & Integer.MAX_VALUE) % lanes.length];
+    }
+
+    /**
+     * Work for one channel. A task is only handed to an executor once the
+     * one before it has finished, which keeps the channel's packets in order
+     * even when they go to different lanes.
+     */
+    public class ChannelQueue {
+        private final Channel channel;
+        // Head is the task that is running, guarded by this
+        private final Queue<Task> tasks = new ArrayDeque<>();
+        // Whether reading stopped because of the backlog, guarded by this
+        private boolean paused;
+
+        private ChannelQueue(final Channel channel)
+        {
+            this.channel = channel;
+        }
+
+        /**
+         * Run work for the channel.
+         *
+         * @param functionName Function the work is for, null if none
+         * @param work What to do
+         */
+        public void execute(final String functionName, final Runnable work)
+        {
+            if (executionModel == ExecutionModel.INLINE)
+            {
+                work.run();
+                return;
+            }
+
+            final Task task = new Task(functionName, work);
+            pendingCounter.inc();
+
+            synchronized (this)
+            {
+                tasks.add(task);
+                if (tasks.size() >= PAUSE_BACKLOG && !paused)
+                {
+                    paused = ReadPauses.pause(channel, ReadPauses.Reason.BACKLOG);
+                }
+                if (tasks.size() > 1)
+                {
+                    return;
+                }
+            }
+
+            submit(task);
+        }
+
+        private void submit(final Task task)
+        {
+            try {
+                executorFor(task.functionName).execute(() -> run(task));
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+                LOG.debug("Dropping work for " + channel + ", dispatcher stopped");
+                pendingCounter.dec();
+            }
+        }
+
+        private void run(final Task task)
+        {
+            queueingDelay.update(System.nanoTime() - task.queuedAt, TimeUnit.NANOSECONDS);
+            pendingCounter.dec();
+
+            try {
+                task.work.run();
+            } catch (Exception e) {
+                LOG.warn("Unexpected exception handling packet, closing " + channel, e);
+                channel.close();
+            } finally {
+                // Responses may have been written without a flush, the
+                // event loop's read-complete flush has long gone by
+                channel.flush();
+            }
+
+            final Task next;
+            synchronized (this)
+            {
+                tasks.poll();
+                next = tasks.peek();
+                if (paused && tasks.size() <= RESUME_BACKLOG)
+                {
+                    paused = false;
+                    ReadPauses.resume(channel, ReadPauses.Reason.BACKLOG);
+                }
+            }
+
+            if (next != null)
+            {
+                submit(next);
+            }
+        }
+    }
+
+    private static class Task {
+        final String functionName;
+        final Runnable work;
+        final long queuedAt;
+
+        Task(final String functionName, final Runnable work)
+        {
+            this.functionName = functionName;
+            this.work = work;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+}
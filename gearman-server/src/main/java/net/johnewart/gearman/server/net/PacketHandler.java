@@ -23,11 +23,25 @@ public class PacketHandler extends SimpleChannelInboundHandler<Object> {
 
     private static final Logger LOG = LoggerFactory.getLogger(PacketHandler.class);
     private final NetworkManager networkManager;
+    private final PacketDispatcher packetDispatcher;
+    // Everything for this handler's channel goes through here, in order
+    private PacketDispatcher.ChannelQueue channelQueue;
 
     public PacketHandler(NetworkManager networkManager)
+    {
+        this(networkManager, PacketDispatcher.inline());
+    }
+
+    public PacketHandler(NetworkManager networkManager, PacketDispatcher packetDispatcher)
     {
         LOG.debug("Creating new handler!");
         this.networkManager = networkManager;
+        this.packetDispatcher = packetDispatcher;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        channelQueue = packetDispatcher.newChannelQueue(ctx.channel());
     }
 
     @Override
@@ -38,10 +52,13 @@ public class PacketHandler extends SimpleChannelInboundHandler<Object> {
     @Override
     public void channelRead0(ChannelHandlerContext ctx, Object request)  throws Exception {
         LOG.debug(" ---> " + request.toString());
+        final Channel channel = ctx.channel();
+
         if (request instanceof Packet) {
-            handlePacket((Packet)request, ctx.channel());
+            final Packet packet = (Packet) request;
+            channelQueue.execute(functionName(packet), () -> handlePacket(packet, channel));
         } else if (request instanceof String) {
-            handleTextCommand((String)request, ctx.channel());
+            channelQueue.execute(null, () -> handleTextCommand((String) request, channel));
         } else {
             LOG.error("Received un-handled message: " + request);
         }
@@ -55,7 +72,32 @@ public class PacketHandler extends SimpleChannelInboundHandler<Object> {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         LOG.debug("Client closed channel: " + ctx.channel().toString());
-        networkManager.channelDisconnected(ctx.channel());
+        final Channel channel = ctx.channel();
+        channelQueue.execute(null, () -> networkManager.channelDisconnected(channel));
+    }
+
+    // Function a packet is about, for dispatchers that keep functions apart
+    private static String functionName(Packet packet)
+    {
+        switch(packet.getType())
+        {
+            case CAN_DO:
+                return ((CanDo)packet).getFunctionName();
+            case CAN_DO_TIMEOUT:
+                return ((CanDoTimeout)packet).getFunctionName();
+            case CANT_DO:
+                return ((CantDo)packet).getFunctionName();
+            case SUBMIT_JOB:
+            case SUBMIT_JOB_BG:
+            case SUBMIT_JOB_HIGH:
+            case SUBMIT_JOB_HIGH_BG:
+            case SUBMIT_JOB_LOW:
+            case SUBMIT_JOB_LOW_BG:
+            case SUBMIT_JOB_EPOCH:
+                return ((SubmitJob)packet).getFunctionName();
+            default:
+                return null;
+        }
     }
 
     private void handleTextCommand(String message, Channel channel)
@@ -64,15 +106,15 @@ public class PacketHandler extends SimpleChannelInboundHandler<Object> {
             case "status":
                 String header = "FUNCTION\tTOTAL\tRUNNING\tAVAILABLE_WORKERS\n";
                 Map<String, JobQueue> jobQueues = networkManager.getJobManager().getJobQueues();
-                channel.writeAndFlush(header);
+                OutboundBatcher.writeAndFlush(channel, header);
 
                 for(String jobQueueName : jobQueues.keySet())
                 {
                     JobQueue queue = jobQueues.get(jobQueueName);
-                    channel.writeAndFlush(String.format("%s\t%s\t%s\t%s\n", jobQueueName, queue.size(), 0, 0));
+                    OutboundBatcher.writeAndFlush(channel, String.format("%s\t%s\t%s\t%s\n", jobQueueName, queue.size(), 0, 0));
                 }
 
-                channel.writeAndFlush(".\n");
+                OutboundBatcher.writeAndFlush(channel, ".\n");
                 break;
 
             case "workers":
@@ -100,8 +142,8 @@ public class PacketHandler extends SimpleChannelInboundHandler<Object> {
                 networkManager.registerAbility(((CanDo)packet).getFunctionName(), channel);
                 return;
             case CAN_DO_TIMEOUT:
-                // TODO: Support timeout
-                networkManager.registerAbility(((CanDoTimeout)packet).getFunctionName(), channel);
+                final CanDoTimeout canDoTimeout = (CanDoTimeout)packet;
+                networkManager.registerAbility(canDoTimeout.getFunctionName(), channel, canDoTimeout.getTimeout());
                 return;
             case CANT_DO:
                 networkManager.unregisterAbility(((CantDo)packet).getFunctionName(), channel);
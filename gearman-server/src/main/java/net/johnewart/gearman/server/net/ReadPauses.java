@@ -0,0 +1,82 @@
+package net.johnewart.gearman.server.net;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Reading from a channel can be paused for more than one reason at a time,
+ * and each reason clears on its own schedule. Reading only resumes once all
+ * of them have, so one doesn't switch autoRead back on under another.
+ */
+final class ReadPauses {
+    enum Reason {
+        // Packets waiting for the engine have piled up
+        BACKLOG,
+        // The client's job queue is full
+        QUEUE_FULL,
+        // A client the worker streams to can't keep up
+        SLOW_CONSUMER
+    }
+
+    private static final AttributeKey<Set<Reason>> REASONS = AttributeKey.valueOf("gearman.readPauses");
+
+    private ReadPauses()
+    {
+    }
+
+    /**
+     * @return false if reading was already paused for this reason
+     */
+    static boolean pause(final Channel channel, final Reason reason)
+    {
+        final Set<Reason> reasons = reasons(channel);
+        synchronized (reasons)
+        {
+            if (!reasons.add(reason))
+            {
+                return false;
+            }
+            channel.config().setAutoRead(false);
+            return true;
+        }
+    }
+
+    static void resume(final Channel channel, final Reason reason)
+    {
+        final Set<Reason> reasons = reasons(channel);
+        synchronized (reasons)
+        {
+            if (reasons.remove(reason) && reasons.isEmpty())
+            {
+                channel.config().setAutoRead(true);
+            }
+        }
+    }
+
+    static boolean isPaused(final Channel channel, final Reason reason)
+    {
+        final Set<Reason> reasons = reasons(channel);
+        synchronized (reasons)
+        {
+            return reasons.contains(reason);
+        }
+    }
+
+    private static Set<Reason> reasons(final Channel channel)
+    {
+        final Attribute<Set<Reason>> attribute = channel.attr(REASONS);
+        final Set<Reason> reasons = attribute.get();
+        if (reasons != null)
+        {
+            return reasons;
+        }
+
+        final Set<Reason> created = EnumSet.noneOf(Reason.class);
+        final Set<Reason> existing = attribute.setIfAbsent(created);
+        return existing != null ? existing : created;
+    }
+}
@@ -1,12 +1,24 @@
 package net.johnewart.gearman.server.net;
 
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
 import net.johnewart.gearman.engine.core.JobManager;
-import net.johnewart.gearman.engine.core.QueuedJob;
 import net.johnewart.gearman.engine.exceptions.JobQueueFactoryException;
 import net.johnewart.gearman.engine.queue.JobQueue;
 import net.johnewart.gearman.engine.queue.factories.JobQueueFactory;
@@ -14,79 +26,273 @@ import net.johnewart.gearman.server.config.ServerConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ServerListener {
     private final Logger LOG = LoggerFactory.getLogger(ServerListener.class);
 
+    // File type bits of a unix:mode, and the type of a socket
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    public enum Transport {
+        NIO,
+        // Linux native transport, falls back to NIO where it can't be loaded
+        EPOLL
+    }
+
     private final ServerConfiguration serverConfiguration;
+    private final Transport transport;
+    private final int listeners;
     private final EventLoopGroup bossGroup, workerGroup;
+    private final PacketDispatcher packetDispatcher;
+    // Set once started
+    private volatile JobManager jobManager;
+    private volatile JobQueueFactory jobQueueFactory;
 
     public ServerListener(ServerConfiguration serverConfiguration) {
-        this.bossGroup = new NioEventLoopGroup();
-        this.workerGroup = new NioEventLoopGroup();
         this.serverConfiguration = serverConfiguration;
+        this.transport = availableTransport(serverConfiguration.getTransport());
+
+        // Only epoll can bind the same port more than once
+        if (serverConfiguration.getListeners() > 1 && transport != Transport.EPOLL) {
+            LOG.warn("Multiple listeners need the epoll transport, using a single listener");
+            this.listeners = 1;
+        } else {
+            this.listeners = Math.max(1, serverConfiguration.getListeners());
+        }
+
+        // One accepting thread per listener at least, so they accept in parallel
+        this.bossGroup = newEventLoopGroup(Math.max(listeners, serverConfiguration.getBossThreads()));
+        this.workerGroup = newEventLoopGroup(serverConfiguration.getWorkerThreads());
+        this.packetDispatcher = new PacketDispatcher(serverConfiguration.getExecutionModel(),
+                                                     serverConfiguration.getEngineThreads(),
+                                                     serverConfiguration.getMetricRegistry());
     }
 
     public boolean start() {
-        LOG.info("Listening on " + serverConfiguration.getHostName() + ":" + serverConfiguration.getPort());
+        LOG.info("Listening on " + serverConfiguration.getHostName() + ":" + serverConfiguration.getPort() +
+                 " (" + transport + ", " + listeners + " listener" + (listeners > 1 ? "s" : "") + ")");
 
         LOG.info("Loading existing jobs...");
         // Load up jobs
         JobQueueFactory jobQueueFactory = serverConfiguration.getJobQueueFactory();
         JobManager jobManager = serverConfiguration.getJobManager();
+        this.jobManager = jobManager;
+        this.jobQueueFactory = jobQueueFactory;
 
         if(jobQueueFactory != null) {
-            Collection<QueuedJob> queuedJobs =  jobQueueFactory.loadPersistedJobs();
-            Set<String> queueNames =
-                    queuedJobs.parallelStream().map(p -> p.functionName).collect(Collectors.toSet());
+            // Jobs go straight into their queues as they are read
+            final AtomicLong imported = new AtomicLong();
+            jobQueueFactory.loadPersistedJobs(queuedJob -> {
+                try
+                {
+                    JobQueue queue = jobManager.getOrCreateJobQueue(queuedJob.functionName);
+                    if(queue.restore(queuedJob))
+                        imported.incrementAndGet();
+                }
+                catch (JobQueueFactoryException e)
+                {
+                    LOG.error("Unable to create queue for " + queuedJob.functionName + ": ", e);
+                }
+            });
+            LOG.info("Imported " + imported + " persisted jobs.");
 
-            int imported = 0;
-            for(String functionName : queueNames) {
+            // Queues that read their own jobs from storage only need building
+            for (String functionName : jobQueueFactory.getStoredFunctions())
+            {
                 try
                 {
                     JobQueue queue = jobManager.getOrCreateJobQueue(functionName);
-                    imported += queue.size();
+                    LOG.info("Opened stored queue " + functionName + " with " + queue.size() + " jobs.");
                 }
                 catch (JobQueueFactoryException e)
                 {
-                    e.printStackTrace();
+                    LOG.error("Unable to create queue for " + functionName + ": ", e);
                 }
             }
-            LOG.info("Imported " + imported + " persisted jobs.");
         }
 
-        final NetworkManager networkManager = new NetworkManager(serverConfiguration.getJobManager());
+        final NetworkManager networkManager = new NetworkManager(serverConfiguration.getJobManager(),
+                                                                   serverConfiguration.isPauseSaturatedClients(),
+                                                                   serverConfiguration.getSlowConsumerPolicy());
+        final SlowConsumerHandler.Settings slowConsumerSettings =
+                new SlowConsumerHandler.Settings(serverConfiguration.getSlowConsumerPolicy(),
+                                                 serverConfiguration.getMaxPendingOutboundBytes(),
+                                                 serverConfiguration.getMetricRegistry());
+        final WorkerLivenessHandler.Settings livenessSettings =
+                new WorkerLivenessHandler.Settings(serverConfiguration.getWorkerProbeInterval(),
+                                                   serverConfiguration.getWorkerMissedProbes(),
+                                                   serverConfiguration.getMetricRegistry());
+
+        final GearmanServerInitializer initializer =
+                new GearmanServerInitializer(networkManager, serverConfiguration.isSSLEnabled(), packetDispatcher,
+                                             slowConsumerSettings, livenessSettings);
 
         try {
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
-                .childHandler(new GearmanServerInitializer(networkManager, serverConfiguration.isSSLEnabled()))
+                .channel(serverChannelClass())
+                .childHandler(initializer)
                 .option(ChannelOption.SO_KEEPALIVE, true)
                 .option(ChannelOption.SO_REUSEADDR, true)
-                .option(ChannelOption.TCP_NODELAY, true);
+                .option(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                             new WriteBufferWaterMark(serverConfiguration.getWriteBufferLowWaterMark(),
+                                                      serverConfiguration.getWriteBufferHighWaterMark()));
+
+            if (listeners > 1) {
+                // The kernel spreads incoming connections across the sockets
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+
+            List<Channel> channels = new ArrayList<>(listeners);
+            for (int i = 0; i < listeners; i++) {
+                channels.add(bootstrap.bind(serverConfiguration.getPort()).sync().channel());
+            }
+
+            final Channel unixSocket = bindUnixSocket(initializer);
+            if (unixSocket != null) {
+                channels.add(unixSocket);
+            }
 
-            bootstrap.bind(serverConfiguration.getPort()).sync().channel().closeFuture().sync();
+            for (Channel channel : channels) {
+                channel.closeFuture().sync();
+            }
 
         } catch (InterruptedException e) {
             e.printStackTrace();
         } finally {
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            packetDispatcher.stop();
         }
 
 
         return true;
     }
 
+    // Same pipeline as TCP, for clients and workers on this host
+    private Channel bindUnixSocket(GearmanServerInitializer initializer) throws InterruptedException {
+        final String path = serverConfiguration.getUnixSocketPath();
+
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+
+        if (transport != Transport.EPOLL) {
+            LOG.warn("Unix domain sockets need the epoll transport, not listening on " + path);
+            return null;
+        }
+
+        final File socketFile = new File(path);
+        removeStaleSocket(socketFile.toPath());
+
+        final Channel channel = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(EpollServerDomainSocketChannel.class)
+                .childHandler(initializer)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                             new WriteBufferWaterMark(serverConfiguration.getWriteBufferLowWaterMark(),
+                                                      serverConfiguration.getWriteBufferHighWaterMark()))
+                .bind(new DomainSocketAddress(path)).sync().channel();
+
+        channel.closeFuture().addListener(future -> socketFile.delete());
+        LOG.info("Listening on " + path);
+        return channel;
+    }
+
+    // Only a socket left behind by a server that didn't shut down cleanly
+    // is removed; anything else at the path, or a server still listening on
+    // it, stops us from starting
+    private void removeStaleSocket(Path path) throws InterruptedException {
+        final int mode;
+        try {
+            mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException | UnsupportedOperationException e) {
+            throw new IllegalStateException("Unable to check what is at " + path, e);
+        }
+
+        if ((mode & S_IFMT) != S_IFSOCK) {
+            throw new IllegalStateException(path + " exists and is not a socket, not replacing it");
+        }
+
+        final ChannelFuture connect = new Bootstrap()
+                .group(workerGroup)
+                .channel(EpollDomainSocketChannel.class)
+                .handler(new ChannelInboundHandlerAdapter())
+                .connect(new DomainSocketAddress(path.toString()))
+                .await();
+        if (connect.isSuccess()) {
+            connect.channel().close();
+            throw new IllegalStateException("Another server is listening on " + path);
+        }
+
+        LOG.info("Removing stale socket " + path);
+        try {
+            Files.delete(path);
+        } catch (NoSuchFileException e) {
+            // Someone else got there first
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to remove stale socket " + path, e);
+        }
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
     public void stop() {
         LOG.debug("Gearman server stopping...");
         bossGroup.shutdownGracefully().syncUninterruptibly();
         workerGroup.shutdownGracefully().syncUninterruptibly();
+        // Nothing touches the queues once the dispatcher has drained, so
+        // whatever is pending can be written out and the store closed
+        packetDispatcher.stop();
+        if (jobManager != null) {
+            jobManager.stop();
+        }
+        if (jobQueueFactory != null) {
+            jobQueueFactory.stop();
+        }
         LOG.info("Gearman server stopped");
     }
 
+    private Transport availableTransport(Transport requested) {
+        if (requested == Transport.EPOLL && !Epoll.isAvailable()) {
+            LOG.warn("Native epoll transport unavailable, falling back to NIO", Epoll.unavailabilityCause());
+            return Transport.NIO;
+        }
+
+        return requested == null ? Transport.NIO : requested;
+    }
+
+    private EventLoopGroup newEventLoopGroup(int threads) {
+        switch (transport) {
+            case EPOLL:
+                return new EpollEventLoopGroup(threads);
+            default:
+                return new NioEventLoopGroup(threads);
+        }
+    }
+
+    private Class<? extends ServerChannel> serverChannelClass() {
+        switch (transport) {
+            case EPOLL:
+                return EpollServerSocketChannel.class;
+            default:
+                return NioServerSocketChannel.class;
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+package net.johnewart.gearman.server.net;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import net.johnewart.gearman.common.packets.response.WorkStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Keeps an eye on what is waiting to be written to a connection. Once the
+ * channel goes over its write-buffer high water mark it is unwritable, and
+ * depending on the policy intermediate WORK_STATUS packets are dropped
+ * (the next one supersedes them anyway) and whoever is feeding it can be
+ * held back until it is writable again. Past the hard limit the connection
+ * is closed rather than buffering without bound.
+ */
+public class SlowConsumerHandler extends ChannelDuplexHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(SlowConsumerHandler.class);
+
+    public enum Policy {
+        // Buffer everything
+        NONE,
+        // Drop WORK_STATUS while unwritable
+        DROP_STATUS,
+        // Drop WORK_STATUS and stop reading from workers sending to it
+        PAUSE_WORKER
+    }
+
+    private final Settings settings;
+    // Run once the channel is writable (or gone)
+    private final Queue<Runnable> writableCallbacks = new ConcurrentLinkedQueue<>();
+
+    public SlowConsumerHandler(final Settings settings)
+    {
+        this.settings = settings;
+    }
+
+    /**
+     * Run something once the channel can take writes again, right away if it
+     * already can.
+     */
+    public static void whenWritable(final Channel channel, final Runnable callback)
+    {
+        final SlowConsumerHandler handler = channel.pipeline().get(SlowConsumerHandler.class);
+
+        if (handler == null || channel.isWritable() || !channel.isActive())
+        {
+            callback.run();
+            return;
+        }
+
+        handler.writableCallbacks.add(callback);
+
+        // Might have become writable while the callback was being added
+        if (channel.isWritable() || !channel.isActive())
+        {
+            handler.runCallbacks();
+        }
+    }
+
+    public static long pendingOutboundBytes(final Channel channel)
+    {
+        final ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+        return outboundBuffer == null ? 0 : outboundBuffer.totalPendingWriteBytes();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+    {
+        final Channel channel = ctx.channel();
+
+        if (msg instanceof WorkStatus && settings.policy != Policy.NONE && !channel.isWritable())
+        {
+            settings.droppedStatus.mark();
+            promise.trySuccess();
+            return;
+        }
+
+        ctx.write(msg, promise);
+
+        if (channel.isWritable())
+        {
+            return;
+        }
+
+        // Only backed up connections are worth recording
+        final long pending = pendingOutboundBytes(channel);
+        settings.pendingBytes.update(pending);
+
+        if (settings.maxPendingBytes > 0 && pending > settings.maxPendingBytes && channel.isOpen())
+        {
+            LOG.warn("Closing " + channel + ", " + pending + " bytes waiting to be written");
+            settings.disconnects.mark();
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception
+    {
+        if (ctx.channel().isWritable())
+        {
+            runCallbacks();
+        }
+
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception
+    {
+        runCallbacks();
+        ctx.fireChannelInactive();
+    }
+
+    private void runCallbacks()
+    {
+        Runnable callback;
+        while ((callback = writableCallbacks.poll()) != null)
+        {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                LOG.error("Writable callback failed: ", e);
+            }
+        }
+    }
+
+    /**
+     * What every connection's handler shares.
+     */
+    public static class Settings {
+        private final Policy policy;
+        private final long maxPendingBytes;
+        private final Histogram pendingBytes;
+        private final Meter droppedStatus;
+        private final Meter disconnects;
+
+        /**
+         * @param policy What to do while a connection is unwritable
+         * @param maxPendingBytes Bytes waiting to be written past which the
+         *                        connection is closed, 0 for no limit
+         * @param metricRegistry Where to report to
+         */
+        public Settings(final Policy policy,
+                        final long maxPendingBytes,
+                        final MetricRegistry metricRegistry)
+        {
+            this.policy = policy == null ? Policy.NONE : policy;
+            this.maxPendingBytes = maxPendingBytes;
+            this.pendingBytes = metricRegistry.histogram(name("server", "outbound", "pending-bytes"));
+            this.droppedStatus = metricRegistry.meter(name("server", "outbound", "dropped-status"));
+            this.disconnects = metricRegistry.meter(name("server", "outbound", "slow-disconnects"));
+        }
+
+        /**
+         * Buffer everything, never disconnect.
+         */
+        public static Settings none()
+        {
+            return new Settings(Policy.NONE, 0, new MetricRegistry());
+        }
+
+        public Policy getPolicy()
+        {
+            return policy;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package net.johnewart.gearman.server.net;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import net.johnewart.gearman.common.packets.request.EchoRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Finds workers that have hung or whose connection has silently gone away
+ * (e.g. a dropped NAT session), which would otherwise hold on to their jobs
+ * for as long as the connection looks open. Each time a worker has sent
+ * nothing for the probe interval it is sent an ECHO_REQ; once it has missed
+ * enough probes in a row the connection is closed, and the usual disconnect
+ * handling re-enqueues its jobs. Anything the worker sends counts as an
+ * answer. A worker we have stopped reading from (a paused slow consumer)
+ * can't be heard answering, so it isn't probed until reading resumes.
+ *
+ * Off by default, as it relies on workers answering ECHO_REQ from the server,
+ * which isn't part of the Gearman protocol (gearmand never sends one). A
+ * single-threaded worker that doesn't read while running a job only answers
+ * once the job is done, so the probe interval times the missed probes has to
+ * be longer than its longest job.
+ *
+ * Sits after an {@link IdleStateHandler} and the decoder; connections that
+ * are not workers are left alone.
+ */
+public class WorkerLivenessHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerLivenessHandler.class);
+    private static final String PROBE = "liveness";
+
+    private final NetworkManager networkManager;
+    private final Settings settings;
+    private int missedProbes;
+
+    public WorkerLivenessHandler(final NetworkManager networkManager, final Settings settings)
+    {
+        this.networkManager = networkManager;
+        this.settings = settings;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+    {
+        missedProbes = 0;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception
+    {
+        if (evt instanceof IdleStateEvent && ((IdleStateEvent) evt).state() == IdleState.READER_IDLE)
+        {
+            if (!ctx.channel().config().isAutoRead())
+            {
+                // Its answers would sit unread, start counting afresh later
+                missedProbes = 0;
+            }
+            else if (networkManager.isWorker(ctx.channel()))
+            {
+                probe(ctx);
+            }
+            return;
+        }
+
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    private void probe(ChannelHandlerContext ctx)
+    {
+        if (missedProbes >= settings.maxMissedProbes)
+        {
+            LOG.warn("Worker on " + ctx.channel() + " missed " + missedProbes + " probes, disconnecting it");
+            settings.reaped.mark();
+            ctx.close();
+            return;
+        }
+
+        missedProbes++;
+        ctx.writeAndFlush(new EchoRequest(PROBE));
+    }
+
+    /**
+     * What every connection's handler shares.
+     */
+    public static class Settings {
+        private final long probeIntervalSeconds;
+        private final int maxMissedProbes;
+        private final Meter reaped;
+
+        /**
+         * @param probeIntervalSeconds Silence before a worker is probed, 0 to
+         *                             never probe
+         * @param maxMissedProbes Probes a worker can leave unanswered before
+         *                        it is disconnected
+         * @param metricRegistry Where to report to
+         */
+        public Settings(final long probeIntervalSeconds,
+                        final int maxMissedProbes,
+                        final MetricRegistry metricRegistry)
+        {
+            this.probeIntervalSeconds = probeIntervalSeconds;
+            this.maxMissedProbes = Math.max(0, maxMissedProbes);
+            this.reaped = metricRegistry.meter(name("server", "workers", "reaped"));
+        }
+
+        public static Settings none()
+        {
+            return new Settings(0, 0, new MetricRegistry());
+        }
+
+        public boolean isEnabled()
+        {
+            return probeIntervalSeconds > 0;
+        }
+
+        /**
+         * @return Handler that tells the liveness handler a connection has
+         *         been quiet for a probe interval
+         */
+        public IdleStateHandler newIdleStateHandler()
+        {
+            return new IdleStateHandler(probeIntervalSeconds, 0, 0, TimeUnit.SECONDS);
+        }
+    }
+}
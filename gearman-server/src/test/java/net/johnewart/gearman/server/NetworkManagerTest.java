@@ -1,28 +1,43 @@
 package net.johnewart.gearman.server;
 
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import io.netty.util.DefaultAttributeMap;
 import net.johnewart.gearman.common.Job;
 import net.johnewart.gearman.common.interfaces.EngineClient;
 import net.johnewart.gearman.common.interfaces.EngineWorker;
+import net.johnewart.gearman.common.packets.request.OptionRequest;
 import net.johnewart.gearman.common.packets.request.SubmitJob;
+import net.johnewart.gearman.common.packets.response.ErrorResponse;
 import net.johnewart.gearman.common.packets.response.JobAssign;
 import net.johnewart.gearman.common.packets.response.JobCreated;
+import net.johnewart.gearman.common.packets.response.OptionResponse;
 import net.johnewart.gearman.common.packets.response.WorkCompleteResponse;
 import net.johnewart.gearman.common.packets.response.WorkResponse;
 import net.johnewart.gearman.constants.JobPriority;
 import net.johnewart.gearman.engine.core.JobManager;
+import net.johnewart.gearman.engine.exceptions.EnqueueException;
+import net.johnewart.gearman.engine.exceptions.QueueFullException;
+import net.johnewart.gearman.engine.queue.JobQueue;
 import net.johnewart.gearman.server.net.NetworkEngineClient;
 import net.johnewart.gearman.server.net.NetworkManager;
 import net.johnewart.gearman.server.net.NetworkEngineWorker;
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
 import org.hamcrest.core.Is;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 public class NetworkManagerTest {
     private JobManager mockJobManager;
     private Channel mockClientChannel, mockWorkerChannel;
@@ -39,9 +54,9 @@ public class NetworkManagerTest {
     public void initialize()
     {
         mockJobManager = Mockito.mock(JobManager.class);
-        mockClientChannel = Mockito.mock(Channel.class);
+        mockClientChannel = mockChannel();
 
-        mockWorkerChannel = Mockito.mock(Channel.class);
+        mockWorkerChannel = mockChannel();
 
         networkManager = new NetworkManager(mockJobManager);
         client = new NetworkEngineClient(mockClientChannel);
@@ -49,6 +64,26 @@ public class NetworkManagerTest {
 
     }
 
+    // Channel mock that keeps real attributes, that's where connection state
+    // lives, and whose event loop is the calling thread
+    private static Channel mockChannel()
+    {
+        final Channel channel = Mockito.mock(Channel.class);
+        final DefaultAttributeMap attributes = new DefaultAttributeMap();
+        final EventLoop eventLoop = Mockito.mock(EventLoop.class);
+
+        Mockito.when(eventLoop.inEventLoop()).thenReturn(true);
+        Mockito.when(channel.eventLoop()).thenReturn(eventLoop);
+
+        Mockito.when(channel.attr(Matchers.any(AttributeKey.class))).thenAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) {
+                return attributes.attr((AttributeKey) invocation.getArguments()[0]);
+            }
+        });
+
+        return channel;
+    }
+
     @Test
     public void sendsJobCreatedPacketToClient() throws Exception
     {
@@ -66,6 +101,71 @@ public class NetworkManagerTest {
 
     }
 
+    @Test
+    public void sendsErrorToClientWhenQueueIsFull() throws Exception
+    {
+        Mockito.when(mockJobManager.storeJobForClient(Matchers.any(Job.class), Matchers.any(EngineClient.class)))
+                .thenThrow(new EnqueueException(new QueueFullException()));
+
+        networkManager.createJob(new SubmitJob("bigJob", "rincewind", new byte[] {'b','a','r'}, false), mockClientChannel);
+
+        Mockito.verify(mockClientChannel).writeAndFlush(Matchers.argThat(new BaseMatcher<Object>() {
+            public boolean matches(Object item) {
+                return item instanceof ErrorResponse && ((ErrorResponse) item).getErrorCode().equals("ERR_QUEUE_FULL");
+            }
+
+            public void describeTo(Description description) {
+                description.appendText("ERR_QUEUE_FULL");
+            }
+        }));
+    }
+
+    @Test
+    public void pausesClientUntilFullQueueDrains() throws Exception
+    {
+        final ChannelConfig config = Mockito.mock(ChannelConfig.class);
+        final JobQueue jobQueue = Mockito.mock(JobQueue.class);
+        Mockito.when(mockClientChannel.config()).thenReturn(config);
+        Mockito.when(config.isAutoRead()).thenReturn(true);
+        final ConcurrentHashMap<String, JobQueue> jobQueues = new ConcurrentHashMap<>();
+        jobQueues.put("bigJob", jobQueue);
+        Mockito.when(mockJobManager.getJobQueues()).thenReturn(jobQueues);
+        Mockito.when(mockJobManager.storeJobForClient(Matchers.any(Job.class), Matchers.any(EngineClient.class)))
+                .thenThrow(new EnqueueException(new QueueFullException()));
+
+        networkManager = new NetworkManager(mockJobManager, true);
+        networkManager.createJob(new SubmitJob("bigJob", "rincewind", new byte[] {'b','a','r'}, false), mockClientChannel);
+
+        Mockito.verify(config).setAutoRead(false);
+        Mockito.verify(config, Mockito.never()).setAutoRead(true);
+
+        final ArgumentCaptor<Runnable> drained = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(jobQueue).whenDrained(drained.capture());
+        drained.getValue().run();
+        Mockito.verify(config).setAutoRead(true);
+    }
+
+    @Test
+    public void grantsPushCreditsThroughOptionRequest() throws Exception
+    {
+        networkManager.handleOptionRequest(new OptionRequest("credits=4"), mockWorkerChannel);
+
+        // Not an echo, which any server would send
+        final ArgumentCaptor<OptionResponse> response = ArgumentCaptor.forClass(OptionResponse.class);
+        Mockito.verify(mockWorkerChannel).writeAndFlush(response.capture());
+        Assert.assertEquals("credits=4;ok", response.getValue().getOption());
+        Mockito.verify(mockJobManager).setWorkerCredits(Matchers.any(NetworkEngineWorker.class), Matchers.eq(4));
+    }
+
+    @Test
+    public void rejectsMalformedPushCredits() throws Exception
+    {
+        networkManager.handleOptionRequest(new OptionRequest("credits=lots"), mockWorkerChannel);
+
+        Mockito.verify(mockWorkerChannel).writeAndFlush(Matchers.any(ErrorResponse.class));
+        Mockito.verify(mockJobManager, Mockito.never()).setWorkerCredits(Matchers.any(NetworkEngineWorker.class), Matchers.anyInt());
+    }
+
     @Test
     public void sendWorkCompleteResponseToClientWhenFinished() throws Exception
     {
@@ -215,6 +315,27 @@ public class NetworkManagerTest {
 
     }
 
+    @Test
+    public void handleChannelThatIsBothClientAndWorkerDisconnected() throws Exception
+    {
+        final Job job = new Job("bigJob", "rincewind", new byte[] {'b','a','r'}, JobPriority.NORMAL, false);
+        Mockito.when(mockJobManager.storeJobForClient(Matchers.any(Job.class), Matchers.any(EngineClient.class))).thenReturn(job);
+
+        networkManager.createJob(new SubmitJob("bigJob", "rincewind", job.getData(), false), mockClientChannel);
+        networkManager.registerAbility("bigJob", mockClientChannel);
+
+        networkManager.channelDisconnected(mockClientChannel);
+
+        Mockito.verify(mockJobManager).unregisterWorker(Matchers.any(EngineWorker.class));
+        Mockito.verify(mockJobManager).unregisterClient(Matchers.any(EngineClient.class));
+        Assert.assertThat(networkManager.getWorkerList().size(), Is.is(0));
+        Assert.assertThat(networkManager.getClientList().size(), Is.is(0));
+
+        // Nothing left to unregister the second time around
+        networkManager.channelDisconnected(mockClientChannel);
+        Mockito.verify(mockJobManager).unregisterWorker(Matchers.any(EngineWorker.class));
+    }
+
     @Test
     public void handleWorkerSendsWorkData() throws Exception
     {
@@ -1,82 +1,108 @@
 package net.johnewart.gearman.server.net;
 
 import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
-import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyInt;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.spy;
-import static org.mockito.Mockito.when;
+import static org.junit.Assert.assertTrue;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 
-import net.johnewart.gearman.server.net.Decoder;
+import net.johnewart.gearman.common.packets.request.SubmitJob;
+import net.johnewart.gearman.constants.JobPriority;
 import org.junit.Test;
-import org.mockito.invocation.InvocationOnMock;
-import org.mockito.stubbing.Answer;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
 import net.johnewart.gearman.common.packets.Packet;
 import net.johnewart.gearman.common.packets.request.EchoRequest;
 import net.johnewart.gearman.constants.PacketType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class DecoderTest {
+    private static Logger LOG = LoggerFactory.getLogger(DecoderTest.class);
+
     @Test
     public void decodeBinaryPacket() throws Exception {
-        Decoder d = spy(new Decoder());
-        ByteBuf mockBuffer = mock(ByteBuf.class);
-        ChannelHandlerContext mockCtx = mock(ChannelHandlerContext.class);
-        List<Object> decodedObjects = new LinkedList<>();
-
-        EchoRequest echoPacket = new EchoRequest("OHAI");
-        byte zeroByte = 0;
-        final byte[] packetData = echoPacket.toByteArray();
-
-        when(mockBuffer.readByte()).thenReturn(zeroByte);
-        when(mockBuffer.readBytes(any(byte[].class), anyInt(), anyInt())).then(new Answer<Object>() {
-            @Override
-            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
-                byte[] buf = (byte[]) invocationOnMock.getArguments()[0];
-                int offset = (Integer) invocationOnMock.getArguments()[1];
-                int size = (Integer) invocationOnMock.getArguments()[2];
-                for(int i = 0; i < size; i++) {
-                    buf[offset+i] = packetData[offset+i];
-                }
-                return null;
-            }
-        });
+        EmbeddedChannel channel = new EmbeddedChannel(new Decoder());
 
-        d.decode(mockCtx, mockBuffer, decodedObjects);
+        channel.writeInbound(Unpooled.wrappedBuffer(new EchoRequest("OHAI").toByteArray()));
 
-        assertThat(decodedObjects.size(), is(1));
-        Packet p = (Packet)decodedObjects.get(0);
+        Packet p = channel.readInbound();
         assertThat(p.getType(), is(PacketType.ECHO_REQ));
+        assertNull(channel.readInbound());
     }
 
     @Test
     public void decodeTextPacket() throws Exception {
-        Decoder d = spy(new Decoder());
-        ByteBuf mockBuffer = mock(ByteBuf.class);
-        ChannelHandlerContext mockCtx = mock(ChannelHandlerContext.class);
-        List<Object> decodedObjects = new LinkedList<>();
-
-        final byte[] commandMessage = {'S','T','A','T','U','S',10};
-
-        final AtomicInteger byteCounter = new AtomicInteger(0);
-        when(mockBuffer.readByte()).thenAnswer(new Answer<Object>() {
-            @Override
-            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
-                return commandMessage[byteCounter.getAndIncrement()];
-            }
-        });
+        EmbeddedChannel channel = new EmbeddedChannel(new Decoder());
 
-        d.decode(mockCtx, mockBuffer, decodedObjects);
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[] {'S','T','A','T','U','S',10}));
 
-        assertThat(decodedObjects.size(), is(1));
-        String command = (String)decodedObjects.get(0);
+        String command = channel.readInbound();
         assertThat(command, is("STATUS"));
     }
+
+    @Test
+    public void decodesPacketsSplitAcrossReads() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new Decoder());
+        byte[] data = {1, 0, 2, 0, 3};
+        byte[] submit = new SubmitJob("reverse", "unique", data, true, JobPriority.HIGH).toByteArray();
+        byte[] echo = new EchoRequest("OHAI").toByteArray();
+
+        byte[] stream = Arrays.copyOf(submit, submit.length + echo.length + 7);
+        System.arraycopy(echo, 0, stream, submit.length, echo.length);
+        System.arraycopy(new byte[] {'W','O','R','K','E','R','S'}, 0, stream, submit.length + echo.length, 7);
+
+        // Header split in half, then the rest of the first packet together
+        // with the second one
+        channel.writeInbound(Unpooled.wrappedBuffer(stream, 0, 6));
+        assertNull(channel.readInbound());
+        channel.writeInbound(Unpooled.wrappedBuffer(stream, 6, stream.length - 6));
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[] {10}));
+
+        SubmitJob submitJob = channel.readInbound();
+        assertThat(submitJob.getType(), is(PacketType.SUBMIT_JOB_HIGH_BG));
+        assertThat(submitJob.getFunctionName(), is("reverse"));
+        assertThat(submitJob.getUniqueId(), is("unique"));
+        assertThat(submitJob.isBackground(), is(true));
+        assertArrayEquals(data, submitJob.getData());
+        assertArrayEquals(submit, submitJob.toByteArray());
+
+        Packet echoRequest = channel.readInbound();
+        assertThat(echoRequest.getType(), is(PacketType.ECHO_REQ));
+
+        String command = channel.readInbound();
+        assertThat(command, is("WORKERS"));
+    }
+
+    @Test
+    public void allocatesLittleMoreThanTheJobDataPerSubmission() throws Exception {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final int packets = 10000;
+
+        for (int size : new int[] {64, 4096, 65536}) {
+            final byte[] packet = new SubmitJob("reverse", "unique", new byte[size], true).toByteArray();
+            final EmbeddedChannel channel = new EmbeddedChannel(new Decoder());
+            long allocated = 0;
+
+            // Second round is measured, once everything is warmed up
+            for (int round = 0; round < 2; round++) {
+                final long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                for (int i = 0; i < packets; i++) {
+                    channel.writeInbound(Unpooled.wrappedBuffer(packet));
+                    channel.readInbound();
+                }
+                allocated = (threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / packets;
+            }
+
+            LOG.info(String.format("SUBMIT_JOB with %d bytes of data: %d bytes allocated per packet", size, allocated));
+
+            // One copy of the data plus a fixed amount, the old decoder made three
+            assertTrue("Allocated " + allocated + " bytes", allocated < size + 4096);
+        }
+    }
 }
@@ -1,12 +1,25 @@
 package net.johnewart.gearman.server.net;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
 import net.johnewart.gearman.common.packets.Packet;
+import net.johnewart.gearman.common.packets.SharedPacket;
 import net.johnewart.gearman.common.packets.request.EchoRequest;
+import net.johnewart.gearman.common.packets.response.JobAssign;
+import net.johnewart.gearman.common.packets.response.JobAssignUniq;
+import net.johnewart.gearman.common.packets.response.JobCreated;
+import net.johnewart.gearman.common.packets.response.NoJob;
+import net.johnewart.gearman.common.packets.response.NoOp;
+import net.johnewart.gearman.common.packets.response.WorkCompleteResponse;
+import net.johnewart.gearman.common.packets.response.WorkExceptionResponse;
 import net.johnewart.gearman.server.net.Encoder;
 import org.junit.Test;
 
 import java.util.Arrays;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 
 public class EncoderTest {
@@ -25,4 +38,91 @@ public class EncoderTest {
         byte[] channelDataBytes = Encoder.encodeString(stringToEncode);
         assertTrue(Arrays.equals(stringToEncode.getBytes(), channelDataBytes));
     }
+
+    @Test
+    public void writesPacketsTheSameAsToByteArray()
+    {
+        byte[] small = {1, 2, 3};
+        byte[] large = new byte[8192];
+        Arrays.fill(large, (byte) 7);
+
+        Packet[] packets = {
+                new JobAssign("H:localhost:1", "reverse", small),
+                new JobAssign("H:localhost:2", "reverse", large),
+                new JobAssignUniq("H:localhost:3", "reverse", "unique", large),
+                new WorkCompleteResponse("H:localhost:4", large),
+                new WorkExceptionResponse("H:localhost:5", small),
+                new JobCreated("H:localhost:6"),
+                new NoOp(),
+                new NoJob(),
+                new EchoRequest("ok")
+        };
+
+        EmbeddedChannel channel = new EmbeddedChannel(new Encoder());
+
+        for (Packet packet : packets)
+        {
+            channel.writeOutbound(packet);
+            ByteBuf encoded = channel.readOutbound();
+            assertTrue(packet.getType().toString(),
+                    Arrays.equals(packet.toByteArray(), ByteBufUtil.getBytes(encoded)));
+            encoded.release();
+        }
+    }
+
+    @Test
+    public void sendsLargeDataWithoutCopyingIt()
+    {
+        WorkCompleteResponse packet = new WorkCompleteResponse("H:localhost:1", new byte[8192]);
+        EmbeddedChannel channel = new EmbeddedChannel(new Encoder());
+
+        channel.writeOutbound(packet);
+        ByteBuf encoded = channel.readOutbound();
+
+        assertTrue(encoded instanceof CompositeByteBuf);
+        CompositeByteBuf composite = (CompositeByteBuf) encoded;
+        assertEquals(2, composite.numComponents());
+        assertTrue(composite.component(1).hasArray());
+        assertTrue(composite.component(1).array() == packet.getData());
+        encoded.release();
+    }
+
+    @Test
+    public void sharesConstantPackets()
+    {
+        EmbeddedChannel channel = new EmbeddedChannel(new Encoder());
+
+        for (int i = 0; i < 3; i++)
+        {
+            channel.writeOutbound(new NoOp());
+            ByteBuf encoded = channel.readOutbound();
+            assertTrue(Arrays.equals(new NoOp().toByteArray(), ByteBufUtil.getBytes(encoded)));
+            // Releasing a shared packet must not free it for the next send
+            encoded.release();
+        }
+    }
+
+    @Test
+    public void sendsSharedPacketsToEveryChannelFromOneEncoding()
+    {
+        WorkCompleteResponse packet = new WorkCompleteResponse("H:localhost:1", new byte[8192]);
+        byte[] expected = packet.toByteArray();
+
+        try (SharedPacket<WorkCompleteResponse> shared = new SharedPacket<>(packet))
+        {
+            for (int i = 0; i < 3; i++)
+            {
+                EmbeddedChannel channel = new EmbeddedChannel(new Encoder());
+                ByteBuf buffer = shared.retainedBuffer();
+
+                channel.writeOutbound(buffer);
+                ByteBuf encoded = channel.readOutbound();
+
+                // Passed along untouched
+                assertTrue(encoded == buffer);
+                assertTrue(Arrays.equals(expected, ByteBufUtil.getBytes(encoded)));
+                encoded.release();
+            }
+        }
+    }
 }
@@ -0,0 +1,96 @@
+package net.johnewart.gearman.server.net;
+
+import com.codahale.metrics.MetricRegistry;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketDispatcherTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    @Test
+    public void handlesInlineOnTheCallingThread() throws Exception {
+        PacketDispatcher dispatcher = new PacketDispatcher(PacketDispatcher.ExecutionModel.INLINE, 4, metricRegistry);
+        List<Thread> threads = new ArrayList<>();
+
+        dispatcher.newChannelQueue(new EmbeddedChannel()).execute("reverse", () -> threads.add(Thread.currentThread()));
+
+        assertEquals(Collections.singletonList(Thread.currentThread()), threads);
+    }
+
+    @Test
+    public void keepsEachChannelInOrderAcrossFunctions() throws Exception {
+        for (PacketDispatcher.ExecutionModel model : new PacketDispatcher.ExecutionModel[] {
+                PacketDispatcher.ExecutionModel.POOLED, PacketDispatcher.ExecutionModel.PER_FUNCTION }) {
+            PacketDispatcher dispatcher = new PacketDispatcher(model, 4, metricRegistry);
+            int channels = 8, packets = 500;
+            CountDownLatch done = new CountDownLatch(channels * packets);
+            List<List<Integer>> handled = new ArrayList<>();
+
+            for (int c = 0; c < channels; c++) {
+                List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+                handled.add(order);
+                PacketDispatcher.ChannelQueue queue = dispatcher.newChannelQueue(new EmbeddedChannel());
+
+                for (int p = 0; p < packets; p++) {
+                    final int packet = p;
+                    // Spread over a few functions and no function at all
+                    String functionName = p % 4 == 0 ? null : "function-" + (p % 3);
+                    queue.execute(functionName, () -> {
+                        order.add(packet);
+                        done.countDown();
+                    });
+                }
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            for (List<Integer> order : handled) {
+                for (int p = 0; p < packets; p++) {
+                    assertEquals(model + " handled out of order", p, (int) order.get(p));
+                }
+            }
+
+            dispatcher.stop();
+        }
+
+        assertEquals(2 * 8 * 500, metricRegistry.timer("server.dispatch.delay").getCount());
+        assertEquals(0, metricRegistry.counter("server.dispatch.pending").getCount());
+    }
+
+    @Test
+    public void stopsReadingFromAChannelWhileItsPacketsBackUp() throws Exception {
+        PacketDispatcher dispatcher = new PacketDispatcher(PacketDispatcher.ExecutionModel.POOLED, 1, metricRegistry);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        PacketDispatcher.ChannelQueue queue = dispatcher.newChannelQueue(channel);
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(100);
+
+        // A stuck engine call holds everything up behind it
+        queue.execute(null, () -> {
+            try {
+                stalled.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int p = 0; p < 100; p++) {
+            queue.execute("reverse", done::countDown);
+        }
+        assertFalse(channel.config().isAutoRead());
+
+        stalled.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(channel.config().isAutoRead());
+
+        dispatcher.stop();
+    }
+}
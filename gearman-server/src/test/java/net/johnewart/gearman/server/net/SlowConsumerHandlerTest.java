@@ -0,0 +1,70 @@
+package net.johnewart.gearman.server.net;
+
+import com.codahale.metrics.MetricRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import net.johnewart.gearman.common.packets.response.WorkDataResponse;
+import net.johnewart.gearman.common.packets.response.WorkStatus;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SlowConsumerHandlerTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    private EmbeddedChannel channel(SlowConsumerHandler.Policy policy, long maxPendingBytes) {
+        EmbeddedChannel channel = new EmbeddedChannel(new Encoder(),
+                new SlowConsumerHandler(new SlowConsumerHandler.Settings(policy, maxPendingBytes, metricRegistry)));
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(16, 32));
+        return channel;
+    }
+
+    @Test
+    public void dropsStatusWhileUnwritable() throws Exception {
+        EmbeddedChannel channel = channel(SlowConsumerHandler.Policy.DROP_STATUS, 0);
+        AtomicInteger resumed = new AtomicInteger();
+
+        // Not flushed, so it sits in the outbound buffer
+        channel.write(new WorkDataResponse("H:1", new byte[100]));
+        assertFalse(channel.isWritable());
+
+        ChannelFuture status = channel.write(new WorkStatus("H:1", 1, 2));
+        assertTrue(status.isSuccess());
+
+        SlowConsumerHandler.whenWritable(channel, resumed::incrementAndGet);
+        assertEquals(0, resumed.get());
+
+        channel.flush();
+        channel.runPendingTasks();
+        assertTrue(channel.isWritable());
+        assertEquals(1, resumed.get());
+
+        // Only the data made it out
+        ((ByteBuf) channel.readOutbound()).release();
+        assertNull(channel.readOutbound());
+        assertEquals(1, metricRegistry.meter("server.outbound.dropped-status").getCount());
+
+        // Writable again, status gets through
+        channel.writeAndFlush(new WorkStatus("H:1", 2, 2));
+        ((ByteBuf) channel.readOutbound()).release();
+    }
+
+    @Test
+    public void closesConnectionsPastTheHardLimit() throws Exception {
+        EmbeddedChannel channel = channel(SlowConsumerHandler.Policy.NONE, 1024);
+
+        channel.write(new WorkDataResponse("H:1", new byte[600]));
+        assertTrue(channel.isOpen());
+
+        channel.write(new WorkDataResponse("H:1", new byte[600]));
+        assertFalse(channel.isOpen());
+        assertEquals(1, metricRegistry.meter("server.outbound.slow-disconnects").getCount());
+    }
+}
@@ -0,0 +1,110 @@
+package net.johnewart.gearman.server.net;
+
+import com.codahale.metrics.MetricRegistry;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleStateEvent;
+import net.johnewart.gearman.common.interfaces.EngineWorker;
+import net.johnewart.gearman.common.packets.request.EchoRequest;
+import net.johnewart.gearman.common.packets.request.PreSleep;
+import net.johnewart.gearman.engine.core.JobManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WorkerLivenessHandlerTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    private JobManager jobManager;
+    private NetworkManager networkManager;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void initialize() {
+        jobManager = Mockito.mock(JobManager.class);
+        networkManager = new NetworkManager(jobManager);
+        channel = new EmbeddedChannel(
+                new WorkerLivenessHandler(networkManager, new WorkerLivenessHandler.Settings(5, 2, metricRegistry)),
+                new PacketHandler(networkManager));
+    }
+
+    private void idle() {
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+    }
+
+    @Test
+    public void leavesClientsAlone() throws Exception {
+        idle();
+        idle();
+        idle();
+
+        assertNull(channel.readOutbound());
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void probesIdleWorkersUntilTheyAnswer() throws Exception {
+        networkManager.registerAbility("reverse", channel);
+
+        idle();
+        assertTrue(channel.readOutbound() instanceof EchoRequest);
+        idle();
+        assertTrue(channel.readOutbound() instanceof EchoRequest);
+
+        // Anything the worker sends means it's alive
+        channel.writeInbound(new PreSleep());
+
+        idle();
+        assertTrue(channel.readOutbound() instanceof EchoRequest);
+        idle();
+        assertTrue(channel.readOutbound() instanceof EchoRequest);
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void reapsWorkersThatMissTooManyProbes() throws Exception {
+        networkManager.registerAbility("reverse", channel);
+
+        idle();
+        idle();
+        assertTrue(channel.isOpen());
+
+        idle();
+        channel.runPendingTasks();
+        assertFalse(channel.isOpen());
+
+        // Its jobs go back on the queues through the usual disconnect path
+        Mockito.verify(jobManager).unregisterWorker(Matchers.any(EngineWorker.class));
+        assertEquals(1, metricRegistry.meter("server.workers.reaped").getCount());
+    }
+
+    @Test
+    public void leavesPausedWorkersAlone() throws Exception {
+        networkManager.registerAbility("reverse", channel);
+
+        idle();
+        idle();
+        assertTrue(channel.readOutbound() instanceof EchoRequest);
+        assertTrue(channel.readOutbound() instanceof EchoRequest);
+
+        // Not reading from it, so it can't be heard answering
+        channel.config().setAutoRead(false);
+        idle();
+        idle();
+        idle();
+        assertNull(channel.readOutbound());
+        assertTrue(channel.isOpen());
+
+        // Reading again, with a clean slate
+        channel.config().setAutoRead(true);
+        idle();
+        idle();
+        channel.runPendingTasks();
+        assertTrue(channel.isOpen());
+    }
+}